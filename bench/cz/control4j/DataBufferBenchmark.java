@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.control4j;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the access to the data buffer, both the signal objects and the
+ * primitive form.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataBufferBenchmark {
+
+  /** Number of signals of one module. */
+  private static final int SIGNALS = 8;
+
+  private DataBuffer buffer;
+
+  private int[] map;
+
+  private Signal[] signals;
+
+  private Signal[] crate;
+
+  @Setup
+  public void setup() {
+    buffer = new DataBuffer(1000);
+    map = new int[SIGNALS];
+    signals = new Signal[SIGNALS];
+    crate = new Signal[SIGNALS];
+    for (int i = 0; i < SIGNALS; i++) {
+      map[i] = i * 97 % 1000;
+      signals[i] = Signal.getSignal(i);
+    }
+    buffer.put(signals, map);
+  }
+
+  @Benchmark
+  public Signal[] get() {
+    return buffer.get(map, crate);
+  }
+
+  @Benchmark
+  public DataBuffer put() {
+    buffer.put(signals, map);
+    return buffer;
+  }
+
+  @Benchmark
+  public double getValue() {
+    double sum = 0.0;
+    for (int i = 0; i < SIGNALS; i++) {
+      sum += buffer.getValue(map[i]);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public DataBuffer putValue() {
+    for (int i = 0; i < SIGNALS; i++) {
+      buffer.putValue(map[i], i);
+    }
+    return buffer;
+  }
+
+}
@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.control4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures one scan of the control loop over a synthetic application. The
+ * application is a layered graph, the first layer consists of sources, each
+ * module of the other layers sums two signals of the previous layer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+
+  /** Number of modules of each layer. */
+  private static final int WIDTH = 16;
+
+  @Param({"100", "1000", "10000"})
+  public int modules;
+
+  @Param({"sequential", "parallel"})
+  public String scanMode;
+
+  @Param({"true", "false"})
+  public String profiling;
+
+  private ControlLoop loop;
+
+  @Setup
+  public void setup() {
+    List<ModuleCrate> crates = new ArrayList<>(modules);
+    for (int i = 0; i < modules; i++) {
+      if (i < WIDTH) {
+        crates.add(ModuleCrate.create(new Source(i), null, new int[] {i}));
+      } else {
+        crates.add(ModuleCrate.create(new Sum(),
+            new int[] {i - WIDTH, i - WIDTH + 1}, new int[] {i}));
+      }
+    }
+    loop = new ControlLoop()
+        .set("cycle-period", "0")
+        .set("scan-start-delay", "0")
+        .set("scan-mode", scanMode)
+        .set("profiling", profiling);
+    loop.start(crates, modules);
+  }
+
+  @TearDown
+  public void tearDown() {
+    loop.shutdown();
+  }
+
+  @Benchmark
+  public void scan() {
+    loop.scan();
+  }
+
+  /** Provides constant signal. */
+  public static class Source extends OutputModule {
+
+    private final double value;
+
+    Source(double value) {
+      this.value = value;
+    }
+
+    @Override
+    protected void get(Signal[] output, int outputLength) {
+      output[0] = Signal.getSignal(value);
+    }
+
+  }
+
+  /** Sums two signals. */
+  public static class Sum extends ProcessModule {
+
+    @Override
+    public void process(
+        Signal[] input, int inputLength, Signal[] output, int outputLength) {
+      output[0] = input[0].isValid() && input[1].isValid()
+          ? Signal.getSignal(input[0].getValue() + input[1].getValue())
+          : Signal.getSignal();
+    }
+
+  }
+
+}
@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.control4j;
+
+import cz.lidinsky.spinel.SpinelMessage;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the conversion between signals and spinel messages, one
+ * signal per message and the batch of {@link #BATCH} signals encoded by
+ * the {@link SpinelCodec}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpinelBenchmark {
+
+  private Signal signal;
+
+  private SpinelMessage message;
+
+  static final int BATCH = 100;
+
+  private byte[][] prefixes;
+
+  private Signal[] signals;
+
+  private ByteBuffer buffer;
+
+  @Setup
+  public void setup() {
+    signal = Signal.getSignal(21.5);
+    message = SignalUtils.toSpinel(0x31, 0xfe, "temp", signal);
+    prefixes = new byte[BATCH][];
+    signals = new Signal[BATCH];
+    for (int i = 0; i < BATCH; i++) {
+      prefixes[i] = SpinelCodec.prefix("sig" + i);
+      signals[i] = Signal.getSignal(i * 0.5);
+    }
+    buffer = ByteBuffer.allocateDirect(BATCH * SpinelCodec.RECORD_SIZE);
+    encodeBatch();
+  }
+
+  @Benchmark
+  public SpinelMessage toSpinel() {
+    return SignalUtils.toSpinel(0x31, 0xfe, "temp", signal);
+  }
+
+  @Benchmark
+  public Signal fromSpinel() {
+    return SignalUtils.fromSpinel(message);
+  }
+
+  @Benchmark
+  public ByteBuffer encodeBatch() {
+    buffer.clear();
+    SpinelCodec.putAll(buffer, prefixes, 1234567890123L, signals, 0, BATCH);
+    return buffer;
+  }
+
+  @Benchmark
+  public double decodeBatch() {
+    double sum = 0;
+    for (int i = 0; i < BATCH; i++) {
+      if (SpinelCodec.isValid(buffer, i)) {
+        sum += SpinelCodec.getValue(buffer, i);
+      }
+    }
+    return sum;
+  }
+
+}
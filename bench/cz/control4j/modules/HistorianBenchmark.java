@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.control4j.modules;
+
+import cz.control4j.Signal;
+import cz.control4j.application.IO;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the path of one sample from the historian module into the file
+ * writer. The history files are stored into a temporary directory.
+ *
+ * <p>Each iteration is a single batch of samples and the historian buffer
+ * is large enough to hold all of them, so no sample is dropped and the
+ * append path is measured even if the writer thread doesn't keep up. A
+ * new historian is started for each iteration and closed after it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+public class HistorianBenchmark {
+
+  /** Number of samples in one iteration. */
+  static final int BATCH = 1 << 16;
+
+  @Param({"8", "64"})
+  public int signals;
+
+  private Path directory;
+
+  private IMHistorian historian;
+
+  private Signal[] input;
+
+  @Setup(Level.Trial)
+  public void createDirectory() throws IOException {
+    directory = Files.createTempDirectory("control4j-bench");
+    System.setProperty("HISTORIAN_PATH", directory.toString());
+    input = new Signal[signals];
+    for (int i = 0; i < signals; i++) {
+      input[i] = i % 8 == 0 ? Signal.getSignal() : Signal.getSignal(i);
+    }
+  }
+
+  @Setup(Level.Iteration)
+  public void setup() {
+    historian = new IMHistorian();
+    historian.setCapacity(2 * BATCH);
+    historian.initialize();
+    for (int i = 0; i < signals; i++) {
+      historian.getInputIndex(new IO(historian, "signal" + i));
+    }
+    historian.prepare();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public void put() {
+    for (int i = 0; i < BATCH; i++) {
+      historian.put(input, signals);
+    }
+  }
+
+  @TearDown(Level.Iteration)
+  public void close() {
+    historian.close();
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteDirectory() throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+        try {
+          Files.delete(path);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    }
+  }
+
+}
@@ -0,0 +1,505 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.control4j;
+
+import cz.control4j.application.Connection;
+import cz.control4j.application.IO;
+import cz.lidinsky.tools.CommonException;
+import cz.lidinsky.tools.ExceptionCode;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The compiled form of the application. It contains everything that is
+ * necessary to create the module crates: class names and properties of the
+ * modules in the sorted order, the IO maps and the task definitions. So
+ * the application may be started without the XML parsing, preprocessing,
+ * sorting and building.
+ *
+ * <p>The snapshot is bound to the source file by the SHA-256 checksum of
+ * its content. If the source changes, the snapshot is not loaded. It is
+ * bound to the module classes as well, by the fingerprint of the class
+ * files of the modules, their superclasses and the classes which resolve
+ * the IO indexes; the IO maps depend on the {@link Input} and
+ * {@link Output} annotations of the classes, so the snapshot is not loaded
+ * after the upgrade which changes any of them. The structure of the file is
+ * as follows:
+ * <ol>
+ *   <li>long: identifier C4JAPP01</li>
+ *   <li>int: version of the format</li>
+ *   <li>byte[32]: checksum of the source file</li>
+ *   <li>byte[32]: fingerprint of the classes</li>
+ *   <li>int: size of the data buffer</li>
+ *   <li>int: number of tasks, than name, period and priority of each
+ *   task</li>
+ *   <li>int: number of modules, than for each module in the sorted order:
+ *     <ol>
+ *       <li>String: class name</li>
+ *       <li>int: number of properties, than key and value of each
+ *       property</li>
+ *       <li>int: number of declared inputs and outputs</li>
+ *       <li>int[]: input map, output map</li>
+ *       <li>int: size of the input and output array</li>
+ *       <li>int: number of input IO objects, than key and properties of
+ *       each of them; only for input modules</li>
+ *     </ol>
+ *   </li>
+ * </ol>
+ *
+ * <p>Strings which may be null are preceded by a boolean flag, arrays
+ * which may be null have length -1.
+ */
+class ApplicationSnapshot {
+
+  /** C4JAPP01 */
+  static final long IDENTIFIER = 0x43344A4150503031L;
+
+  /** Version of the format; snapshots of other versions are not loaded. */
+  static final int VERSION = 2;
+
+  /**
+   * Classes which resolve the IO indexes of the modules, they are part of
+   * the fingerprint.
+   */
+  private static final Class<?>[] RESOLVERS = {
+    Builder.class, ModuleUtils.class, ModuleCrate.class};
+
+  /** Checksum of the source file. */
+  private final byte[] checksum;
+
+  /** Number of signals. */
+  private final int bufferSize;
+
+  private final List<Task> tasks;
+
+  private final List<ModuleRecord> modules;
+
+  private ApplicationSnapshot(byte[] checksum, int bufferSize,
+      List<Task> tasks, List<ModuleRecord> modules) {
+    this.checksum = checksum;
+    this.bufferSize = bufferSize;
+    this.tasks = tasks;
+    this.modules = modules;
+  }
+
+  /**
+   * Creates the snapshot of the application which was loaded from the
+   * source file.
+   *
+   * @param checksum
+   *            checksum of the source file, see {@link #checksum}
+   *
+   * @param crates
+   *            the built application, modules in the sorted order
+   *
+   * @param connections
+   *            connections between modules
+   *
+   * @param tasks
+   *            task definitions
+   *
+   * @param bufferSize
+   *            number of signals
+   *
+   * @return the snapshot
+   */
+  static ApplicationSnapshot create(byte[] checksum, List<ModuleCrate> crates,
+      Collection<Connection> connections, List<Task> tasks, int bufferSize) {
+
+    // IO of each module, in the order the builder asked for indices
+    Map<Module, List<IO>> inputs = new HashMap<>();
+    Map<Module, Integer> outputs = new HashMap<>();
+    for (Connection connection : connections) {
+      outputs.merge(connection.getProducer().getModule(), 1, Integer::sum);
+      for (IO input : connection.getConsumers()) {
+        inputs.computeIfAbsent(input.getModule(), m -> new ArrayList<>())
+            .add(input);
+      }
+    }
+
+    List<ModuleRecord> modules = new ArrayList<>(crates.size());
+    for (ModuleCrate crate : crates) {
+      Module module = crate.getModule();
+      List<IO> moduleInputs = inputs.getOrDefault(module, new ArrayList<>());
+      ModuleRecord record = new ModuleRecord();
+      record.className = module.getClass().getName();
+      record.properties = new ArrayList<>();
+      module.getConfiguration().forEach(property -> record.properties.add(
+          new String[] {property.getKey(), property.getValue()}));
+      record.declaredInput = moduleInputs.size();
+      record.declaredOutput = outputs.getOrDefault(module, 0);
+      record.inputMap = module instanceof OutputModule
+          ? null : crate.getInputMap();
+      record.outputMap = module instanceof InputModule
+          ? null : crate.getOutputMap();
+      record.inputSize = Builder.getInputSize(module);
+      record.outputSize = Builder.getOutputSize(module);
+      record.inputs = new ArrayList<>();
+      if (module instanceof InputModule) {
+        for (IO input : moduleInputs) {
+          List<String[]> io = new ArrayList<>();
+          io.add(new String[] {input.getKey(), null});
+          for (String key : input.getKeys()) {
+            io.add(new String[] {key, input.getValue(key)});
+          }
+          record.inputs.add(io);
+        }
+      }
+      modules.add(record);
+    }
+    return new ApplicationSnapshot(
+        checksum.clone(), bufferSize, new ArrayList<>(tasks), modules);
+  }
+
+  /**
+   * Creates instances of modules, configures them and wraps them into the
+   * crates.
+   *
+   * @return modules in the sorted order wrapped into the crates
+   *
+   * @throws CommonException
+   *            if some module couldn't be created or configured
+   */
+  List<ModuleCrate> build() {
+    List<ModuleCrate> crates = new ArrayList<>(modules.size());
+    for (ModuleRecord record : modules) {
+      try {
+        Module module = ModuleUtils.createModuleInstance(record.className);
+        module.initialize();
+        for (String[] property : record.properties) {
+          module.configure(property[0], property[1]);
+        }
+        module.beforeIOInitialization(
+            record.declaredInput, record.declaredOutput);
+        for (List<String[]> io : record.inputs) {
+          IO input = new IO(module, io.get(0)[0]);
+          for (String[] property : io.subList(1, io.size())) {
+            input.putProperty(property[0], property[1]);
+          }
+          ((InputModule)module).getInputIndex(input);
+        }
+        crates.add(ModuleCrate.create(module, record.inputMap,
+            record.outputMap, record.inputSize, record.outputSize));
+      } catch (Exception e) {
+        throw new CommonException()
+            .setCause(e)
+            .set("message", "Couldn't create module from the snapshot!")
+            .set("module class", record.className);
+      }
+    }
+    return crates;
+  }
+
+  /**
+   * Returns the number of signals.
+   *
+   * @return size of the data buffer
+   */
+  int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Returns task definitions.
+   *
+   * @return task definitions
+   */
+  List<Task> getTasks() {
+    return tasks;
+  }
+
+  /**
+   * Computes the checksum of the given file.
+   *
+   * @param file
+   *            the source of the application
+   *
+   * @return SHA-256 of the file content
+   *
+   * @throws IOException
+   *            if the file couldn't be read
+   */
+  static byte[] checksum(File file) throws IOException {
+    try (InputStream is = new FileInputStream(file)) {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[] buffer = new byte[8192];
+      int length;
+      while ((length = is.read(buffer)) > 0) {
+        digest.update(buffer, 0, length);
+      }
+      return digest.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new CommonException()
+          .setCause(e)
+          .setCode(ExceptionCode.UNSUPPORTED_OPERATION)
+          .set("message", "Checksum algorithm is not available!");
+    }
+  }
+
+  /**
+   * Computes the fingerprint of the classes of the modules. It is the
+   * SHA-256 of the class files of the modules and of their superclasses,
+   * together with the class files of the {@link #RESOLVERS}. If a class
+   * file is not available, the names and the annotations of the class are
+   * used instead.
+   *
+   * @param modules
+   *            the modules of the snapshot
+   *
+   * @return the fingerprint, or null if some of the classes couldn't be
+   *            loaded
+   */
+  private static byte[] fingerprint(List<ModuleRecord> modules) {
+    Set<Class<?>> classes = new LinkedHashSet<>(Arrays.asList(RESOLVERS));
+    try {
+      for (ModuleRecord record : modules) {
+        for (Class<?> c = Class.forName(record.className);
+            c != null && c != Object.class; c = c.getSuperclass()) {
+          classes.add(c);
+        }
+      }
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[] buffer = new byte[8192];
+      for (Class<?> c : classes) {
+        digest.update(c.getName().getBytes("UTF-8"));
+        try (InputStream is = c.getResourceAsStream(
+            '/' + c.getName().replace('.', '/') + ".class")) {
+          if (is == null) {
+            digest.update(
+                Arrays.toString(c.getAnnotations()).getBytes("UTF-8"));
+            continue;
+          }
+          int length;
+          while ((length = is.read(buffer)) > 0) {
+            digest.update(buffer, 0, length);
+          }
+        }
+      }
+      return digest.digest();
+    } catch (ClassNotFoundException | NoSuchAlgorithmException
+        | IOException | LinkageError e) {
+      return null;
+    }
+  }
+
+  /**
+   * Writes the snapshot into the given file. The file is written under
+   * a temporary name first and then renamed, so the half written snapshot
+   * is never loaded.
+   *
+   * @param file
+   *            destination file
+   *
+   * @throws IOException
+   *            if the file couldn't be written
+   */
+  void save(File file) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+    try (DataOutputStream dos = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(temp)))) {
+      dos.writeLong(IDENTIFIER);
+      dos.writeInt(VERSION);
+      dos.write(checksum);
+      byte[] classes = fingerprint(modules);
+      dos.write(classes != null ? classes : new byte[checksum.length]);
+      dos.writeInt(bufferSize);
+      dos.writeInt(tasks.size());
+      for (Task task : tasks) {
+        dos.writeUTF(task.getName());
+        dos.writeLong(task.getPeriod());
+        dos.writeInt(task.getPriority());
+      }
+      dos.writeInt(modules.size());
+      for (ModuleRecord record : modules) {
+        dos.writeUTF(record.className);
+        writeProperties(dos, record.properties);
+        dos.writeInt(record.declaredInput);
+        dos.writeInt(record.declaredOutput);
+        writeMap(dos, record.inputMap);
+        writeMap(dos, record.outputMap);
+        dos.writeInt(record.inputSize);
+        dos.writeInt(record.outputSize);
+        dos.writeInt(record.inputs.size());
+        for (List<String[]> io : record.inputs) {
+          writeProperties(dos, io);
+        }
+      }
+    }
+    if (!temp.renameTo(file)) {
+      file.delete();
+      if (!temp.renameTo(file)) {
+        throw new IOException("Couldn't rename " + temp + " to " + file);
+      }
+    }
+  }
+
+  /**
+   * Reads the snapshot from the given file.
+   *
+   * @param file
+   *            the file to read
+   *
+   * @param checksum
+   *            checksum of the current source file
+   *
+   * @return the snapshot or null if the file doesn't exist, if it is of
+   *            other version, if it was compiled from other source or with
+   *            other module classes
+   *
+   * @throws IOException
+   *            if the file couldn't be read
+   */
+  static ApplicationSnapshot load(File file, byte[] checksum)
+      throws IOException {
+
+    if (!file.isFile()) {
+      return null;
+    }
+    try (DataInputStream dis = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      if (dis.readLong() != IDENTIFIER || dis.readInt() != VERSION) {
+        return null;
+      }
+      byte[] sourceChecksum = new byte[checksum.length];
+      dis.readFully(sourceChecksum);
+      if (!Arrays.equals(sourceChecksum, checksum)) {
+        return null;
+      }
+      byte[] classes = new byte[checksum.length];
+      dis.readFully(classes);
+      int bufferSize = dis.readInt();
+      int taskCount = dis.readInt();
+      List<Task> tasks = new ArrayList<>(taskCount);
+      for (int i = 0; i < taskCount; i++) {
+        tasks.add(new Task(dis.readUTF(), dis.readLong(), dis.readInt()));
+      }
+      int moduleCount = dis.readInt();
+      List<ModuleRecord> modules = new ArrayList<>(moduleCount);
+      for (int i = 0; i < moduleCount; i++) {
+        ModuleRecord record = new ModuleRecord();
+        record.className = dis.readUTF();
+        record.properties = readProperties(dis);
+        record.declaredInput = dis.readInt();
+        record.declaredOutput = dis.readInt();
+        record.inputMap = readMap(dis);
+        record.outputMap = readMap(dis);
+        record.inputSize = dis.readInt();
+        record.outputSize = dis.readInt();
+        int inputCount = dis.readInt();
+        record.inputs = new ArrayList<>(inputCount);
+        for (int j = 0; j < inputCount; j++) {
+          record.inputs.add(readProperties(dis));
+        }
+        modules.add(record);
+      }
+      byte[] current = fingerprint(modules);
+      if (current == null || !Arrays.equals(classes, current)) {
+        return null;
+      }
+      return new ApplicationSnapshot(checksum, bufferSize, tasks, modules);
+    }
+  }
+
+  private static void writeProperties(DataOutputStream dos,
+      List<String[]> properties) throws IOException {
+    dos.writeInt(properties.size());
+    for (String[] property : properties) {
+      writeString(dos, property[0]);
+      writeString(dos, property[1]);
+    }
+  }
+
+  private static List<String[]> readProperties(DataInputStream dis)
+      throws IOException {
+    int size = dis.readInt();
+    List<String[]> properties = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      properties.add(new String[] {readString(dis), readString(dis)});
+    }
+    return properties;
+  }
+
+  private static void writeString(DataOutputStream dos, String value)
+      throws IOException {
+    dos.writeBoolean(value != null);
+    if (value != null) {
+      dos.writeUTF(value);
+    }
+  }
+
+  private static String readString(DataInputStream dis) throws IOException {
+    return dis.readBoolean() ? dis.readUTF() : null;
+  }
+
+  private static void writeMap(DataOutputStream dos, int[] map)
+      throws IOException {
+    if (map == null) {
+      dos.writeInt(-1);
+    } else {
+      dos.writeInt(map.length);
+      for (int pointer : map) {
+        dos.writeInt(pointer);
+      }
+    }
+  }
+
+  private static int[] readMap(DataInputStream dis) throws IOException {
+    int length = dis.readInt();
+    if (length < 0) {
+      return null;
+    }
+    int[] map = new int[length];
+    for (int i = 0; i < length; i++) {
+      map[i] = dis.readInt();
+    }
+    return map;
+  }
+
+  /** Everything that is needed to create one module crate. */
+  private static class ModuleRecord {
+    String className;
+    List<String[]> properties;
+    int declaredInput;
+    int declaredOutput;
+    int[] inputMap;
+    int[] outputMap;
+    int inputSize;
+    int outputSize;
+    /** Key followed by the properties of each input IO. */
+    List<List<String[]>> inputs;
+  }
+
+}
@@ -37,6 +37,9 @@ import java.util.stream.Collectors;
  * provides processing and return results.
  *
  * <p>Modules order is not changed.
+ *
+ * <p>Each crate gets its own input and output arrays. These are allocated
+ * here, once, so that the module execution doesn't allocate anything.
  */
 public class Builder {
 
@@ -113,7 +116,8 @@ public class Builder {
             = module instanceof OutputModule || module instanceof ProcessModule
                 ? createMap(outputMaps.get(module))
                 : null;
-        ModuleCrate crate = ModuleCrate.create(module, inputMap, outputMap);
+        ModuleCrate crate = ModuleCrate.create(module, inputMap, outputMap,
+            getInputSize(module), getOutputSize(module));
         crates.add(crate);
       } catch (Exception e) {
         throw new CommonException()
@@ -124,6 +128,46 @@ public class Builder {
     }
   }
 
+  /**
+   * Returns the size of the input array for the given module. It is the
+   * number of inputs the module declares; the crate enlarges the array if
+   * the input map is longer.
+   *
+   * @param module
+   *            the module
+   *
+   * @return number of declared inputs, zero for output modules
+   */
+  static int getInputSize(Module module) {
+    if (module instanceof InputModule) {
+      return ((InputModule) module).getInputSize();
+    } else if (module instanceof ProcessModule) {
+      return ((ProcessModule) module).getInputSize();
+    } else {
+      return 0;
+    }
+  }
+
+  /**
+   * Returns the size of the output array for the given module. It is the
+   * number of outputs the module declares; the crate enlarges the array if
+   * the output map is longer.
+   *
+   * @param module
+   *            the module
+   *
+   * @return number of declared outputs, zero for input modules
+   */
+  static int getOutputSize(Module module) {
+    if (module instanceof OutputModule) {
+      return ((OutputModule) module).getOutputSize();
+    } else if (module instanceof ProcessModule) {
+      return ((ProcessModule) module).getOutputSize();
+    } else {
+      return 0;
+    }
+  }
+
   /**
    * Creates io map based on the IOElement list for just one module.
    *
@@ -23,6 +23,7 @@ import cz.control4j.resources.Console;
 import cz.lidinsky.logview.LogFormatter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SocketHandler;
 
@@ -57,6 +58,11 @@ public class Control {
   }
 
   /**
+   * Loads and runs the application. The compiled form of the application
+   * is stored next to the source file, with suffix .compiled, and it is
+   * used during the next start as long as the source file is not changed.
+   * Use -Dcontrol4j.no-compiled=true to ignore it.
+   *
    * @param args the command line arguments
    *
    * @throws java.lang.Exception
@@ -75,8 +81,79 @@ public class Control {
     SocketHandler sh = new SocketHandler("localhost", 12347);
     sh.setFormatter(new LogFormatter());
     applicationLogger.addHandler(sh);
+    java.io.File source = new java.io.File(filename);
+    java.io.File compiled = new java.io.File(filename + COMPILED_SUFFIX);
+    byte[] checksum = ApplicationSnapshot.checksum(source);
+    ApplicationSnapshot snapshot = loadSnapshot(compiled, checksum);
+    if (snapshot == null) {
+      snapshot = compileApplication(source, checksum);
+      try {
+        snapshot.save(compiled);
+      } catch (java.io.IOException e) {
+        applicationLogger.log(Level.WARNING,
+            "Couldn't save the compiled application", e);
+      }
+    }
+    // run the application
+    applicationLogger.info("Going to run the application...");
+    engine = new ControlLoop();
+    configureEngine();
+    snapshot.getTasks().forEach(engine::addTask);
+    console = new Console();
+    engine.addCycleEventListener(console);
+    engine.run(snapshot.build(), snapshot.getBufferSize());
+  }
+
+  /** Suffix of the file with the compiled form of the application. */
+  private static final String COMPILED_SUFFIX = ".compiled";
+
+  /**
+   * Loads the compiled form of the application. It is not loaded if it was
+   * compiled from other version of the source file.
+   *
+   * @param compiled
+   *            the file with compiled application
+   *
+   * @param checksum
+   *            checksum of the source file
+   *
+   * @return the compiled application or null if it is not available
+   */
+  private ApplicationSnapshot loadSnapshot(
+      java.io.File compiled, byte[] checksum) {
+    if (Boolean.getBoolean("control4j.no-compiled")) {
+      return null;
+    }
+    try {
+      ApplicationSnapshot snapshot
+          = ApplicationSnapshot.load(compiled, checksum);
+      if (snapshot != null) {
+        applicationLogger.info(String.format(
+            "Going to run the compiled application: %s", compiled));
+      }
+      return snapshot;
+    } catch (java.io.IOException e) {
+      applicationLogger.log(Level.WARNING,
+          "Couldn't load the compiled application", e);
+      return null;
+    }
+  }
+
+  /**
+   * Loads, translates, preprocesses, sorts and builds the application.
+   *
+   * @param file
+   *            the source file of the application
+   *
+   * @param checksum
+   *            checksum of the source file
+   *
+   * @return the compiled application
+   */
+  private ApplicationSnapshot compileApplication(
+      java.io.File file, byte[] checksum) throws Exception {
     applicationLogger.info(
-        String.format("Going to load an application from the file: %s", filename));
+        String.format("Going to load an application from the file: %s", file));
     cz.control4j.application.c4j.C4j2Control translator
         = new cz.control4j.application.c4j.C4j2Control();
     cz.control4j.application.c4j.XMLHandler c4jHandler
@@ -85,7 +162,7 @@ public class Control {
     cz.lidinsky.tools.xml.XMLReader reader
         = new cz.lidinsky.tools.xml.XMLReader();
     reader.addHandler(c4jHandler);
-    reader.load(new java.io.File(filename));
+    reader.load(file);
     // translate application
     applicationLogger.info("Going to translate the application...");
     Preprocessor preprocessor = new Preprocessor();
@@ -109,19 +186,57 @@ public class Control {
     // build application
     applicationLogger.info("Going to build the application...");
     Builder builder = new Builder(sortedModules, preprocessor.getConnections());
-    // run the application
-    applicationLogger.info("Going to run the application...");
     int dataBufferSize = preprocessor.getConnections().size();
-    engine = new ControlLoop();
-    console = new Console();
-    engine.addCycleEventListener(console);
-    engine.run(builder.get(), dataBufferSize);
+    return ApplicationSnapshot.create(checksum, builder.get(),
+        preprocessor.getConnections(), preprocessor.getTasks(), dataBufferSize);
+  }
+
+  /**
+   * Properties of the runtime engine which may be given as system properties
+   * with prefix "control4j.", for example -Dcontrol4j.scan-mode=parallel.
+   */
+  private static final String[] ENGINE_PROPERTIES = {
+    "cycle-period", "scan-start-delay", "scan-mode", "parallelism",
+    "timestamps", "overrun-policy", "spin-time", "profiling",
+    "profile-period"
+  };
+
+  /**
+   * Passes the engine properties that were given as system properties to
+   * the runtime engine.
+   */
+  private void configureEngine() {
+    for (String key : ENGINE_PROPERTIES) {
+      String value = System.getProperty("control4j." + key);
+      if (value != null) {
+        engine.set(key, value);
+      }
+    }
   }
 
   public static long getScanNumber() {
     return instance.engine.getScanNumber();
   }
 
+  /**
+   * Returns the jitter statistics of the scan start of the main task.
+   *
+   * @return jitter histogram in human readable form
+   */
+  public static String getJitterStatistics() {
+    return instance.engine.getJitterStatistics();
+  }
+
+  /**
+   * Returns the execution time statistics of the main task.
+   *
+   * @return execution times of the scan phases and of the modules in human
+   *            readable form
+   */
+  public static String getProfileStatistics() {
+    return instance.engine.getProfileStatistics();
+  }
+
   public static void print(String label, Signal signal) {
     instance.console.print(label, signal);
   }
@@ -18,6 +18,7 @@
 
 package cz.control4j;
 
+import cz.control4j.ScanTimer.OverrunPolicy;
 import cz.control4j.tools.Tools;
 import static cz.control4j.tools.Tools.catched;
 import cz.lidinsky.tools.CommonException;
@@ -25,9 +26,13 @@ import cz.lidinsky.tools.ExceptionCode;
 import static cz.lidinsky.tools.Validate.notNegative;
 import static cz.lidinsky.tools.Validate.notNull;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.logging.Level;
 
 /**
@@ -37,16 +42,41 @@ import java.util.logging.Level;
  *  modules are repeatedly executed.
  *
  *  <p>Duration of one scan may be fixed and it may be specified by
- *  configuration item cycle-period. If the processing of the scan is longer
- *  than specified the warnig is logged.
+ *  configuration item cycle-period. The scans start on absolute deadlines,
+ *  so the period doesn't drift. If the processing of the scan is longer
+ *  than specified, the overrun-policy decides when the next scan starts,
+ *  see {@link ScanTimer}.
+ *
+ *  <p>Modules are executed one after the other in the sorted order by
+ *  default. If the configuration item scan-mode is set to parallel, the
+ *  independent modules are executed concurrently, see {@link ParallelScan}.
+ *  If a module throws an exception, the sequential scan stops at that
+ *  module; the parallel scan doesn't start any other module, but the
+ *  modules of the same dependency level which are already running are
+ *  finished.
+ *
+ *  <p>Modules may be divided into several tasks, each with its own period
+ *  and priority, see {@link #addTask}. Each additional task is executed by
+ *  its own control loop in a separate thread. Signals which are passed
+ *  between modules of different tasks are handed over as a consistent
+ *  snapshot, see {@link Handover}.
  *
  */
 class ControlLoop {
 
   /**
-   *  Duration of one scan. In ms.
+   *  Duration of one scan. In ns.
    */
-  private long cyclePeriod = 1000;
+  private long cyclePeriod = 1_000_000_000L;
+
+  /** Time before each deadline which is spent in the busy loop. In ns. */
+  private long spinTime = 0;
+
+  /** What to do if the scan is longer than the cycle period. */
+  private OverrunPolicy overrunPolicy = OverrunPolicy.SKIP;
+
+  /** Keeps the cycle period, it is created when the loop starts. */
+  private volatile ScanTimer timer;
 
 
   /** The buffer for signals which serves as interchange point between
@@ -62,7 +92,7 @@ class ControlLoop {
    *  A flag that indicates that the request was received to terminate
    *  the program. Program will be terminated at the end of the actual scan.
    */
-  private boolean exit = false;
+  private volatile boolean exit = false;
 
   /**
    *  Duration of the last scan in ms.
@@ -79,6 +109,48 @@ class ControlLoop {
 
   private long scanCounter;
 
+  /** True, if the independent modules should be executed concurrently. */
+  private boolean parallel = false;
+
+  /** Number of threads for the parallel scan. */
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+
+  /** True, if the data buffer should record timestamps of signals. */
+  private boolean timestamps = false;
+
+  /** Executes modules if the parallel scan mode is selected. */
+  private ParallelScan parallelScan;
+
+  /** True, if the execution times of modules should be measured. */
+  private boolean profiling = true;
+
+  /** Period of the profile dump into the log in ms, zero for no dump. */
+  private long profilePeriod = 0;
+
+  /** Time of the last profile dump in ms. */
+  private long lastProfileDump;
+
+  /** Execution time statistics, null if profiling is off. */
+  private volatile ScanProfile profile;
+
+  /** Name of the task of modules that have no task assigned. */
+  static final String MAIN_TASK = "main";
+
+  /** Additional tasks, in order of definition. */
+  private final Map<String, Task> tasks = new LinkedHashMap<>();
+
+  /** Priority of the thread which executes this loop, zero to keep it. */
+  private int priority = 0;
+
+  /** Control loops which execute the additional tasks. */
+  private final List<ControlLoop> children = new ArrayList<>();
+
+  /** Signals produced by other tasks, collected at the scan start. */
+  private final List<Handover> imports = new ArrayList<>();
+
+  /** Signals consumed by other tasks, published at the scan end. */
+  private final List<Handover> exports = new ArrayList<>();
+
   /**
    *  It does nothing.
    */
@@ -95,6 +167,19 @@ class ControlLoop {
    *             period will be variable.
    */
   void setCyclePeriod(long period) {
+    cyclePeriod = notNegative(period,
+        "Cycle period property must be a positive number!") * 1_000_000L;
+  }
+
+  /**
+   *  Sets the required cycle period in ns. Periods shorter than one
+   *  millisecond are possible.
+   *
+   *  @param period
+   *             required period in ns. Must be a positive number. If zero,
+   *             the period will be variable.
+   */
+  void setCyclePeriodNanos(long period) {
     cyclePeriod = notNegative(period,
         "Cycle period property must be a positive number!");
   }
@@ -106,7 +191,7 @@ class ControlLoop {
    *  @return required cycle period in ms
    */
   int getCyclePeriod() {
-    return (int)cyclePeriod;
+    return (int)(cyclePeriod / 1_000_000L);
   }
 
   /** Delay between start of the scan and first module execution. In ms. */
@@ -136,8 +221,106 @@ class ControlLoop {
    *  @return start scan delay in ms
    */
   long getStartScanDelay() {
-    return scanStartDelay < cyclePeriod
-      ? scanStartDelay : (long)(cyclePeriod / 5);
+    return scanStartDelay < getCyclePeriod()
+      ? scanStartDelay : (long)(getCyclePeriod() / 5);
+  }
+
+  /**
+   *  Selects what to do if the scan is longer than the cycle period.
+   *
+   *  @param policy
+   *             skip, catch-up or stretch, see {@link OverrunPolicy}
+   *
+   *  @throws CommonException
+   *             if the policy is not supported
+   */
+  void setOverrunPolicy(String policy) {
+    overrunPolicy = OverrunPolicy.parse(policy);
+  }
+
+  /**
+   *  Sets the time before each scan start which is spent in the busy loop
+   *  instead of sleeping. It lowers the jitter at the cost of CPU time.
+   *
+   *  @param spinTime
+   *             spin time in ns, zero for no spinning
+   */
+  void setSpinTime(long spinTime) {
+    this.spinTime = notNegative(spinTime,
+        "Spin time property must be a positive number!");
+  }
+
+  /**
+   *  Selects how the modules are executed during the scan.
+   *
+   *  @param mode
+   *             either sequential or parallel
+   *
+   *  @throws CommonException
+   *             if the mode is not supported
+   */
+  void setScanMode(String mode) {
+    switch (notNull(mode)) {
+      case "sequential":
+        parallel = false;
+        break;
+      case "parallel":
+        parallel = true;
+        break;
+      default:
+        throw new CommonException()
+            .setCode(ExceptionCode.ILLEGAL_ARGUMENT)
+            .set("message", "Unsupported scan mode!")
+            .set("mode", mode);
+    }
+  }
+
+  /**
+   *  Sets number of threads that execute modules in the parallel scan
+   *  mode.
+   *
+   *  @param parallelism
+   *             number of threads, must be a positive number
+   *
+   *  @throws CommonException
+   *             if the parameter is not a positive number
+   */
+  void setParallelism(int parallelism) {
+    if (parallelism <= 0) {
+      throw new CommonException()
+          .setCode(ExceptionCode.ILLEGAL_ARGUMENT)
+          .set("message", "Parallelism must be a positive number!")
+          .set("parallelism", parallelism);
+    }
+    this.parallelism = parallelism;
+  }
+
+  /**
+   *  Defines a task. Modules which have the task property set to the name
+   *  of the task are executed with the period of the task by a thread with
+   *  the priority of the task. If the name is main, the period and priority
+   *  of the main task, which is executed by this loop, are set. This method
+   *  should not be called after the engine has start.
+   *
+   *  @param task
+   *             the task to define
+   *
+   *  @throws CommonException
+   *             if the task has already been defined
+   */
+  void addTask(Task task) {
+    String name = notNull(task).getName();
+    if (MAIN_TASK.equals(name)) {
+      setCyclePeriod(task.getPeriod());
+      priority = task.getPriority();
+    } else if (tasks.containsKey(name)) {
+      throw new CommonException()
+          .setCode(ExceptionCode.DUPLICATE_ELEMENT)
+          .set("message", "Task has already been defined!")
+          .set("task", name);
+    } else {
+      tasks.put(name, task);
+    }
   }
 
   /**
@@ -146,8 +329,15 @@ class ControlLoop {
    *
    * <p>The properties are:
    * <ul>
-   *   <li>cycle-period
-   *   <li>scan-start-delay
+   *   <li>cycle-period, in ms, fractions are allowed
+   *   <li>scan-start-delay, in ms
+   *   <li>overrun-policy, skip, catch-up or stretch
+   *   <li>spin-time, in ms, fractions are allowed
+   *   <li>scan-mode, sequential or parallel
+   *   <li>parallelism, number of threads for the parallel scan
+   *   <li>timestamps, true if the data buffer should record timestamps
+   *   <li>profiling, true if the execution times should be measured
+   *   <li>profile-period, period of the profile dump into the log in ms
    * </ul>
    *
    * @param key
@@ -162,10 +352,32 @@ class ControlLoop {
     try {
       if (null != key) switch (key) {
         case "cycle-period":
-          setCyclePeriod(Long.parseLong(value));
+          setCyclePeriodNanos(parseMillis(value));
           break;
         case "scan-start-delay":
-          setCyclePeriod(Long.parseLong(value));
+          setStartScanDelay(Long.parseLong(value));
+          break;
+        case "scan-mode":
+          setScanMode(value);
+          break;
+        case "parallelism":
+          setParallelism(Integer.parseInt(value));
+          break;
+        case "overrun-policy":
+          setOverrunPolicy(value);
+          break;
+        case "spin-time":
+          setSpinTime(parseMillis(value));
+          break;
+        case "timestamps":
+          timestamps = Boolean.parseBoolean(value);
+          break;
+        case "profiling":
+          profiling = Boolean.parseBoolean(value);
+          break;
+        case "profile-period":
+          profilePeriod = notNegative(Long.parseLong(value),
+              "Profile period property must be a positive number!");
           break;
         default:
           throw new CommonException()
@@ -183,13 +395,29 @@ class ControlLoop {
     return this;
   }
 
+  /**
+   *  Converts time given in ms, possibly with fraction, to ns.
+   *
+   *  @param value
+   *             time in ms
+   *
+   *  @return time in ns
+   *
+   *  @throws NumberFormatException
+   *             if the value is not a number
+   */
+  private static long parseMillis(String value) {
+    return Math.round(Double.parseDouble(notNull(value).trim()) * 1e6);
+  }
+
   /**
    *  Terminates the control loop. The control loop is not terminated
-   *  immediately. It is terminated after the current scan is finished. This
-   *  method is not thread safe.
+   *  immediately. It is terminated after the current scan is finished. The
+   *  loops of additional tasks are terminated as well.
    */
   void exit() {
     exit = true;
+    children.forEach(ControlLoop::exit);
   }
 
   /**
@@ -204,7 +432,7 @@ class ControlLoop {
    *    <li> Clear the data buffer.
    *    <li> Trigger cycleStartEvent event for all of the registered
    *         listeners.
-   *    <li> Wait for time specified by start-cycle-delay.
+   *    <li> Wait for time specified by scan-start-delay.
    *    <li> Trigger processingStartEvent event for all of the registered
    *         listeners.
    *    <li> Execute all of the modules.
@@ -223,12 +451,50 @@ class ControlLoop {
    *  @see cz.control4j.ICycleEventListener
    */
   void run(List<ModuleCrate> modules, int bufferSize) {
+    start(modules, bufferSize);
+    // The control loop !
+    while (!exit) {
+      scan();
+    }
+    shutdown();
+  }
+
+  /**
+   * Prepares everything that is needed to perform scans. It is the first
+   * part of the {@link #run} method, the scans may be performed by the
+   * {@link #scan} method afterwards.
+   *
+   * @param modules
+   *             modules to execute
+   *
+   * @param bufferSize
+   *             total number of signals
+   */
+  void start(List<ModuleCrate> modules, int bufferSize) {
 
     // Initialize data structures
     this.modules = notNull(modules);
+    if (!tasks.isEmpty()) {
+      modules = startTasks(modules, bufferSize);
+      this.modules = modules;
+    }
+    if (priority > 0) {
+      Thread.currentThread().setPriority(priority);
+    }
 
     // Create data buffer
-    dataBuffer = new DataBuffer(bufferSize);
+    dataBuffer = new DataBuffer(bufferSize, timestamps);
+    if (parallel) {
+      parallelScan = new ParallelScan(modules, bufferSize, parallelism);
+      Control.getLogger().log(Level.INFO,
+          "Parallel scan, {0} levels", parallelScan.getLevels());
+    }
+
+    // Turn on profiling
+    if (profiling) {
+      modules.forEach(crate -> crate.setProfiling(true));
+      profile = new ScanProfile(modules);
+    }
 
     // Register event listeners
     modules.stream()
@@ -243,15 +509,128 @@ class ControlLoop {
 
     // Enter the control loop
     Control.getLogger().info("Runnig control loop...");
-    ModuleCrate executedModule = null; // for dump purposes
 
     // prepare for execution
     //ResourceManager.getInstance().prepare(); // TODO:
 
-    // The control loop !
-    while (!exit) {
-      scan();
+    timer = new ScanTimer(cyclePeriod, spinTime, overrunPolicy);
+  }
+
+  /**
+   * Releases resources held by the loop, it is the last part of the
+   * {@link #run} method.
+   */
+  void shutdown() {
+    if (parallelScan != null) {
+      parallelScan.shutdown();
+    }
+    Control.getLogger().info(timer.toString());
+  }
+
+  /**
+   * Splits the modules according to their tasks, creates control loops for
+   * the additional tasks and starts them. The handovers are created for
+   * signals which are passed between tasks.
+   *
+   * @param modules
+   *            all of the modules in the sorted order
+   *
+   * @param bufferSize
+   *            total number of signals
+   *
+   * @return modules of the main task in the sorted order
+   *
+   * @throws CommonException
+   *            if some module is assigned to the task which was not defined
+   */
+  private List<ModuleCrate> startTasks(
+      List<ModuleCrate> modules, int bufferSize) {
+
+    // split modules, the sorted order is kept within each task
+    Map<String, List<ModuleCrate>> groups = new LinkedHashMap<>();
+    groups.put(MAIN_TASK, new ArrayList<>());
+    tasks.keySet().forEach(name -> groups.put(name, new ArrayList<>()));
+    String[] producers = new String[bufferSize];
+    for (ModuleCrate crate : modules) {
+      String task = crate.getModule().getTask();
+      String name = task == null ? MAIN_TASK : task;
+      List<ModuleCrate> group = groups.get(name);
+      if (group == null) {
+        throw new CommonException()
+            .setCode(ExceptionCode.NO_SUCH_ELEMENT)
+            .set("message", "Module is assigned to an undefined task!")
+            .set("task", name)
+            .set("module", crate.getModule());
+      }
+      group.add(crate);
+      for (int pointer : crate.getOutputMap()) {
+        if (pointer >= 0) {
+          producers[pointer] = name;
+        }
+      }
+    }
+
+    // create control loops for additional tasks
+    Map<String, ControlLoop> loops = new HashMap<>();
+    loops.put(MAIN_TASK, this);
+    for (Task task : tasks.values()) {
+      ControlLoop loop = new ControlLoop();
+      loop.setCyclePeriod(task.getPeriod());
+      loop.spinTime = spinTime;
+      loop.overrunPolicy = overrunPolicy;
+      loop.scanStartDelay = scanStartDelay;
+      loop.priority = task.getPriority();
+      loop.parallel = parallel;
+      loop.parallelism = parallelism;
+      loop.timestamps = timestamps;
+      loop.profiling = profiling;
+      loop.profilePeriod = profilePeriod;
+      loop.dump = false;
+      loops.put(task.getName(), loop);
+      children.add(loop);
+    }
+
+    // create handovers for signals which cross the task boundary
+    for (Map.Entry<String, List<ModuleCrate>> group : groups.entrySet()) {
+      String consumer = group.getKey();
+      Map<String, Set<Integer>> crossing = new HashMap<>();
+      for (ModuleCrate crate : group.getValue()) {
+        for (int pointer : crate.getInputMap()) {
+          if (pointer >= 0 && producers[pointer] != null
+              && !producers[pointer].equals(consumer)) {
+            crossing.computeIfAbsent(producers[pointer], p -> new TreeSet<>())
+                .add(pointer);
+          }
+        }
+      }
+      crossing.forEach((producer, pointers) -> {
+        Handover handover = new Handover(
+            pointers.stream().mapToInt(Integer::intValue).toArray());
+        loops.get(producer).exports.add(handover);
+        loops.get(consumer).imports.add(handover);
+      });
+    }
+
+    // start additional tasks
+    for (Task task : tasks.values()) {
+      ControlLoop loop = loops.get(task.getName());
+      List<ModuleCrate> group = groups.get(task.getName());
+      Thread thread = new Thread(() -> {
+        try {
+          loop.run(group, bufferSize);
+        } catch (Exception e) {
+          Control.getLogger().severe(new CommonException()
+              .setCause(e)
+              .set("message", "Task was terminated because of exception!")
+              .set("task", task.getName())
+              .toString());
+        }
+      }, "control4j-" + task.getName());
+      thread.start();
+      Control.getLogger().log(Level.INFO, "{0}, {1} modules",
+          new Object[] {task, group.size()});
     }
+    return groups.get(MAIN_TASK);
   }
 
   /**
@@ -261,19 +640,31 @@ class ControlLoop {
    *            if some of the modules throws the exception
    */
   protected void scan() {
+    long deadline = timer.awaitScan();
     scanStartTime = System.currentTimeMillis();
     // erase data buffer
-    dataBuffer.clear();
+    dataBuffer.clear(scanStartTime);
+    for (Handover handover : imports) {
+      handover.collect(dataBuffer);
+    }
+    ScanProfile profile = this.profile;
+    long mark = System.nanoTime();
     fireCycleStartEvent();
+    if (profile != null) {
+      profile.scanStart.record(System.nanoTime() - mark);
+    }
     // start cycle delay
-    Tools.sleep(getStartScanDelay());
+    long delay = getStartScanDelay();
+    if (delay > 0) {
+      timer.awaitDeadline(deadline + delay * 1_000_000L);
+    }
     fireProcessingStartEvent();
     // module execution
     Control.getLogger().fine("Start of module processing");
+    mark = System.nanoTime();
+    long processingStart = mark;
     try {
-      for (ModuleCrate crate : modules) {
-        crate.execute(dataBuffer);
-      }
+      execute();
     } catch (RuntimeException e) {
         // if an exception arise during the processing some of the module, the
         // cycle is not completed and problem is logged.
@@ -285,25 +676,59 @@ class ControlLoop {
         //dump(e, executedModule.getModule()); // TODO:
       fireBrokenScanEvent();
     }
+    if (profile != null) {
+      profile.processing.record(System.nanoTime() - mark);
+    }
+    for (Handover handover : exports) {
+      handover.publish(dataBuffer);
+    }
+    mark = System.nanoTime();
     fireCycleEndEvent();
-    // wait for next turn
-    long scanDuration;
-    while (
-        (scanDuration = System.currentTimeMillis() - scanStartTime)
-        < cyclePeriod) {
-
-      long sleepTime = cyclePeriod - scanDuration;
-      Tools.sleep(sleepTime);
+    if (profile != null) {
+      profile.scanEnd.record(System.nanoTime() - mark);
     }
+    // compute the deadline of the next turn
+    long scanDuration = timer.scanEnd() / 1_000_000L;
     // last scan was too long
-    if (cyclePeriod > 0l && scanDuration - cyclePeriod > 100l) {
-        Control.getLogger().log(Level.WARNING, "Last scan was too long! {0}",
-            Long.toString(scanDuration));
+    if (cyclePeriod > 0l && scanDuration - getCyclePeriod() > 100l) {
+        ModuleCrate slowest = profile == null
+            ? null : profile.getSlowest(processingStart);
+        if (slowest != null) {
+          Control.getLogger().log(Level.WARNING,
+              "Last scan was too long! {0}, the slowest module: {1}, {2} us",
+              new Object[] {Long.toString(scanDuration), slowest.getModule(),
+                Long.toString(slowest.getLastDuration() / 1000)});
+        } else {
+          Control.getLogger().log(Level.WARNING, "Last scan was too long! {0}",
+              Long.toString(scanDuration));
+        }
+    }
+    // periodic profile dump
+    if (profile != null && profilePeriod > 0
+        && scanStartTime - lastProfileDump >= profilePeriod) {
+      lastProfileDump = scanStartTime;
+      Control.getLogger().info(getProfileStatistics());
     }
     lastScanDuration = scanDuration;
     scanCounter++;
   }
 
+  /**
+   * Executes all of the modules, either one after the other or in parallel.
+   *
+   * @throws cz.control4j.RuntimeException
+   *            if some of the modules throws the exception
+   */
+  private void execute() throws RuntimeException {
+    if (parallelScan != null) {
+      parallelScan.execute(dataBuffer);
+    } else {
+      for (ModuleCrate crate : modules) {
+        crate.run(dataBuffer);
+      }
+    }
+  }
+
   /**
    *  Returns a system time in ms when the last cycle was started.
    *
@@ -401,6 +826,11 @@ class ControlLoop {
       }
       // write data buffer
       dataBuffer.dump(writer);
+      // write the execution time statistics
+      ScanProfile profile = this.profile;
+      if (profile != null) {
+        profile.dump(writer);
+      }
       // write the resources
       //ResourceManager.getInstance().dump(writer);
       // write the modules
@@ -432,5 +862,56 @@ class ControlLoop {
     return scanCounter;
   }
 
+  /**
+   *  Returns the execution time statistics, see {@link ScanProfile}.
+   *
+   *  @return execution time statistics, null if the profiling is off or if
+   *             the loop has not been started yet
+   */
+  ScanProfile getProfile() {
+    return profile;
+  }
+
+  /**
+   *  Returns the execution time statistics of the scan phases and of all
+   *  of the modules in human readable form.
+   *
+   *  @return execution time statistics, empty string if the profiling is
+   *             off
+   */
+  String getProfileStatistics() {
+    ScanProfile profile = this.profile;
+    if (profile == null) {
+      return "";
+    }
+    java.io.StringWriter result = new java.io.StringWriter();
+    java.io.PrintWriter writer = new java.io.PrintWriter(result);
+    writer.println("Execution time statistics");
+    profile.dump(writer);
+    writer.flush();
+    return result.toString();
+  }
+
+  /**
+   *  Returns the jitter histogram of the scan start, see {@link ScanTimer}.
+   *
+   *  @return number of scans for each bucket, an empty array if the loop
+   *             has not been started yet
+   */
+  long[] getJitterHistogram() {
+    ScanTimer timer = this.timer;
+    return timer == null ? new long[0] : timer.getHistogram();
+  }
+
+  /**
+   *  Returns the jitter statistics of the scan start in human readable form.
+   *
+   *  @return jitter statistics
+   */
+  String getJitterStatistics() {
+    ScanTimer timer = this.timer;
+    return timer == null ? "" : timer.toString();
+  }
+
 
 }
@@ -18,7 +18,8 @@
 
 package cz.control4j;
 
-import java.util.Arrays;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 
 /**
  *  In principle, the DataBuffer is just an array of signals, which
@@ -35,21 +36,61 @@ import java.util.Arrays;
  *  module into the index of the <code>DataBuffer</code> array.
  *
  *  <p>For the purpose of signal exchange between modules and this
- *  data buffer the only array is used over and over again. This array
- *  is big enough to contain data for a module with the bigest number
- *  of input signals. The relevant data are filled in into the lower
+ *  data buffer, the caller provides an array which is used over and
+ *  over again. This array may be bigger than the number of input
+ *  signals of the module. The relevant data are filled in into the lower
  *  part of the array and the extra elements are left behind. Therefore,
  *  the module should not relay on the size of the array it gets as
  *  an input!
  *
+ *  <p>Besides signal objects, the buffer may hold signals in a primitive
+ *  form: a value in the array of doubles, a validity bit and optionaly a
+ *  timestamp. Modules that implement {@link IPrimitiveModule} read and write
+ *  this form through the {@link Slots} objects and they don't create any
+ *  signal objects. Both forms may be mixed, a signal that was stored as an
+ *  object may be read in the primitive form and vice versa. Only the
+ *  conversion of a primitive real number into the signal object allocates.
+ *
+ *  <p>Signals with different indices may be read and written from
+ *  different threads simultaneously, provided that each signal is
+ *  written by at most one thread and the writes are published to the
+ *  readers before they read them.
+ *
  *  <p>At the beginnig of each scan the DataBuffer should be erased
- *  so that it is empty.
+ *  so that it is empty. The erasure doesn't touch the stored values, it
+ *  just starts a new generation; values written during previous
+ *  generations are treated as missing.
  */
 class DataBuffer
 {
 
+  /** Signals stored in the object form, null for the primitive form. */
   private final Signal[] buffer;
-  private Signal[] crate;
+
+  /** Values of signals stored in the primitive form. */
+  private final double[] values;
+
+  /** Validity bit of each signal stored in the primitive form. */
+  private final long[] validity;
+
+  /** Bit is set if the primitive value is a boolean value. */
+  private final long[] booleans;
+
+  /** Timestamps, null if timestamps are not recorded. */
+  private final long[] timestamps;
+
+  /** The generation in which each signal was written. */
+  private final long[] written;
+
+  /** The current generation, it is incremented by each erasure. */
+  private long generation = 1;
+
+  /** Timestamp for signals written during the current generation. */
+  private long timestamp;
+
+  /** Atomic access to the bitset words. */
+  private static final VarHandle BITS
+      = MethodHandles.arrayElementVarHandle(long[].class);
 
   /**
    *  Alocates the internal store with the given size.
@@ -58,9 +99,27 @@ class DataBuffer
    *             required capacity of the buffer
    */
   public DataBuffer(int size)
+  {
+    this(size, false);
+  }
+
+  /**
+   *  Alocates the internal store with the given size.
+   *
+   *  @param size
+   *             required capacity of the buffer
+   *
+   *  @param timestamps
+   *             true if a timestamp should be recorded for each signal
+   */
+  public DataBuffer(int size, boolean timestamps)
   {
     this.buffer = new Signal[size];
-    this.crate = new Signal[10];
+    this.values = new double[size];
+    this.validity = new long[(size + 63) >>> 6];
+    this.booleans = new long[(size + 63) >>> 6];
+    this.timestamps = timestamps ? new long[size] : null;
+    this.written = new long[size];
   }
 
   /**
@@ -70,7 +129,22 @@ class DataBuffer
    */
   public void clear()
   {
-    Arrays.fill(buffer, null);
+    clear(System.currentTimeMillis());
+  }
+
+  /**
+   *  Erase all of the values in the buffer. This method should be
+   *  called before each scan starts. After it is called, the
+   *  buffer is empty.
+   *
+   *  @param timestamp
+   *             timestamp for signals that will be written, it is
+   *             typicaly the scan start time
+   */
+  public void clear(long timestamp)
+  {
+    generation++;
+    this.timestamp = timestamp;
   }
 
   /**
@@ -84,7 +158,11 @@ class DataBuffer
    *             If some position is unutilized, it should
    *             contain -1.
    *
-   *  @return an array of signals whose indices
+   *  @param crate
+   *             an array to fill with the requested signals. It must
+   *             be at least as long as the requestedSignals array.
+   *
+   *  @return the crate array filled with signals whose indices
    *             are given as parameter. The size of
    *             the array may be greater than the size of parameter
    *             requestedSignals. Position of returned signals correspond
@@ -93,22 +171,46 @@ class DataBuffer
    *  @throws IndexOutOfBoundsException
    *             if requestedSignals array
    *             contains index which is out of bounds of the internal
-   *             buffer.
+   *             buffer, or if the crate array is too small.
    */
-  Signal[] get(int[] requestedSignals)
+  Signal[] get(int[] requestedSignals, Signal[] crate)
   {
     int length = requestedSignals.length;
-    if (length > crate.length) crate = new Signal[length];
     for (int i=0; i<length; i++)
     {
       if (requestedSignals[i] >= 0)
-        crate[i] = buffer[requestedSignals[i]];
+        crate[i] = get(requestedSignals[i]);
       else
         crate[i] = null;
     }
     return crate;
   }
 
+  /**
+   *  Returns a signal with given index as an object. If the signal was
+   *  stored in the primitive form, the object is created.
+   *
+   *  @param index
+   *             index of the signal
+   *
+   *  @return the signal or null if it was not written during the current
+   *             generation
+   */
+  Signal get(int index)
+  {
+    if (written[index] != generation) {
+      return null;
+    } else if (buffer[index] != null) {
+      return buffer[index];
+    } else if (!testBit(validity, index)) {
+      return Signal.getSignal();
+    } else if (testBit(booleans, index)) {
+      return Signal.getSignal(values[index] != 0.0);
+    } else {
+      return Signal.getSignal(values[index]);
+    }
+  }
+
   /**
    *  Stores signals into the buffer. Signals to store are passed
    *  as an argument.
@@ -130,21 +232,184 @@ class DataBuffer
    *  @throws IndexOutOfBoundsException
    *             if some index in the map
    *             array is greater than internal buffer size
-   *
-   *  @throws NullPointerException
-   *             if some signal in signals array
-   *             contain null value and the corresponding index in
-   *             the map array is positive
    */
   public void put(Signal[] signals, int[] map)
   {
     for (int i=0; i<map.length; i++)
       if (map[i] >= 0)
       {
-        buffer[map[i]] = signals[i];
+        int index = map[i];
+        if (signals[i] == null) {
+          putInvalid(index);
+        } else {
+          buffer[index] = signals[i];
+          written[index] = generation;
+          if (timestamps != null) timestamps[index] = timestamp;
+        }
       }
   }
 
+  //--------------------------------------------------------- Primitive form.
+
+  /**
+   *  Returns true if the signal with given index was written during the
+   *  current generation.
+   *
+   *  @param index
+   *             index of the signal
+   *
+   *  @return true if the signal is available
+   */
+  boolean isWritten(int index)
+  {
+    return written[index] == generation;
+  }
+
+  /**
+   *  Returns validity of the signal with given index.
+   *
+   *  @param index
+   *             index of the signal
+   *
+   *  @return true if the signal was written during the current generation
+   *             and it is valid
+   */
+  boolean isValid(int index)
+  {
+    if (written[index] != generation) {
+      return false;
+    } else if (buffer[index] != null) {
+      return buffer[index].isValid();
+    } else {
+      return testBit(validity, index);
+    }
+  }
+
+  /**
+   *  Returns value of the signal with given index.
+   *
+   *  @param index
+   *             index of the signal
+   *
+   *  @return value of the signal or NaN if the signal is not valid
+   */
+  double getValue(int index)
+  {
+    if (!isValid(index)) {
+      return Double.NaN;
+    } else if (buffer[index] != null) {
+      return buffer[index].getValue();
+    } else {
+      return values[index];
+    }
+  }
+
+  /**
+   *  Returns timestamp of the signal with given index.
+   *
+   *  @param index
+   *             index of the signal
+   *
+   *  @return timestamp of the signal or <code>Long.MIN_VALUE</code> if the
+   *             timestamps are not recorded or the signal was not written
+   *             during the current generation
+   */
+  long getTimestamp(int index)
+  {
+    if (timestamps == null || written[index] != generation) {
+      return Long.MIN_VALUE;
+    } else {
+      return timestamps[index];
+    }
+  }
+
+  /**
+   *  Stores a valid real number.
+   *
+   *  @param index
+   *             index of the signal
+   *
+   *  @param value
+   *             value of the signal
+   */
+  void putValue(int index, double value)
+  {
+    putPrimitive(index, value);
+    clearBit(booleans, index);
+    setBit(validity, index);
+  }
+
+  /**
+   *  Stores a valid boolean value.
+   *
+   *  @param index
+   *             index of the signal
+   *
+   *  @param value
+   *             value of the signal
+   */
+  void putBoolean(int index, boolean value)
+  {
+    putPrimitive(index, value ? 1.0 : 0.0);
+    setBit(booleans, index);
+    setBit(validity, index);
+  }
+
+  /**
+   *  Stores an invalid signal.
+   *
+   *  @param index
+   *             index of the signal
+   */
+  void putInvalid(int index)
+  {
+    putPrimitive(index, Double.NaN);
+    clearBit(validity, index);
+  }
+
+  /**
+   *  Overrides the timestamp of the signal with given index. It does
+   *  nothing if the timestamps are not recorded.
+   *
+   *  @param index
+   *             index of the signal
+   *
+   *  @param timestamp
+   *             the timestamp
+   */
+  void putTimestamp(int index, long timestamp)
+  {
+    if (timestamps != null) timestamps[index] = timestamp;
+  }
+
+  private void putPrimitive(int index, double value)
+  {
+    buffer[index] = null;
+    values[index] = value;
+    written[index] = generation;
+    if (timestamps != null) timestamps[index] = timestamp;
+  }
+
+  private static boolean testBit(long[] bits, int index)
+  {
+    return (bits[index >>> 6] & (1L << index)) != 0;
+  }
+
+  /*
+   *  Bits of neighbouring signals share one word, which may be written
+   *  from different threads, that is why the update must be atomic.
+   */
+
+  private static void setBit(long[] bits, int index)
+  {
+    BITS.getAndBitwiseOr(bits, index >>> 6, 1L << index);
+  }
+
+  private static void clearBit(long[] bits, int index)
+  {
+    BITS.getAndBitwiseAnd(bits, index >>> 6, ~(1L << index));
+  }
+
   /**
    *  Return size of internal buffer.
    *
@@ -167,8 +432,9 @@ class DataBuffer
     writer.println("DATA BUFFER CONTENT:");
     for (int i=0; i<buffer.length; i++)
     {
-      if (buffer[i] != null) {
-        writer.println(" " + i + ": " + buffer[i].toString());
+      Signal signal = get(i);
+      if (signal != null) {
+        writer.println(" " + i + ": " + signal.toString());
       } else {
         writer.println(" " + i + ": null");
       }
@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.control4j;
+
+import static cz.lidinsky.tools.Validate.notNull;
+
+/**
+ * Passes signals between two tasks. The producer task publishes a snapshot
+ * of given signals at the end of its scan, the consumer task collects the
+ * last published snapshot at the start of its scan. The consumer thus always
+ * sees a consistent set of signals, even if the producer runs with
+ * a different period. The signals are delayed by at most one producer scan.
+ *
+ * <p>Before the first snapshot is published, the consumer gets invalid
+ * signals.
+ */
+class Handover {
+
+  /** Pointers of the handed over signals into the data buffer. */
+  private final int[] pointers;
+
+  /** Snapshot which is filled by the producer, accessed by producer only. */
+  private Signal[] back;
+
+  /** The last published snapshot, guarded by this object. */
+  private Signal[] front;
+
+  /**
+   * Initialization.
+   *
+   * @param pointers
+   *            pointers of signals to hand over, the same pointers are used
+   *            by producer and consumer data buffers
+   */
+  Handover(int[] pointers) {
+    this.pointers = notNull(pointers);
+    this.back = new Signal[pointers.length];
+    this.front = new Signal[pointers.length];
+  }
+
+  /**
+   * Takes the snapshot of the signals from the producer data buffer and
+   * makes it available to the consumer. Called by the producer task.
+   *
+   * @param buffer
+   *            data buffer of the producer task
+   */
+  void publish(DataBuffer buffer) {
+    for (int i = 0; i < pointers.length; i++) {
+      back[i] = buffer.get(pointers[i]);
+    }
+    synchronized (this) {
+      Signal[] temp = front;
+      front = back;
+      back = temp;
+    }
+  }
+
+  /**
+   * Writes the last published snapshot into the consumer data buffer.
+   * Called by the consumer task, after the buffer was cleared.
+   *
+   * @param buffer
+   *            data buffer of the consumer task
+   */
+  synchronized void collect(DataBuffer buffer) {
+    buffer.put(front, pointers);
+  }
+
+  /**
+   * Returns pointers of the handed over signals.
+   *
+   * @return pointers of the handed over signals
+   */
+  int[] getPointers() {
+    return pointers;
+  }
+
+}
@@ -0,0 +1,54 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.control4j;
+
+/**
+ *  This interface may be implemented by input, output or process modules
+ *  which are able to work with signals in the primitive form. If a module
+ *  implements this interface, the control loop calls the
+ *  {@link #execute} method instead of the method which works with signal
+ *  arrays, and no signal objects are created for the module.
+ *
+ *  <p>The module must still extend one of the {@link InputModule},
+ *  {@link OutputModule} or {@link ProcessModule} classes, which are used
+ *  to resolve the IO during the application building.
+ *
+ *  @see Slots
+ */
+public interface IPrimitiveModule
+{
+
+  /**
+   *  Method for the module functionality implementation. All of the
+   *  output signals are invalid before this method is called, so the
+   *  module may write just the valid ones.
+   *
+   *  @param input
+   *             input signals, empty for output modules
+   *
+   *  @param output
+   *             output signals, empty for input modules
+   *
+   *  @throws RuntimeException
+   *             should be thrown only in extreme situations in which the
+   *             actual scan should not be finished
+   */
+  public void execute(Slots input, Slots output) throws RuntimeException;
+
+}
@@ -0,0 +1,188 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.control4j;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of durations with logarithmic buckets. Each power of two
+ * interval is divided into {@link #SUB_BUCKETS} linear sub-buckets, so the
+ * relative error of the recorded value is lower than 12.5 % over the whole
+ * range, which is up to 2<sup>40</sup> ns. Greater values are stored into
+ * the last bucket.
+ *
+ * <p>Recording is allocation free and it takes a few ns. The histogram is
+ * not thread safe, it should be written by one thread at a time. Reading
+ * from other threads is possible, but the result may be slightly out of
+ * date.
+ */
+class LatencyHistogram {
+
+  /** Number of linear sub-buckets within each power of two interval. */
+  static final int SUB_BUCKETS = 8;
+
+  /** Log2 of the sub-bucket count. */
+  private static final int SUB_BITS = 3;
+
+  /** Log2 of the greatest value that may be recorded precisely. */
+  private static final int MAX_EXPONENT = 40;
+
+  /** Number of buckets, the last one is for the values out of range. */
+  static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS + 1;
+
+  private final long[] counts = new long[BUCKETS];
+
+  private long count;
+
+  private long sum;
+
+  private long max;
+
+  /**
+   * Records one value.
+   *
+   * @param value
+   *            duration in ns, negative numbers are treated as zero
+   */
+  void record(long value) {
+    long v = Math.max(value, 0);
+    counts[index(v)]++;
+    count++;
+    sum += v;
+    if (v > max) {
+      max = v;
+    }
+  }
+
+  /**
+   * Returns index of the bucket for given value.
+   *
+   * @param value
+   *            not negative value
+   *
+   * @return index of the bucket
+   */
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int)value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * Returns the greatest value which falls into the bucket with given index.
+   *
+   * @param index
+   *            index of the bucket
+   *
+   * @return upper bound of the bucket
+   */
+  static long upperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    } else if (index == BUCKETS - 1) {
+      return Long.MAX_VALUE;
+    }
+    int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+    long sub = index % SUB_BUCKETS;
+    return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+  }
+
+  /**
+   * Returns the number of recorded values.
+   *
+   * @return number of recorded values
+   */
+  long getCount() {
+    return count;
+  }
+
+  /**
+   * Returns the greatest recorded value.
+   *
+   * @return the greatest recorded value in ns
+   */
+  long getMax() {
+    return max;
+  }
+
+  /**
+   * Returns the average of recorded values.
+   *
+   * @return the average in ns, zero if nothing was recorded
+   */
+  long getMean() {
+    long n = count;
+    return n == 0 ? 0 : sum / n;
+  }
+
+  /**
+   * Returns the value below which the given percentage of recorded values
+   * falls. The result is the upper bound of the appropriate bucket, but it
+   * is never greater than the maximal recorded value.
+   *
+   * @param percentile
+   *            number between 0 and 100
+   *
+   * @return the value in ns, zero if nothing was recorded
+   */
+  long getPercentile(double percentile) {
+    long n = count;
+    if (n == 0) {
+      return 0;
+    }
+    long limit = Math.max(1, (long)Math.ceil(n * percentile / 100.0));
+    long cumulative = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      cumulative += counts[i];
+      if (cumulative >= limit) {
+        return Math.min(upperBound(i), max);
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Erases all of the recorded values.
+   */
+  void reset() {
+    Arrays.fill(counts, 0);
+    count = 0;
+    sum = 0;
+    max = 0;
+  }
+
+  /**
+   * Returns the summary of the histogram, all of the values in us.
+   *
+   * @return count, mean, median, 99th percentile and maximum
+   */
+  @Override
+  public String toString() {
+    return String.format("n: %d, mean: %d, p50: %d, p99: %d, max: %d",
+        count, getMean() / 1000, getPercentile(50) / 1000,
+        getPercentile(99) / 1000, max / 1000);
+  }
+
+}
@@ -18,6 +18,12 @@
 
 package cz.control4j;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Module is one of the main building blocks of the application. Modules reads
  * data from technology, provides them for the further processing, performs
@@ -88,7 +94,8 @@ public abstract class Module {
    * Used to set properties of the module. The default implementation uses
    * annotations to decide which concrete module method to call in order to
    * pass the property further. If some more complex behaviour is needed,
-   * this method should be overriden.
+   * this method should be overriden. The property with key task is
+   * handled here, see {@link #setTask}.
    *
    * <p>TODO: when this method is called?
    *
@@ -102,7 +109,69 @@ public abstract class Module {
    *
    */
   public void set(String key, String value) {
-    ModuleUtils.setProperty(this, key, value);
+    if (TASK_PROPERTY.equals(key)) {
+      setTask(value);
+    } else {
+      ModuleUtils.setProperty(this, key, value);
+    }
+  }
+
+  /** Properties given by the application, in the order of arrival. */
+  private final List<Map.Entry<String, String>> configuration
+      = new ArrayList<>();
+
+  /**
+   * Sets the property, see {@link #set}, and remembers it, so the
+   * configuration of the module may be stored into the compiled form of the
+   * application. This method is called by the application loader.
+   *
+   * @param key
+   *            the property identifier
+   *
+   * @param value
+   *            the value of the property
+   */
+  public final void configure(String key, String value) {
+    set(key, value);
+    configuration.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+  }
+
+  /**
+   * Returns properties that were given to the module by the {@link
+   * #configure} method.
+   *
+   * @return unmodifiable list of key, value pairs
+   */
+  public List<Map.Entry<String, String>> getConfiguration() {
+    return Collections.unmodifiableList(configuration);
+  }
+
+  /** Key of the property which assigns the module to a task. */
+  public static final String TASK_PROPERTY = "task";
+
+  /** Name of the task the module belongs to, null for the main task. */
+  private String task;
+
+  /**
+   * Returns the name of the task the module belongs to. The task determines
+   * the period and priority of the module execution.
+   *
+   * @return name of the task or null if the module belongs to the main task
+   */
+  public String getTask() {
+    return task;
+  }
+
+  /**
+   * Assigns the module to a task. The task must be defined in the
+   * application. It may be given in the application as property with
+   * key task.
+   *
+   * @param task
+   *            name of the task, null or blank for the main task
+   */
+  public void setTask(String task) {
+    this.task = task == null || task.trim().isEmpty() ? null : task.trim();
   }
 
   /**
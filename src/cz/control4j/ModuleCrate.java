@@ -21,6 +21,7 @@ package cz.control4j;
 import cz.lidinsky.tools.CommonException;
 import cz.lidinsky.tools.ExceptionCode;
 import static cz.lidinsky.tools.Validate.notNull;
+import java.util.Arrays;
 
 /**
  * Encapsulates a module together with the IO map. For application execution
@@ -31,7 +32,8 @@ import static cz.lidinsky.tools.Validate.notNull;
 public abstract class ModuleCrate {
 
   /**
-   * Create and return appropriate crate object for the given module.
+   * Create and return appropriate crate object for the given module. The
+   * input and output arrays are exactly as long as the maps.
    *
    * @param module
    *            the module which will be wrapped up
@@ -51,12 +53,54 @@ public abstract class ModuleCrate {
   static ModuleCrate create(
       Module module, int[] inputMap, int[] outputMap) {
 
-    if (module instanceof InputModule) {
-      return new InputModuleCrate((InputModule)module, inputMap);
+    return create(module, inputMap, outputMap,
+        inputMap == null ? 0 : inputMap.length,
+        outputMap == null ? 0 : outputMap.length);
+  }
+
+  /**
+   * Create and return appropriate crate object for the given module. The
+   * crate allocates the input and output arrays that are passed to the
+   * module during each execution.
+   *
+   * @param module
+   *            the module which will be wrapped up
+   *
+   * @param inputMap
+   *            a map which describe connection between the signal pointer
+   *            number and the position inside the given module input array.
+   *            If the given module is just output module, this may be null
+   *
+   * @param outputMap
+   *            a map which describe connection between the signal pointer
+   *            number and the position inside the given module output array
+   *            If given module is just input moudle, this may be null
+   *
+   * @param inputSize
+   *            the size of the input array, it is at least the size of
+   *            the input map
+   *
+   * @param outputSize
+   *            the size of the output array, it is at least the size of
+   *            the output map
+   *
+   * @return module crate object
+   */
+  static ModuleCrate create(Module module, int[] inputMap, int[] outputMap,
+      int inputSize, int outputSize) {
+
+    if (module instanceof IPrimitiveModule) {
+      return new PrimitiveModuleCrate(module,
+          module instanceof OutputModule ? null : inputMap,
+          module instanceof InputModule ? null : outputMap);
+    } else if (module instanceof InputModule) {
+      return new InputModuleCrate((InputModule)module, inputMap, inputSize);
     } else if (module instanceof OutputModule) {
-      return new OutputModuleCrate((OutputModule)module, outputMap);
+      return new OutputModuleCrate(
+          (OutputModule)module, outputMap, outputSize);
     } else if (module instanceof ProcessModule) {
-      return new ProcessModuleCrate((ProcessModule)module, inputMap, outputMap);
+      return new ProcessModuleCrate((ProcessModule)module,
+          inputMap, outputMap, inputSize, outputSize);
     } else {
       throw new CommonException()
         .setCode(ExceptionCode.CLASS_CAST)
@@ -71,6 +115,10 @@ public abstract class ModuleCrate {
    * to the buffer. Do not call this method directly. It is called regularly
    * by the Control loop.
    *
+   * <p>Each crate owns the arrays which are passed to the module, so this
+   * method doesn't allocate anything and different crates may be executed
+   * concurrently. The same crate may not be executed concurrently.
+   *
    * @param buffer
    *            the global buffer of signal values
    *
@@ -79,6 +127,83 @@ public abstract class ModuleCrate {
    */
   abstract void execute(DataBuffer buffer) throws RuntimeException;
 
+  /** Execution time histogram of the module, null if profiling is off. */
+  private LatencyHistogram profile;
+
+  /** Execution time of the last run in ns, if profiling is on. */
+  private long lastDuration;
+
+  /** System.nanoTime of the start of the last run, if profiling is on. */
+  private long lastStart;
+
+  /**
+   * Executes the module, see {@link #execute}. If the profiling is on, the
+   * execution time is measured and recorded into the histogram. Measuring
+   * doesn't allocate anything.
+   *
+   * @param buffer
+   *            the global buffer of signal values
+   *
+   * @throws RuntimeException
+   *            the exception thrown by the module execution method
+   */
+  final void run(DataBuffer buffer) throws RuntimeException {
+    LatencyHistogram histogram = profile;
+    if (histogram == null) {
+      execute(buffer);
+    } else {
+      long start = System.nanoTime();
+      lastStart = start;
+      try {
+        execute(buffer);
+      } finally {
+        lastDuration = System.nanoTime() - start;
+        histogram.record(lastDuration);
+      }
+    }
+  }
+
+  /**
+   * Turns the profiling of the module on or off.
+   *
+   * @param profiling
+   *            true to measure execution times
+   */
+  void setProfiling(boolean profiling) {
+    profile = profiling ? new LatencyHistogram() : null;
+    lastDuration = 0;
+    lastStart = 0;
+  }
+
+  /**
+   * Returns execution time histogram of the module.
+   *
+   * @return execution times, null if the profiling is off
+   */
+  LatencyHistogram getProfile() {
+    return profile;
+  }
+
+  /**
+   * Returns execution time of the last run.
+   *
+   * @return execution time in ns, zero if the profiling is off
+   */
+  long getLastDuration() {
+    return lastDuration;
+  }
+
+  /**
+   * Returns the start of the last run, so the scan the last duration
+   * belongs to may be recognized.
+   *
+   * @return System.nanoTime of the start of the last run, zero if the
+   *            profiling is off or if the module has not run yet
+   */
+  long getLastStart() {
+    return lastStart;
+  }
+
   /**
    * Returns the wrapped module.
    *
@@ -86,24 +211,29 @@ public abstract class ModuleCrate {
    */
   abstract Module getModule();
 
-  private static Signal[] inputArray;
+  /** An empty IO map, returned by crates without input or output. */
+  static final int[] EMPTY_MAP = new int[0];
 
-  protected static Signal[] getInputArray(int size) {
-    if (inputArray == null)
-      inputArray = new Signal[size];
-    else if (inputArray.length < size)
-      inputArray = new Signal[size];
-    return inputArray;
+  /**
+   * Returns the input map of the wrapped module. It is an array of signal
+   * pointers into the data buffer, negative number means that the input is
+   * not connected.
+   *
+   * @return the input map, an empty array for modules without input
+   */
+  int[] getInputMap() {
+    return EMPTY_MAP;
   }
 
-  private static Signal[] outputArray;
-
-  protected static Signal[] getOutputArray(int size) {
-    if (outputArray == null)
-      outputArray = new Signal[size];
-    else if (outputArray.length < size)
-      outputArray = new Signal[size];
-    return outputArray;
+  /**
+   * Returns the output map of the wrapped module. It is an array of signal
+   * pointers into the data buffer, negative number means that the output is
+   * not connected.
+   *
+   * @return the output map, an empty array for modules without output
+   */
+  int[] getOutputMap() {
+    return EMPTY_MAP;
   }
 
   /**
@@ -117,9 +247,13 @@ public abstract class ModuleCrate {
     /** Input map, not null. */
     private final int[] inputMap;
 
-    InputModuleCrate(InputModule module, int[] inputMap) {
+    /** Input array for the module. */
+    private final Signal[] input;
+
+    InputModuleCrate(InputModule module, int[] inputMap, int inputSize) {
       this.module = notNull(module);
       this.inputMap = notNull(inputMap);
+      this.input = new Signal[Math.max(inputMap.length, inputSize)];
     }
 
     @Override
@@ -127,9 +261,14 @@ public abstract class ModuleCrate {
         return module;
       }
 
+    @Override
+    int[] getInputMap() {
+      return inputMap;
+    }
+
     @Override
     void execute(DataBuffer buffer) throws RuntimeException {
-      Signal[] input = buffer.get(inputMap);
+      buffer.get(inputMap, input);
       module.put(input, inputMap.length);
     }
 
@@ -142,10 +281,12 @@ public abstract class ModuleCrate {
 
     private final OutputModule module;
     private final int[] outputMap;
+    private final Signal[] output;
 
-    OutputModuleCrate(OutputModule module, int[] outputMap) {
+    OutputModuleCrate(OutputModule module, int[] outputMap, int outputSize) {
       this.module = notNull(module);
       this.outputMap = notNull(outputMap);
+      this.output = new Signal[Math.max(outputMap.length, outputSize)];
     }
 
     @Override
@@ -153,9 +294,14 @@ public abstract class ModuleCrate {
         return module;
       }
 
+    @Override
+    int[] getOutputMap() {
+      return outputMap;
+    }
+
     @Override
     void execute(DataBuffer buffer) throws RuntimeException {
-      Signal[] output = getOutputArray(outputMap.length);
+      Arrays.fill(output, null);
       module.get(output, outputMap.length);
       SignalUtils.fillInvalid(output, outputMap.length);
       buffer.put(output, outputMap);
@@ -171,11 +317,16 @@ public abstract class ModuleCrate {
     private final ProcessModule module;
     private final int[] inputMap;
     private final int[] outputMap;
+    private final Signal[] input;
+    private final Signal[] output;
 
-    ProcessModuleCrate(ProcessModule module, int[] inputMap, int[] outputMap) {
+    ProcessModuleCrate(ProcessModule module, int[] inputMap, int[] outputMap,
+        int inputSize, int outputSize) {
       this.module = notNull(module);
       this.inputMap = notNull(inputMap);
       this.outputMap = notNull(outputMap);
+      this.input = new Signal[Math.max(inputMap.length, inputSize)];
+      this.output = new Signal[Math.max(outputMap.length, outputSize)];
     }
 
     @Override
@@ -183,10 +334,20 @@ public abstract class ModuleCrate {
         return module;
       }
 
+    @Override
+    int[] getInputMap() {
+      return inputMap;
+    }
+
+    @Override
+    int[] getOutputMap() {
+      return outputMap;
+    }
+
     @Override
     void execute(DataBuffer buffer) throws RuntimeException {
-      Signal[] input = buffer.get(inputMap);
-      Signal[] output = getOutputArray(outputMap.length);
+      buffer.get(inputMap, input);
+      Arrays.fill(output, null);
       module.process(input, inputMap.length, output, outputMap.length);
       SignalUtils.fillInvalid(output, outputMap.length);
       buffer.put(output, outputMap);
@@ -194,4 +355,48 @@ public abstract class ModuleCrate {
 
   }
 
+  /**
+   * A crate for modules that work with signals in the primitive form.
+   */
+  private static class PrimitiveModuleCrate extends ModuleCrate {
+
+    private final Module module;
+    private final int[] inputMap;
+    private final int[] outputMap;
+    private final Slots input;
+    private final Slots output;
+
+    PrimitiveModuleCrate(Module module, int[] inputMap, int[] outputMap) {
+      this.module = notNull(module);
+      this.inputMap = inputMap == null ? EMPTY_MAP : inputMap;
+      this.outputMap = outputMap == null ? EMPTY_MAP : outputMap;
+      this.input = new Slots(this.inputMap);
+      this.output = new Slots(this.outputMap);
+    }
+
+    @Override
+    Module getModule() {
+      return module;
+    }
+
+    @Override
+    int[] getInputMap() {
+      return inputMap;
+    }
+
+    @Override
+    int[] getOutputMap() {
+      return outputMap;
+    }
+
+    @Override
+    void execute(DataBuffer buffer) throws RuntimeException {
+      input.attach(buffer);
+      output.attach(buffer);
+      output.invalidate();
+      ((IPrimitiveModule)module).execute(input, output);
+    }
+
+  }
+
 }
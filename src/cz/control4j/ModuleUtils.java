@@ -8,6 +8,8 @@ import cz.lidinsky.tools.reflect.Setter;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.ResourceBundle;
 
 /**
@@ -123,6 +125,27 @@ public class ModuleUtils {
     }
   }
 
+  /**
+   * Setter methods of each module class, found once per class, so the
+   * reflection lookup is not repeated for each property. Keys with more
+   * than one setter are mapped to null.
+   */
+  private static final ClassValue<Map<String, Method>> setters
+      = new ClassValue<Map<String, Method>>() {
+        @Override
+        protected Map<String, Method> computeValue(Class<?> _class) {
+          Map<String, Method> result = new HashMap<>();
+          for (Method method : _class.getDeclaredMethods()) {
+            Setter setter = method.getAnnotation(Setter.class);
+            if (setter != null) {
+              result.put(setter.value(),
+                  result.containsKey(setter.value()) ? null : method);
+            }
+          }
+          return result;
+        }
+      };
+
   /**
    * Finds methods of the given class that are annotated by the setter
    * annotation with value which is equal to the given key.
@@ -134,20 +157,29 @@ public class ModuleUtils {
    *            an identifier of the setter
    *
    * @return found setter method
+   *
+   * @throws CommonException
+   *            if there is not exactly one such a method
    */
   protected static Method getSetterMethod(Class _class, String key) {
-    Method[] methods = _class.getDeclaredMethods();
-    return Arrays.stream(methods)
-        .filter(method -> method.getAnnotation(Setter.class) != null)
-        .filter(method -> cz.lidinsky.tools.Tools.equals(
-            method.getAnnotation(Setter.class).value(), key))
-        .findAny()
-        .orElseThrow(
-            () -> new CommonException()
-            .setCode(ExceptionCode.NO_SUCH_ELEMENT)
-            .set("message", "There is not a setter method with given key in the given class!")
-            .set("key", key)
-            .set("class", _class.getName()));
+    Map<String, Method> classSetters = setters.get(_class);
+    Method setter = classSetters.get(key);
+    if (setter == null && classSetters.containsKey(key)) {
+      throw new CommonException()
+          .setCode(ExceptionCode.DUPLICATE_ELEMENT)
+          .set("message", "There are more setter methods with given key"
+              + " in the given class!")
+          .set("key", key)
+          .set("class", _class.getName());
+    } else if (setter == null) {
+      throw new CommonException()
+          .setCode(ExceptionCode.NO_SUCH_ELEMENT)
+          .set("message", "There is not a setter method with given key"
+              + " in the given class!")
+          .set("key", key)
+          .set("class", _class.getName());
+    }
+    return setter;
   }
 
   /**
@@ -0,0 +1,274 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.control4j;
+
+import static cz.lidinsky.tools.Validate.notNull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Executes the sorted list of module crates in parallel.
+ *
+ * <p>The crates are split into dependency levels. The level of a crate is
+ * one greater than the highest level of crates it depends on. A crate
+ * depends on an other crate if:
+ * <ul>
+ *   <li>it reads a signal the other crate writes, and the other crate
+ *   precedes it in the sorted list,
+ *   <li>it writes a signal the other crate reads, and the other crate
+ *   precedes it in the sorted list,
+ *   <li>both modules are labeled by the {@link Sequential} annotation and
+ *   the other crate precedes it in the sorted list.
+ * </ul>
+ * Crates inside one level are independent and they are executed
+ * concurrently on a fork-join pool. Levels are executed one after the other.
+ * Therefore each crate sees exactly the same content of the data buffer as
+ * it would see during the sequential execution, and the results are the
+ * same.
+ *
+ * <p>If some module throws an exception, no other crate of its level is
+ * started and the following levels are not executed. Unlike the
+ * sequential scan, the crates of the level which were already running
+ * concurrently with the failed one, or which were started before it, are
+ * finished; so some modules which follow the failed one in the sorted
+ * order may be executed. The exception of the first crate in the sorted
+ * order is thrown, the unchecked exceptions and errors as well.
+ */
+class ParallelScan {
+
+  /**
+   * Levels with less crates than this number are executed on the calling
+   * thread, the fork overhead would be greater than the gain.
+   */
+  static final int THRESHOLD = 8;
+
+  /** Crates split into levels, each level contains crates in sorted order. */
+  private final ModuleCrate[][] levels;
+
+  /** An exception of each crate, for each level. */
+  private final Throwable[][] failures;
+
+  /** The pool to execute crates. */
+  private final ForkJoinPool pool;
+
+  /** Set if some crate of the current level failed. */
+  private final AtomicBoolean failed = new AtomicBoolean();
+
+  /**
+   * Splits the given crates into levels.
+   *
+   * @param crates
+   *            topologically sorted list of crates
+   *
+   * @param bufferSize
+   *            size of the data buffer, total number of signals
+   *
+   * @param parallelism
+   *            number of threads to execute crates
+   */
+  ParallelScan(List<ModuleCrate> crates, int bufferSize, int parallelism) {
+    this.levels = split(notNull(crates), bufferSize);
+    this.failures = new Throwable[levels.length][];
+    for (int i = 0; i < levels.length; i++) {
+      failures[i] = new Throwable[levels[i].length];
+    }
+    this.pool = new ForkJoinPool(parallelism);
+  }
+
+  /**
+   * Computes the level for each crate and returns crates grouped according
+   * to the levels.
+   *
+   * @param crates
+   *            topologically sorted list of crates
+   *
+   * @param bufferSize
+   *            total number of signals
+   *
+   * @return crates grouped according to the levels
+   */
+  static ModuleCrate[][] split(List<ModuleCrate> crates, int bufferSize) {
+    // the level of the crate that writes the signal
+    int[] writeLevel = new int[bufferSize];
+    Arrays.fill(writeLevel, -1);
+    // the highest level of the crates that read the signal
+    int[] readLevel = new int[bufferSize];
+    Arrays.fill(readLevel, -1);
+    int sequentialLevel = -1;
+    List<List<ModuleCrate>> result = new ArrayList<>();
+    for (ModuleCrate crate : crates) {
+      int level = 0;
+      for (int pointer : crate.getInputMap()) {
+        if (pointer >= 0) {
+          level = Math.max(level, writeLevel[pointer] + 1);
+        }
+      }
+      for (int pointer : crate.getOutputMap()) {
+        if (pointer >= 0) {
+          level = Math.max(level, readLevel[pointer] + 1);
+          level = Math.max(level, writeLevel[pointer] + 1);
+        }
+      }
+      boolean sequential = crate.getModule().getClass()
+          .isAnnotationPresent(Sequential.class);
+      if (sequential) {
+        level = Math.max(level, sequentialLevel + 1);
+        sequentialLevel = level;
+      }
+      for (int pointer : crate.getInputMap()) {
+        if (pointer >= 0) {
+          readLevel[pointer] = Math.max(readLevel[pointer], level);
+        }
+      }
+      for (int pointer : crate.getOutputMap()) {
+        if (pointer >= 0) {
+          writeLevel[pointer] = level;
+        }
+      }
+      while (result.size() <= level) {
+        result.add(new ArrayList<>());
+      }
+      result.get(level).add(crate);
+    }
+    return result.stream()
+        .map(level -> level.toArray(new ModuleCrate[level.size()]))
+        .toArray(ModuleCrate[][]::new);
+  }
+
+  /**
+   * Returns number of levels.
+   *
+   * @return number of levels
+   */
+  int getLevels() {
+    return levels.length;
+  }
+
+  /**
+   * Returns crates of the given level.
+   *
+   * @param level
+   *            zero based level index
+   *
+   * @return crates of the given level in sorted order
+   */
+  ModuleCrate[] getLevel(int level) {
+    return levels[level].clone();
+  }
+
+  /**
+   * Executes all of the crates.
+   *
+   * @param buffer
+   *            the data buffer
+   *
+   * @throws RuntimeException
+   *            the exception thrown by the first failed module
+   */
+  void execute(DataBuffer buffer) throws RuntimeException {
+    for (int i = 0; i < levels.length; i++) {
+      ModuleCrate[] level = levels[i];
+      Throwable[] failure = failures[i];
+      LevelTask task
+          = new LevelTask(level, failure, failed, buffer, 0, level.length);
+      if (level.length < THRESHOLD) {
+        task.compute();
+      } else {
+        pool.invoke(task);
+      }
+      for (int j = 0; j < failure.length; j++) {
+        if (failure[j] != null) {
+          Throwable e = failure[j];
+          Arrays.fill(failure, null);
+          failed.set(false);
+          if (e instanceof RuntimeException) {
+            throw (RuntimeException)e;
+          } else if (e instanceof java.lang.RuntimeException) {
+            throw (java.lang.RuntimeException)e;
+          } else {
+            throw (Error)e;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops the worker threads.
+   */
+  void shutdown() {
+    pool.shutdown();
+  }
+
+  /**
+   * Executes a range of crates of one level. The range is split in halves
+   * until it is short enough. No crate is started once some crate of the
+   * level failed. Any throwable is recorded, so the failure is always
+   * reported after the whole level finished.
+   */
+  private static class LevelTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ModuleCrate[] level;
+    private final Throwable[] failure;
+    private final AtomicBoolean failed;
+    private final DataBuffer buffer;
+    private final int from;
+    private final int to;
+
+    LevelTask(ModuleCrate[] level, Throwable[] failure,
+        AtomicBoolean failed, DataBuffer buffer, int from, int to) {
+      this.level = level;
+      this.failure = failure;
+      this.failed = failed;
+      this.buffer = buffer;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (failed.get()) {
+        return;
+      }
+      if (to - from <= THRESHOLD) {
+        for (int i = from; i < to && !failed.get(); i++) {
+          try {
+            level[i].run(buffer);
+          } catch (RuntimeException | java.lang.RuntimeException | Error e) {
+            failure[i] = e;
+            failed.set(true);
+          }
+        }
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(
+            new LevelTask(level, failure, failed, buffer, from, middle),
+            new LevelTask(level, failure, failed, buffer, middle, to));
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,108 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.control4j;
+
+import static cz.lidinsky.tools.Validate.notNull;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Execution time statistics of the control loop. It contains histograms of
+ * the scan phases, which are scan start listeners, module processing and
+ * scan end listeners, and the execution time histogram of each module,
+ * see {@link ModuleCrate#getProfile}.
+ */
+class ScanProfile {
+
+  /** Duration of the scanStart listeners. */
+  final LatencyHistogram scanStart = new LatencyHistogram();
+
+  /** Duration of the module processing. */
+  final LatencyHistogram processing = new LatencyHistogram();
+
+  /** Duration of the scanEnd listeners. */
+  final LatencyHistogram scanEnd = new LatencyHistogram();
+
+  /** Profiled modules. */
+  private final List<ModuleCrate> crates;
+
+  /**
+   * Initialization.
+   *
+   * @param crates
+   *            modules with the profiling turned on
+   */
+  ScanProfile(List<ModuleCrate> crates) {
+    this.crates = new ArrayList<>(notNull(crates));
+  }
+
+  /**
+   * Returns the crate whose module took the longest time during the last
+   * scan. Modules that were not executed during the last scan, because
+   * the scan was broken by an exception, are skipped; their last duration
+   * belongs to some of the previous scans.
+   *
+   * @param processingStart
+   *            System.nanoTime of the start of the module processing of
+   *            the last scan
+   *
+   * @return the slowest crate of the last scan, null if no module was
+   *            executed
+   */
+  ModuleCrate getSlowest(long processingStart) {
+    ModuleCrate slowest = null;
+    for (ModuleCrate crate : crates) {
+      if (crate.getProfile().getCount() == 0
+          || crate.getLastStart() - processingStart < 0) {
+        continue;
+      }
+      if (slowest == null
+          || crate.getLastDuration() > slowest.getLastDuration()) {
+        slowest = crate;
+      }
+    }
+    return slowest;
+  }
+
+  /**
+   * Writes the statistics in human readable form. The modules are ordered
+   * by the total time spent in them, the most expensive first. All of the
+   * times are in us.
+   *
+   * @param writer
+   *            where to write
+   */
+  void dump(PrintWriter writer) {
+    writer.println("----- Scan phases [us] ------");
+    writer.println("scan start: " + scanStart);
+    writer.println("processing: " + processing);
+    writer.println("scan end:   " + scanEnd);
+    writer.println("----- Modules [us] ------");
+    crates.stream()
+        .sorted(Comparator.comparingLong((ModuleCrate crate) ->
+            crate.getProfile().getMean() * crate.getProfile().getCount())
+            .reversed())
+        .forEach(crate -> writer.println(
+            crate.getModule() + ": "
+            + crate.getProfile()));
+  }
+
+}
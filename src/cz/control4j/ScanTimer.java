@@ -0,0 +1,276 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.control4j;
+
+import cz.lidinsky.tools.CommonException;
+import cz.lidinsky.tools.ExceptionCode;
+import static cz.lidinsky.tools.Validate.notNegative;
+import static cz.lidinsky.tools.Validate.notNull;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps the scan period of the control loop. The scans are scheduled on
+ * absolute deadlines measured by {@link System#nanoTime}, so the period
+ * doesn't drift with the duration of the scan. The timer waits with
+ * {@link LockSupport#parkNanos}, the last part of the waiting may be
+ * spent in a busy loop to lower the jitter.
+ *
+ * <p>If the scan takes longer than the period, the overrun policy decides
+ * when the next scan starts, see {@link OverrunPolicy}.
+ *
+ * <p>The difference between the deadline and the real start of each scan
+ * is recorded into a histogram. Bucket zero counts jitter below one
+ * microsecond, bucket i counts jitter in the interval
+ * [2<sup>i-1</sup>, 2<sup>i</sup>) microseconds, the last bucket counts
+ * everything above. This class is not thread safe except for the methods
+ * which read the statistics.
+ */
+class ScanTimer {
+
+  /** What to do if the scan was longer than the period. */
+  enum OverrunPolicy {
+
+    /**
+     * The missed scans are skipped, next scan starts at the nearest
+     * deadline in the future. The scans stay aligned with the original
+     * time grid.
+     */
+    SKIP,
+
+    /**
+     * The missed scans are executed immediately one after the other until
+     * the loop catches up with the original time grid.
+     */
+    CATCH_UP,
+
+    /**
+     * Next scan starts immediately, the time grid is shifted by the length
+     * of the overrun.
+     */
+    STRETCH;
+
+    /**
+     * Returns policy for given name, which is the lower case name of the
+     * constant with dash instead of underscore, for example catch-up.
+     *
+     * @param name
+     *            name of the policy
+     *
+     * @return the policy
+     *
+     * @throws CommonException
+     *            if there is no such a policy
+     */
+    static OverrunPolicy parse(String name) {
+      for (OverrunPolicy policy : values()) {
+        if (policy.name().replace('_', '-').equalsIgnoreCase(notNull(name))) {
+          return policy;
+        }
+      }
+      throw new CommonException()
+          .setCode(ExceptionCode.ILLEGAL_ARGUMENT)
+          .set("message", "Unsupported overrun policy!")
+          .set("policy", name);
+    }
+  }
+
+  /** Number of buckets of the jitter histogram. */
+  static final int BUCKETS = 24;
+
+  /** Period in ns, zero means that the scans follow immediately. */
+  private final long period;
+
+  /** Time in ns before the deadline which is spent in the busy loop. */
+  private final long spin;
+
+  private final OverrunPolicy policy;
+
+  /** Deadline of the next scan in the nanoTime scale. */
+  private long deadline;
+
+  /** Jitter histogram. */
+  private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+  /** Number of scans that were longer than the period. */
+  private volatile long overruns;
+
+  /** Maximal jitter in ns. */
+  private volatile long maxJitter;
+
+  /**
+   * Initialization.
+   *
+   * @param period
+   *            scan period in ns, zero for variable period
+   *
+   * @param spin
+   *            time in ns before each deadline which is spent in the busy
+   *            loop instead of parking the thread, zero for no spinning
+   *
+   * @param policy
+   *            overrun policy
+   *
+   * @throws CommonException
+   *            if period or spin is negative
+   */
+  ScanTimer(long period, long spin, OverrunPolicy policy) {
+    this.period = notNegative(period, "Scan period must be a positive number!");
+    this.spin = notNegative(spin, "Spin time must be a positive number!");
+    this.policy = notNull(policy);
+    this.deadline = System.nanoTime();
+  }
+
+  /**
+   * Waits for the start of the next scan and records the jitter.
+   *
+   * @return deadline of the scan which starts, in the nanoTime scale
+   */
+  long awaitScan() {
+    long now = awaitDeadline(deadline);
+    long jitter = now - deadline;
+    histogram.incrementAndGet(bucket(jitter));
+    if (jitter > maxJitter) {
+      maxJitter = jitter;
+    }
+    return deadline;
+  }
+
+  /**
+   * Computes the deadline of the next scan. Must be called after the scan
+   * is finished.
+   *
+   * @return duration of the scan which was just finished in ns
+   */
+  long scanEnd() {
+    long start = deadline;
+    long now = System.nanoTime();
+    deadline += period;
+    if (period > 0 && now > deadline) {
+      overruns++;
+      switch (policy) {
+        case SKIP:
+          deadline += ((now - deadline) / period + 1) * period;
+          break;
+        case STRETCH:
+          deadline = now;
+          break;
+        case CATCH_UP:
+        default:
+          break;
+      }
+    } else if (period == 0) {
+      deadline = now;
+    }
+    return now - start;
+  }
+
+  /**
+   * Waits until the given instant. The thread is parked until the spin time
+   * before the deadline, the rest is spent in the busy loop.
+   *
+   * @param deadline
+   *            the instant in the nanoTime scale
+   *
+   * @return the instant when the wait was finished
+   */
+  long awaitDeadline(long deadline) {
+    long now;
+    while ((now = System.nanoTime()) < deadline - spin) {
+      LockSupport.parkNanos(deadline - spin - now);
+    }
+    while ((now = System.nanoTime()) < deadline) {
+      Thread.onSpinWait();
+    }
+    return now;
+  }
+
+  /**
+   * Returns index of the histogram bucket for given jitter.
+   *
+   * @param jitter
+   *            jitter in ns
+   *
+   * @return index of the bucket
+   */
+  static int bucket(long jitter) {
+    long micros = jitter / 1000;
+    if (micros <= 0) {
+      return 0;
+    }
+    return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+  }
+
+  /**
+   * Returns a copy of the jitter histogram.
+   *
+   * @return number of scans for each bucket
+   */
+  long[] getHistogram() {
+    long[] result = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      result[i] = histogram.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the number of scans which were longer than the period.
+   *
+   * @return number of overruns
+   */
+  long getOverruns() {
+    return overruns;
+  }
+
+  /**
+   * Returns the maximal jitter.
+   *
+   * @return maximal jitter in ns
+   */
+  long getMaxJitter() {
+    return maxJitter;
+  }
+
+  /**
+   * Returns the jitter histogram in human readable form; only non empty
+   * buckets are printed.
+   *
+   * @return text representation of the jitter statistics
+   */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder()
+        .append("Jitter histogram [us]:");
+    for (int i = 0; i < BUCKETS; i++) {
+      long count = histogram.get(i);
+      if (count > 0) {
+        sb.append(' ')
+            .append(i == 0 ? "<1"
+                : i == BUCKETS - 1 ? ">=" + (1L << (i - 1)) : "<" + (1L << i))
+            .append(": ")
+            .append(count);
+      }
+    }
+    return sb.append(", max: ").append(maxJitter / 1000)
+        .append(" us, overruns: ").append(overruns)
+        .toString();
+  }
+
+}
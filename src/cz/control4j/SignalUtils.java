@@ -18,7 +18,6 @@
 
 package cz.control4j;
 
-import cz.lidinsky.signalserver.MessageUtils;
 import cz.lidinsky.spinel.SpinelMessage;
 import static cz.lidinsky.tools.Validate.notNull;
 import java.nio.ByteBuffer;
@@ -154,10 +153,13 @@ public class SignalUtils
    * message is as follows:
    *
    * 16bytes - first eigth characters of the given identifier
-   * 4bytes - timestamp
+   * 8bytes - timestamp, the current time
    * 1byte  - validity
    * 8bytes - value
    *
+   * <p>New buffer is allocated for each call, use {@link SpinelCodec} to
+   * encode more signals.
+   *
    * @param id
    *            identifier of the signal. Only first eight characters of the
    *            identifier is used.
@@ -168,53 +170,20 @@ public class SignalUtils
    * @return spinel message that contains given signal and identifier
    */
   public static ByteBuffer toSpinelData(String id, Signal signal) {
-    ByteBuffer buffer = ByteBuffer.allocate(29);
-    for (int i = 0; i < 8; i++) {
-      buffer.putChar(id.length() <= i ? ' ' : id.charAt(i));
-    }
-    buffer.putLong(signal.getTimestamp().toInstant().toEpochMilli());
-    buffer.put((byte) (signal.isValid() ? 0 : 1));
-    buffer.putDouble(signal.isValid() ? signal.getValue() : Double.NaN);
-    return buffer;
+    ByteBuffer buffer = ByteBuffer.allocate(SPINEL_BUFFER_SIZE);
+    return SpinelCodec.put(buffer, SpinelCodec.prefix(id),
+        System.currentTimeMillis(), signal);
   }
 
-
-
-  public static final int SPINEL_BUFFER_SIZE = Long.BYTES + Double.BYTES
-      + MessageUtils.SPINEL_IDENTIFIER_SIZE * Character.BYTES + Byte.BYTES;
+  public static final int SPINEL_BUFFER_SIZE = SpinelCodec.RECORD_SIZE;
 
   public static SpinelMessage toSpinel(final int address,
       final int instruction, final String id, final Signal signal) {
-
-    // data for the message
-    ByteBuffer buffer = ByteBuffer.allocate(SPINEL_BUFFER_SIZE);
-    for (int i = 0; i < MessageUtils.SPINEL_IDENTIFIER_SIZE; i++) {
-      buffer.putChar(id.length() <= i ? ' ' : id.charAt(i));
-    }
-    buffer.putLong(signal.getTimestamp().toInstant().toEpochMilli());
-    buffer.put((byte) (signal.isValid() ? 0 : 1));
-    buffer.putDouble(signal.isValid() ? signal.getValue() : Double.NaN);
-    // the whole message
-    return new SpinelMessage(address, instruction, buffer);
+    return SpinelCodec.toSpinel(address, instruction, toSpinelData(id, signal));
   }
 
-
   public static Signal fromSpinel(SpinelMessage message) {
-
-    ByteBuffer buffer = message.getData();
-    buffer.rewind();
-    // skip the id
-    for (int i = 0; i < MessageUtils.SPINEL_IDENTIFIER_SIZE; i++) {
-      buffer.getChar();
-    }
-    long timestamp = buffer.getLong();
-    boolean valid = buffer.get() == 0;
-    double value = buffer.getDouble();
-    if (valid) {
-      return Signal.getSignal(value, new Date(timestamp));
-    } else {
-      return Signal.getSignal(new Date(timestamp));
-    }
+    return SpinelCodec.getSignal(message.getData(), 0);
   }
 
 }
@@ -0,0 +1,207 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.control4j;
+
+/**
+ * A view of the module input or output into the data buffer. Signals are
+ * identified by the same zero based index as in the signal arrays passed to
+ * the module, and they are read and written in the primitive form, so no
+ * signal objects are created.
+ *
+ * <p>Writing into the index which is not connected does nothing, reading
+ * from such index returns an invalid value.
+ *
+ * @see IPrimitiveModule
+ */
+public final class Slots {
+
+  /** Signal pointers into the data buffer. */
+  private final int[] map;
+
+  /** The buffer, it is attached before each module execution. */
+  private DataBuffer buffer;
+
+  Slots(int[] map) {
+    this.map = map == null ? ModuleCrate.EMPTY_MAP : map;
+  }
+
+  void attach(DataBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  /**
+   * Marks all of the connected signals as invalid.
+   */
+  void invalidate() {
+    for (int pointer : map) {
+      if (pointer >= 0) {
+        buffer.putInvalid(pointer);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of signals, it is the same number as the input or
+   * output length passed to the signal array methods.
+   *
+   * @return number of signals
+   */
+  public int size() {
+    return map.length;
+  }
+
+  /**
+   * Returns true if there is a signal connected to the given index.
+   *
+   * @param index
+   *            zero based index
+   *
+   * @return true if the index is connected
+   */
+  public boolean isConnected(int index) {
+    return index >= 0 && index < map.length && map[index] >= 0;
+  }
+
+  /**
+   * Returns validity of the signal.
+   *
+   * @param index
+   *            zero based index
+   *
+   * @return true if the signal is connected, available and valid
+   */
+  public boolean isValid(int index) {
+    return isConnected(index) && buffer.isValid(map[index]);
+  }
+
+  /**
+   * Returns true if all of the first length signals are valid.
+   *
+   * @param length
+   *            number of signals to check
+   *
+   * @return true if all of the signals are valid
+   */
+  public boolean allValid(int length) {
+    for (int i = 0; i < length; i++) {
+      if (!isValid(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the value of the signal.
+   *
+   * @param index
+   *            zero based index
+   *
+   * @return the value of the signal, or NaN if the signal is not valid
+   */
+  public double getValue(int index) {
+    return isConnected(index) ? buffer.getValue(map[index]) : Double.NaN;
+  }
+
+  /**
+   * Returns the value of the signal as a boolean, see
+   * {@link Signal#getBoolean}.
+   *
+   * @param index
+   *            zero based index
+   *
+   * @return the boolean value of the signal, false if it is not valid
+   */
+  public boolean getBoolean(int index) {
+    return getValue(index) >= 0.5;
+  }
+
+  /**
+   * Returns the timestamp of the signal.
+   *
+   * @param index
+   *            zero based index
+   *
+   * @return the timestamp or <code>Long.MIN_VALUE</code> if the timestamps
+   *            are not recorded or the signal is not available
+   */
+  public long getTimestamp(int index) {
+    return isConnected(index)
+        ? buffer.getTimestamp(map[index]) : Long.MIN_VALUE;
+  }
+
+  /**
+   * Writes a valid real number.
+   *
+   * @param index
+   *            zero based index
+   *
+   * @param value
+   *            the value
+   */
+  public void setValue(int index, double value) {
+    if (isConnected(index)) {
+      buffer.putValue(map[index], value);
+    }
+  }
+
+  /**
+   * Writes a valid boolean value.
+   *
+   * @param index
+   *            zero based index
+   *
+   * @param value
+   *            the value
+   */
+  public void setBoolean(int index, boolean value) {
+    if (isConnected(index)) {
+      buffer.putBoolean(map[index], value);
+    }
+  }
+
+  /**
+   * Writes an invalid signal.
+   *
+   * @param index
+   *            zero based index
+   */
+  public void setInvalid(int index) {
+    if (isConnected(index)) {
+      buffer.putInvalid(map[index]);
+    }
+  }
+
+  /**
+   * Overrides the timestamp of the signal which was written. By default,
+   * the scan start time is used.
+   *
+   * @param index
+   *            zero based index
+   *
+   * @param timestamp
+   *            the timestamp
+   */
+  public void setTimestamp(int index, long timestamp) {
+    if (isConnected(index)) {
+      buffer.putTimestamp(map[index], timestamp);
+    }
+  }
+
+}
@@ -0,0 +1,252 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.control4j;
+
+import cz.lidinsky.signalserver.MessageUtils;
+import cz.lidinsky.spinel.SpinelMessage;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Encodes signals into the data of spinel messages and decodes them back
+ * without allocation. Each signal is one record of
+ * {@link #RECORD_SIZE} bytes:
+ *
+ * <pre>
+ *   16 bytes - first eight characters of the identifier, space padded
+ *    8 bytes - timestamp [ms]
+ *    1 byte  - validity, 0 valid, 1 invalid
+ *    8 bytes - value, NaN if invalid
+ * </pre>
+ *
+ * <p>The record is the same as the one of the {@link SignalUtils#toSpinel},
+ * one message may carry more records. The identifier is encoded just once,
+ * see {@link #prefix(String)}, the records are written into the buffer
+ * given by the caller, which may be taken from the {@link Pool}.
+ */
+public final class SpinelCodec {
+
+  /** Prevent instantiation. */
+  private SpinelCodec() {}
+
+  /** Size of the encoded identifier. */
+  public static final int ID_SIZE
+      = MessageUtils.SPINEL_IDENTIFIER_SIZE * Character.BYTES;
+
+  /** Size of one record. */
+  public static final int RECORD_SIZE
+      = ID_SIZE + Long.BYTES + Byte.BYTES + Double.BYTES;
+
+  /** How many records fit into one spinel message. */
+  public static final int MAX_RECORDS = (0xffff - 5) / RECORD_SIZE;
+
+  private static final int TIMESTAMP = ID_SIZE;
+  private static final int VALIDITY = TIMESTAMP + Long.BYTES;
+  private static final int VALUE = VALIDITY + Byte.BYTES;
+
+  /**
+   * Returns the encoded identifier, compute it once for each signal.
+   *
+   * @param id
+   *            identifier of the signal, only first eight characters are
+   *            used
+   *
+   * @return the identifier as it is written into the record
+   */
+  public static byte[] prefix(String id) {
+    ByteBuffer buffer = ByteBuffer.allocate(ID_SIZE);
+    for (int i = 0; i < MessageUtils.SPINEL_IDENTIFIER_SIZE; i++) {
+      buffer.putChar(id.length() <= i ? ' ' : id.charAt(i));
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Puts one record into the buffer.
+   *
+   * @param buffer
+   *            the destination, the record is written at its position
+   *
+   * @param prefix
+   *            encoded identifier, see {@link #prefix(String)}
+   *
+   * @param timestamp
+   *            timestamp [ms]
+   *
+   * @param valid
+   *            validity
+   *
+   * @param value
+   *            the value, it is ignored if the signal is not valid
+   *
+   * @return the buffer
+   */
+  public static ByteBuffer put(ByteBuffer buffer, byte[] prefix,
+      long timestamp, boolean valid, double value) {
+    return buffer.put(prefix)
+        .putLong(timestamp)
+        .put((byte) (valid ? 0 : 1))
+        .putDouble(valid ? value : Double.NaN);
+  }
+
+  /**
+   * Puts one record of the given signal into the buffer.
+   */
+  public static ByteBuffer put(ByteBuffer buffer, byte[] prefix,
+      long timestamp, Signal signal) {
+    boolean valid = signal != null && signal.isValid();
+    return put(buffer, prefix, timestamp, valid,
+        valid ? signal.getValue() : Double.NaN);
+  }
+
+  /**
+   * Puts the records of more signals with common timestamp into the buffer.
+   * It stops if there is no space for the next record.
+   *
+   * @param buffer
+   *            the destination
+   *
+   * @param prefixes
+   *            encoded identifiers of the signals
+   *
+   * @param timestamp
+   *            timestamp of all of the signals [ms]
+   *
+   * @param signals
+   *            signals to encode
+   *
+   * @param offset
+   *            index of the first signal to encode
+   *
+   * @param length
+   *            number of the signals to encode
+   *
+   * @return number of the records which were written
+   */
+  public static int putAll(ByteBuffer buffer, byte[][] prefixes,
+      long timestamp, Signal[] signals, int offset, int length) {
+    int count = Math.min(length, buffer.remaining() / RECORD_SIZE);
+    for (int i = offset; i < offset + count; i++) {
+      put(buffer, prefixes[i], timestamp, signals[i]);
+    }
+    return count;
+  }
+
+  /**
+   * Returns the message with the records which were put into the buffer.
+   * The buffer is flipped. The message uses the buffer, so it may be
+   * returned to the pool once the message was sent.
+   */
+  public static SpinelMessage toSpinel(int address, int instruction,
+      ByteBuffer buffer) {
+    buffer.flip();
+    return new SpinelMessage(address, instruction, buffer);
+  }
+
+  /** Returns the number of the records in the data. */
+  public static int getRecords(ByteBuffer data) {
+    return data.limit() / RECORD_SIZE;
+  }
+
+  /** Returns the timestamp [ms] of the record with the given index. */
+  public static long getTimestamp(ByteBuffer data, int record) {
+    return data.getLong(record * RECORD_SIZE + TIMESTAMP);
+  }
+
+  /** Returns the validity of the record with the given index. */
+  public static boolean isValid(ByteBuffer data, int record) {
+    return data.get(record * RECORD_SIZE + VALIDITY) == 0;
+  }
+
+  /** Returns the value of the record with the given index. */
+  public static double getValue(ByteBuffer data, int record) {
+    return data.getDouble(record * RECORD_SIZE + VALUE);
+  }
+
+  /**
+   * Returns true if the record with the given index has the identifier.
+   *
+   * @param prefix
+   *            encoded identifier, see {@link #prefix(String)}
+   */
+  public static boolean hasId(ByteBuffer data, int record, byte[] prefix) {
+    int base = record * RECORD_SIZE;
+    for (int i = 0; i < ID_SIZE; i++) {
+      if (data.get(base + i) != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the signal of the record with the given index, the invalid
+   * signal is shared.
+   */
+  public static Signal getSignal(ByteBuffer data, int record) {
+    return isValid(data, record)
+        ? Signal.getSignal(getValue(data, record))
+        : Signal.getSignal();
+  }
+
+  /**
+   * Pool of the direct buffers for the records. The buffer which is
+   * released while the pool is full is left to the garbage collector.
+   */
+  public static final class Pool {
+
+    private final ArrayBlockingQueue<ByteBuffer> buffers;
+
+    private final int records;
+
+    /**
+     * @param capacity
+     *            max number of the buffers kept by the pool
+     *
+     * @param records
+     *            number of the records in one buffer, at most
+     *            {@link #MAX_RECORDS}
+     */
+    public Pool(int capacity, int records) {
+      if (records < 1 || records > MAX_RECORDS) {
+        throw new IllegalArgumentException(
+            "Records must be between 1 and " + MAX_RECORDS);
+      }
+      this.buffers = new ArrayBlockingQueue<>(capacity);
+      this.records = records;
+    }
+
+    /** Returns the empty buffer. */
+    public ByteBuffer acquire() {
+      ByteBuffer buffer = buffers.poll();
+      if (buffer == null) {
+        return ByteBuffer.allocateDirect(records * RECORD_SIZE);
+      }
+      buffer.clear();
+      return buffer;
+    }
+
+    /** Returns the buffer to the pool. */
+    public void release(ByteBuffer buffer) {
+      buffers.offer(buffer);
+    }
+
+  }
+
+}
@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.control4j;
+
+import cz.lidinsky.tools.CommonException;
+import cz.lidinsky.tools.ExceptionCode;
+import static cz.lidinsky.tools.Validate.notNegative;
+import static cz.lidinsky.tools.Validate.notNull;
+
+/**
+ * A rate group of the control loop. Modules that belong to the same task are
+ * executed together, with the period of the task, by a thread with the
+ * priority of the task. Modules are assigned to the task by the task
+ * property, modules without it belong to the main task.
+ *
+ * @see cz.control4j.application.Preprocessor#getTasks
+ */
+public class Task {
+
+  /** Name of the task which is used to assign modules. */
+  private final String name;
+
+  /** Scan period of the task in ms. */
+  private final long period;
+
+  /** Priority of the thread which executes the task. */
+  private final int priority;
+
+  /**
+   * Initialization.
+   *
+   * @param name
+   *            name of the task, may not be null
+   *
+   * @param period
+   *            scan period in ms, may not be negative
+   *
+   * @param priority
+   *            thread priority, see {@link Thread#setPriority}
+   *
+   * @throws CommonException
+   *            if some of the parameters is not valid
+   */
+  public Task(String name, long period, int priority) {
+    this.name = notNull(name);
+    this.period = notNegative(period,
+        "Task period must be a positive number!");
+    if (priority < Thread.MIN_PRIORITY || priority > Thread.MAX_PRIORITY) {
+      throw new CommonException()
+          .setCode(ExceptionCode.ILLEGAL_ARGUMENT)
+          .set("message", "Task priority is out of range!")
+          .set("task", name)
+          .set("priority", priority);
+    }
+    this.priority = priority;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getPeriod() {
+    return period;
+  }
+
+  public int getPriority() {
+    return priority;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Task: %s, period: %d ms, priority: %d",
+        name, period, priority);
+  }
+
+}
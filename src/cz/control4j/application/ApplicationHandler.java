@@ -17,6 +17,7 @@
 package cz.control4j.application;
 
 import cz.control4j.Module;
+import cz.control4j.Task;
 
 /**
  *
@@ -44,6 +45,14 @@ public interface ApplicationHandler {
 
   void putDefinition(String name, Scope scope, String value);
 
+  /**
+   * Puts a task definition. Tasks are global, they are not scoped.
+   *
+   * @param task
+   *            the task to add
+   */
+  void putTask(Task task);
+
   /**
    * Puts a module intput into the internal buffer for further processing.
    *
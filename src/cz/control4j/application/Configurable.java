@@ -21,8 +21,10 @@ package cz.control4j.application;
 import cz.lidinsky.tools.CommonException;
 import cz.lidinsky.tools.ExceptionCode;
 import static cz.lidinsky.tools.Validate.notNull;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
  *
@@ -117,6 +119,15 @@ public abstract class Configurable extends DeclarationBase {
     return configuration.get(key);
   }
 
+  /**
+   * Returns keys of all of the properties.
+   *
+   * @return unmodifiable set of keys
+   */
+  public Set<String> getKeys() {
+    return Collections.unmodifiableSet(configuration.keySet());
+  }
+
   public void putConfiguration(Configurable source) {
     if (source != null) {
       this.configuration.putAll(source.configuration);
@@ -39,7 +39,7 @@ public class ModuleConfigurableAdapter extends Configurable {
 
   @Override
   public Property putProperty(String key, Property property) {
-    module.set(key, property.getValue());
+    module.configure(key, property.getValue());
     return property;
   }
 
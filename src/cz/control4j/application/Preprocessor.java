@@ -19,6 +19,7 @@
 package cz.control4j.application;
 
 import cz.control4j.Module;
+import cz.control4j.Task;
 import cz.lidinsky.tools.CommonException;
 import cz.lidinsky.tools.ExceptionCode;
 import static cz.lidinsky.tools.Validate.notNull;
@@ -52,6 +53,7 @@ public class Preprocessor implements ApplicationHandler {
     this.signals = new ScopeMap<>();
     this.definitions = new ScopeMap<>();
     this.references = new ArrayDeque<>();
+    this.tasks = new ArrayList<>();
   }
 
   /**
@@ -278,6 +280,23 @@ public class Preprocessor implements ApplicationHandler {
     definitions.put(name, scope, new ValueObject(value));
   }
 
+  /** Task definitions. */
+  private final List<Task> tasks;
+
+  @Override
+  public void putTask(Task task) {
+    tasks.add(notNull(task));
+  }
+
+  /**
+   * Returns task definitions.
+   *
+   * @return unmodifiable list of task definitions
+   */
+  public List<Task> getTasks() {
+    return Collections.unmodifiableList(tasks);
+  }
+
   @Override
   public void addModuleInput(ReferenceDecorator<Module> reference) {
     throw new UnsupportedOperationException();
@@ -39,4 +39,6 @@ public class AbstractAdapter
 
   public void put(Use use) {}
 
+  public void put(Task task) {}
+
 }
@@ -51,6 +51,7 @@ public class C4j2Control extends AbstractAdapter {
     this.signals = new ArrayDeque<>();
     this.modules = new ArrayDeque<>();
     this.definitions = new ArrayDeque<>();
+    this.tasks = new ArrayDeque<>();
   }
 
   /**
@@ -73,6 +74,11 @@ public class C4j2Control extends AbstractAdapter {
         define.getValue());
     }
 
+    // translate task definitions
+    while (!tasks.isEmpty()) {
+      translateTask(tasks.pop());
+    }
+
     // translate all of the signals
     while (!signals.isEmpty()) {
       translateSignal(signals.pop());
@@ -132,6 +138,14 @@ public class C4j2Control extends AbstractAdapter {
     definitions.add(define);
   }
 
+  /** Tasks. */
+  private final Deque<Task> tasks;
+
+  @Override
+  public void put(Task task) {
+    tasks.add(task);
+  }
+
   @Override
   public void put(Property property) {
     // TODO:
@@ -197,6 +211,39 @@ public class C4j2Control extends AbstractAdapter {
     }
   }
 
+  /**
+   * Translates given task definition and sends the result into the handler
+   * object. If the priority is not given, normal priority is used.
+   *
+   * @param taskDef
+   *            task definition object to be translated
+   *
+   * @throws CommonException
+   *            if the name or period is missing or if it is not a valid
+   *            task definition
+   */
+  protected void translateTask(Task taskDef) {
+    try {
+      if (isBlank(taskDef.getName()) || isBlank(taskDef.getPeriod())) {
+        throw new CommonException()
+            .setCode(ExceptionCode.SYNTAX_ERROR)
+            .set("message", "The name or period attribute is missing!");
+      }
+      handler.putTask(new cz.control4j.Task(
+          taskDef.getName().trim(),
+          Long.parseLong(taskDef.getPeriod().trim()),
+          isBlank(taskDef.getPriority())
+              ? Thread.NORM_PRIORITY
+              : Integer.parseInt(taskDef.getPriority().trim())));
+    } catch (Exception e) {
+      throw new CommonException()
+          .setCause(e)
+          .set("message", "Couldn't translate task definition!")
+          .set("name", taskDef.getName())
+          .set("declaration reference", taskDef.getDeclarationReferenceText());
+    }
+  }
+
   /**
    * Copy all of the property objects from the source object to the destination
    * object.
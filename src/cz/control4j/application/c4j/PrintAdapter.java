@@ -86,6 +86,11 @@ public class PrintAdapter extends AbstractAdapter
 //                new cz.lidinsky.tools.text.Object2String().toStrBuffer(define))));
   }
 
+  public void put(Task task)
+  {
+    objects.add(task);
+  }
+
   public void put(Property property)
   {
     objects.add(property);
@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2016 Jiri Lidinsky
+ *
+ *  This file is part of control4j.
+ *
+ *  control4j is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, version 3.
+ *
+ *  control4j is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with control4j.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cz.control4j.application.c4j;
+
+/**
+ *
+ *  Represents a task element. The task is a group of modules which are
+ *  executed with the same period and priority. Modules are assigned to the
+ *  task by the property with key task.
+ *
+ */
+public class Task extends DeclarationBase {
+
+  public Task() {}
+
+  /** Name of the task. */
+  private String name;
+
+  public String getName() {
+    return name;
+  }
+
+  Task setName(final String name) {
+    this.name = name;
+    return this;
+  }
+
+  /** Scan period of the task in ms, as it was given. */
+  private String period;
+
+  public String getPeriod() {
+    return period;
+  }
+
+  Task setPeriod(final String period) {
+    this.period = period;
+    return this;
+  }
+
+  /** Priority of the thread which executes the task, as it was given. */
+  private String priority;
+
+  public String getPriority() {
+    return priority;
+  }
+
+  Task setPriority(final String priority) {
+    this.priority = priority;
+    return this;
+  }
+
+}
@@ -169,6 +169,23 @@ public class XMLHandler implements IXMLHandler {
       return true;
     }
 
+  /*
+   *
+   *      Task
+   *
+   */
+
+  @AXMLStartElement("application/task")
+    public boolean startApplicationTask(Attributes attributes) {
+      Task task = new Task()
+        .setName(attributes.getValue("name"))
+        .setPeriod(attributes.getValue("period"))
+        .setPriority(attributes.getValue("priority"));
+      setDeclarationReference(task);
+      adapter.put(task);
+      return true;
+    }
+
   /*
    *
    *     Signal
@@ -20,22 +20,74 @@ package cz.control4j.modules;
 import cz.control4j.InputModule;
 import cz.control4j.RuntimeException;
 import cz.control4j.Signal;
-import cz.lidinsky.tools.dispatch.Client;
-import java.io.IOException;
+import cz.control4j.application.IO;
+import cz.control4j.application.Property;
+import cz.control4j.resources.export.ExportSender;
+import cz.lidinsky.tools.reflect.Setter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import org.json.JSONObject;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Exports the input signals over the network. The values are handed over
+ * to the background thread, which sends them in the compact binary format,
+ * see {@link cz.control4j.resources.export.ExportProtocol}; the schema
+ * with the labels is sent once after each connect, then the values and the
+ * validity of the signals with the timestamp of each scan. The scan never
+ * waits for the network, if the queue is full the values are dropped.
+ *
+ * <p>In the exception mode just the signals which changed by more than
+ * their deadband since they were sent last time are sent, and all of the
+ * signals are sent once per keyframe period. The deadband may be set for
+ * all of the inputs by the module property and for the particular input
+ * by the input property of the same name.
+ *
+ *  <h3>Property</h3>
+ *  <table><caption>Properties</caption>
+ *      <tr>
+ *          <td>host</td>
+ *          <td>Where to send the values, default localhost.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>port</td>
+ *          <td>Where to send the values, default 12349.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>format</td>
+ *          <td>binary (default) or json, the JSON objects are sent
+ *          through the dispatch client, it is meant for debugging.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>mode</td>
+ *          <td>scan (default), all of the signals are sent each scan, or
+ *          exception, just the changes are sent.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>deadband</td>
+ *          <td>The change which is not greater is not sent in the
+ *          exception mode, default zero, any change is sent.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>keyframe-period</td>
+ *          <td>All of the signals are sent at least so often in s in the
+ *          exception mode, default 60.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>queue-capacity</td>
+ *          <td>Number of scans that may wait to be sent, default 16.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>batch-size</td>
+ *          <td>Max number of scans written at once, default 8.</td>
+ *      </tr>
+ *  </table>
  *
  * @author jilm
  */
 public class IMExport extends InputModule {
 
-  private boolean running = false;
-
   public IMExport() {
     ids = new ArrayList<>();
   }
@@ -52,49 +104,113 @@ public class IMExport extends InputModule {
     }
   }
 
-  private Client client;
+  /** Deadbands of the inputs which have the deadband property. */
+  private final Map<Integer, Double> deadbands = new HashMap<>();
 
   @Override
-  public void prepare() {
-    try {
-      client = new Client("localhost", 12349);
-      client.start();
-      running = true;
-    } catch (IOException ex) {
-      Logger.getLogger(IMExport.class.getName()).log(Level.SEVERE, null, ex);
+  public int getInputIndex(IO input) {
+    int index = getInputIndex(input.getKey());
+    Property deadband = input.getProperty("deadband");
+    if (deadband != null) {
+      deadbands.put(index, Double.parseDouble(deadband.getValue().trim()));
     }
+    return index;
   }
 
-  @Override
-  protected void put(Signal[] input, int inputLength) throws RuntimeException {
-    if (running) {
-      try {
-        client.send(toJSON(input, inputLength));
-      } catch (IOException ex) {
-        Logger.getLogger(IMExport.class.getName()).log(Level.SEVERE, null, ex);
-      }
+  private String host = "localhost";
+
+  @Setter("host")
+  public void setHost(String host) {
+    this.host = host;
+  }
+
+  private int port = 12349;
+
+  @Setter("port")
+  public void setPort(int port) {
+    this.port = port;
+  }
+
+  private String format = "binary";
+
+  @Setter("format")
+  public void setFormat(String format) {
+    if (!format.equals("binary") && !format.equals("json")) {
+      throw new IllegalArgumentException("Unknown format: " + format);
     }
+    this.format = format;
   }
 
-  private JSONObject toJSON(Signal signal) {
-    if (signal == null || !signal.isValid()) {
-      return new JSONObject()
-          .put("class", "cz.control4j.Signal")
-          .put("validity", false);
-    } else {
-      return new JSONObject()
-          .put("class", "cz.control4j.Signal")
-          .put("validity", true)
-          .put("value", signal.getValue());
+  private String mode = "scan";
+
+  @Setter("mode")
+  public void setMode(String mode) {
+    if (!mode.equals("scan") && !mode.equals("exception")) {
+      throw new IllegalArgumentException("Unknown mode: " + mode);
     }
+    this.mode = mode;
   }
 
-  private JSONObject toJSON(Signal[] signals, int length) {
-    JSONObject result = new JSONObject();
-    for (int i=0; i<length; i++) {
-      result.put(ids.get(i), toJSON(signals[i]));
+  private double deadband;
+
+  @Setter("deadband")
+  public void setDeadband(double deadband) {
+    this.deadband = deadband;
+  }
+
+  private int keyframePeriod = 60;
+
+  @Setter("keyframe-period")
+  public void setKeyframePeriod(int keyframePeriod) {
+    this.keyframePeriod = keyframePeriod;
+  }
+
+  private int capacity = ExportSender.DEFAULT_CAPACITY;
+
+  @Setter("queue-capacity")
+  public void setCapacity(int capacity) {
+    this.capacity = capacity;
+  }
+
+  private int batch = ExportSender.DEFAULT_BATCH;
+
+  @Setter("batch-size")
+  public void setBatch(int batch) {
+    this.batch = batch;
+  }
+
+  private ExportSender sender;
+
+  /** Values of the scan, reused each scan. */
+  private double[] values;
+
+  private boolean[] valid;
+
+  @Override
+  public void prepare() {
+    String[] labels = ids.toArray(new String[ids.size()]);
+    values = new double[labels.length];
+    valid = new boolean[labels.length];
+    sender = new ExportSender(
+        host, port, labels, format.equals("json"), capacity, batch);
+    if (mode.equals("exception")) {
+      double[] limits = new double[labels.length];
+      for (int i = 0; i < limits.length; i++) {
+        limits[i] = deadbands.getOrDefault(i, deadband);
+      }
+      sender.setDeadbands(
+          limits, TimeUnit.SECONDS.toMillis(keyframePeriod));
+    }
+    sender.start();
+  }
+
+  @Override
+  protected void put(Signal[] input, int inputLength) throws RuntimeException {
+    for (int i = 0; i < inputLength; i++) {
+      valid[i] = input[i] != null && input[i].isValid();
+      values[i] = valid[i] ? input[i].getValue() : 0.0;
     }
-    return result;
+    sender.offer(System.currentTimeMillis(), values, valid);
   }
 
 }
@@ -20,9 +20,15 @@ import cz.control4j.InputModule;
 import cz.control4j.RuntimeException;
 import cz.control4j.Signal;
 import cz.control4j.application.IO;
+import cz.control4j.application.Property;
+import cz.control4j.resources.historian.Deadband;
 import cz.control4j.resources.historian.FileWriter;
+import cz.control4j.resources.historian.Rollups;
+import cz.lidinsky.tools.reflect.Setter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Save input signals into the file. The structure of the file is as follows:
@@ -42,8 +48,88 @@ import java.util.List;
  * </ol>
  *
  * <p>It uses {@link cz.control4j.resources.historian.FileWriter} class
- * to store data into the file.
+ * to store data into the file. The samples are handed over to the thread
+ * which writes the file through the lock-free buffer, so the scan never
+ * waits for the disk. If the buffer is full, the sample is dropped.
  *
+ * <p>By default each of the samples is recorded. If a deadband or the
+ * swinging door compression is set, just the samples which are needed to
+ * reconstruct the signals within the tolerance are recorded, see
+ * {@link cz.control4j.resources.historian.Deadband}. The deadband and the
+ * compression may be set for all of the inputs by the module properties
+ * and for the particular input by the input properties of the same name.
+ * They are ignored for the HISTOR01 format which has no timestamps. The
+ * compressed signals are marked as interpolated linearly in the file, so
+ * the averages weight each sample by the time it covers correctly.
+ *
+ *  <h3>Property</h3>
+ *  <table><caption>Properties</caption>
+ *      <tr>
+ *          <td>buffer-capacity</td>
+ *          <td>Number of samples that may wait for the file.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>rotate-size</td>
+ *          <td>New file is started when the file exceeds this size in
+ *          MB, default 64.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>rotate-period</td>
+ *          <td>New file is started at each multiple of this period in s,
+ *          default one day, zero means no time limit.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>sync-period</td>
+ *          <td>The file is forced to the disk so often in ms, default
+ *          5000, zero means just when the file is closed.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>retention-days</td>
+ *          <td>Older files are deleted, zero (default) means forever.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>downsample-days</td>
+ *          <td>Older files are downsampled, zero (default) means never.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>downsample-period</td>
+ *          <td>Sample period of the downsampled files in s, default one
+ *          minute.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>merge-size</td>
+ *          <td>Consecutive files smaller than this size in kB are merged,
+ *          default 1024, zero means never.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>compaction-period</td>
+ *          <td>How often the retention, downsampling and merging is done in
+ *          s, default one hour, zero means never.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>rollups</td>
+ *          <td>Comma separated periods of the rollup tiers in s, default
+ *          60,900,3600, empty means no rollups.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>deadband</td>
+ *          <td>Absolute deadband, the change which is not greater is not
+ *          recorded, zero means just the changes are recorded.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>deadband-percent</td>
+ *          <td>Deadband in percent of the last recorded value.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>compression</td>
+ *          <td>Swinging door compression deviation.</td>
+ *      </tr>
+ *      <tr>
+ *          <td>max-interval</td>
+ *          <td>A sample is recorded at least each such interval in s,
+ *          default 600, zero means never.</td>
+ *      </tr>
+ *  </table>
  */
 public class IMHistorian extends InputModule {
 
@@ -53,16 +139,155 @@ public class IMHistorian extends InputModule {
   /** Identifiers inside the history file. */
   private List<String> labels;
 
+  private int capacity = FileWriter.DEFAULT_CAPACITY;
+
+  @Setter("buffer-capacity")
+  public void setCapacity(int capacity) {
+    this.capacity = capacity;
+  }
+
+  private int rotateSize = (int)(FileWriter.DEFAULT_MAX_SIZE >> 20);
+
+  @Setter("rotate-size")
+  public void setRotateSize(int rotateSize) {
+    this.rotateSize = rotateSize;
+  }
+
+  private int rotatePeriod
+      = (int)(FileWriter.DEFAULT_ROTATION_PERIOD / 1000);
+
+  @Setter("rotate-period")
+  public void setRotatePeriod(int rotatePeriod) {
+    this.rotatePeriod = rotatePeriod;
+  }
+
+  private int syncPeriod = (int)FileWriter.DEFAULT_SYNC_PERIOD;
+
+  @Setter("sync-period")
+  public void setSyncPeriod(int syncPeriod) {
+    this.syncPeriod = syncPeriod;
+  }
+
+  private int retentionDays;
+
+  @Setter("retention-days")
+  public void setRetentionDays(int retentionDays) {
+    this.retentionDays = retentionDays;
+  }
+
+  private int downsampleDays;
+
+  @Setter("downsample-days")
+  public void setDownsampleDays(int downsampleDays) {
+    this.downsampleDays = downsampleDays;
+  }
+
+  private int downsamplePeriod = 60;
+
+  @Setter("downsample-period")
+  public void setDownsamplePeriod(int downsamplePeriod) {
+    this.downsamplePeriod = downsamplePeriod;
+  }
+
+  private int mergeSize = 1024;
+
+  @Setter("merge-size")
+  public void setMergeSize(int mergeSize) {
+    this.mergeSize = mergeSize;
+  }
+
+  private int compactionPeriod
+      = (int)(FileWriter.DEFAULT_COMPACTION_PERIOD / 1000);
+
+  @Setter("compaction-period")
+  public void setCompactionPeriod(int compactionPeriod) {
+    this.compactionPeriod = compactionPeriod;
+  }
+
+  private long[] rollups = Rollups.DEFAULT_PERIODS;
+
+  @Setter("rollups")
+  public void setRollups(String rollups) {
+    this.rollups = Arrays.stream(rollups.split(","))
+        .map(String::trim)
+        .filter(period -> !period.isEmpty())
+        .mapToLong(period -> TimeUnit.SECONDS.toMillis(Long.parseLong(period)))
+        .toArray();
+  }
+
+  private double deadband = -1.0;
+
+  @Setter("deadband")
+  public void setDeadband(double deadband) {
+    this.deadband = deadband;
+  }
+
+  private double deadbandPercent;
+
+  @Setter("deadband-percent")
+  public void setDeadbandPercent(double deadbandPercent) {
+    this.deadbandPercent = deadbandPercent;
+  }
+
+  private double compression;
+
+  @Setter("compression")
+  public void setCompression(double compression) {
+    this.compression = compression;
+  }
+
+  private int maxInterval = 600;
+
+  @Setter("max-interval")
+  public void setMaxInterval(int maxInterval) {
+    this.maxInterval = maxInterval;
+  }
+
+  /** Inputs, to get the deadband and compression of each of them. */
+  private List<IO> inputs;
+
+  /** Decides which samples are recorded. */
+  private Deadband filter;
+
+  /** Values of the sample, reused each scan. */
+  private float[] values;
+
   @Override
   public void initialize() {
     labels = new ArrayList<>();
+    inputs = new ArrayList<>();
   }
 
   @Override
   public void prepare() {
     String[] labelArray = new String[labels.size()];
     labelArray = (String[]) labels.toArray(labelArray);
-    writer = new FileWriter(labelArray, 1000);
+    writer = new FileWriter(labelArray, 1000, capacity);
+    values = new float[labelArray.length];
+    writer.setRotation((long)rotateSize << 20,
+        TimeUnit.SECONDS.toMillis(rotatePeriod));
+    writer.setSyncPeriod(syncPeriod);
+    writer.setRollups(rollups);
+    writer.setCompactionPeriod(TimeUnit.SECONDS.toMillis(compactionPeriod));
+    writer.getCompactor().setRetention(TimeUnit.DAYS.toMillis(retentionDays));
+    writer.getCompactor().setDownsampling(
+        TimeUnit.DAYS.toMillis(downsampleDays),
+        TimeUnit.SECONDS.toMillis(downsamplePeriod));
+    writer.getCompactor().setMergeSize((long)mergeSize << 10);
+    filter = new Deadband(labelArray.length, writer::write);
+    if (!FileWriter.FORMAT.equals("HISTOR01")) {
+      filter.setMaxInterval(TimeUnit.SECONDS.toMillis(maxInterval));
+      for (int i = 0; i < inputs.size(); i++) {
+        IO input = inputs.get(i);
+        double absolute = getDouble(input, "deadband", deadband);
+        double percent = getDouble(input, "deadband-percent", deadbandPercent);
+        if (absolute >= 0.0 || percent > 0.0) {
+          filter.setDeadband(i, absolute, percent);
+        }
+        filter.setCompression(i, getDouble(input, "compression", compression));
+        writer.setLinear(i, filter.isLinear(i));
+      }
+    }
     writer.start(System.currentTimeMillis());
     //Runtime.getRuntime().addShutdownHook(new Thread(writer::close));
   }
@@ -70,18 +295,38 @@ public class IMHistorian extends InputModule {
   @Override
   public int getInputIndex(IO input) {
     labels.add(input.getKey());
+    inputs.add(input);
     return labels.size() - 1;
   }
 
+  /**
+   * Returns the value of the input property, or the default value if the
+   * input has no such property.
+   */
+  private static double getDouble(IO input, String key, double defaultValue) {
+    Property property = input.getProperty(key);
+    return property == null
+        ? defaultValue : Double.parseDouble(property.getValue().trim());
+  }
+
   @Override
   protected void put(Signal[] input, int inputLength) throws RuntimeException {
-    float[] values = new float[inputLength];
     for (int i=0; i<inputLength; i++) {
       values[i] = (input[i] == null || !input[i].isValid())
           ? Float.NaN
           : (float)input[i].getValue();
     }
-    writer.write(values);
+    filter.offer(System.currentTimeMillis(), values);
+  }
+
+  /**
+   * Stops the file writer. The buffered samples are written, the files
+   * are closed and the maintenance of the directory is shut down.
+   */
+  public void close() {
+    if (writer != null) {
+      writer.close();
+    }
   }
 
 }
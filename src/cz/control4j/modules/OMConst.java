@@ -22,10 +22,12 @@ package cz.control4j.modules;
 //import org.apache.commons.lang3.builder.ToStringBuilder;
 //import org.apache.commons.lang3.builder.ToStringStyle;
 
+import cz.control4j.IPrimitiveModule;
 import cz.control4j.Output;
 import cz.control4j.OutputModule;
 import cz.control4j.Signal;
 import cz.control4j.SignalUtils;
+import cz.control4j.Slots;
 import cz.lidinsky.tools.reflect.Setter;
 
 /**
@@ -38,7 +40,7 @@ import cz.lidinsky.tools.reflect.Setter;
  *             It is always valid and with the actual timestamp.
  */
 @Output(index=0, alias="out", description="Output of constant signal")
-public class OMConst extends OutputModule {
+public class OMConst extends OutputModule implements IPrimitiveModule {
 
   private double value;
 
@@ -52,4 +54,9 @@ public class OMConst extends OutputModule {
     output[0] = SignalUtils.getSignal(value);
   }
 
+  @Override
+  public void execute(Slots input, Slots output) {
+    output.setValue(0, value);
+  }
+
 }
@@ -16,22 +16,31 @@
  */
 package cz.control4j.modules;
 
+import cz.control4j.IPrimitiveModule;
 import cz.control4j.Output;
 import cz.control4j.OutputModule;
 import cz.control4j.RuntimeException;
+import cz.control4j.Sequential;
 import cz.control4j.Signal;
 import cz.control4j.SignalUtils;
+import cz.control4j.Slots;
 
 /**
  *
  * @author jilm
  */
 @Output(alias="out", index=0)
-public class OMRandom extends OutputModule {
+@Sequential
+public class OMRandom extends OutputModule implements IPrimitiveModule {
 
   @Override
   protected void get(Signal[] output, int outputLength) throws RuntimeException {
     output[0] = SignalUtils.getSignal(Math.random());
   }
 
+  @Override
+  public void execute(Slots input, Slots output) {
+    output.setValue(0, Math.random());
+  }
+
 }
@@ -18,11 +18,13 @@
 
 package cz.control4j.modules.math;
 
+import cz.control4j.IPrimitiveModule;
 import cz.control4j.Input;
 import cz.control4j.Output;
 import cz.control4j.ProcessModule;
 import cz.control4j.Signal;
 import cz.control4j.SignalUtils;
+import cz.control4j.Slots;
 
   /**
    *  Provides mathematical operation division. It expects two inputs, first
@@ -38,7 +40,7 @@ import cz.control4j.SignalUtils;
 @Input(alias="divident", index=0)
 @Input(alias="divisor", index=1)
 @Output(alias="out", index=0)
-public class PMDiv extends ProcessModule {
+public class PMDiv extends ProcessModule implements IPrimitiveModule {
 
   @Override
   public void process(
@@ -48,4 +50,9 @@ public class PMDiv extends ProcessModule {
     double b = SignalUtils.getValue(input, inputLength, 1);
     output[0] = SignalUtils.getSignal(a / b);
   }
+
+  @Override
+  public void execute(Slots input, Slots output) {
+    output.setValue(0, input.getValue(0) / input.getValue(1));
+  }
 }
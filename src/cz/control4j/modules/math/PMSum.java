@@ -18,10 +18,12 @@
 
 package cz.control4j.modules.math;
 
+import cz.control4j.IPrimitiveModule;
 import cz.control4j.Output;
 import cz.control4j.ProcessModule;
 import cz.control4j.Signal;
 import cz.control4j.SignalUtils;
+import cz.control4j.Slots;
 import java.util.Arrays;
 
   /**
@@ -39,7 +41,7 @@ import java.util.Arrays;
    *
    */
 @Output(alias="out", index=0)
-public class PMSum extends ProcessModule {
+public class PMSum extends ProcessModule implements IPrimitiveModule {
 
   @Override
   public void process(
@@ -53,6 +55,18 @@ public class PMSum extends ProcessModule {
     }
   }
 
+  @Override
+  public void execute(Slots input, Slots output) {
+    double sum = 0.0;
+    for (int i = 0; i < input.size(); i++) {
+      if (!input.isValid(i)) {
+        return;
+      }
+      sum += input.getValue(i);
+    }
+    output.setValue(0, sum);
+  }
+
   private int inputCounter;
 
   @Override
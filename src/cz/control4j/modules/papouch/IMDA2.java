@@ -18,31 +18,45 @@
 package cz.control4j.modules.papouch;
 
 import cz.control4j.Input;
+import cz.control4j.Sequential;
 import cz.control4j.Signal;
-import cz.lidinsky.spinel.SpinelMessage;
 
 /**
  */
 @Input(alias = "in1", index = 0)
 @Input(alias = "in2", index = 1)
+@Sequential
 public class IMDA2 extends IMPapouch {
 
   @Override
-  protected void put(Signal[] input, int inputLength) {
-    if (inputLength > 0 && input[0] != null && input[0].isValid()) {
-      request = createMessage(address, 0, input[0].getValue());
-    } else {
-      request = null;
-    }
+  protected int getInstruction() {
+    return 0x40;
+  }
+
+  /**
+   * One command for each of the channels, the DA2 sets one channel per
+   * request.
+   */
+  @Override
+  protected int getCommands() {
+    return 2;
   }
 
-  protected static SpinelMessage createMessage(int address, int channel, double value) {
-    int raw = (int) (value * 4095);
-    int msb = (raw & 0xf00) / 0x100;
-    int lsb = raw & 0xff;
-    int[] data = new int[]{channel + 1, msb, lsb};
-    SpinelMessage result = new SpinelMessage(address, 0x40, data);
-    return result;
+  /**
+   * The channel number and the 12 bit value of the input.
+   */
+  @Override
+  protected int getData(
+      int command, Signal[] input, int inputLength, int[] data) {
+    if (command < inputLength && input[command] != null
+        && input[command].isValid()) {
+      int raw = (int) (input[command].getValue() * 4095);
+      data[0] = command + 1;
+      data[1] = (raw & 0xf00) / 0x100;
+      data[2] = raw & 0xff;
+      return 3;
+    }
+    return -1;
   }
 
 }
@@ -19,16 +19,22 @@ package cz.control4j.modules.papouch;
 
 import cz.control4j.ICycleEventListener;
 import cz.control4j.InputModule;
-import cz.lidinsky.spinel.PhysicalPeer;
+import cz.control4j.Signal;
 import cz.lidinsky.spinel.SpinelMessage;
-import cz.lidinsky.spinel.Transaction;
 import cz.lidinsky.tools.reflect.Setter;
 import java.net.InetSocketAddress;
-import java.util.concurrent.TimeoutException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Base class for papouch input modules. The subclass translates the inputs
+ * into the data of one or more commands, each command is one request;
+ * several channels go in one request only if the instruction of the
+ * device accepts them. The request of each command is posted at the end of
+ * the scan only if the data differs from the last data which was
+ * acknowledged by the device, that is answered with the OK ACK, or if the
+ * refresh period elapsed since the acknowledge. The request which was not
+ * acknowledged is repeated after the {@link #RETRY_PERIOD}. It is sent by
+ * the background thread, see {@link PeerMultiplexer}.
  */
 abstract class IMPapouch extends InputModule implements ICycleEventListener {
 
@@ -36,44 +42,155 @@ abstract class IMPapouch extends InputModule implements ICycleEventListener {
    * Spinel address of the module.
    */
   protected int address;
-  protected PhysicalPeer channel;
+
+  /** State of each of the commands. */
+  private Command[] commands = new Command[0];
 
   @Override
   public void prepare() {
     InetSocketAddress socketAddress = new InetSocketAddress(host, port);
-    channel = Resources.getInstance().get(socketAddress);
+    commands = new Command[getCommands()];
+    for (int i = 0; i < commands.length; i++) {
+      commands[i] = new Command(
+          Resources.getInstance().getMailbox(socketAddress));
+    }
   }
 
-  protected SpinelMessage request;
-  protected Transaction transaction;
+  /** Max length of the request data. */
+  static final int DATA_SIZE = 32;
+
+  /** How long to wait for the acknowledge before the request is repeated. */
+  static final long RETRY_PERIOD = 1000;
+
+  /** Refresh period [ns]. */
+  private long refreshPeriod = TimeUnit.SECONDS.toNanos(10);
+
+  /**
+   * Returns the number of the independent commands, each of them is sent
+   * as a separate request. It is one by default.
+   */
+  protected int getCommands() {
+    return 1;
+  }
+
+  /**
+   * Returns the instruction of the request.
+   */
+  protected abstract int getInstruction();
 
   /**
-   * send message
+   * Translates the inputs into the data of the request.
+   *
+   * @param command
+   *            index of the command, see {@link #getCommands()}
+   *
+   * @param input
+   *            the inputs
+   *
+   * @param inputLength
+   *            number of the inputs
+   *
+   * @param data
+   *            array to fill, {@link #DATA_SIZE} elements
+   *
+   * @return length of the data, or -1 if there is nothing to send
    */
+  protected abstract int getData(
+      int command, Signal[] input, int inputLength, int[] data);
+
   @Override
-  public void scanEnd() {
-    if (request != null) {
-      System.out.println(request.toString());
-      transaction = channel.putRequest(request);
-      request = null;
+  protected void put(Signal[] input, int inputLength) {
+    for (int i = 0; i < commands.length; i++) {
+      Command command = commands[i];
+      command.dataLength = getData(i, input, inputLength, command.data);
     }
   }
 
   /**
-   * Sends request for new data.
+   * Posts the request of each command whose data was not acknowledged yet,
+   * or which should be refreshed.
    */
   @Override
-  public void scanStart() {
-    if (transaction != null && transaction.hasResponse()) {
-      try {
-        System.out.println(transaction.get(100).toString());
-      } catch (TimeoutException ex) {
-        Logger.getLogger(IMPapouch.class.getName()).log(Level.SEVERE, null, ex);
+  public void scanEnd() {
+    long now = System.nanoTime();
+    for (Command command : commands) {
+      command.update(now);
+    }
+  }
+
+  /**
+   * State of one command. Each command has its own mailbox, so the
+   * requests of more commands don't replace each other.
+   */
+  private final class Command {
+
+    private final Mailbox mailbox;
+
+    /** The data commanded by the inputs. */
+    private final int[] data = new int[DATA_SIZE];
+    private int dataLength = -1;
+
+    /** The data of the last request which was sent. */
+    private final int[] sentData = new int[DATA_SIZE];
+    private int sentLength = -1;
+    private SpinelMessage sent;
+    private long sentTime;
+
+    /** The data which was acknowledged by the device. */
+    private final int[] ackData = new int[DATA_SIZE];
+    private int ackLength = -1;
+    private long ackTime;
+
+    Command(Mailbox mailbox) {
+      this.mailbox = mailbox;
+    }
+
+    void update(long now) {
+      if (sent != null && mailbox.getAcknowledged() == sent) {
+        System.arraycopy(sentData, 0, ackData, 0, sentLength);
+        ackLength = sentLength;
+        ackTime = now;
+        sent = null;
+      }
+      if (dataLength < 0) {
+        return;
+      }
+      boolean post;
+      if (!equal(data, dataLength, ackData, ackLength)) {
+        post = sent == null || !equal(data, dataLength, sentData, sentLength)
+            || now - sentTime >= TimeUnit.MILLISECONDS.toNanos(RETRY_PERIOD);
+      } else {
+        post = sent == null && now - ackTime >= refreshPeriod;
+      }
+      if (post) {
+        sent = new SpinelMessage(address, getInstruction(), data, 0,
+            dataLength);
+        System.arraycopy(data, 0, sentData, 0, dataLength);
+        sentLength = dataLength;
+        sentTime = now;
+        mailbox.post(sent);
       }
     }
+
   }
 
-  protected SpinelMessage responseMessage;
+  private static boolean equal(int[] a, int aLength, int[] b, int bLength) {
+    if (aLength != bLength) {
+      return false;
+    }
+    for (int i = 0; i < aLength; i++) {
+      if (a[i] != b[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Not used.
+   */
+  @Override
+  public void scanStart() { }
 
   /**
    * Gets the response message and interprets is.
@@ -92,6 +209,17 @@ abstract class IMPapouch extends InputModule implements ICycleEventListener {
   private String host;
   private int port;
 
+  /**
+   * Set how often the acknowledged state is sent again, even if it didn't
+   * change.
+   *
+   * @param refreshPeriod the refresh period in ms
+   */
+  @Setter("refresh-period")
+  public void setRefreshPeriod(int refreshPeriod) {
+    this.refreshPeriod = TimeUnit.MILLISECONDS.toNanos(refreshPeriod);
+  }
+
   /**
    * @param host the host to set
    */
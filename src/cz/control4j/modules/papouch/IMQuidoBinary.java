@@ -18,9 +18,9 @@
 package cz.control4j.modules.papouch;
 
 import cz.control4j.Input;
+import cz.control4j.Sequential;
 import cz.control4j.Signal;
 import cz.lidinsky.papouch.Quido;
-import cz.lidinsky.spinel.SpinelMessage;
 
 /**
  */
@@ -32,20 +32,28 @@ import cz.lidinsky.spinel.SpinelMessage;
 @Input(alias = "in6", index = 5)
 @Input(alias = "in7", index = 6)
 @Input(alias = "in8", index = 7)
+@Sequential
 public class IMQuidoBinary extends IMPapouch {
 
-  private int[] data = new int[8];
+  @Override
+  protected int getInstruction() {
+    return Quido.SET_OUTPUT;
+  }
 
+  /**
+   * Each valid input is one byte, the output number and the state in the
+   * highest bit; all of the outputs go in one request.
+   */
   @Override
-  protected void put(Signal[] input, int inputLength) {
+  protected int getData(
+      int command, Signal[] input, int inputLength, int[] data) {
     int counter = 0;
-    for (int i = 0; i < inputLength; i++) {
+    for (int i = 0; i < Math.min(8, inputLength); i++) {
       if (input[i] != null && input[i].isValid()) {
         data[counter++] = input[i].getBoolean() ? 0x80 | (i+1) : (i+1);
       }
     }
-    request = new SpinelMessage(address, Quido.SET_OUTPUT, data, 0, counter);
-    System.out.println(request.toString());
+    return counter > 0 ? counter : -1;
   }
 
 }
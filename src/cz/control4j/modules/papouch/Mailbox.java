@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.modules.papouch;
+
+import cz.lidinsky.spinel.SpinelMessage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exchange of the messages between one module and the thread which
+ * communicates with the papouch hw, see {@link PeerMultiplexer}. The
+ * module posts the request and reads the latest response; neither of the
+ * operations waits for the device.
+ *
+ * <p>The request may be either posted to be sent once, or it may be
+ * polled periodically. If the device doesn't answer or rejects the
+ * request, the poll period is doubled after each such failure, up to
+ * 2^{@link #MAX_BACKOFF} times; the first accepted response returns it to
+ * the required period.
+ */
+final class Mailbox {
+
+  /** Max number of the poll period doublings. */
+  static final int MAX_BACKOFF = 5;
+
+  /**
+   * The ACK of the response which means that the request was accepted,
+   * the ACK is on the place of the instruction code.
+   */
+  static final int ACK_OK = 0x00;
+
+  private final PeerMultiplexer multiplexer;
+
+  /** Request which waits to be sent, the newer one replaces the older. */
+  private final AtomicReference<SpinelMessage> request
+      = new AtomicReference<>();
+
+  /** The latest response. */
+  private volatile Response response;
+
+  /**
+   * Number of the requests without the response or rejected, written by
+   * the I/O.
+   */
+  private volatile long failures;
+
+  /** Number of the responses, written by the I/O. */
+  private volatile long responses;
+
+  /** Request which is sent periodically. */
+  private volatile SpinelMessage pollRequest;
+
+  /** Required poll period [ns]. */
+  private long pollPeriod;
+
+  /** When the poll request should be sent next time [ns]. */
+  private long next;
+
+  /** Number of the consecutive failures, used by the I/O only. */
+  private int backoff;
+
+  /** Responses at the last report, used by the I/O only. */
+  private long reported;
+
+  /** The last request which was taken, used by the I/O only. */
+  private SpinelMessage sent;
+
+  /** The last request which was answered. */
+  private volatile SpinelMessage acknowledged;
+
+  Mailbox(PeerMultiplexer multiplexer) {
+    this.multiplexer = multiplexer;
+  }
+
+  /**
+   * Posts the request to be sent. If the previous request was not sent
+   * yet, it is replaced.
+   *
+   * @param message
+   *            the request
+   */
+  void post(SpinelMessage message) {
+    request.set(message);
+    multiplexer.wakeUp();
+  }
+
+  /**
+   * Polls the request periodically. The first poll is delayed by the
+   * phase which is given by the multiplexer, so the devices which share
+   * one line are not asked at the same instant.
+   *
+   * @param message
+   *            the request
+   *
+   * @param period
+   *            the poll period [ms]
+   */
+  void poll(SpinelMessage message, long period) {
+    double phase = multiplexer.nextPhase();
+    pollPeriod = TimeUnit.MILLISECONDS.toNanos(Math.max(1, period));
+    next = System.nanoTime() + (long)(pollPeriod * phase);
+    pollRequest = message;
+    multiplexer.wakeUp();
+  }
+
+  /**
+   * Returns the latest response, if it is not older than the given age.
+   *
+   * @param maxAge
+   *            max age of the response [ms]
+   *
+   * @return the response or null
+   */
+  SpinelMessage getResponse(long maxAge) {
+    Response last = response;
+    if (last != null && System.nanoTime() - last.time
+        <= TimeUnit.MILLISECONDS.toNanos(maxAge)) {
+      return last.message;
+    }
+    return null;
+  }
+
+  /**
+   * Returns the number of the requests which were not answered in time or
+   * which were rejected by the device.
+   */
+  long getFailures() {
+    return failures;
+  }
+
+  /**
+   * Returns the last request which was answered by the device.
+   */
+  SpinelMessage getAcknowledged() {
+    return acknowledged;
+  }
+
+  /**
+   * Returns the number of the responses.
+   */
+  long getResponses() {
+    return responses;
+  }
+
+  /**
+   * Returns the required poll period [ms], or zero if the mailbox is not
+   * polled.
+   */
+  long getPollPeriod() {
+    return pollRequest != null ? TimeUnit.NANOSECONDS.toMillis(pollPeriod) : 0;
+  }
+
+  /**
+   * Takes the request to send, called by the I/O thread. The posted one
+   * goes first, the poll request is returned if it is due.
+   *
+   * @param now
+   *            the current time [ns]
+   */
+  SpinelMessage takeRequest(long now) {
+    SpinelMessage message = request.getAndSet(null);
+    if (message != null) {
+      sent = message;
+      return message;
+    }
+    message = pollRequest;
+    if (message != null && now - next >= 0) {
+      next += pollPeriod << backoff;
+      if (now - next >= 0) {
+        // too late, don't try to catch up
+        next = now + (pollPeriod << backoff);
+      }
+      sent = message;
+      return message;
+    }
+    return null;
+  }
+
+  /**
+   * Returns how long it is to the next poll [ns], or the given max if it is
+   * later or if the mailbox is not polled. Called by the I/O thread.
+   */
+  long untilNext(long now, long max) {
+    return pollRequest != null ? Math.min(max, next - now) : max;
+  }
+
+  /**
+   * Stores the response, called by the I/O thread. The response with
+   * other ACK than {@link #ACK_OK} means that the device rejected the
+   * request, it is counted as failed.
+   */
+  void complete(SpinelMessage message) {
+    if (message.getInstruction() != ACK_OK) {
+      fail();
+      return;
+    }
+    response = new Response(message, System.nanoTime());
+    acknowledged = sent;
+    responses++;
+    if (backoff > 0) {
+      next -= (pollPeriod << backoff) - pollPeriod;
+      backoff = 0;
+    }
+  }
+
+  /**
+   * Counts the request without the response or rejected, called by the I/O
+   * thread.
+   */
+  void fail() {
+    failures++;
+    if (pollRequest != null && backoff < MAX_BACKOFF) {
+      next += pollPeriod << backoff;
+      backoff++;
+    }
+  }
+
+  /** Current number of the period doublings, for the I/O thread. */
+  int getBackoff() {
+    return backoff;
+  }
+
+  /**
+   * Returns the number of the responses since the previous call, for the
+   * I/O thread.
+   */
+  long takeReported() {
+    long count = responses - reported;
+    reported = responses;
+    return count;
+  }
+
+  private static final class Response {
+
+    final SpinelMessage message;
+
+    /** When it was received [ns]. */
+    final long time;
+
+    Response(SpinelMessage message, long time) {
+      this.message = message;
+      this.time = time;
+    }
+
+  }
+
+}
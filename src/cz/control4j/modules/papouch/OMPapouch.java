@@ -19,15 +19,15 @@ package cz.control4j.modules.papouch;
 
 import cz.control4j.ICycleEventListener;
 import cz.control4j.OutputModule;
-import cz.lidinsky.spinel.PhysicalPeer;
 import cz.lidinsky.spinel.SpinelMessage;
-import cz.lidinsky.spinel.Transaction;
 import cz.lidinsky.tools.reflect.Setter;
 import java.net.InetSocketAddress;
-import java.util.concurrent.TimeoutException;
 
 /**
- * Base class for papouch output modules.
+ * Base class for papouch output modules. The request is polled with the
+ * poll-period, it is sent and the response is received by the background
+ * thread, see {@link PeerMultiplexer}; the module reads the latest
+ * response.
  */
 abstract class OMPapouch extends OutputModule implements ICycleEventListener {
 
@@ -35,10 +35,13 @@ abstract class OMPapouch extends OutputModule implements ICycleEventListener {
   protected int address;
 
   /** Object which handle communication with papouch module. */
-  private PhysicalPeer channel;
+  private Mailbox channel;
 
-  /** Last transaction. */
-  private Transaction transaction;
+  /** Max age of the response [ms]. */
+  private int maxAge = 5000;
+
+  /** Poll period [ms]. */
+  private int pollPeriod = 1000;
 
   /** Host. */
   protected String host;
@@ -55,19 +58,13 @@ abstract class OMPapouch extends OutputModule implements ICycleEventListener {
   protected abstract SpinelMessage getRequest();
 
   /**
-   * Returns response message if available.
+   * Returns the latest response message, it never waits for the device.
    *
-   * @return Message received from papouch hw module or null
+   * @return Message received from papouch hw module or null if there is
+   *            no response which is not older than the max age
    */
   protected SpinelMessage getResponse() {
-    if (transaction != null && transaction.hasResponse()) {
-      try {
-        return transaction.get(100);
-      } catch (TimeoutException ex) {
-        // response is not just available
-      }
-    }
-    return null;
+    return channel != null ? channel.getResponse(maxAge) : null;
   }
 
   /**
@@ -78,7 +75,8 @@ abstract class OMPapouch extends OutputModule implements ICycleEventListener {
   @Override
   public void prepare() {
     InetSocketAddress socketAddress = new InetSocketAddress(host, port);
-    channel = Resources.getInstance().get(socketAddress);
+    channel = Resources.getInstance().getMailbox(socketAddress);
+    channel.poll(getRequest(), pollPeriod);
   }
 
   //------------------------------------------------ Object Propertyes Setters.
@@ -113,6 +111,28 @@ abstract class OMPapouch extends OutputModule implements ICycleEventListener {
     this.port = port;
   }
 
+  /**
+   * Set the max age of the response; if there is no newer response, the
+   * outputs are not updated.
+   *
+   * @param maxAge the max age in ms
+   */
+  @Setter("max-age")
+  public void setMaxAge(int maxAge) {
+    this.maxAge = maxAge;
+  }
+
+  /**
+   * Set how often the papouch hw is asked for new data. The polls of the
+   * devices on the same line are spread over the period.
+   *
+   * @param pollPeriod the poll period in ms
+   */
+  @Setter("poll-period")
+  public void setPollPeriod(int pollPeriod) {
+    this.pollPeriod = pollPeriod;
+  }
+
   //---------------------------- Cycle Event Listener interface implementation.
 
   /**
@@ -128,16 +148,9 @@ abstract class OMPapouch extends OutputModule implements ICycleEventListener {
   public void processingStart() { }
 
   /**
-   * Sends the request for new data.
+   * Not used, the requests are polled by the I/O thread.
    */
   @Override
-  public void scanStart() {
-    // Request for temperature
-    if (channel != null) {
-      transaction = channel.putRequest(getRequest());
-    } else {
-      transaction = null;
-    }
-  }
+  public void scanStart() { }
 
 }
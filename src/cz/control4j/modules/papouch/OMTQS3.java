@@ -22,14 +22,11 @@ import cz.control4j.Output;
 import cz.control4j.OutputModule;
 import cz.control4j.Signal;
 import cz.control4j.SignalUtils;
-import cz.lidinsky.spinel.PhysicalPeer;
 import cz.lidinsky.spinel.SpinelException;
 import cz.lidinsky.spinel.SpinelMessage;
-import cz.lidinsky.spinel.Transaction;
 import cz.lidinsky.tools.reflect.Setter;
 import java.net.InetSocketAddress;
 import java.util.Date;
-import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,12 +39,18 @@ import java.util.logging.Logger;
  * <p>
  * Property: address, a spinel address of the thermometer.
  *
+ * Property: poll-period, how often the thermometer is asked [ms].
+ *
+ * Property: max-age, the max age of the measurement [ms], five seconds by
+ * default.
+ *
  * Resource: a Spinel class is required
  *
  * Output: 0, The measured temperature. The output is a scalar real number. The
- * unit is a celsius degree. The timestamp is equal to the cycle start. If the
- * value is not obtained till the processingStart event, the invalid signal is
- * returned.
+ * unit is a celsius degree. The request is sent and the response is
+ * received by the background thread each poll-period [ms], one second by
+ * default; the latest measurement is provided, the output is not updated
+ * if there is no measurement newer than max-age.
  *
  */
 @Output(alias = "out", index = 0)
@@ -61,13 +64,17 @@ public class OMTQS3 extends OutputModule implements ICycleEventListener {
   /* temperature measurement */
   private SpinelMessage request;
 
-  private Transaction transaction;
-
   private Date timestamp;
 
   private int status = 10;
 
-  private PhysicalPeer channel;
+  private Mailbox channel;
+
+  /** Max age of the measurement [ms]. */
+  private int maxAge = 5000;
+
+  /** Poll period [ms]. */
+  private int pollPeriod = 1000;
 
   /**
    * Creates a request for new measurement and pick-up the spinel comunication
@@ -78,7 +85,8 @@ public class OMTQS3 extends OutputModule implements ICycleEventListener {
     request
         = new SpinelMessage(address, cz.lidinsky.papouch.TQS3.MEASUREMENT);
     InetSocketAddress socketAddress = new InetSocketAddress(host, port);
-    channel = Resources.getInstance().get(socketAddress);
+    channel = Resources.getInstance().getMailbox(socketAddress);
+    channel.poll(request, pollPeriod);
   }
 
   /**
@@ -88,17 +96,10 @@ public class OMTQS3 extends OutputModule implements ICycleEventListener {
   public void scanEnd() { }
 
   /**
-   * Sends request for new data.
+   * Not used, the measurement is polled by the I/O thread.
    */
   @Override
-  public void scanStart() {
-    // Request for temperature
-    if (channel != null) {
-      transaction = channel.putRequest(request);
-    } else {
-      transaction = null;
-    }
-  }
+  public void scanStart() { }
 
   /**
    * Gets the response message and interprets is.
@@ -108,16 +109,38 @@ public class OMTQS3 extends OutputModule implements ICycleEventListener {
 
   @Override
   protected void get(Signal[] output, int outputLength) {
-    if (transaction != null && transaction.hasResponse()) {
+    SpinelMessage response = channel != null
+        ? channel.getResponse(maxAge) : null;
+    if (response != null) {
       try {
-        double temperature = cz.lidinsky.papouch.TQS3.getOneTimeMeasurement(transaction.get(100));
+        double temperature
+            = cz.lidinsky.papouch.TQS3.getOneTimeMeasurement(response);
         output[0] = SignalUtils.getSignal(temperature);
-      } catch (SpinelException | TimeoutException ex) {
+      } catch (SpinelException ex) {
         Logger.getLogger(OMTQS3.class.getName()).log(Level.SEVERE, null, ex);
       }
     }
   }
 
+  /**
+   * @param pollPeriod the poll period to set [ms]
+   */
+  @Setter("poll-period")
+  public void setPollPeriod(int pollPeriod) {
+    this.pollPeriod = pollPeriod;
+  }
+
+  /**
+   * Set the max age of the measurement; if there is no newer measurement,
+   * the output is not updated.
+   *
+   * @param maxAge the max age in ms
+   */
+  @Setter("max-age")
+  public void setMaxAge(int maxAge) {
+    this.maxAge = maxAge;
+  }
+
   /**
    * @param address the address to set
    */
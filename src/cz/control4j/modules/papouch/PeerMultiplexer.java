@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.modules.papouch;
+
+import cz.lidinsky.spinel.PhysicalPeer;
+import cz.lidinsky.spinel.SpinelMessage;
+import cz.lidinsky.spinel.Transaction;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Communicates with all of the papouch modules behind one physical peer
+ * from its own thread, so the scan never waits for the devices. The
+ * requests which were posted into the mailboxes are put into the peer all
+ * at once, then the responses are collected one after the other and
+ * stored into the mailboxes. The request which is not answered within the
+ * response timeout, or which is rejected by the device, is counted as
+ * failed.
+ *
+ * <p>The mailboxes which poll the device are asked when their period
+ * elapses. The first polls are spread over the period, the k-th mailbox
+ * gets the phase frac(k * 0.618), so the line is loaded evenly whatever
+ * the number of the devices is. The achieved poll rates are logged each
+ * {@link #REPORT_PERIOD}.
+ */
+final class PeerMultiplexer implements Runnable {
+
+  /** Time to wait for the response [ms]. */
+  static final long RESPONSE_TIMEOUT = 100;
+
+  /** Max time to wait for new requests [ms]. */
+  private static final long IDLE_PERIOD = 100;
+
+  /** How often the poll rates are logged [ms]. */
+  static final long REPORT_PERIOD = 60000;
+
+  /** The golden ratio conjugate, used to spread the phases. */
+  private static final double PHASE_STEP = 0.6180339887498949;
+
+  private final InetSocketAddress address;
+
+  private final PhysicalPeer peer;
+
+  private final List<Mailbox> mailboxes = new CopyOnWriteArrayList<>();
+
+  private Thread thread;
+
+  /** Number of the polled mailboxes. */
+  private int polled;
+
+  PeerMultiplexer(InetSocketAddress address) {
+    this.address = address;
+    this.peer = new PhysicalPeer(address.getHostString(), address.getPort());
+  }
+
+  /**
+   * Returns new mailbox of one module, the thread is started with the first
+   * one.
+   *
+   * @return the mailbox
+   */
+  synchronized Mailbox newMailbox() {
+    Mailbox mailbox = new Mailbox(this);
+    mailboxes.add(mailbox);
+    if (thread == null) {
+      thread = new Thread(this, "spinel-" + address.getHostString() + ":"
+          + address.getPort());
+      thread.setDaemon(true);
+      thread.start();
+    }
+    return mailbox;
+  }
+
+  /**
+   * Returns the phase of the first poll for the next polled mailbox.
+   *
+   * @return the phase as a fraction of the poll period
+   */
+  synchronized double nextPhase() {
+    double phase = polled * PHASE_STEP;
+    polled++;
+    return phase - Math.floor(phase);
+  }
+
+  /** Wakes the thread up, there is new request. */
+  void wakeUp() {
+    Thread t = thread;
+    if (t != null) {
+      LockSupport.unpark(t);
+    }
+  }
+
+  @Override
+  public void run() {
+    List<Mailbox> senders = new ArrayList<>();
+    List<Transaction> transactions = new ArrayList<>();
+    long idle = TimeUnit.MILLISECONDS.toNanos(IDLE_PERIOD);
+    long reportPeriod = TimeUnit.MILLISECONDS.toNanos(REPORT_PERIOD);
+    long lastReport = System.nanoTime();
+    while (!Thread.currentThread().isInterrupted()) {
+      // index of the first sender which is not finished yet
+      int done = 0;
+      try {
+        // pipeline all of the requests which are due
+        long now = System.nanoTime();
+        for (Mailbox mailbox : mailboxes) {
+          SpinelMessage request = mailbox.takeRequest(now);
+          if (request != null) {
+            transactions.add(peer.putRequest(request));
+            senders.add(mailbox);
+          }
+        }
+        if (now - lastReport >= reportPeriod) {
+          report(now - lastReport);
+          lastReport = now;
+        }
+        if (transactions.isEmpty()) {
+          long wait = idle;
+          for (Mailbox mailbox : mailboxes) {
+            wait = mailbox.untilNext(now, wait);
+          }
+          if (wait > 0) {
+            LockSupport.parkNanos(this, wait);
+          }
+          continue;
+        }
+        // the responses come one after the other
+        long start = System.nanoTime();
+        for (; done < transactions.size(); done++) {
+          int i = done;
+          long deadline = start
+              + TimeUnit.MILLISECONDS.toNanos(RESPONSE_TIMEOUT * (i + 1));
+          long remaining = TimeUnit.NANOSECONDS.toMillis(
+              deadline - System.nanoTime());
+          try {
+            senders.get(i).complete(
+                transactions.get(i).get(Math.max(1, remaining)));
+          } catch (TimeoutException ex) {
+            senders.get(i).fail();
+          }
+        }
+      } catch (RuntimeException ex) {
+        Logger.getLogger(PeerMultiplexer.class.getName()).log(
+            Level.WARNING, "Communication with " + address + " failed", ex);
+        for (int i = done; i < senders.size(); i++) {
+          senders.get(i).fail();
+        }
+        LockSupport.parkNanos(this, idle);
+      } finally {
+        senders.clear();
+        transactions.clear();
+      }
+    }
+  }
+
+  /**
+   * Logs the achieved rate of each polled mailbox.
+   *
+   * @param elapsed
+   *            time since the previous report [ns]
+   */
+  private void report(long elapsed) {
+    StringBuilder sb = new StringBuilder("Poll rates of ").append(address);
+    int i = 0;
+    for (Mailbox mailbox : mailboxes) {
+      long period = mailbox.getPollPeriod();
+      long count = mailbox.takeReported();
+      if (period > 0) {
+        double rate = count * 1e9 / elapsed;
+        sb.append(String.format(Locale.ROOT,
+            "%n  #%d: %.3f/s of %.3f/s, %d failures, backoff x%d",
+            i, rate, 1000.0 / period, mailbox.getFailures(),
+            1 << mailbox.getBackoff()));
+      }
+      i++;
+    }
+    Logger.getLogger(PeerMultiplexer.class.getName()).info(sb.toString());
+  }
+
+}
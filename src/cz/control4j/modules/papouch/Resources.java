@@ -1,11 +1,15 @@
 package cz.control4j.modules.papouch;
 
-import cz.lidinsky.spinel.PhysicalPeer;
 import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.Map;
 
 
+/**
+ * Shared communication with the papouch modules. There is one
+ * {@link PeerMultiplexer} for each address, each of the modules gets its
+ * own {@link Mailbox}.
+ */
 class Resources {
 
   private static Resources instance;
@@ -21,16 +25,24 @@ class Resources {
     clients = new HashMap<>();
   }
 
-  private final Map<InetSocketAddress, PhysicalPeer> clients;
+  private final Map<InetSocketAddress, PeerMultiplexer> clients;
 
-  PhysicalPeer get(InetSocketAddress address) {
-    PhysicalPeer client = clients.get(address);
+  PeerMultiplexer get(InetSocketAddress address) {
+    PeerMultiplexer client = clients.get(address);
     if (client == null) {
-      client = new PhysicalPeer(address.getHostString(), address.getPort());
+      client = new PeerMultiplexer(address);
       clients.put(address, client);
     }
     return client;
   }
 
+  /**
+   * Returns new mailbox to communicate with the module behind the given
+   * address.
+   */
+  Mailbox getMailbox(InetSocketAddress address) {
+    return get(address).newMailbox();
+  }
+
 
 }
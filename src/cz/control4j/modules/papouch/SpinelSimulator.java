@@ -0,0 +1,533 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.modules.papouch;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Simulates papouch devices behind a TCP to RS485 converter. It listens on
+ * the local port and answers the Spinel 97 frames
+ *
+ * <pre>
+ *   0x2A 0x61 NUM(2) ADR SIG INST DATA SUM 0x0D
+ * </pre>
+ *
+ * where NUM is the number of the bytes which follow it and SUM is 0xFF
+ * minus the sum of all of the preceding bytes. The frames with a wrong
+ * checksum or with the address without device are not answered, as on a
+ * real line. The instructions which are used by the papouch modules are
+ * supported:
+ *
+ * <ul>
+ *   <li>Quido: read binary inputs (0x31), set outputs (0x20) and measure
+ *   temperature (0x51), the temperature is in 1/16 degrees,
+ *   <li>AD4: one time measurement (0x51), channel, status and value for
+ *   each of the channels,
+ *   <li>TQS3: one time measurement (0x51), status and temperature in 1/10
+ *   degrees,
+ *   <li>DA2: set output (0x40), channel and 12 bit value.
+ * </ul>
+ *
+ * <p>Each connection is served by its own thread and answers the requests
+ * one after the other, like the half duplex line does. Each response is
+ * delayed by the latency plus a random jitter; a fraction of the requests
+ * may be answered with the error acknowledge, or may not be answered at
+ * all. There may be hundreds of devices, each connection sees all of
+ * them.
+ */
+public final class SpinelSimulator implements Closeable {
+
+  /** Type of the simulated devices. */
+  public enum Device { QUIDO, AD4, TQS3, DA2 }
+
+  static final int PRE = 0x2A;
+  static final int FRAME = 0x61;
+  static final int CR = 0x0D;
+
+  /** Acknowledge: OK. */
+  static final int ACK_OK = 0x00;
+  /** Acknowledge: invalid instruction code. */
+  static final int ACK_INSTRUCTION = 0x02;
+  /** Acknowledge: invalid data. */
+  static final int ACK_DATA = 0x03;
+  /** Acknowledge: device failure, used for the injected errors. */
+  static final int ACK_FAILURE = 0x05;
+
+  private final ServerSocket server;
+
+  private final Map<Integer, State> devices = new ConcurrentHashMap<>();
+
+  private volatile long latency;
+  private volatile long jitter;
+  private volatile double errorRate;
+  private volatile double timeoutRate;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+
+  /**
+   * Starts to listen on the given port of the loopback interface.
+   *
+   * @param port
+   *            the port or zero to use any free one
+   *
+   * @throws IOException
+   *            if the port cannot be opened
+   */
+  public SpinelSimulator(int port) throws IOException {
+    server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    Thread thread = new Thread(this::accept, "spinel-simulator");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Returns the port the simulator listens on. */
+  public int getPort() {
+    return server.getLocalPort();
+  }
+
+  /**
+   * Adds the device with the given address.
+   *
+   * @param address
+   *            the Spinel address, 0 to 253
+   *
+   * @param device
+   *            type of the device
+   */
+  public void addDevice(int address, Device device) {
+    devices.put(address, new State(device));
+  }
+
+  /**
+   * Adds the devices with the addresses from to, inclusive.
+   */
+  public void addDevices(int from, int to, Device device) {
+    for (int i = from; i <= to; i++) {
+      addDevice(i, device);
+    }
+  }
+
+  /**
+   * Sets the latency of each response.
+   *
+   * @param latency
+   *            the latency [ms]
+   *
+   * @param jitter
+   *            the latency varies randomly by up to plus minus jitter [ms]
+   */
+  public void setLatency(double latency, double jitter) {
+    this.latency = (long)(latency * 1e6);
+    this.jitter = (long)(jitter * 1e6);
+  }
+
+  /**
+   * Sets the fraction of the requests which are answered with the error
+   * acknowledge.
+   */
+  public void setErrorRate(double rate) {
+    errorRate = rate;
+  }
+
+  /**
+   * Sets the fraction of the requests which are not answered at all.
+   */
+  public void setTimeoutRate(double rate) {
+    timeoutRate = rate;
+  }
+
+  /** Sets the binary inputs of the Quido device, bit per input. */
+  public void setBinaryInputs(int address, int inputs) {
+    device(address).inputs = inputs;
+  }
+
+  /** Sets the temperature measured by the Quido or TQS3 device. */
+  public void setTemperature(int address, double temperature) {
+    device(address).temperature = temperature;
+  }
+
+  /** Sets the value measured on the channel, 1 to 4, of the AD4 device. */
+  public void setAnalog(int address, int channel, int value) {
+    device(address).analog[channel - 1] = value;
+  }
+
+  /** Returns the outputs of the Quido device, bit per output. */
+  public int getOutputs(int address) {
+    return device(address).outputs;
+  }
+
+  /** Returns the raw value of the channel, 1 or 2, of the DA2 device. */
+  public int getAnalogOutput(int address, int channel) {
+    return device(address).analog[channel - 1];
+  }
+
+  /** Returns the number of the received requests. */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /** Returns the number of the injected errors. */
+  public long getErrors() {
+    return errors.get();
+  }
+
+  /** Returns the number of the requests which were not answered. */
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.close();
+  }
+
+  private State device(int address) {
+    State state = devices.get(address);
+    if (state == null) {
+      throw new IllegalArgumentException("No device: " + address);
+    }
+    return state;
+  }
+
+  private void accept() {
+    while (!server.isClosed()) {
+      try {
+        Socket socket = server.accept();
+        socket.setTcpNoDelay(true);
+        Thread thread = new Thread(() -> serve(socket),
+            "spinel-simulator-" + socket.getPort());
+        thread.setDaemon(true);
+        thread.start();
+      } catch (IOException e) {
+        if (!server.isClosed()) {
+          Logger.getLogger(SpinelSimulator.class.getName())
+              .log(Level.WARNING, null, e);
+        }
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try (Socket s = socket) {
+      InputStream in = new BufferedInputStream(s.getInputStream());
+      OutputStream out = s.getOutputStream();
+      byte[] buffer = new byte[0x10000];
+      while (true) {
+        int length = readFrame(in, buffer);
+        if (length < 0) {
+          continue;
+        }
+        requests.incrementAndGet();
+        byte[] response = answer(buffer, length);
+        if (response == null) {
+          continue;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < timeoutRate) {
+          timeouts.incrementAndGet();
+          continue;
+        }
+        if (random.nextDouble() < errorRate) {
+          errors.incrementAndGet();
+          response = encode(buffer[4] & 0xff, buffer[5] & 0xff, ACK_FAILURE,
+              new byte[0]);
+        }
+        long delay = latency;
+        if (jitter > 0) {
+          delay += random.nextLong(-jitter, jitter + 1);
+        }
+        if (delay > 0) {
+          TimeUnit.NANOSECONDS.sleep(delay);
+        }
+        out.write(response);
+        out.flush();
+      }
+    } catch (EOFException | SocketException e) {
+      // connection closed
+    } catch (IOException e) {
+      Logger.getLogger(SpinelSimulator.class.getName())
+          .log(Level.WARNING, null, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Reads one frame into the buffer.
+   *
+   * @return the length of the frame, or -1 if the frame is corrupted
+   */
+  static int readFrame(InputStream in, byte[] buffer) throws IOException {
+    int b;
+    do {
+      b = read(in);
+    } while (b != PRE);
+    buffer[0] = (byte)b;
+    buffer[1] = (byte)read(in);
+    buffer[2] = (byte)read(in);
+    buffer[3] = (byte)read(in);
+    int num = (buffer[2] & 0xff) << 8 | buffer[3] & 0xff;
+    if (buffer[1] != FRAME || num < 5 || num > buffer.length - 4) {
+      return -1;
+    }
+    for (int i = 0; i < num; i++) {
+      buffer[4 + i] = (byte)read(in);
+    }
+    int length = num + 4;
+    int sum = 0;
+    for (int i = 0; i < length - 1; i++) {
+      sum += buffer[i];
+    }
+    if ((sum & 0xff) != 0xff || buffer[length - 1] != CR) {
+      return -1;
+    }
+    return length;
+  }
+
+  private static int read(InputStream in) throws IOException {
+    int b = in.read();
+    if (b < 0) {
+      throw new EOFException();
+    }
+    return b;
+  }
+
+  /**
+   * Encodes the frame.
+   *
+   * @param address
+   *            ADR
+   *
+   * @param signature
+   *            SIG
+   *
+   * @param code
+   *            INST of the request or ACK of the response
+   *
+   * @param data
+   *            the data
+   */
+  static byte[] encode(int address, int signature, int code, byte[] data) {
+    int num = data.length + 5;
+    byte[] frame = new byte[num + 4];
+    frame[0] = (byte)PRE;
+    frame[1] = (byte)FRAME;
+    frame[2] = (byte)(num >> 8);
+    frame[3] = (byte)num;
+    frame[4] = (byte)address;
+    frame[5] = (byte)signature;
+    frame[6] = (byte)code;
+    System.arraycopy(data, 0, frame, 7, data.length);
+    int sum = 0;
+    for (int i = 0; i < frame.length - 2; i++) {
+      sum += frame[i];
+    }
+    frame[frame.length - 2] = (byte)(0xff - sum);
+    frame[frame.length - 1] = (byte)CR;
+    return frame;
+  }
+
+  /**
+   * Returns the response to the request, or null if there is no device
+   * with the address.
+   */
+  private byte[] answer(byte[] request, int length) {
+    int address = request[4] & 0xff;
+    int signature = request[5] & 0xff;
+    int instruction = request[6] & 0xff;
+    int dataLength = length - 9;
+    State state = devices.get(address);
+    if (state == null) {
+      return null;
+    }
+    byte[] data;
+    synchronized (state) {
+      data = state.execute(instruction, request, 7, dataLength);
+    }
+    if (data == null) {
+      return encode(address, signature, ACK_INSTRUCTION, new byte[0]);
+    } else if (data == INVALID) {
+      return encode(address, signature, ACK_DATA, new byte[0]);
+    }
+    return encode(address, signature, ACK_OK, data);
+  }
+
+  private static final byte[] INVALID = new byte[0];
+
+  private static final byte[] NONE = new byte[0];
+
+  /** State of one simulated device. */
+  private static final class State {
+
+    final Device device;
+    volatile int inputs;
+    volatile int outputs;
+    volatile double temperature = 21.5;
+    final int[] analog = new int[4];
+
+    State(Device device) {
+      this.device = device;
+    }
+
+    /**
+     * Executes the instruction, returns data of the response, null if the
+     * instruction is not supported or {@link #INVALID} if the data are
+     * wrong.
+     */
+    byte[] execute(int instruction, byte[] buffer, int offset, int length) {
+      switch (device) {
+        case QUIDO:
+          return quido(instruction, buffer, offset, length);
+        case AD4:
+          return instruction == 0x51 ? ad4(buffer, offset, length) : null;
+        case TQS3:
+          if (instruction != 0x51) {
+            return null;
+          }
+          int raw = (int)Math.round(temperature * 10);
+          return new byte[] {(byte)0x80, (byte)(raw >> 8), (byte)raw};
+        case DA2:
+          if (instruction != 0x40) {
+            return null;
+          }
+          if (length != 3 || buffer[offset] < 1 || buffer[offset] > 2) {
+            return INVALID;
+          }
+          analog[buffer[offset] - 1]
+              = (buffer[offset + 1] & 0x0f) << 8 | buffer[offset + 2] & 0xff;
+          return NONE;
+        default:
+          return null;
+      }
+    }
+
+    private byte[] quido(int instruction, byte[] buffer, int offset,
+        int length) {
+      switch (instruction) {
+        case 0x31:
+          return new byte[] {(byte)inputs};
+        case 0x20:
+          int value = outputs;
+          for (int i = offset; i < offset + length; i++) {
+            int output = buffer[i] & 0x7f;
+            if (output < 1 || output > 32) {
+              return INVALID;
+            }
+            int mask = 1 << (output - 1);
+            value = (buffer[i] & 0x80) != 0 ? value | mask : value & ~mask;
+          }
+          outputs = value;
+          return NONE;
+        case 0x51:
+          int raw = (int)Math.round(temperature * 16);
+          return new byte[] {(byte)(raw >> 8), (byte)raw};
+        default:
+          return null;
+      }
+    }
+
+    /** Channel 0 means all of the channels. */
+    private byte[] ad4(byte[] buffer, int offset, int length) {
+      int channel = length > 0 ? buffer[offset] : 0;
+      if (channel < 0 || channel > 4) {
+        return INVALID;
+      }
+      int from = channel == 0 ? 1 : channel;
+      int to = channel == 0 ? 4 : channel;
+      byte[] data = new byte[(to - from + 1) * 4];
+      for (int i = from, j = 0; i <= to; i++, j += 4) {
+        data[j] = (byte)i;
+        data[j + 1] = (byte)0x80;
+        data[j + 2] = (byte)(analog[i - 1] >> 8);
+        data[j + 3] = (byte)analog[i - 1];
+      }
+      return data;
+    }
+
+  }
+
+  /**
+   * Runs the simulator. Arguments: port [-latency ms] [-jitter ms]
+   * [-errors rate] [-timeouts rate] type:from-to..., where type is one of
+   * quido, ad4, tqs3 or da2; the number of the requests is printed every
+   * ten seconds.
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Arguments: port [-latency ms] [-jitter ms]"
+          + " [-errors rate] [-timeouts rate] type:from-to...");
+      return;
+    }
+    SpinelSimulator simulator
+        = new SpinelSimulator(Integer.parseInt(args[0]));
+    double latency = 0;
+    double jitter = 0;
+    for (int i = 1; i < args.length; i++) {
+      switch (args[i]) {
+        case "-latency":
+          latency = Double.parseDouble(args[++i]);
+          break;
+        case "-jitter":
+          jitter = Double.parseDouble(args[++i]);
+          break;
+        case "-errors":
+          simulator.setErrorRate(Double.parseDouble(args[++i]));
+          break;
+        case "-timeouts":
+          simulator.setTimeoutRate(Double.parseDouble(args[++i]));
+          break;
+        default:
+          String[] parts = args[i].split("[:-]");
+          int from = Integer.parseInt(parts[1]);
+          int to = parts.length > 2 ? Integer.parseInt(parts[2]) : from;
+          simulator.addDevices(from, to,
+              Device.valueOf(parts[0].toUpperCase()));
+      }
+    }
+    simulator.setLatency(latency, jitter);
+    System.out.println("Listening on " + simulator.getPort());
+    long last = 0;
+    while (true) {
+      Thread.sleep(10000);
+      long count = simulator.getRequests();
+      System.out.println(String.format(
+          "%d requests, %.1f/s, %d errors, %d timeouts", count,
+          (count - last) / 10.0, simulator.getErrors(),
+          simulator.getTimeouts()));
+      last = count;
+    }
+  }
+
+}
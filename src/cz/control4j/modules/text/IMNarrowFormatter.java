@@ -21,6 +21,7 @@ package cz.control4j.modules.text;
 import cz.control4j.Control;
 import cz.control4j.Input;
 import cz.control4j.InputModule;
+import cz.control4j.Sequential;
 import cz.control4j.Signal;
 import cz.control4j.SignalFormat;
 import cz.control4j.VariableInput;
@@ -39,6 +40,7 @@ import java.util.Locale;
  */
 @Input()
 @VariableInput
+@Sequential
 public class IMNarrowFormatter extends InputModule {
 
   /**
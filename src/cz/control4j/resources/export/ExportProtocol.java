@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.export;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary protocol of the signal export. The connection begins with the
+ * hello, the schema follows, then the values of each scan. All of the
+ * numbers are big endian.
+ *
+ * <ol>
+ *   <li>Hello: int magic C4JX, byte version</li>
+ *   <li>Schema: byte {@link #SCHEMA}, int number of signals, for each of
+ *   the signals short length and UTF-8 bytes of the label</li>
+ *   <li>Values: byte {@link #VALUES}, long timestamp [ms], int number of
+ *   signals, validity bitmap, one bit per signal, least significant bit
+ *   first, and double value for each of the signals, zero for the invalid
+ *   ones</li>
+ *   <li>Changes: byte {@link #CHANGES}, long timestamp [ms], int number of
+ *   the changed signals, for each of them int index of the signal, byte
+ *   validity and double value; the other signals keep the last
+ *   values</li>
+ * </ol>
+ *
+ * <p>The schema is sent once after each connect, the values frame must
+ * precede the first changes frame. The frames are written
+ * into the given buffer, so the encoding doesn't allocate.
+ *
+ * @author jilm
+ */
+public final class ExportProtocol {
+
+  /** C4JX */
+  public static final int MAGIC = 0x43344A58;
+
+  public static final byte VERSION = 1;
+
+  /** Type of the schema frame. */
+  public static final byte SCHEMA = 1;
+
+  /** Type of the values frame. */
+  public static final byte VALUES = 2;
+
+  /** Type of the changes frame. */
+  public static final byte CHANGES = 3;
+
+  private ExportProtocol() {}
+
+  /**
+   * Returns the size of the hello and the schema in bytes.
+   */
+  public static int schemaSize(byte[][] labels) {
+    int size = Integer.BYTES + 1 + 1 + Integer.BYTES;
+    for (byte[] label : labels) {
+      size += Short.BYTES + label.length;
+    }
+    return size;
+  }
+
+  /**
+   * Returns the labels encoded in UTF-8, to be used by the
+   * {@link #putSchema} method.
+   */
+  public static byte[][] encodeLabels(String[] labels) {
+    byte[][] result = new byte[labels.length][];
+    for (int i = 0; i < labels.length; i++) {
+      result[i] = labels[i].getBytes(StandardCharsets.UTF_8);
+      if (result[i].length > Short.MAX_VALUE) {
+        throw new IllegalArgumentException("Too long label: " + labels[i]);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Puts the hello and the schema into the buffer.
+   *
+   * @param buffer
+   *            destination, see {@link #schemaSize}
+   *
+   * @param labels
+   *            labels of the signals, see {@link #encodeLabels}
+   */
+  public static void putSchema(ByteBuffer buffer, byte[][] labels) {
+    buffer.putInt(MAGIC);
+    buffer.put(VERSION);
+    buffer.put(SCHEMA);
+    buffer.putInt(labels.length);
+    for (byte[] label : labels) {
+      buffer.putShort((short)label.length);
+      buffer.put(label);
+    }
+  }
+
+  /**
+   * Returns the size of the values frame in bytes.
+   *
+   * @param signals
+   *            number of the signals
+   */
+  public static int valuesSize(int signals) {
+    return 1 + Long.BYTES + Integer.BYTES + (signals + 7) / 8
+        + signals * Double.BYTES;
+  }
+
+  /**
+   * Puts the values frame into the buffer.
+   *
+   * @param buffer
+   *            destination, see {@link #valuesSize}
+   *
+   * @param time
+   *            timestamp of the scan [ms]
+   *
+   * @param values
+   *            values of the signals
+   *
+   * @param valid
+   *            validity of the signals
+   *
+   * @param signals
+   *            number of the signals
+   */
+  public static void putValues(ByteBuffer buffer, long time,
+      double[] values, boolean[] valid, int signals) {
+    buffer.put(VALUES);
+    buffer.putLong(time);
+    buffer.putInt(signals);
+    for (int i = 0; i < signals; i += 8) {
+      int bits = 0;
+      for (int j = i; j < Math.min(signals, i + 8); j++) {
+        if (valid[j]) {
+          bits |= 1 << (j - i);
+        }
+      }
+      buffer.put((byte)bits);
+    }
+    for (int i = 0; i < signals; i++) {
+      buffer.putDouble(valid[i] ? values[i] : 0.0);
+    }
+  }
+
+  /**
+   * Returns the size of the changes frame in bytes.
+   *
+   * @param changes
+   *            number of the changed signals
+   */
+  public static int changesSize(int changes) {
+    return 1 + Long.BYTES + Integer.BYTES
+        + changes * (Integer.BYTES + 1 + Double.BYTES);
+  }
+
+  /**
+   * Puts the changes frame into the buffer.
+   *
+   * @param buffer
+   *            destination, see {@link #changesSize}
+   *
+   * @param time
+   *            timestamp of the scan [ms]
+   *
+   * @param indexes
+   *            indexes of the changed signals
+   *
+   * @param values
+   *            values of the changed signals
+   *
+   * @param valid
+   *            validity of the changed signals
+   *
+   * @param changes
+   *            number of the changed signals
+   */
+  public static void putChanges(ByteBuffer buffer, long time, int[] indexes,
+      double[] values, boolean[] valid, int changes) {
+    buffer.put(CHANGES);
+    buffer.putLong(time);
+    buffer.putInt(changes);
+    for (int i = 0; i < changes; i++) {
+      buffer.putInt(indexes[i]);
+      buffer.put(valid[i] ? (byte)1 : (byte)0);
+      buffer.putDouble(valid[i] ? values[i] : 0.0);
+    }
+  }
+
+  /**
+   * Reads the stream of the frames of one connection, it is meant for the
+   * receivers.
+   */
+  public static class Decoder {
+
+    private final DataInputStream input;
+
+    /** True if the hello was read. */
+    private boolean started;
+
+    private String[] labels = new String[0];
+
+    private long time;
+
+    private double[] values = new double[0];
+
+    private boolean[] valid = new boolean[0];
+
+    public Decoder(DataInputStream input) {
+      this.input = input;
+    }
+
+    /**
+     * Reads the next frame.
+     *
+     * @return type of the frame that was read, {@link #SCHEMA},
+     *            {@link #VALUES} or {@link #CHANGES}
+     *
+     * @throws IOException
+     *            if the stream couldn't be read or if it is corrupted
+     */
+    public byte next() throws IOException {
+      if (!started) {
+        if (input.readInt() != MAGIC) {
+          throw new IOException("Not the export stream");
+        }
+        byte version = input.readByte();
+        if (version != VERSION) {
+          throw new IOException("Not supported version: " + version);
+        }
+        started = true;
+      }
+      byte type = input.readByte();
+      switch (type) {
+        case SCHEMA:
+          labels = new String[input.readInt()];
+          for (int i = 0; i < labels.length; i++) {
+            byte[] label = new byte[input.readShort()];
+            input.readFully(label);
+            labels[i] = new String(label, StandardCharsets.UTF_8);
+          }
+          values = new double[labels.length];
+          valid = new boolean[labels.length];
+          return type;
+        case VALUES:
+          time = input.readLong();
+          int signals = input.readInt();
+          if (signals != labels.length) {
+            throw new IOException("Values don't match the schema");
+          }
+          for (int i = 0; i < signals; i += 8) {
+            int bits = input.readByte();
+            for (int j = i; j < Math.min(signals, i + 8); j++) {
+              valid[j] = (bits & 1 << (j - i)) != 0;
+            }
+          }
+          for (int i = 0; i < signals; i++) {
+            values[i] = input.readDouble();
+          }
+          return type;
+        case CHANGES:
+          time = input.readLong();
+          int changes = input.readInt();
+          for (int i = 0; i < changes; i++) {
+            int index = input.readInt();
+            if (index < 0 || index >= labels.length) {
+              throw new IOException("Index out of the schema: " + index);
+            }
+            valid[index] = input.readByte() != 0;
+            values[index] = input.readDouble();
+          }
+          return type;
+        default:
+          throw new IOException("Unknown frame: " + type);
+      }
+    }
+
+    public String[] getLabels() {
+      return labels;
+    }
+
+    /** Returns the timestamp of the last values or changes frame. */
+    public long getTime() {
+      return time;
+    }
+
+    /** Returns the values, the changes are applied. */
+    public double[] getValues() {
+      return values;
+    }
+
+    /** Returns the validity, the changes are applied. */
+    public boolean[] getValid() {
+      return valid;
+    }
+
+  }
+
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.export;
+
+import cz.lidinsky.tools.dispatch.Client;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONObject;
+
+/**
+ * Sends the values of the signals from the background thread. The scan
+ * just copies the values into a preallocated frame and puts it into the
+ * bounded queue; it never waits for the network. The sender takes all of
+ * the frames which are waiting, up to the batch size, and writes them at
+ * once. If the queue is full, the values are dropped and counted, see
+ * {@link #getDropped}. If the connection fails, the frames are dropped
+ * and the connection is opened again after a while.
+ *
+ * <p>In the report by exception mode, see {@link #setDeadbands}, just the
+ * signals which changed by more than their deadband since they were sent
+ * last time are put into the queue and sent, and the values of all of the
+ * signals are sent periodically as the keyframe. The keyframe is sent
+ * after each connect as well, so the receiver always knows all of the
+ * values.
+ *
+ * <p>The frames are sent in the binary format, see
+ * {@link ExportProtocol}, or, for debugging, as the JSON objects through
+ * the dispatch client.
+ *
+ * @author jilm
+ */
+public class ExportSender {
+
+  /** Default capacity of the queue in frames. */
+  public static final int DEFAULT_CAPACITY = 16;
+
+  /** Default max number of frames written at once. */
+  public static final int DEFAULT_BATCH = 8;
+
+  /** Delay before the connection is opened again [ms]. */
+  private static final long RECONNECT_DELAY = 5000;
+
+  private final String host;
+
+  private final int port;
+
+  private final String[] labels;
+
+  private final byte[][] encodedLabels;
+
+  private final boolean json;
+
+  private final int batch;
+
+  /** Frames that may be filled by the scan. */
+  private final BlockingQueue<Frame> free;
+
+  /** Frames that wait to be sent. */
+  private final BlockingQueue<Frame> full;
+
+  /** Written by the scan only. */
+  private volatile long dropped;
+
+  /** Deadbands of the signals, null means each scan is sent whole. */
+  private double[] deadbands;
+
+  private long keyframePeriod;
+
+  /** The values and validity which were queued last, used by the scan. */
+  private final double[] reference;
+
+  private final boolean[] referenceValid;
+
+  private long lastKeyframe = Long.MIN_VALUE;
+
+  private volatile boolean stop;
+
+  private Thread thread;
+
+  /**
+   * @param host
+   *            where to send the values
+   *
+   * @param port
+   *            where to send the values
+   *
+   * @param labels
+   *            labels of the signals
+   *
+   * @param json
+   *            send the JSON objects instead of the binary frames
+   *
+   * @param capacity
+   *            max number of frames which wait to be sent
+   *
+   * @param batch
+   *            max number of frames which are written at once
+   */
+  public ExportSender(String host, int port, String[] labels, boolean json,
+      int capacity, int batch) {
+    if (capacity <= 0 || batch <= 0) {
+      throw new IllegalArgumentException(
+          "capacity: " + capacity + ", batch: " + batch);
+    }
+    this.host = host;
+    this.port = port;
+    this.labels = labels.clone();
+    this.encodedLabels = ExportProtocol.encodeLabels(labels);
+    this.json = json;
+    this.batch = batch;
+    this.free = new ArrayBlockingQueue<>(capacity);
+    this.full = new ArrayBlockingQueue<>(capacity);
+    for (int i = 0; i < capacity; i++) {
+      free.add(new Frame(labels.length));
+    }
+    this.reference = new double[labels.length];
+    this.referenceValid = new boolean[labels.length];
+  }
+
+  /**
+   * Switches to the report by exception mode. It must be called before
+   * the sender is started.
+   *
+   * @param deadbands
+   *            the signal is sent if it differs from the value that was
+   *            sent last time by more than its deadband, zero means any
+   *            change is sent
+   *
+   * @param keyframePeriod
+   *            all of the signals are sent at least so often [ms]
+   */
+  public void setDeadbands(double[] deadbands, long keyframePeriod) {
+    if (deadbands.length != labels.length) {
+      throw new IllegalArgumentException(
+          "deadbands: " + deadbands.length + ", signals: " + labels.length);
+    }
+    this.deadbands = deadbands.clone();
+    this.keyframePeriod = keyframePeriod;
+  }
+
+  /**
+   * Starts the sender thread.
+   */
+  public synchronized void start() {
+    if (thread == null) {
+      thread = new Thread(this::run, "export-sender");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Puts the values of the scan into the queue. It may be called from one
+   * thread only, it never blocks.
+   *
+   * @param time
+   *            timestamp of the scan [ms]
+   *
+   * @param values
+   *            values of the signals
+   *
+   * @param valid
+   *            validity of the signals
+   *
+   * @return false if the values were dropped because the queue is full
+   */
+  public boolean offer(long time, double[] values, boolean[] valid) {
+    Frame frame = free.poll();
+    if (frame == null) {
+      // the reference stays, the change is sent with the next frame
+      dropped++;
+      return false;
+    }
+    frame.time = time;
+    if (deadbands == null || time - lastKeyframe >= keyframePeriod
+        || lastKeyframe == Long.MIN_VALUE) {
+      frame.keyframe = true;
+      frame.count = labels.length;
+      System.arraycopy(values, 0, frame.values, 0, frame.values.length);
+      System.arraycopy(valid, 0, frame.valid, 0, frame.valid.length);
+      if (deadbands != null) {
+        System.arraycopy(values, 0, reference, 0, reference.length);
+        System.arraycopy(valid, 0, referenceValid, 0, reference.length);
+        lastKeyframe = time;
+      }
+    } else {
+      frame.keyframe = false;
+      int count = 0;
+      for (int i = 0; i < labels.length; i++) {
+        if (valid[i] != referenceValid[i] || valid[i]
+            && !(Math.abs(values[i] - reference[i]) <= deadbands[i]
+                && (deadbands[i] > 0.0 || values[i] == reference[i]))) {
+          frame.indexes[count] = i;
+          frame.values[count] = values[i];
+          frame.valid[count] = valid[i];
+          count++;
+          reference[i] = values[i];
+          referenceValid[i] = valid[i];
+        }
+      }
+      if (count == 0) {
+        free.add(frame);
+        return true;
+      }
+      frame.count = count;
+    }
+    full.add(frame);
+    return true;
+  }
+
+  /**
+   * Returns the number of frames that were dropped because the queue was
+   * full.
+   */
+  public long getDropped() {
+    return dropped;
+  }
+
+  /**
+   * Stops the sender thread, the frames which wait are not sent.
+   */
+  public void close() {
+    stop = true;
+    Thread t;
+    synchronized (this) {
+      t = thread;
+    }
+    if (t != null) {
+      t.interrupt();
+    }
+  }
+
+  private void run() {
+    List<Frame> frames = new ArrayList<>(batch);
+    int signals = labels.length;
+    ByteBuffer buffer = ByteBuffer.allocate(Math.max(
+        ExportProtocol.schemaSize(encodedLabels),
+        (batch + 1) * Math.max(ExportProtocol.valuesSize(signals),
+            ExportProtocol.changesSize(signals))));
+    // the values the receiver should know, sent after the connect
+    Frame snapshot = new Frame(signals);
+    snapshot.keyframe = true;
+    snapshot.count = signals;
+    boolean connected = false;
+    SocketChannel channel = null;
+    Client client = null;
+    boolean failed = false;
+    while (!stop) {
+      try {
+        Frame first = full.poll(1, TimeUnit.SECONDS);
+        if (first == null) {
+          continue;
+        }
+        frames.add(first);
+        full.drainTo(frames, batch - 1);
+        // the receiver must know all of the values before the changes
+        boolean resend = !connected && !first.keyframe;
+        try {
+          if (json) {
+            if (client == null) {
+              client = new Client(host, port);
+              client.start();
+            }
+            if (resend) {
+              client.send(toJSON(snapshot));
+            }
+            for (Frame frame : frames) {
+              client.send(toJSON(frame));
+            }
+          } else {
+            if (channel == null) {
+              channel = SocketChannel.open(new InetSocketAddress(host, port));
+              buffer.clear();
+              ExportProtocol.putSchema(buffer, encodedLabels);
+              write(channel, buffer);
+            }
+            buffer.clear();
+            if (resend) {
+              snapshot.put(buffer);
+            }
+            for (Frame frame : frames) {
+              frame.put(buffer);
+            }
+            write(channel, buffer);
+          }
+          connected = true;
+          if (failed) {
+            Logger.getLogger(ExportSender.class.getName()).log(Level.INFO,
+                "Export connection to {0}:{1,number,#} established",
+                new Object[] {host, port});
+            failed = false;
+          }
+        } catch (IOException ex) {
+          if (!failed) {
+            Logger.getLogger(ExportSender.class.getName()).log(Level.WARNING,
+                "Export connection failed, the values are dropped", ex);
+            failed = true;
+          }
+          channel = close(channel);
+          client = null;
+          connected = false;
+        } finally {
+          for (Frame frame : frames) {
+            frame.apply(snapshot);
+          }
+          releaseAll(frames);
+        }
+        if (!connected) {
+          Thread.sleep(RECONNECT_DELAY);
+        }
+      } catch (InterruptedException ex) {
+        // stop was requested
+      }
+    }
+    close(channel);
+  }
+
+  /** Returns the frames to the pool. */
+  private void releaseAll(List<Frame> frames) {
+    free.addAll(frames);
+    frames.clear();
+  }
+
+  private static void write(SocketChannel channel, ByteBuffer buffer)
+      throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static SocketChannel close(SocketChannel channel) {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException ex) {
+        Logger.getLogger(ExportSender.class.getName()).log(
+            Level.FINE, null, ex);
+      }
+    }
+    return null;
+  }
+
+  private JSONObject toJSON(Frame frame) {
+    JSONObject result = new JSONObject();
+    for (int i = 0; i < frame.count; i++) {
+      JSONObject signal = new JSONObject()
+          .put("class", "cz.control4j.Signal")
+          .put("validity", frame.valid[i]);
+      if (frame.valid[i]) {
+        signal.put("value", frame.values[i]);
+      }
+      result.put(labels[frame.keyframe ? i : frame.indexes[i]], signal);
+    }
+    return result;
+  }
+
+  /**
+   * Values of one scan, either all of them or just the changes.
+   */
+  private static final class Frame {
+
+    long time;
+
+    /** True if all of the signals are in the frame. */
+    boolean keyframe;
+
+    /** Number of the signals in the frame. */
+    int count;
+
+    /** Indexes of the changed signals. */
+    final int[] indexes;
+
+    final double[] values;
+
+    final boolean[] valid;
+
+    Frame(int signals) {
+      indexes = new int[signals];
+      values = new double[signals];
+      valid = new boolean[signals];
+    }
+
+    /** Applies the frame to the keyframe. */
+    void apply(Frame snapshot) {
+      for (int i = 0; i < count; i++) {
+        int index = keyframe ? i : indexes[i];
+        snapshot.values[index] = values[i];
+        snapshot.valid[index] = valid[i];
+      }
+      snapshot.time = time;
+    }
+
+    void put(ByteBuffer buffer) {
+      if (keyframe) {
+        ExportProtocol.putValues(buffer, time, values, valid, count);
+      } else {
+        ExportProtocol.putChanges(
+            buffer, time, indexes, values, valid, count);
+      }
+    }
+
+  }
+
+}
@@ -16,14 +16,18 @@
  */
 package cz.control4j.resources.historian;
 
-import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
+import java.io.UncheckedIOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Prints the history data as CSV, arguments: see {@link Exporter#run}, or
+ * signal, from, to and optionally the number of points to print the
+ * signal within the time range from all of the files. If the number of
+ * points is given, the coarsest rollup tier which gives at least that many
+ * points is used.
  *
  * @author jilm
  */
@@ -31,23 +35,24 @@ public class CUT {
 
   public static void main(String[] args) {
 
-    System.out.println(FileWriter.STORE_PATH);
     File dir = new File(FileWriter.STORE_PATH);
-    File file = new File(dir, args[0]);
-    FileReader reader = new FileReader();
-    try {
-      reader.read(file);
-      float buffer[] = new float[reader.getLabels().length];
-      while (true) {
-        reader.read(buffer, buffer.length);
-        System.out.println(Arrays.toString(buffer));
+
+    if ((args.length == 3 || args.length == 4) && !args[0].startsWith("-")) {
+      // signal from to [points]: the files are found through the catalog
+      TextOutput out = new TextOutput(System.out);
+      try {
+        int points = args.length == 4 ? Integer.parseInt(args[3]) : 0;
+        Rollups.forEach(dir, args[0], Catalog.parseTime(args[1]),
+            Catalog.parseTime(args[2]), points, Exporter.printer(out));
+        out.flush();
+      } catch (IOException | UncheckedIOException ex) {
+        Logger.getLogger(CUT.class.getName()).log(Level.SEVERE, null, ex);
       }
-    } catch (EOFException ex) {
-      // just end
-    } catch (IOException ex) {
-      Logger.getLogger(CUT.class.getName()).log(Level.SEVERE, null, ex);
+      return;
     }
 
+    Exporter.run("csv", args);
+
   }
 
 }
@@ -0,0 +1,534 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index of the history files of one directory. It is stored in the
+ * sidecar file inside the directory, so the header of each history file
+ * need not be parsed to find out which files cover given time range for
+ * given signal.
+ *
+ * <p>For each history file, the catalog keeps the signal labels, the time
+ * range, the number of samples and marks; each mark is a timestamp, index
+ * and byte offset of a sample at which the reading may start, it is the
+ * first sample of each chunk of the column-chunked files.
+ *
+ * <p>The catalog is checked against the directory when it is opened; the
+ * files that were added or changed since they were indexed are indexed
+ * again, entries of deleted files are removed. Just the file length and
+ * the modification time are used to find out whether the entry is up to
+ * date. The {@link FileWriter} updates the entry of its file when the file
+ * is created and when it is closed.
+ *
+ * @author jilm
+ */
+public class Catalog {
+
+  /** Name of the catalog file inside the history directory. */
+  public static final String FILENAME = "catalog.idx";
+
+  /** HISTCAT1 */
+  private static final long IDENTIFIER = 0x4849535443415431L;
+
+  /** Serializes updates of the catalog within this JVM. */
+  private static final Object LOCK = new Object();
+
+  private final File directory;
+
+  /** Entries by the file name. */
+  private final Map<String, Entry> entries;
+
+  private Catalog(File directory, Map<String, Entry> entries) {
+    this.directory = directory;
+    this.entries = entries;
+  }
+
+  /**
+   * Loads the catalog of the given directory and brings it up to date.
+   * If it was changed, it is saved.
+   *
+   * @param directory
+   *            the history directory
+   *
+   * @return the catalog
+   *
+   * @throws IOException
+   *            if the catalog couldn't be saved
+   */
+  public static Catalog open(File directory) throws IOException {
+    synchronized(LOCK) {
+      Catalog catalog = new Catalog(directory, load(directory));
+      if (catalog.reconcile()) {
+        catalog.save();
+      }
+      return catalog;
+    }
+  }
+
+  /**
+   * Indexes the given history file again and saves the catalog of its
+   * directory.
+   *
+   * @param file
+   *            the history file
+   *
+   * @throws IOException
+   *            if the file couldn't be indexed or the catalog saved
+   */
+  public static void update(File file) throws IOException {
+    synchronized(LOCK) {
+      File directory = file.getAbsoluteFile().getParentFile();
+      Catalog catalog = new Catalog(directory, load(directory));
+      catalog.entries.put(file.getName(), index(file));
+      catalog.save();
+    }
+  }
+
+  /**
+   * Returns the entries of all of the files ordered by the beginning.
+   *
+   * @return the entries
+   */
+  public List<Entry> getEntries() {
+    List<Entry> result = new ArrayList<>(entries.values());
+    Collections.sort(result, Comparator.comparingLong(Entry::getBegin));
+    return result;
+  }
+
+  /**
+   * Returns the entries of the files which contain given signal and whose
+   * time range intersects the given one. The entries are ordered by the
+   * beginning.
+   *
+   * @param label
+   *            the signal
+   *
+   * @param from
+   *            beginning of the time range in ms
+   *
+   * @param to
+   *            end of the time range in ms, exclusive
+   *
+   * @return the entries
+   */
+  public List<Entry> find(String label, long from, long to) {
+    List<Entry> result = new ArrayList<>();
+    for (Entry entry : getEntries()) {
+      if (entry.indexOf(label) >= 0 && entry.overlaps(from, to)) {
+        result.add(entry);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Passes all of the samples of the given signal within the given time
+   * range to the consumer. The samples are read from the files found by
+   * the {@link #find} method.
+   *
+   * @param label
+   *            the signal
+   *
+   * @param from
+   *            beginning of the time range in ms
+   *
+   * @param to
+   *            end of the time range in ms, exclusive
+   *
+   * @param consumer
+   *            the destination of the samples
+   *
+   * @throws IOException
+   *            if some file couldn't be read
+   */
+  public void forEach(String label, long from, long to,
+      SampleConsumer consumer) throws IOException {
+    float[] buffer = new float[1024];
+    for (Entry entry : find(label, from, to)) {
+      try (HistoryStore store = HistoryStore.open(entry.getFile())) {
+        int signal = entry.indexOf(label);
+        long first = store.getSampleIndex(from);
+        long last = store.getSampleIndex(to);
+        while (first < last) {
+          int length = store.read(buffer, 0, first,
+              (int)Math.min(buffer.length, last - first), signal);
+          if (length == 0) {
+            break;
+          }
+          for (int i = 0; i < length; i++) {
+            consumer.accept(store.getSampleTimestamp(first + i), buffer[i]);
+          }
+          first += length;
+        }
+      }
+    }
+  }
+
+  /**
+   * Parses the time argument of the command line tools, it is either
+   * an ISO instant like 2016-03-01T00:00:00Z, or ms since the epoch.
+   *
+   * @param time
+   *            the argument
+   *
+   * @return timestamp in ms
+   */
+  public static long parseTime(String time) {
+    try {
+      return Long.parseLong(time);
+    } catch (NumberFormatException e) {
+      return Instant.parse(time).toEpochMilli();
+    }
+  }
+
+  /**
+   * Indexes new and changed files, removes entries of the deleted ones.
+   *
+   * @return true if the catalog was changed
+   */
+  private boolean reconcile() {
+    boolean changed = false;
+    File[] files = directory.listFiles();
+    Map<String, File> present = new HashMap<>();
+    for (File file : files == null ? new File[0] : files) {
+      String name = file.getName();
+      if (file.isFile() && !name.equals(FILENAME) && !name.endsWith(".tmp")) {
+        present.put(name, file);
+      }
+    }
+    changed |= entries.keySet().retainAll(present.keySet());
+    for (File file : present.values()) {
+      Entry entry = entries.get(file.getName());
+      if (entry == null || entry.length != file.length()
+          || entry.lastModified != file.lastModified()) {
+        try {
+          entries.put(file.getName(), index(file));
+          changed = true;
+        } catch (IOException e) {
+          // not a history file
+        }
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Reads the history file and creates its entry.
+   */
+  static Entry index(File file) throws IOException {
+    long length = file.length();
+    long lastModified = file.lastModified();
+    try (HistoryStore store = HistoryStore.open(file)) {
+      long samples = store.getSampleCount();
+      long begin = store.getTimestamp();
+      long end = samples > 0 ? store.getSampleTimestamp(samples - 1) : begin;
+      long[][] marks;
+      if (store instanceof ColumnStore) {
+        ColumnStore columns = (ColumnStore)store;
+        marks = new long[3][columns.getChunkCount()];
+        for (int i = 0; i < columns.getChunkCount(); i++) {
+          marks[0][i] = columns.getChunkTimestamp(i);
+          marks[1][i] = columns.getChunkFirstSample(i);
+          marks[2][i] = columns.getChunkPosition(i);
+        }
+      } else {
+        marks = new long[][] {
+          {begin}, {0}, {((MappedStore)store).getPosition(0)}};
+      }
+      return new Entry(file, length, lastModified, store.getLabels(),
+          store.getSamplePeriod(), samples, begin, end,
+          marks[0], marks[1], marks[2]);
+    }
+  }
+
+  /**
+   * Reads the catalog file; if it doesn't exist or it is corrupted, an
+   * empty catalog is returned, it is rebuilt by the reconciliation.
+   */
+  private static Map<String, Entry> load(File directory) {
+    Map<String, Entry> entries = new HashMap<>();
+    File file = new File(directory, FILENAME);
+    if (!file.exists()) {
+      return entries;
+    }
+    try (DataInputStream dis = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      if (dis.readLong() != IDENTIFIER) {
+        throw new IOException("Not a catalog file");
+      }
+      int size = dis.readInt();
+      for (int i = 0; i < size; i++) {
+        Entry entry = Entry.read(dis, directory);
+        entries.put(entry.file.getName(), entry);
+      }
+    } catch (IOException | RuntimeException e) {
+      Logger.getLogger(Catalog.class.getName()).log(Level.WARNING,
+          "The history catalog is corrupted, it is rebuilt", e);
+      entries.clear();
+    }
+    return entries;
+  }
+
+  /**
+   * Writes the catalog into the temporary file which then replaces the
+   * catalog file.
+   */
+  private void save() throws IOException {
+    File temp = File.createTempFile("catalog", ".tmp", directory);
+    try {
+      try (DataOutputStream dos = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(temp)))) {
+        dos.writeLong(IDENTIFIER);
+        dos.writeInt(entries.size());
+        for (Entry entry : entries.values()) {
+          entry.write(dos);
+        }
+      }
+      Files.move(temp.toPath(), new File(directory, FILENAME).toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      temp.delete();
+    }
+  }
+
+  /**
+   * Receives the samples of one signal.
+   */
+  public interface SampleConsumer {
+
+    /**
+     * @param time
+     *            timestamp of the sample in ms
+     *
+     * @param value
+     *            value of the signal, NaN if it was not valid
+     */
+    void accept(long time, float value);
+
+  }
+
+  /**
+   * Catalog entry of one history file.
+   */
+  public static class Entry {
+
+    private final File file;
+
+    /** Length of the file when it was indexed. */
+    private final long length;
+
+    /** Modification time of the file when it was indexed. */
+    private final long lastModified;
+
+    private final String[] labels;
+
+    private final long samplePeriod;
+
+    private final long samples;
+
+    private final long begin;
+
+    private final long end;
+
+    /** Timestamps, indexes and byte offsets of the marked samples. */
+    private final long[] markTimes;
+    private final long[] markSamples;
+    private final long[] markOffsets;
+
+    Entry(File file, long length, long lastModified, String[] labels,
+        long samplePeriod, long samples, long begin, long end,
+        long[] markTimes, long[] markSamples, long[] markOffsets) {
+      this.file = file;
+      this.length = length;
+      this.lastModified = lastModified;
+      this.labels = labels;
+      this.samplePeriod = samplePeriod;
+      this.samples = samples;
+      this.begin = begin;
+      this.end = end;
+      this.markTimes = markTimes;
+      this.markSamples = markSamples;
+      this.markOffsets = markOffsets;
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    public String[] getLabels() {
+      return labels.clone();
+    }
+
+    /**
+     * Returns the index of the signal within the file.
+     *
+     * @param label
+     *            the signal
+     *
+     * @return index of the signal, -1 if the file doesn't contain it
+     */
+    public int indexOf(String label) {
+      return Arrays.asList(labels).indexOf(label);
+    }
+
+    public long getSamplePeriod() {
+      return samplePeriod;
+    }
+
+    public long getSampleCount() {
+      return samples;
+    }
+
+    /**
+     * Returns the timestamp of the first sample.
+     *
+     * @return timestamp in ms
+     */
+    public long getBegin() {
+      return begin;
+    }
+
+    /**
+     * Returns the timestamp of the last sample.
+     *
+     * @return timestamp in ms
+     */
+    public long getEnd() {
+      return end;
+    }
+
+    /**
+     * Returns true if the file contains some sample within the given time
+     * range.
+     *
+     * @param from
+     *            beginning of the range in ms
+     *
+     * @param to
+     *            end of the range in ms, exclusive
+     *
+     * @return true if the ranges intersect
+     */
+    public boolean overlaps(long from, long to) {
+      return samples > 0 && begin < to && end >= from;
+    }
+
+    /**
+     * Returns the index of the last marked sample which is not newer than
+     * the given time, the reading of the samples of the given time may
+     * start there.
+     *
+     * @param time
+     *            timestamp in ms
+     *
+     * @return index of the sample
+     */
+    public long getMarkSample(long time) {
+      return markSamples[mark(time)];
+    }
+
+    /**
+     * Returns the byte offset of the last marked sample which is not newer
+     * than the given time.
+     *
+     * @param time
+     *            timestamp in ms
+     *
+     * @return byte offset within the file
+     */
+    public long getMarkOffset(long time) {
+      return markOffsets[mark(time)];
+    }
+
+    private int mark(long time) {
+      if (markTimes.length == 0) {
+        throw new IllegalStateException("Empty history file");
+      }
+      int index = Arrays.binarySearch(markTimes, time);
+      return Math.max(0, index >= 0 ? index : -index - 2);
+    }
+
+    void write(DataOutputStream dos) throws IOException {
+      dos.writeUTF(file.getName());
+      dos.writeLong(length);
+      dos.writeLong(lastModified);
+      dos.writeInt(labels.length);
+      for (String label : labels) {
+        dos.writeUTF(label);
+      }
+      dos.writeLong(samplePeriod);
+      dos.writeLong(samples);
+      dos.writeLong(begin);
+      dos.writeLong(end);
+      dos.writeInt(markTimes.length);
+      for (int i = 0; i < markTimes.length; i++) {
+        dos.writeLong(markTimes[i]);
+        dos.writeLong(markSamples[i]);
+        dos.writeLong(markOffsets[i]);
+      }
+    }
+
+    static Entry read(DataInputStream dis, File directory)
+        throws IOException {
+      File file = new File(directory, dis.readUTF());
+      long length = dis.readLong();
+      long lastModified = dis.readLong();
+      String[] labels = new String[dis.readInt()];
+      for (int i = 0; i < labels.length; i++) {
+        labels[i] = dis.readUTF();
+      }
+      long samplePeriod = dis.readLong();
+      long samples = dis.readLong();
+      long begin = dis.readLong();
+      long end = dis.readLong();
+      int marks = dis.readInt();
+      long[] markTimes = new long[marks];
+      long[] markSamples = new long[marks];
+      long[] markOffsets = new long[marks];
+      for (int i = 0; i < marks; i++) {
+        markTimes[i] = dis.readLong();
+        markSamples[i] = dis.readLong();
+        markOffsets[i] = dis.readLong();
+      }
+      return new Entry(file, length, lastModified, labels, samplePeriod,
+          samples, begin, end, markTimes, markSamples, markOffsets);
+    }
+
+  }
+
+}
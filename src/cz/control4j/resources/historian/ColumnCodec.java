@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+/**
+ * Compression of the columns of the column-chunked history file, see
+ * {@link ColumnStore}.
+ * Timestamps are encoded as delta-of-delta, values as XOR of the
+ * consecutive floats, both in the spirit of the Gorilla time series
+ * database.
+ *
+ * <p>Timestamps. The first timestamp of the chunk is stored in the chunk
+ * header, the stream contains the difference between the delta of each
+ * next timestamp and the delta of the previous one. The delta preceding
+ * the first timestamp is the sample period, so the regularly sampled
+ * data take one bit per sample.
+ * <ul>
+ *   <li>0: the delta-of-delta is zero</li>
+ *   <li>10 + 7 bits: -64 .. 63</li>
+ *   <li>110 + 9 bits: -256 .. 255</li>
+ *   <li>1110 + 12 bits: -2048 .. 2047</li>
+ *   <li>1111 + 64 bits: otherwise</li>
+ * </ul>
+ *
+ * <p>Values. The first value is stored as it is, 32 bits. Each next
+ * value is XORed with the previous one.
+ * <ul>
+ *   <li>0: the value is the same as the previous one</li>
+ *   <li>10 + meaningful bits: the meaningful bits of the XOR fit within
+ *       the window of the previous one</li>
+ *   <li>11 + 5 bits of leading zeros + 5 bits of length - 1 + meaningful
+ *       bits: new window</li>
+ * </ul>
+ *
+ * @author jilm
+ */
+final class ColumnCodec {
+
+  private ColumnCodec() {}
+
+  /**
+   * Encodes the timestamps.
+   *
+   * @param times
+   *            timestamps to encode, the first one is not written into the
+   *            stream, it must be stored elsewhere
+   *
+   * @param length
+   *            number of timestamps
+   *
+   * @param samplePeriod
+   *            expected delta between the timestamps
+   *
+   * @param out
+   *            the stream
+   */
+  static void encodeTimes(long[] times, int length, long samplePeriod,
+      BitWriter out) {
+    long delta = samplePeriod;
+    for (int i = 1; i < length; i++) {
+      long next = times[i] - times[i - 1];
+      long dod = next - delta;
+      delta = next;
+      if (dod == 0) {
+        out.write(0, 1);
+      } else if (dod >= -64 && dod <= 63) {
+        out.write(0b10, 2);
+        out.write(dod, 7);
+      } else if (dod >= -256 && dod <= 255) {
+        out.write(0b110, 3);
+        out.write(dod, 9);
+      } else if (dod >= -2048 && dod <= 2047) {
+        out.write(0b1110, 4);
+        out.write(dod, 12);
+      } else {
+        out.write(0b1111, 4);
+        out.write(dod, 64);
+      }
+    }
+  }
+
+  /**
+   * Decodes the timestamps.
+   *
+   * @param in
+   *            the stream
+   *
+   * @param first
+   *            the first timestamp
+   *
+   * @param samplePeriod
+   *            expected delta between the timestamps
+   *
+   * @param times
+   *            destination array
+   *
+   * @param length
+   *            number of timestamps to decode
+   */
+  static void decodeTimes(BitReader in, long first, long samplePeriod,
+      long[] times, int length) {
+    long delta = samplePeriod;
+    long time = first;
+    for (int i = 0; i < length; i++) {
+      if (i > 0) {
+        if (in.read(1) != 0) {
+          if (in.read(1) == 0) {
+            delta += in.readSigned(7);
+          } else if (in.read(1) == 0) {
+            delta += in.readSigned(9);
+          } else if (in.read(1) == 0) {
+            delta += in.readSigned(12);
+          } else {
+            delta += in.read(64);
+          }
+        }
+        time += delta;
+      }
+      times[i] = time;
+    }
+  }
+
+  /**
+   * Encodes values of one signal.
+   *
+   * @param data
+   *            values of all of the signals, one sample after the other
+   *
+   * @param offset
+   *            index of the value of the first sample
+   *
+   * @param stride
+   *            distance between the values of two consecutive samples
+   *
+   * @param length
+   *            number of samples
+   *
+   * @param out
+   *            the stream
+   */
+  static void encodeValues(float[] data, int offset, int stride,
+      int length, BitWriter out) {
+    if (length == 0) {
+      return;
+    }
+    int previous = Float.floatToRawIntBits(data[offset]);
+    out.write(previous, 32);
+    int leading = -1;
+    int trailing = 0;
+    for (int i = 1; i < length; i++) {
+      int value = Float.floatToRawIntBits(data[offset + i * stride]);
+      int xor = value ^ previous;
+      previous = value;
+      if (xor == 0) {
+        out.write(0, 1);
+        continue;
+      }
+      int lz = Integer.numberOfLeadingZeros(xor);
+      int tz = Integer.numberOfTrailingZeros(xor);
+      if (leading >= 0 && lz >= leading && tz >= trailing) {
+        out.write(0b10, 2);
+        out.write(xor >>> trailing, 32 - leading - trailing);
+      } else {
+        int meaningful = 32 - lz - tz;
+        out.write(0b11, 2);
+        out.write(lz, 5);
+        out.write(meaningful - 1, 5);
+        out.write(xor >>> tz, meaningful);
+        leading = lz;
+        trailing = tz;
+      }
+    }
+  }
+
+  /**
+   * Decodes values of one signal.
+   *
+   * @param in
+   *            the stream
+   *
+   * @param buffer
+   *            destination array
+   *
+   * @param offset
+   *            index of the first value in the destination array
+   *
+   * @param stride
+   *            distance between two consecutive values in the destination
+   *            array
+   *
+   * @param length
+   *            number of values to decode
+   */
+  static void decodeValues(BitReader in, float[] buffer, int offset,
+      int stride, int length) {
+    if (length == 0) {
+      return;
+    }
+    int value = (int)in.read(32);
+    buffer[offset] = Float.intBitsToFloat(value);
+    int leading = 0;
+    int trailing = 0;
+    for (int i = 1; i < length; i++) {
+      if (in.read(1) != 0) {
+        if (in.read(1) != 0) {
+          leading = (int)in.read(5);
+          trailing = 32 - leading - (int)in.read(5) - 1;
+        }
+        value ^= (int)in.read(32 - leading - trailing) << trailing;
+      }
+      buffer[offset + i * stride] = Float.intBitsToFloat(value);
+    }
+  }
+
+  /**
+   * Bit stream writer, the bits are collected in the growing array.
+   */
+  static final class BitWriter {
+
+    private byte[] bytes = new byte[256];
+
+    /** Number of complete bytes. */
+    private int size;
+
+    /** The byte which is being written. */
+    private int current;
+
+    /** Number of bits of the current byte that were written. */
+    private int used;
+
+    /**
+     * Writes the given number of the least significant bits of the value.
+     *
+     * @param value
+     *            bits to write
+     *
+     * @param count
+     *            number of bits, 0 .. 64
+     */
+    void write(long value, int count) {
+      while (count > 0) {
+        int free = 8 - used;
+        int k = Math.min(free, count);
+        int chunk = (int)(value >>> (count - k)) & ((1 << k) - 1);
+        current |= chunk << (free - k);
+        used += k;
+        count -= k;
+        if (used == 8) {
+          if (size == bytes.length) {
+            bytes = java.util.Arrays.copyOf(bytes, size * 2);
+          }
+          bytes[size++] = (byte)current;
+          current = 0;
+          used = 0;
+        }
+      }
+    }
+
+    /**
+     * Returns the length of the stream in bytes, the last byte is padded
+     * by zeros.
+     *
+     * @return length in bytes
+     */
+    int length() {
+      return used > 0 ? size + 1 : size;
+    }
+
+    /**
+     * Copies the stream into the given buffer.
+     *
+     * @param buffer
+     *            destination buffer
+     */
+    void writeTo(java.nio.ByteBuffer buffer) {
+      buffer.put(bytes, 0, size);
+      if (used > 0) {
+        buffer.put((byte)current);
+      }
+    }
+
+    /**
+     * Discards the content.
+     */
+    void reset() {
+      size = 0;
+      current = 0;
+      used = 0;
+    }
+
+  }
+
+  /**
+   * Bit stream reader over the byte array.
+   */
+  static final class BitReader {
+
+    private byte[] bytes;
+
+    /** Index of the next bit to read. */
+    private long position;
+
+    /**
+     * Starts reading of the given part of the array.
+     *
+     * @param bytes
+     *            the array
+     *
+     * @param offset
+     *            index of the first byte of the stream
+     */
+    void reset(byte[] bytes, int offset) {
+      this.bytes = bytes;
+      this.position = (long)offset << 3;
+    }
+
+    /**
+     * Reads the given number of bits.
+     *
+     * @param count
+     *            number of bits, 0 .. 64
+     *
+     * @return the bits
+     */
+    long read(int count) {
+      long value = 0;
+      while (count > 0) {
+        int available = 8 - (int)(position & 7);
+        int k = Math.min(available, count);
+        int b = bytes[(int)(position >>> 3)] & 0xff;
+        value = (value << k) | ((b >>> (available - k)) & ((1 << k) - 1));
+        position += k;
+        count -= k;
+      }
+      return value;
+    }
+
+    /**
+     * Reads the number in the two's complement code.
+     *
+     * @param count
+     *            number of bits, 1 .. 64
+     *
+     * @return the number
+     */
+    long readSigned(int count) {
+      return read(count) << (64 - count) >> (64 - count);
+    }
+
+  }
+
+}
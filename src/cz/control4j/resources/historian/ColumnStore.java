@@ -0,0 +1,991 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import cz.control4j.resources.historian.ColumnCodec.BitReader;
+import cz.control4j.resources.historian.ColumnCodec.BitWriter;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Random access to the column-chunked compressed history file of the
+ * HISTOR02 format. The structure of the file is as follows:
+ * <ol>
+ *   <li>Header
+ *     <ol>
+ *       <li>long: identifier HISTOR02</li>
+ *       <li>int: number of signals</li>
+ *       <li>long: timestamp of the beginning of the recording</li>
+ *       <li>long: sample period [ms]</li>
+ *       <li>String: signal label for each of the signals</li>
+ *       <li>byte: 1 if the signal is reconstructed by the linear
+ *           interpolation, 0 if each value holds until the next sample;
+ *           for each of the signals</li>
+ *     </ol>
+ *   </li>
+ *   <li>Chunks, each of them contains consecutive samples
+ *     <ol>
+ *       <li>int: number of samples</li>
+ *       <li>long: timestamp of the first sample</li>
+ *       <li>int: length of the timestamp column in bytes</li>
+ *       <li>for each of the signals: float min, float max, int number of
+ *           valid (not NaN) values and int length of the column in
+ *           bytes</li>
+ *       <li>timestamp column</li>
+ *       <li>value column for each of the signals</li>
+ *       <li>int: CRC32 of all of the above</li>
+ *     </ol>
+ *   </li>
+ * </ol>
+ *
+ * <p>Columns are compressed by the {@link ColumnCodec}. The chunk headers
+ * are read when the file is opened, so the query for one signal reads and
+ * decodes just the columns of that signal. Incomplete chunk at the end of
+ * the file is ignored, as well as the last chunk if its checksum doesn't
+ * match. Chunks are only appended, never rewritten, so after a crash just
+ * the last chunk may be torn; the {@link #recover} method cuts the file
+ * after the last valid chunk.
+ *
+ * <p>New files are written by the {@link Appender}. The interpolation
+ * of each signal is given when the file is created, see
+ * {@link HistoryStore#isLinear}.
+ *
+ * @author jilm
+ */
+public class ColumnStore implements HistoryStore {
+
+  /** HISTOR02 */
+  public static final long IDENTIFIER = 0x484953544F523032L;
+
+  /** Default number of samples in one chunk. */
+  public static final int CHUNK_SAMPLES = 1024;
+
+  /** Size of the fixed part of the chunk header in bytes. */
+  private static final int CHUNK_HEADER = 16;
+
+  /** Size of the chunk header for each of the signals in bytes. */
+  private static final int COLUMN_HEADER = 16;
+
+  private final File file;
+
+  private final FileChannel channel;
+
+  private final String[] labels;
+
+  /** Signals reconstructed by the linear interpolation. */
+  private final boolean[] linear;
+
+  private final long timestamp;
+
+  private final long samplePeriod;
+
+  private final Chunk[] chunks;
+
+  /** Index of the first sample of each chunk. */
+  private final long[] firstSamples;
+
+  /** Timestamp of the first sample of each chunk. */
+  private final long[] firstTimes;
+
+  private final long samples;
+
+  /** Scratch buffer for the encoded columns. */
+  private byte[] bytes = new byte[1024];
+
+  private final BitReader reader = new BitReader();
+
+  /** Chunk and signal of the decoded column. */
+  private int columnChunk = -1;
+  private int columnSignal = -1;
+  private float[] column = new float[0];
+
+  /** Chunk of the decoded timestamps. */
+  private int timeChunk = -1;
+  private long[] times = new long[0];
+
+  /** Chunk of the decoded samples. */
+  private int rowChunk = -1;
+  private float[] rows = new float[0];
+
+  private ColumnStore(File file, FileChannel channel, String[] labels,
+      boolean[] linear, long timestamp, long samplePeriod,
+      List<Chunk> chunks) {
+    this.file = file;
+    this.channel = channel;
+    this.labels = labels;
+    this.linear = linear;
+    this.timestamp = timestamp;
+    this.samplePeriod = samplePeriod;
+    this.chunks = chunks.toArray(new Chunk[chunks.size()]);
+    this.firstSamples = new long[this.chunks.length];
+    this.firstTimes = new long[this.chunks.length];
+    long count = 0;
+    for (int i = 0; i < this.chunks.length; i++) {
+      firstSamples[i] = count;
+      firstTimes[i] = this.chunks[i].firstTime;
+      count += this.chunks[i].samples;
+    }
+    this.samples = count;
+  }
+
+  /**
+   * Opens the history file for reading.
+   *
+   * @param file
+   *            the history file
+   *
+   * @return the store
+   *
+   * @throws IOException
+   *            if the file couldn't be read or if it is not of the HISTOR02
+   *            format
+   */
+  public static ColumnStore open(File file) throws IOException {
+    FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ);
+    try {
+      DataInputStream dis = new DataInputStream(new BufferedInputStream(
+          Channels.newInputStream(channel.position(0))));
+      if (dis.readLong() != IDENTIFIER) {
+        throw new IOException("Not supported file format");
+      }
+      int signals = dis.readInt();
+      if (signals < 0) {
+        throw new IOException("Corrupted history file");
+      }
+      long timestamp = dis.readLong();
+      long samplePeriod = dis.readLong();
+      String[] labels = new String[signals];
+      for (int i = 0; i < signals; i++) {
+        labels[i] = dis.readUTF();
+      }
+      boolean[] linear = new boolean[signals];
+      for (int i = 0; i < signals; i++) {
+        linear[i] = dis.readBoolean();
+      }
+      long position = header(labels, linear, timestamp, samplePeriod).length;
+      // read the chunk headers
+      List<Chunk> chunks = new ArrayList<>();
+      long size = channel.size();
+      ByteBuffer header
+          = ByteBuffer.allocate(CHUNK_HEADER + signals * COLUMN_HEADER);
+      while (position + header.capacity() <= size) {
+        header.clear();
+        readFully(channel, header, position);
+        header.flip();
+        Chunk chunk = new Chunk(header, position, signals);
+        if (chunk.samples <= 0 || chunk.end > size) {
+          break;
+        }
+        chunks.add(chunk);
+        position = chunk.end;
+      }
+      // just the last chunk may be torn
+      if (!chunks.isEmpty()
+          && !verify(channel, chunks.get(chunks.size() - 1))) {
+        chunks.remove(chunks.size() - 1);
+      }
+      return new ColumnStore(
+          file, channel, labels, linear, timestamp, samplePeriod, chunks);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Checks the checksum of the chunk.
+   *
+   * @return true if the checksum matches
+   */
+  private static boolean verify(FileChannel channel, Chunk chunk)
+      throws IOException {
+    long length = chunk.end - chunk.position - Integer.BYTES;
+    if (length > Integer.MAX_VALUE) {
+      return false;
+    }
+    ByteBuffer bytes = ByteBuffer.allocate((int)length + Integer.BYTES);
+    readFully(channel, bytes, chunk.position);
+    CRC32 crc = new CRC32();
+    crc.update(bytes.array(), 0, (int)length);
+    return (int)crc.getValue() == bytes.getInt((int)length);
+  }
+
+  /**
+   * Cuts the file after the last chunk with the valid checksum, the
+   * checksums of all of the chunks are verified. Used after a crash to
+   * remove the torn chunk which was being written. The samples of the
+   * chunk which was not full are appended from the journal, see
+   * {@link Journal}, and the journal is deleted.
+   *
+   * @param file
+   *            the history file, it must not be written
+   *
+   * @return number of bytes removed
+   *
+   * @throws IOException
+   *            if the file couldn't be read or written
+   */
+  public static long recover(File file) throws IOException {
+    long end;
+    long count = 0;
+    String[] labels;
+    long samplePeriod;
+    try (ColumnStore store = open(file)) {
+      labels = store.labels;
+      samplePeriod = store.samplePeriod;
+      end = header(labels, store.linear, store.timestamp,
+          samplePeriod).length;
+      for (Chunk chunk : store.chunks) {
+        if (!verify(store.channel, chunk)) {
+          break;
+        }
+        end = chunk.end;
+        count += chunk.samples;
+      }
+    }
+    long removed;
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.WRITE)) {
+      removed = channel.size() - end;
+      if (removed > 0) {
+        channel.truncate(end);
+        channel.force(true);
+      }
+    }
+    File journal = Journal.getFile(file);
+    if (journal.exists()) {
+      try (Appender appender = new Appender(
+          file, labels, samplePeriod, end, count, CHUNK_SAMPLES)) {
+        Journal.replay(journal, labels.length, count, appender);
+      }
+      Files.delete(journal.toPath());
+    }
+    return Math.max(0, removed);
+  }
+
+  /**
+   * Returns the header of the HISTOR02 file.
+   *
+   * @param labels
+   *            signal labels
+   *
+   * @param linear
+   *            signals interpolated linearly
+   *
+   * @param timestamp
+   *            timestamp of the beginning of the recording
+   *
+   * @param samplePeriod
+   *            sample period in ms
+   *
+   * @return the header
+   */
+  static byte[] header(String[] labels, boolean[] linear, long timestamp,
+      long samplePeriod) {
+    try {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      DataOutputStream dos = new DataOutputStream(bos);
+      dos.writeLong(IDENTIFIER);
+      dos.writeInt(labels.length);
+      dos.writeLong(timestamp);
+      dos.writeLong(samplePeriod);
+      for (String label : labels) {
+        dos.writeUTF(label);
+      }
+      for (boolean value : linear) {
+        dos.writeBoolean(value);
+      }
+      dos.flush();
+      return bos.toByteArray();
+    } catch (IOException e) {
+      // it may not happen with byte array stream
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public File getFile() {
+    return file;
+  }
+
+  @Override
+  public String[] getLabels() {
+    return labels.clone();
+  }
+
+  @Override
+  public boolean isLinear(int signal) {
+    return linear[signal];
+  }
+
+  @Override
+  public long getTimestamp() {
+    return chunks.length > 0 ? firstTimes[0] : timestamp;
+  }
+
+  @Override
+  public long getSamplePeriod() {
+    return samplePeriod;
+  }
+
+  @Override
+  public long getSampleCount() {
+    return samples;
+  }
+
+  /**
+   * Returns the timestamp of the sample with given index. Timestamps of
+   * the samples out of the file are extrapolated by the sample period.
+   */
+  @Override
+  public long getSampleTimestamp(long index) throws IOException {
+    if (samples == 0) {
+      return timestamp + index * samplePeriod;
+    } else if (index < 0) {
+      return firstTimes[0] + index * samplePeriod;
+    } else if (index >= samples) {
+      return getSampleTimestamp(samples - 1)
+          + (index - samples + 1) * samplePeriod;
+    } else {
+      int chunk = chunkOf(index);
+      decodeTimes(chunk);
+      return times[(int)(index - firstSamples[chunk])];
+    }
+  }
+
+  @Override
+  public long getSampleIndex(long time) throws IOException {
+    if (samples == 0 || time <= firstTimes[0]) {
+      return 0;
+    }
+    // the last chunk which begins before the time
+    int chunk = Arrays.binarySearch(firstTimes, time);
+    chunk = chunk >= 0 ? chunk - 1 : -chunk - 2;
+    while (chunk > 0 && firstTimes[chunk] >= time) {
+      chunk--;
+    }
+    decodeTimes(chunk);
+    int length = chunks[chunk].samples;
+    for (int i = 0; i < length; i++) {
+      if (times[i] >= time) {
+        return firstSamples[chunk] + i;
+      }
+    }
+    return firstSamples[chunk] + length;
+  }
+
+  @Override
+  public int read(float[] buffer, int offset, long from, int length,
+      int signalIndex) throws IOException {
+    if (signalIndex < 0 || signalIndex >= labels.length) {
+      throw new IndexOutOfBoundsException("signal index: " + signalIndex);
+    }
+    int count = (int)Math.max(0, Math.min(length, samples - from));
+    int i = 0;
+    while (i < count) {
+      long sample = from + i;
+      int chunk = chunkOf(sample);
+      decodeColumn(chunk, signalIndex);
+      int first = (int)(sample - firstSamples[chunk]);
+      int n = Math.min(count - i, chunks[chunk].samples - first);
+      System.arraycopy(column, first, buffer, offset + i, n);
+      i += n;
+    }
+    return count;
+  }
+
+  @Override
+  public int readTimestamps(long[] buffer, int offset, long from,
+      int length) throws IOException {
+    int count = (int)Math.max(0, Math.min(length, samples - from));
+    int i = 0;
+    while (i < count) {
+      long sample = from + i;
+      int chunk = chunkOf(sample);
+      decodeTimes(chunk);
+      int first = (int)(sample - firstSamples[chunk]);
+      int n = Math.min(count - i, chunks[chunk].samples - first);
+      System.arraycopy(times, first, buffer, offset + i, n);
+      i += n;
+    }
+    return count;
+  }
+
+  @Override
+  public int read(FloatBuffer buffer, long from, int length)
+      throws IOException {
+    int signals = labels.length;
+    if (signals == 0) {
+      return 0;
+    }
+    int count = (int)Math.max(0, Math.min(
+        Math.min(length, buffer.remaining() / signals), samples - from));
+    int i = 0;
+    while (i < count) {
+      long sample = from + i;
+      int chunk = chunkOf(sample);
+      decodeRows(chunk);
+      int first = (int)(sample - firstSamples[chunk]);
+      int n = Math.min(count - i, chunks[chunk].samples - first);
+      buffer.put(rows, first * signals, n * signals);
+      i += n;
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of chunks in the file.
+   *
+   * @return number of chunks
+   */
+  public int getChunkCount() {
+    return chunks.length;
+  }
+
+  /**
+   * Returns the index of the first sample of the chunk.
+   *
+   * @param chunk
+   *            index of the chunk
+   *
+   * @return index of the sample
+   */
+  public long getChunkFirstSample(int chunk) {
+    return firstSamples[chunk];
+  }
+
+  /**
+   * Returns the timestamp of the first sample of the chunk.
+   *
+   * @param chunk
+   *            index of the chunk
+   *
+   * @return timestamp in ms
+   */
+  public long getChunkTimestamp(int chunk) {
+    return firstTimes[chunk];
+  }
+
+  /**
+   * Returns the position of the chunk in the file.
+   *
+   * @param chunk
+   *            index of the chunk
+   *
+   * @return byte offset of the chunk header
+   */
+  public long getChunkPosition(int chunk) {
+    return chunks[chunk].position;
+  }
+
+  /**
+   * Returns the number of samples in the chunk.
+   *
+   * @param chunk
+   *            index of the chunk
+   *
+   * @return number of samples
+   */
+  public int getChunkLength(int chunk) {
+    return chunks[chunk].samples;
+  }
+
+  /**
+   * Returns the minimum of the signal within the chunk, taken from the
+   * chunk header, nothing is decoded.
+   *
+   * @param chunk
+   *            index of the chunk
+   *
+   * @param signalIndex
+   *            index of the signal
+   *
+   * @return the minimum, NaN if there are no valid values
+   */
+  public float getMinimum(int chunk, int signalIndex) {
+    return chunks[chunk].min[signalIndex];
+  }
+
+  /**
+   * Returns the maximum of the signal within the chunk, taken from the
+   * chunk header, nothing is decoded.
+   *
+   * @param chunk
+   *            index of the chunk
+   *
+   * @param signalIndex
+   *            index of the signal
+   *
+   * @return the maximum, NaN if there are no valid values
+   */
+  public float getMaximum(int chunk, int signalIndex) {
+    return chunks[chunk].max[signalIndex];
+  }
+
+  /**
+   * Returns the number of valid (not NaN) values of the signal within the
+   * chunk, taken from the chunk header, nothing is decoded.
+   *
+   * @param chunk
+   *            index of the chunk
+   *
+   * @param signalIndex
+   *            index of the signal
+   *
+   * @return number of valid values
+   */
+  public int getValidCount(int chunk, int signalIndex) {
+    return chunks[chunk].count[signalIndex];
+  }
+
+  /**
+   * Returns the index of the chunk which contains the given sample.
+   */
+  private int chunkOf(long sample) {
+    int chunk = Arrays.binarySearch(firstSamples, sample);
+    return chunk >= 0 ? chunk : -chunk - 2;
+  }
+
+  /**
+   * Reads the given part of the file into the scratch buffer.
+   */
+  private void load(long position, int length) throws IOException {
+    if (bytes.length < length) {
+      bytes = new byte[Math.max(length, bytes.length * 2)];
+    }
+    readFully(channel, ByteBuffer.wrap(bytes, 0, length), position);
+    reader.reset(bytes, 0);
+  }
+
+  private void decodeTimes(int chunk) throws IOException {
+    if (timeChunk != chunk) {
+      Chunk c = chunks[chunk];
+      load(c.timePosition, c.timeBytes);
+      if (times.length < c.samples) {
+        times = new long[c.samples];
+      }
+      timeChunk = -1;
+      try {
+        ColumnCodec.decodeTimes(
+            reader, c.firstTime, samplePeriod, times, c.samples);
+      } catch (IndexOutOfBoundsException e) {
+        throw new IOException("Corrupted history file", e);
+      }
+      timeChunk = chunk;
+    }
+  }
+
+  private void decodeColumn(int chunk, int signal) throws IOException {
+    if (columnChunk != chunk || columnSignal != signal) {
+      Chunk c = chunks[chunk];
+      load(c.columnPosition[signal], c.columnBytes[signal]);
+      if (column.length < c.samples) {
+        column = new float[c.samples];
+      }
+      columnChunk = -1;
+      try {
+        ColumnCodec.decodeValues(reader, column, 0, 1, c.samples);
+      } catch (IndexOutOfBoundsException e) {
+        throw new IOException("Corrupted history file", e);
+      }
+      columnChunk = chunk;
+      columnSignal = signal;
+    }
+  }
+
+  private void decodeRows(int chunk) throws IOException {
+    if (rowChunk != chunk) {
+      Chunk c = chunks[chunk];
+      int signals = labels.length;
+      long first = c.columnPosition[0];
+      load(first, (int)(c.end - first));
+      if (rows.length < c.samples * signals) {
+        rows = new float[c.samples * signals];
+      }
+      rowChunk = -1;
+      try {
+        for (int i = 0; i < signals; i++) {
+          reader.reset(bytes, (int)(c.columnPosition[i] - first));
+          ColumnCodec.decodeValues(reader, rows, i, signals, c.samples);
+        }
+      } catch (IndexOutOfBoundsException e) {
+        throw new IOException("Corrupted history file", e);
+      }
+      rowChunk = chunk;
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer,
+      long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Header of one chunk.
+   */
+  private static final class Chunk {
+
+    /** Position of the chunk header. */
+    final long position;
+    final int samples;
+    final long firstTime;
+    final long timePosition;
+    final int timeBytes;
+    final float[] min;
+    final float[] max;
+    final int[] count;
+    final long[] columnPosition;
+    final int[] columnBytes;
+
+    /** Position of the next chunk. */
+    final long end;
+
+    Chunk(ByteBuffer header, long position, int signals) {
+      this.position = position;
+      samples = header.getInt();
+      firstTime = header.getLong();
+      timeBytes = header.getInt();
+      min = new float[signals];
+      max = new float[signals];
+      count = new int[signals];
+      columnBytes = new int[signals];
+      columnPosition = new long[signals];
+      timePosition = position + header.limit();
+      long next = timePosition + Math.max(0, timeBytes);
+      for (int i = 0; i < signals; i++) {
+        min[i] = header.getFloat();
+        max[i] = header.getFloat();
+        count[i] = header.getInt();
+        columnBytes[i] = header.getInt();
+        columnPosition[i] = next;
+        next += Math.max(0, columnBytes[i]);
+      }
+      end = next + Integer.BYTES;
+    }
+
+  }
+
+  /**
+   * Creates new history file and returns the object to append data into
+   * it.
+   *
+   * @param file
+   *            the file to create
+   *
+   * @param labels
+   *            signal labels
+   *
+   * @param timestamp
+   *            timestamp of the beginning of the recording
+   *
+   * @param samplePeriod
+   *            sample period in ms
+   *
+   * @return object to append data
+   *
+   * @throws IOException
+   *            if the file couldn't be created
+   */
+  public static Appender create(File file, String[] labels, long timestamp,
+      long samplePeriod) throws IOException {
+    return create(file, labels, new boolean[labels.length], timestamp,
+        samplePeriod);
+  }
+
+  /**
+   * Creates new history file with the signals which are reconstructed by
+   * the linear interpolation and returns the object to append data into
+   * it.
+   *
+   * @param file
+   *            the file to create
+   *
+   * @param labels
+   *            signal labels
+   *
+   * @param linear
+   *            true for each of the signals which is interpolated linearly,
+   *            see {@link HistoryStore#isLinear}
+   *
+   * @param timestamp
+   *            timestamp of the beginning of the recording
+   *
+   * @param samplePeriod
+   *            sample period in ms
+   *
+   * @return object to append data
+   *
+   * @throws IOException
+   *            if the file couldn't be created
+   */
+  public static Appender create(File file, String[] labels, boolean[] linear,
+      long timestamp, long samplePeriod) throws IOException {
+    return new Appender(file, labels, linear, timestamp, samplePeriod,
+        CHUNK_SAMPLES);
+  }
+
+  /**
+   * Appends data at the end of the history file. Samples are collected
+   * until the chunk is full, then the chunk is compressed and written.
+   * The chunk which is not full is written by the {@link #close} method
+   * only; the {@link #force} method appends its samples to the
+   * {@link Journal} instead, so the file always consists of whole chunks.
+   */
+  public static class Appender implements HistoryStore.Appender {
+
+    private final File file;
+
+    private final FileChannel channel;
+
+    private final int signals;
+
+    private final long samplePeriod;
+
+    /** Position of the next chunk. */
+    private long position;
+
+    private final long[] times;
+
+    private final float[] values;
+
+    /** Number of samples in the current chunk. */
+    private int length;
+
+    /** Number of samples that were appended. */
+    private long appended;
+
+    private final BitWriter timeColumn = new BitWriter();
+
+    private final BitWriter[] valueColumns;
+
+    private ByteBuffer chunk = ByteBuffer.allocate(0);
+
+    private final CRC32 crc = new CRC32();
+
+    /** Created by the first force, null if the file was never forced. */
+    private Journal journal;
+
+    /** Number of samples that were journaled or written in chunks. */
+    private long journaled;
+
+    Appender(File file, String[] labels, long timestamp, long samplePeriod,
+        int chunkSamples) throws IOException {
+      this(file, labels, new boolean[labels.length], timestamp, samplePeriod,
+          chunkSamples);
+    }
+
+    Appender(File file, String[] labels, boolean[] linear, long timestamp,
+        long samplePeriod, int chunkSamples) throws IOException {
+      this(file, labels, samplePeriod, chunkSamples, FileChannel.open(
+          file.toPath(), StandardOpenOption.CREATE_NEW,
+          StandardOpenOption.WRITE));
+      byte[] header = header(labels, linear, timestamp, samplePeriod);
+      try {
+        channel.write(ByteBuffer.wrap(header), 0);
+        this.position = header.length;
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Appends to the existing file, used by the recovery.
+     *
+     * @param position
+     *            end of the last valid chunk
+     *
+     * @param samples
+     *            number of samples of the file
+     */
+    Appender(File file, String[] labels, long samplePeriod, long position,
+        long samples, int chunkSamples) throws IOException {
+      this(file, labels, samplePeriod, chunkSamples, FileChannel.open(
+          file.toPath(), StandardOpenOption.WRITE));
+      this.position = position;
+      this.appended = samples;
+      this.journaled = samples;
+    }
+
+    private Appender(File file, String[] labels, long samplePeriod,
+        int chunkSamples, FileChannel channel) {
+      if (chunkSamples <= 0) {
+        throw new IllegalArgumentException(
+            "chunk samples: " + chunkSamples);
+      }
+      this.file = file;
+      this.channel = channel;
+      this.signals = labels.length;
+      this.samplePeriod = samplePeriod;
+      this.times = new long[chunkSamples];
+      this.values = new float[chunkSamples * signals];
+      this.valueColumns = new BitWriter[signals];
+      for (int i = 0; i < signals; i++) {
+        valueColumns[i] = new BitWriter();
+      }
+    }
+
+    @Override
+    public void append(long[] times, float[] data, int offset, int samples)
+        throws IOException {
+      for (int i = offset; i < offset + samples; i++) {
+        this.times[length] = times[i];
+        System.arraycopy(
+            data, i * signals, values, length * signals, signals);
+        length++;
+        appended++;
+        if (length == this.times.length) {
+          flush();
+        }
+      }
+    }
+
+    @Override
+    public long getSampleCount() {
+      return appended;
+    }
+
+    /**
+     * Returns the length of the written chunks, the samples of the chunk
+     * which is not full are not counted.
+     */
+    @Override
+    public long getLength() {
+      return position;
+    }
+
+    /**
+     * Compresses and writes the current chunk.
+     */
+    private void flush() throws IOException {
+      if (length == 0) {
+        return;
+      }
+      timeColumn.reset();
+      ColumnCodec.encodeTimes(times, length, samplePeriod, timeColumn);
+      int size = CHUNK_HEADER + signals * COLUMN_HEADER + timeColumn.length();
+      for (int i = 0; i < signals; i++) {
+        valueColumns[i].reset();
+        ColumnCodec.encodeValues(values, i, signals, length, valueColumns[i]);
+        size += valueColumns[i].length();
+      }
+      if (chunk.capacity() < size + Integer.BYTES) {
+        chunk = ByteBuffer.allocate(size + Integer.BYTES);
+      }
+      chunk.clear();
+      chunk.putInt(length);
+      chunk.putLong(times[0]);
+      chunk.putInt(timeColumn.length());
+      for (int i = 0; i < signals; i++) {
+        float min = Float.NaN;
+        float max = Float.NaN;
+        int count = 0;
+        for (int j = 0; j < length; j++) {
+          float value = values[j * signals + i];
+          if (!Float.isNaN(value)) {
+            min = count == 0 ? value : Math.min(min, value);
+            max = count == 0 ? value : Math.max(max, value);
+            count++;
+          }
+        }
+        chunk.putFloat(min);
+        chunk.putFloat(max);
+        chunk.putInt(count);
+        chunk.putInt(valueColumns[i].length());
+      }
+      timeColumn.writeTo(chunk);
+      for (int i = 0; i < signals; i++) {
+        valueColumns[i].writeTo(chunk);
+      }
+      crc.reset();
+      crc.update(chunk.array(), 0, chunk.position());
+      chunk.putInt((int)crc.getValue());
+      chunk.flip();
+      while (chunk.hasRemaining()) {
+        position += channel.write(chunk, position);
+      }
+      length = 0;
+    }
+
+    /**
+     * Forces the written chunks to the disk and appends the samples of
+     * the chunk which is not full to the journal. The journal is emptied
+     * first if the chunk it belongs to was written meanwhile.
+     */
+    @Override
+    public void force() throws IOException {
+      channel.force(false);
+      if (journal == null) {
+        journal = new Journal(file, signals);
+      }
+      long first = appended - length;
+      if (journaled < first) {
+        journal.reset();
+        journaled = first;
+      }
+      if (journaled < appended) {
+        journal.write(journaled, times, values, (int)(journaled - first),
+            (int)(appended - journaled));
+        journaled = appended;
+      }
+    }
+
+    /**
+     * Writes the chunk which is not full, forces the file to the disk and
+     * closes it. The journal is deleted once the file is forced.
+     */
+    @Override
+    public void close() throws IOException {
+      try {
+        flush();
+        channel.force(true);
+        if (journal != null) {
+          journal.close();
+        }
+      } finally {
+        channel.close();
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Maintenance of the history directory. It is run periodically by the
+ * {@link FileWriter} on its own thread, never by the control loop.
+ * Following jobs are done, each of them may be switched off:
+ * <ol>
+ *   <li>Retention: files whose last sample is older than the retention
+ *       period are deleted.</li>
+ *   <li>Downsampling: files whose last sample is older than the given age
+ *       are rewritten with the longer sample period; the value of each new
+ *       sample is the mean of the valid values within the period, each
+ *       value is weighted by the time it covers, see
+ *       {@link HistoryStore#isLinear}.</li>
+ *   <li>Compaction: consecutive small files with the same signals, their
+ *       interpolation and sample period are merged into one file.</li>
+ * </ol>
+ * New files are of the HISTOR02 format, they are written under the
+ * temporary name first, the original files are deleted after the new one
+ * was renamed. The files which are being written are never touched.
+ *
+ * @author jilm
+ */
+public class Compactor implements Runnable {
+
+  /** Files which are being written. */
+  private static final Set<File> ACTIVE = ConcurrentHashMap.newKeySet();
+
+  /** Just one job at a time within the JVM. */
+  private static final Object LOCK = new Object();
+
+  private final File directory;
+
+  /** Max age of the files [ms], zero means forever. */
+  private long retention;
+
+  /** Age of the files to downsample [ms], zero means never. */
+  private long downsampleAge;
+
+  /** Sample period of the downsampled files [ms]. */
+  private long downsamplePeriod = 60000;
+
+  /** Files smaller than this are merged [bytes], zero means never. */
+  private long mergeSize = 1 << 20;
+
+  public Compactor(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Marks the file which is being written, or which was closed.
+   *
+   * @param file
+   *            the history file
+   *
+   * @param active
+   *            true if the file is being written
+   *
+   * @return false if the file was already marked so
+   */
+  static boolean setActive(File file, boolean active) {
+    if (active) {
+      return ACTIVE.add(file.getAbsoluteFile());
+    } else {
+      return ACTIVE.remove(file.getAbsoluteFile());
+    }
+  }
+
+  static boolean isActive(File file) {
+    return ACTIVE.contains(file.getAbsoluteFile());
+  }
+
+  /**
+   * @param retention
+   *            files whose last sample is older are deleted [ms], zero
+   *            means that the files are kept forever
+   */
+  public void setRetention(long retention) {
+    this.retention = retention;
+  }
+
+  public long getRetention() {
+    return retention;
+  }
+
+  public long getMergeSize() {
+    return mergeSize;
+  }
+
+  /**
+   * @param age
+   *            files whose last sample is older are downsampled [ms], zero
+   *            means never
+   *
+   * @param period
+   *            new sample period [ms]
+   */
+  public void setDownsampling(long age, long period) {
+    if (period <= 0) {
+      throw new IllegalArgumentException("period: " + period);
+    }
+    this.downsampleAge = age;
+    this.downsamplePeriod = period;
+  }
+
+  /**
+   * @param size
+   *            files smaller than this are merged [bytes], zero means never
+   */
+  public void setMergeSize(long size) {
+    this.mergeSize = size;
+  }
+
+  @Override
+  public void run() {
+    synchronized(LOCK) {
+      if (!directory.isDirectory()) {
+        return;
+      }
+      try {
+        long now = System.currentTimeMillis();
+        if (retention > 0) {
+          deleteOld(now - retention);
+        }
+        if (downsampleAge > 0) {
+          downsample(now - downsampleAge);
+        }
+        if (mergeSize > 0) {
+          merge();
+        }
+        // remove the entries of the deleted files
+        Catalog.open(directory);
+      } catch (IOException | RuntimeException e) {
+        Logger.getLogger(Compactor.class.getName()).log(
+            Level.WARNING, "History compaction failed", e);
+      }
+    }
+  }
+
+  /**
+   * Deletes files whose last sample is older than the given time.
+   */
+  private void deleteOld(long time) throws IOException {
+    for (Catalog.Entry entry : Catalog.open(directory).getEntries()) {
+      if (entry.getEnd() < time && !isActive(entry.getFile())) {
+        Files.deleteIfExists(entry.getFile().toPath());
+      }
+    }
+  }
+
+  /**
+   * Downsamples the files whose last sample is older than the given time.
+   */
+  private void downsample(long time) throws IOException {
+    for (Catalog.Entry entry : Catalog.open(directory).getEntries()) {
+      if (entry.getEnd() < time && !isActive(entry.getFile())
+          && entry.getSamplePeriod() < downsamplePeriod) {
+        rewrite(Collections.singletonList(entry), downsamplePeriod);
+      }
+    }
+  }
+
+  /**
+   * Merges the consecutive small files with the same structure.
+   */
+  private void merge() throws IOException {
+    List<Catalog.Entry> group = new ArrayList<>();
+    for (Catalog.Entry entry : Catalog.open(directory).getEntries()) {
+      boolean small = entry.getFile().length() < mergeSize
+          && !isActive(entry.getFile());
+      if (!group.isEmpty() && (!small || !compatible(group.get(0), entry))) {
+        if (group.size() > 1) {
+          rewrite(group, group.get(0).getSamplePeriod());
+        }
+        group.clear();
+      }
+      if (small) {
+        group.add(entry);
+      }
+    }
+    if (group.size() > 1) {
+      rewrite(group, group.get(0).getSamplePeriod());
+    }
+  }
+
+  private static boolean compatible(Catalog.Entry a, Catalog.Entry b)
+      throws IOException {
+    return a.getSamplePeriod() == b.getSamplePeriod()
+        && Arrays.equals(a.getLabels(), b.getLabels())
+        && Arrays.equals(getLinear(a), getLinear(b));
+  }
+
+  /**
+   * Returns the signals of the file which are interpolated linearly.
+   */
+  private static boolean[] getLinear(Catalog.Entry entry)
+      throws IOException {
+    try (HistoryStore store = HistoryStore.open(entry.getFile())) {
+      boolean[] linear = new boolean[store.getLabels().length];
+      for (int i = 0; i < linear.length; i++) {
+        linear[i] = store.isLinear(i);
+      }
+      return linear;
+    }
+  }
+
+  /**
+   * Writes the samples of the given files into one new file and deletes
+   * the given files. If the sample period is longer than the period of
+   * the files, the samples are downsampled.
+   */
+  private void rewrite(List<Catalog.Entry> entries, long samplePeriod)
+      throws IOException {
+    Catalog.Entry first = entries.get(0);
+    String[] labels = first.getLabels();
+    int signals = labels.length;
+    String name = first.getFile().getName();
+    File temp = new File(directory, name + ".tmp");
+    Files.deleteIfExists(temp.toPath());
+    float[] data = new float[1024 * signals];
+    long[] times = new long[1024];
+    boolean[] linear = getLinear(first);
+    Downsampler downsampler = new Downsampler(linear, samplePeriod);
+    try (ColumnStore.Appender appender = ColumnStore.create(
+        temp, labels, linear, first.getBegin(), samplePeriod)) {
+      for (Catalog.Entry entry : entries) {
+        try (HistoryStore store = HistoryStore.open(entry.getFile())) {
+          long samples = store.getSampleCount();
+          long from = 0;
+          while (from < samples) {
+            FloatBuffer buffer = FloatBuffer.wrap(data);
+            int length = store.read(buffer, from, times.length);
+            for (int i = 0; i < length; i++) {
+              times[i] = store.getSampleTimestamp(from + i);
+            }
+            if (samplePeriod > entry.getSamplePeriod()) {
+              downsampler.append(times, data, length, appender);
+            } else {
+              appender.append(times, data, length);
+            }
+            from += length;
+          }
+        }
+        if (samplePeriod > entry.getSamplePeriod()) {
+          downsampler.end(entry.getSamplePeriod(), appender);
+        }
+      }
+      downsampler.flush(appender);
+    }
+    // the temp file was forced by the close; the new file first, the data
+    // may be doubled, but never lost
+    File target = target(entries);
+    Files.move(temp.toPath(), target.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    force(directory);
+    for (Catalog.Entry entry : entries) {
+      if (!entry.getFile().equals(target)) {
+        Files.deleteIfExists(entry.getFile().toPath());
+      }
+    }
+    Catalog.update(target);
+  }
+
+  /**
+   * Forces the directory entries to the disk, so the renamed file survives
+   * the crash of the system before the original files are deleted. Some of
+   * the platforms can't open the directory, there it is left to the file
+   * system.
+   */
+  private static void force(File directory) {
+    try (FileChannel channel = FileChannel.open(
+        directory.toPath(), StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      Logger.getLogger(Compactor.class.getName()).log(Level.FINE,
+          "The directory " + directory + " couldn't be forced", e);
+    }
+  }
+
+  /**
+   * Returns the name of the compacted file, it is derived from the name of
+   * the first file. It may be one of the given files, which is replaced
+   * then, but never another one.
+   */
+  private File target(List<Catalog.Entry> entries) {
+    String name = entries.get(0).getFile().getName();
+    String stem = name.endsWith(".rec")
+        ? name.substring(0, name.length() - 4) : name;
+    stem = stem.endsWith("-c") ? stem : stem + "-c";
+    File target = new File(directory, stem + ".rec");
+    for (int i = 1; target.exists() && !contains(entries, target); i++) {
+      target = new File(directory, stem + i + ".rec");
+    }
+    return target;
+  }
+
+  private static boolean contains(List<Catalog.Entry> entries, File file) {
+    for (Catalog.Entry entry : entries) {
+      if (entry.getFile().equals(file)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Computes means of the valid values within the periods, each value is
+   * weighted by the time it covers. The value holds until the next
+   * sample, or the time between two valid values of the linearly
+   * interpolated signal is split between them in halves.
+   */
+  private static class Downsampler {
+
+    private final int signals;
+    private final boolean[] linear;
+    private final long period;
+    private final double[] sums;
+    private final double[] weights;
+    private final long[] time = new long[1];
+    private final float[] means;
+
+    /** The last sample, it covers the time up to the next one. */
+    private final float[] previous;
+    private long previousTime = Long.MIN_VALUE;
+
+    /** Beginning of the current period, MIN_VALUE if there is no sample. */
+    private long begin = Long.MIN_VALUE;
+
+    Downsampler(boolean[] linear, long period) {
+      this.signals = linear.length;
+      this.linear = linear;
+      this.period = period;
+      this.sums = new double[signals];
+      this.weights = new double[signals];
+      this.means = new float[signals];
+      this.previous = new float[signals];
+    }
+
+    void append(long[] times, float[] data, int length,
+        HistoryStore.Appender appender) throws IOException {
+      for (int i = 0; i < length; i++) {
+        if (previousTime != Long.MIN_VALUE) {
+          cover(times[i], data, i * signals, appender);
+        }
+        toPeriod(times[i], appender);
+        System.arraycopy(data, i * signals, previous, 0, signals);
+        previousTime = times[i];
+      }
+    }
+
+    /**
+     * The last sample holds for the given time.
+     */
+    void end(long time, HistoryStore.Appender appender) throws IOException {
+      if (previousTime != Long.MIN_VALUE) {
+        cover(previousTime + time, previous, 0, appender);
+        previousTime = Long.MIN_VALUE;
+      }
+    }
+
+    /**
+     * Adds the time from the previous sample up to the next one.
+     */
+    private void cover(long to, float[] next, int offset,
+        HistoryStore.Appender appender) throws IOException {
+      long from = previousTime;
+      long middle = from + (to - from) / 2;
+      long a = from;
+      while (a < to) {
+        toPeriod(a, appender);
+        long b = Math.min(to, begin + period);
+        for (int j = 0; j < signals; j++) {
+          float value = previous[j];
+          float following = next[offset + j];
+          if (Float.isNaN(value)) {
+            continue;
+          } else if (linear[j] && !Float.isNaN(following)) {
+            add(j, value, Math.min(b, middle) - a);
+            add(j, following, b - Math.max(a, middle));
+          } else {
+            add(j, value, b - a);
+          }
+        }
+        a = b;
+      }
+    }
+
+    private void add(int signal, float value, long time) {
+      if (time > 0) {
+        sums[signal] += (double)value * time;
+        weights[signal] += time;
+      }
+    }
+
+    private void toPeriod(long time, HistoryStore.Appender appender)
+        throws IOException {
+      long bucket = Math.floorDiv(time, period) * period;
+      if (bucket != begin) {
+        flush(appender);
+        begin = bucket;
+      }
+    }
+
+    void flush(HistoryStore.Appender appender) throws IOException {
+      if (begin == Long.MIN_VALUE) {
+        return;
+      }
+      for (int j = 0; j < signals; j++) {
+        means[j] = weights[j] == 0.0
+            ? Float.NaN : (float)(sums[j] / weights[j]);
+        sums[j] = 0.0;
+        weights[j] = 0.0;
+      }
+      time[0] = begin;
+      appender.append(time, means, 1);
+      begin = Long.MIN_VALUE;
+    }
+
+  }
+
+}
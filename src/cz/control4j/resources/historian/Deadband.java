@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.util.Arrays;
+
+/**
+ * Decides which of the samples must be recorded, so that each of the
+ * signals may be reconstructed from the recorded samples within the given
+ * tolerance. The samples are offered each scan, the samples that must be
+ * recorded are handed to the writer, the others are forgotten. Each of the
+ * signals may use:
+ *
+ * <ul>
+ *   <li>deadband, the sample is recorded if it differs from the last
+ *   recorded one by more than the absolute deadband or by more than the
+ *   percentage of the last recorded value; the signal is reconstructed by
+ *   holding the last recorded value,</li>
+ *   <li>swinging door compression, the last sample is recorded when the
+ *   line from the last recorded sample to the current one doesn't fit all
+ *   of the samples between them within the deviation; the signal is
+ *   reconstructed by the linear interpolation,</li>
+ *   <li>neither of them, each of the samples is recorded.</li>
+ * </ul>
+ *
+ * <p>The samples are recorded as whole rows with the timestamp, so the
+ * recorded file stays readable by all of the tools; just the rows are not
+ * equidistant. The file format must keep the timestamps, see
+ * {@link FileWriter#FORMAT}. Any row recorded for whatever signal is the
+ * new reference for all of the signals. The change of the validity of a
+ * signal is always recorded and a row is recorded at least each maximal
+ * interval, so the reader knows the recording is alive.
+ *
+ * <p>The object is not thread safe, it is expected to be called from the
+ * scan only. It doesn't allocate.
+ *
+ * @author jilm
+ */
+public class Deadband {
+
+  /** Receives the rows to record. */
+  public interface Recorder {
+
+    /**
+     * @param time
+     *            timestamp of the row [ms]
+     *
+     * @param values
+     *            the row, it must not be kept after the call
+     *
+     * @return false if the row was not accepted
+     */
+    boolean record(long time, float[] values);
+
+  }
+
+  private final Recorder recorder;
+
+  private final int signals;
+
+  /** Absolute deadband of the signals, negative means not used. */
+  private final double[] absolute;
+
+  /** Deadband in percent of the last recorded value, zero means not used. */
+  private final double[] percent;
+
+  /** Swinging door deviation, zero means not used. */
+  private final double[] deviation;
+
+  /** Last recorded row. */
+  private final float[] recorded;
+
+  private long recordedTime = Long.MIN_VALUE;
+
+  /** Last offered row, it is recorded when the door closes. */
+  private final float[] previous;
+
+  private long previousTime = Long.MIN_VALUE;
+
+  /** The upper and the lower slope of the door since the last record. */
+  private final double[] upper;
+
+  private final double[] lower;
+
+  private long maxInterval;
+
+  /**
+   * Creates the filter, initially each of the samples is recorded.
+   *
+   * @param signals
+   *            number of the signals
+   *
+   * @param recorder
+   *            the rows to record are handed over to this object
+   */
+  public Deadband(int signals, Recorder recorder) {
+    this.recorder = recorder;
+    this.signals = signals;
+    absolute = new double[signals];
+    Arrays.fill(absolute, -1.0);
+    percent = new double[signals];
+    deviation = new double[signals];
+    recorded = new float[signals];
+    previous = new float[signals];
+    upper = new double[signals];
+    lower = new double[signals];
+  }
+
+  /**
+   * Sets the deadband of the signal. The change which is greater than
+   * either of the limits is recorded. Zero limits record just the changes.
+   *
+   * @param signal
+   *            index of the signal
+   *
+   * @param absolute
+   *            absolute deadband
+   *
+   * @param percent
+   *            deadband in percent of the last recorded value
+   */
+  public void setDeadband(int signal, double absolute, double percent) {
+    this.absolute[signal] = Math.max(0.0, absolute);
+    this.percent[signal] = Math.max(0.0, percent);
+  }
+
+  /**
+   * Sets the swinging door compression of the signal.
+   *
+   * @param signal
+   *            index of the signal
+   *
+   * @param deviation
+   *            allowed deviation of the reconstructed signal, zero means
+   *            no compression
+   */
+  public void setCompression(int signal, double deviation) {
+    this.deviation[signal] = Math.max(0.0, deviation);
+  }
+
+  /**
+   * Returns true if the signal uses the swinging door compression, so it
+   * is reconstructed by the linear interpolation, see
+   * {@link HistoryStore#isLinear}.
+   *
+   * @param signal
+   *            index of the signal
+   */
+  public boolean isLinear(int signal) {
+    return deviation[signal] > 0.0;
+  }
+
+  /**
+   * @param maxInterval
+   *            a row is recorded at least so often [ms], zero means never
+   */
+  public void setMaxInterval(long maxInterval) {
+    this.maxInterval = maxInterval;
+  }
+
+  /**
+   * Offers the sample of the scan. Zero, one or two rows are recorded: the
+   * previous sample if some swinging door closed and this sample if needed.
+   *
+   * @param time
+   *            timestamp of the sample [ms], it must grow
+   *
+   * @param values
+   *            values of the signals, NaN for an invalid value
+   */
+  public void offer(long time, float[] values) {
+    if (recordedTime == Long.MIN_VALUE) {
+      record(time, values);
+    } else {
+      if (previousTime > recordedTime && doorClosed(time, values)) {
+        record(previousTime, previous);
+      }
+      boolean changed = maxInterval > 0 && time - recordedTime >= maxInterval;
+      for (int i = 0; i < signals && !changed; i++) {
+        changed = changed(i, values[i]);
+      }
+      if (changed) {
+        record(time, values);
+      } else {
+        openDoor(time, values);
+      }
+    }
+    System.arraycopy(values, 0, previous, 0, signals);
+    previousTime = time;
+  }
+
+  /** Returns true if the sample must be recorded because of the signal. */
+  private boolean changed(int signal, float value) {
+    float reference = recorded[signal];
+    if (Float.isNaN(value) || Float.isNaN(reference)) {
+      return Float.isNaN(value) != Float.isNaN(reference);
+    } else if (absolute[signal] < 0.0) {
+      // neither deadband nor compression, each sample is recorded
+      return deviation[signal] == 0.0;
+    }
+    double limit = Math.max(
+        absolute[signal], percent[signal] / 100.0 * Math.abs(reference));
+    return Math.abs(value - reference) > limit
+        || limit == 0.0 && value != reference;
+  }
+
+  /**
+   * Returns true if the sample doesn't fit some of the doors. The signal
+   * which becomes invalid closes the door too, so the last valid sample is
+   * recorded.
+   */
+  private boolean doorClosed(long time, float[] values) {
+    double dt = time - recordedTime;
+    for (int i = 0; i < signals; i++) {
+      if (deviation[i] == 0.0) {
+        continue;
+      } else if (Float.isNaN(values[i]) || Float.isNaN(recorded[i])) {
+        if (!Float.isNaN(recorded[i])) {
+          return true;
+        }
+      } else {
+        double up = Math.max(
+            upper[i], (values[i] - recorded[i] - deviation[i]) / dt);
+        double low = Math.min(
+            lower[i], (values[i] - recorded[i] + deviation[i]) / dt);
+        // the line to the sample itself must stay within the door, so that
+        // the sample, recorded with its real value, ends a valid segment
+        double slope = (values[i] - recorded[i]) / dt;
+        if (slope < up || slope > low) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** Narrows the doors by the sample which fits them. */
+  private void openDoor(long time, float[] values) {
+    double dt = time - recordedTime;
+    for (int i = 0; i < signals; i++) {
+      if (deviation[i] > 0.0
+          && !Float.isNaN(values[i]) && !Float.isNaN(recorded[i])) {
+        upper[i] = Math.max(
+            upper[i], (values[i] - recorded[i] - deviation[i]) / dt);
+        lower[i] = Math.min(
+            lower[i], (values[i] - recorded[i] + deviation[i]) / dt);
+      }
+    }
+  }
+
+  /**
+   * Records the row, it becomes the reference for all of the signals. If
+   * the recorder doesn't accept it, the reference stays as it was.
+   */
+  private void record(long time, float[] values) {
+    if (recorder.record(time, values)) {
+      System.arraycopy(values, 0, recorded, 0, signals);
+      recordedTime = time;
+      Arrays.fill(upper, Double.NEGATIVE_INFINITY);
+      Arrays.fill(lower, Double.POSITIVE_INFINITY);
+    }
+  }
+
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Destination of the exported history data, it formats the rows of the
+ * {@link Exporter}. The output is buffered, it is flushed by the
+ * {@link #end} method.
+ *
+ * @author jilm
+ */
+public abstract class ExportSink implements Closeable {
+
+  protected final TextOutput out;
+
+  protected ExportSink(OutputStream out) {
+    this.out = new TextOutput(out);
+  }
+
+  /**
+   * Returns the sink of the given format.
+   *
+   * @param format
+   *            one of csv, r, gnuplot, json
+   *
+   * @param out
+   *            where to write the data
+   *
+   * @return the sink
+   */
+  public static ExportSink create(String format, OutputStream out) {
+    switch (format) {
+      case "csv":
+        return new Csv(out);
+      case "r":
+        return new R(out);
+      case "gnuplot":
+        return new GnuPlot(out);
+      case "json":
+        return new JsonLines(out);
+      default:
+        throw new IllegalArgumentException("Unknown format: " + format);
+    }
+  }
+
+  /**
+   * Called once, before the first row.
+   *
+   * @param labels
+   *            labels of the exported signals
+   *
+   * @throws IOException
+   *            if the output failed
+   */
+  public abstract void begin(String[] labels) throws IOException;
+
+  /**
+   * Called for each sample.
+   *
+   * @param time
+   *            timestamp of the sample [ms]
+   *
+   * @param values
+   *            values of the exported signals, NaN if not valid
+   *
+   * @throws IOException
+   *            if the output failed
+   */
+  public abstract void row(long time, float[] values) throws IOException;
+
+  /**
+   * Called once, after the last row.
+   *
+   * @throws IOException
+   *            if the output failed
+   */
+  public void end() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+
+  /**
+   * Comma separated values with the header line, invalid values are
+   * empty.
+   */
+  static class Csv extends ExportSink {
+
+    Csv(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void begin(String[] labels) throws IOException {
+      out.append("timestamp");
+      for (String label : labels) {
+        out.append(',').append(label);
+      }
+      out.append('\n');
+    }
+
+    @Override
+    public void row(long time, float[] values) throws IOException {
+      out.append(time);
+      for (float value : values) {
+        out.append(',');
+        if (!Float.isNaN(value)) {
+          out.append(value);
+        }
+      }
+      out.append('\n');
+    }
+
+  }
+
+  /**
+   * Table for the read.table function of R, values separated by space,
+   * the header line, invalid values are NA.
+   */
+  static class R extends ExportSink {
+
+    R(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void begin(String[] labels) throws IOException {
+      out.append("timestamp");
+      for (String label : labels) {
+        out.append(' ').append(label);
+      }
+      out.append('\n');
+    }
+
+    @Override
+    public void row(long time, float[] values) throws IOException {
+      out.append(time);
+      for (float value : values) {
+        out.append(' ');
+        if (Float.isNaN(value)) {
+          out.append("NA");
+        } else {
+          out.append(value);
+        }
+      }
+      out.append('\n');
+    }
+
+  }
+
+  /**
+   * Gnuplot script, the data are written into the data block, so each
+   * row is written just once, the plot command follows.
+   */
+  static class GnuPlot extends ExportSink {
+
+    private String[] labels;
+
+    GnuPlot(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void begin(String[] labels) throws IOException {
+      this.labels = labels;
+      out.append("set grid\n");
+      out.append("$data << EOD\n");
+    }
+
+    @Override
+    public void row(long time, float[] values) throws IOException {
+      out.append(time);
+      for (float value : values) {
+        out.append(' ').append(value);
+      }
+      out.append('\n');
+    }
+
+    @Override
+    public void end() throws IOException {
+      out.append("EOD\n");
+      out.append("plot");
+      for (int i = 0; i < labels.length; i++) {
+        out.append(i == 0 ? " $data" : ", ''");
+        out.append(" using 1:").append(i + 2);
+        out.append(" with lines title '").append(labels[i]).append('\'');
+      }
+      out.append('\n');
+      super.end();
+    }
+
+  }
+
+  /**
+   * One JSON object per line, the timestamp is under the key t, invalid
+   * values are null.
+   */
+  static class JsonLines extends ExportSink {
+
+    private String[] keys;
+
+    JsonLines(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void begin(String[] labels) throws IOException {
+      keys = new String[labels.length];
+      for (int i = 0; i < labels.length; i++) {
+        keys[i] = ",\"" + labels[i].replace("\\", "\\\\")
+            .replace("\"", "\\\"") + "\":";
+      }
+    }
+
+    @Override
+    public void row(long time, float[] values) throws IOException {
+      out.append("{\"t\":").append(time);
+      for (int i = 0; i < values.length; i++) {
+        out.append(keys[i]);
+        if (Float.isNaN(values[i]) || Float.isInfinite(values[i])) {
+          out.append("null");
+        } else {
+          out.append(values[i]);
+        }
+      }
+      out.append("}\n");
+    }
+
+  }
+
+}
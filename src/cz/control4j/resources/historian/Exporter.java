@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Streams the history data into the {@link ExportSink}. The data are read
+ * block by block, column by column, so the memory does not depend on the
+ * size of the files and just the columns of the selected signals are read.
+ * The data may be restricted to a time range and to some of the signals.
+ *
+ * @author jilm
+ */
+public class Exporter {
+
+  /** Number of samples read at once. */
+  private static final int BLOCK = 4096;
+
+  private final List<File> files;
+
+  /** Selected signals, null means all of the signals of the first file. */
+  private String[] signals;
+
+  private long from = Long.MIN_VALUE;
+
+  private long to = Long.MAX_VALUE;
+
+  /**
+   * @param files
+   *            files to export, one after the other
+   */
+  public Exporter(List<File> files) {
+    this.files = new ArrayList<>(files);
+  }
+
+  public Exporter(File file) {
+    this(Collections.singletonList(file));
+  }
+
+  /**
+   * Returns the exporter of all of the files of the history directory
+   * which contain some of the signals within the time range.
+   *
+   * @param directory
+   *            the history directory
+   *
+   * @param from
+   *            beginning of the time range [ms]
+   *
+   * @param to
+   *            end of the time range [ms], exclusive
+   *
+   * @param signals
+   *            the signals, all of the files if empty
+   *
+   * @return the exporter
+   *
+   * @throws IOException
+   *            if the catalog couldn't be read
+   */
+  public static Exporter of(File directory, long from, long to,
+      String... signals) throws IOException {
+    List<File> files = new ArrayList<>();
+    for (Catalog.Entry entry : Catalog.open(directory).getEntries()) {
+      boolean contains = signals.length == 0;
+      for (String signal : signals) {
+        contains |= entry.indexOf(signal) >= 0;
+      }
+      if (contains && entry.overlaps(from, to)) {
+        files.add(entry.getFile());
+      }
+    }
+    Exporter exporter = new Exporter(files).range(from, to);
+    return signals.length == 0 ? exporter : exporter.select(signals);
+  }
+
+  /**
+   * Selects the signals to export. The signal which is missing in some
+   * file is exported as NaN.
+   *
+   * @param signals
+   *            labels of the signals
+   *
+   * @return this object
+   */
+  public Exporter select(String... signals) {
+    this.signals = signals.clone();
+    return this;
+  }
+
+  /**
+   * Restricts the export to the time range.
+   *
+   * @param from
+   *            beginning of the time range [ms]
+   *
+   * @param to
+   *            end of the time range [ms], exclusive
+   *
+   * @return this object
+   */
+  public Exporter range(long from, long to) {
+    this.from = from;
+    this.to = to;
+    return this;
+  }
+
+  /**
+   * Exports the data.
+   *
+   * @param sink
+   *            the destination
+   *
+   * @return number of exported samples
+   *
+   * @throws IOException
+   *            if some file couldn't be read or the output failed
+   */
+  public long export(ExportSink sink) throws IOException {
+    String[] labels = signals;
+    if (labels == null) {
+      if (files.isEmpty()) {
+        labels = new String[0];
+      } else {
+        try (HistoryStore store = HistoryStore.open(files.get(0))) {
+          labels = store.getLabels();
+        }
+      }
+    }
+    sink.begin(labels);
+    long[] times = new long[BLOCK];
+    float[][] columns = new float[labels.length][BLOCK];
+    float[] row = new float[labels.length];
+    long rows = 0;
+    for (File file : files) {
+      try (HistoryStore store = HistoryStore.open(file)) {
+        List<String> fileLabels = Arrays.asList(store.getLabels());
+        int[] indexes = new int[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+          indexes[i] = fileLabels.indexOf(labels[i]);
+          Arrays.fill(columns[i], Float.NaN);
+        }
+        long first = from == Long.MIN_VALUE ? 0 : store.getSampleIndex(from);
+        long last = to == Long.MAX_VALUE
+            ? store.getSampleCount() : store.getSampleIndex(to);
+        while (first < last) {
+          int length = store.readTimestamps(times, 0, first,
+              (int)Math.min(BLOCK, last - first));
+          if (length == 0) {
+            break;
+          }
+          for (int i = 0; i < labels.length; i++) {
+            if (indexes[i] >= 0) {
+              store.read(columns[i], 0, first, length, indexes[i]);
+            }
+          }
+          for (int j = 0; j < length; j++) {
+            for (int i = 0; i < labels.length; i++) {
+              row[i] = columns[i][j];
+            }
+            sink.row(times[j], row);
+          }
+          first += length;
+          rows += length;
+        }
+      }
+    }
+    sink.end();
+    return rows;
+  }
+
+  /**
+   * Returns a consumer which prints the samples of one signal, the
+   * timestamp and the value separated by space, one sample per line. It is
+   * used by the range modes of the command line tools.
+   *
+   * @param out
+   *            where to print
+   *
+   * @return the consumer, it throws the UncheckedIOException if the
+   *            output failed
+   */
+  static Catalog.SampleConsumer printer(TextOutput out) {
+    return (time, value) -> {
+      try {
+        out.append(time).append(' ').append(value).append('\n');
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    };
+  }
+
+  /**
+   * Command line front end of the exporters. Arguments: [-s signal,...]
+   * [-f from] [-t to] [file]. If the file is given, the file of the
+   * history directory is exported, otherwise all of the files which
+   * contain the signals within the time range are exported. The time is an
+   * ISO instant or ms. The data are written to the standard output.
+   *
+   * @param format
+   *            format of the output, see {@link ExportSink#create}
+   *
+   * @param args
+   *            command line arguments
+   */
+  public static void run(String format, String[] args) {
+    File directory = new File(FileWriter.STORE_PATH);
+    String[] signals = new String[0];
+    long from = Long.MIN_VALUE;
+    long to = Long.MAX_VALUE;
+    String file = null;
+    try {
+      for (int i = 0; i < args.length; i++) {
+        switch (args[i]) {
+          case "-s":
+            signals = args[++i].split(",");
+            break;
+          case "-f":
+            from = Catalog.parseTime(args[++i]);
+            break;
+          case "-t":
+            to = Catalog.parseTime(args[++i]);
+            break;
+          default:
+            file = args[i];
+        }
+      }
+      Exporter exporter;
+      if (file != null) {
+        exporter = new Exporter(new File(directory, file)).range(from, to);
+        if (signals.length > 0) {
+          exporter.select(signals);
+        }
+      } else {
+        exporter = of(directory, from, to, signals);
+      }
+      exporter.export(ExportSink.create(format, System.out));
+    } catch (IOException | RuntimeException e) {
+      System.err.println(e.getMessage());
+      System.err.println(
+          "Arguments: [-s signal,...] [-f from] [-t to] [file]");
+    }
+  }
+
+}
@@ -16,26 +16,38 @@
  */
 package cz.control4j.resources.historian;
 
-import java.io.DataInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.FloatBuffer;
 
 /**
+ * Reads the history file of either format. The file is accessed through
+ * the {@link HistoryStore}, so the samples are reached directly, without
+ * reading the preceding data. The reader keeps the position, which is
+ * advanced by each read operation.
  *
  * @author jilm
  */
-public class FileReader {
+public class FileReader implements Closeable {
 
-  DataInputStream dis;
+  /** Access to the data. */
+  private HistoryStore store;
 
   private File file;
 
+  /** Position of the next value to read, index of the float in the data. */
+  private long position;
+
   public void read(File file) throws IOException {
-    FileInputStream fis = new FileInputStream(file);
-    //GZIPInputStream gzis = new GZIPInputStream(fis);
-    dis = new DataInputStream(fis);
-    readHead(dis);
+    close();
+    store = HistoryStore.open(file);
+    signals = store.getLabels().length;
+    timestamp = store.getTimestamp();
+    samplePeriod = store.getSamplePeriod();
+    labels = store.getLabels();
+    position = 0;
     this.file = file;
   }
 
@@ -43,7 +55,6 @@ public class FileReader {
   private long timestamp;
   private long samplePeriod;
   private String[] labels;
-  private long length;
 
   public String[] getLabels() {
     return labels;
@@ -53,8 +64,13 @@ public class FileReader {
     return timestamp;
   }
 
+  /**
+   * Returns number of samples in the file.
+   *
+   * @return number of samples
+   */
   public long getLength() {
-    return length / Float.BYTES / signals;
+    return store.getSampleCount();
   }
 
   public long getSamplePeriod() {
@@ -65,10 +81,76 @@ public class FileReader {
     return file;
   }
 
+  /**
+   * Returns the timestamp of the sample with the given index.
+   *
+   * @param index
+   *            index of the sample
+   *
+   * @return timestamp in ms
+   *
+   * @throws IOException
+   *            if something went wrong
+   */
+  public long getSampleTimestamp(long index) throws IOException {
+    return store.getSampleTimestamp(index);
+  }
+
+  /**
+   * Returns the store which provides random access to the file.
+   *
+   * @return the store of the opened file
+   */
+  public HistoryStore getStore() {
+    return store;
+  }
+
+  /**
+   * Reads next values; values of each sample are stored one after the
+   * other.
+   *
+   * @param buffer
+   *            a buffer to store the values
+   *
+   * @param length
+   *            number of values to read
+   *
+   * @throws EOFException
+   *            if there is not enough data
+   *
+   * @throws IOException
+   *            if something went wrong
+   */
   public void read(float[] buffer, int length) throws IOException {
-    for (int i = 0; i < length; i++) {
-      buffer[i] = dis.readFloat();
+    if (signals == 0 && length > 0) {
+      throw new EOFException();
+    }
+    int i = 0;
+    // values up to the beginning of the next sample
+    while (i < length && position % signals != 0) {
+      readValue(buffer, i++);
+    }
+    // whole samples
+    int samples = (length - i) / signals;
+    int count = store.read(FloatBuffer.wrap(buffer, i, samples * signals),
+        position / signals, samples);
+    i += count * signals;
+    position += count * signals;
+    // the rest
+    while (i < length) {
+      readValue(buffer, i++);
+    }
+  }
+
+  /**
+   * Reads one value at the position into the buffer.
+   */
+  private void readValue(float[] buffer, int index) throws IOException {
+    if (store.read(buffer, index, position / signals, 1,
+        (int)(position % signals)) == 0) {
+      throw new EOFException();
     }
+    position++;
   }
 
   /**
@@ -95,70 +177,49 @@ public class FileReader {
    */
   public int read(float[] buffer, int offset, int length, int signalIndex)
       throws IOException {
-    for (int j = 0; j < offset * signals; j++) dis.readFloat();
-    for (int j = 0; j < signalIndex; j++) dis.readFloat();
-    for (int i = 0; i < length; i++) {
-      buffer[i] = dis.readFloat();
-      for (int j = 0; j < signals-1; j++) dis.readFloat();
-    }
-    return length; // TODO:
+    long from = position / signals + offset;
+    int count = store.read(buffer, 0, from, length, signalIndex);
+    position = (from + count) * signals;
+    return count;
   }
 
   public int read(float[] buffer, int offset, int length, int[] signalIndices) throws IOException {
-    dis.skip(offset * Float.BYTES * signals);
+    long from = position / signals + offset;
     float[] sample = new float[signals];
     int counter = 0;
-    for (int i = 0; i < length / signalIndices.length; i++) {
-      for (int j = 0; j < signals; j++) {
-        sample[j] = dis.readFloat();
+    int samples = length / signalIndices.length;
+    for (int i = 0; i < samples; i++) {
+      if (store.read(FloatBuffer.wrap(sample), from + i, 1) == 0) {
+        break;
       }
       for (int k = 0; k < signalIndices.length; k++) {
         buffer[counter++] = sample[signalIndices[k]];
       }
     }
+    position = (from + counter / signalIndices.length) * signals;
     return counter;
   }
 
   public void read(double[] buffer, int length) throws IOException {
+    float[] values = new float[length];
+    read(values, length);
     for (int i = 0; i < length; i++) {
-      buffer[i] = dis.readFloat();
+      buffer[i] = values[i];
     }
   }
 
-  protected void readHead(DataInputStream dis) throws IOException {
-    //long: identifier HISTOR01</li>
-    long identifier = dis.readLong();
-    if (identifier != FileWriter.IDENTIFIER) {
-      throw new IOException("Not supported file format");
-    }
-    // byte: number of signals, max 127 signals
-    signals = dis.readByte();
-    // long: timestamp of the first set of signals
-    timestamp = dis.readLong();
-    // long: sample period [ms]
-    samplePeriod = dis.readLong();
-    // double: number to add to obtain obtain original number, one value per signal
-    for (int i = 0; i < signals; i++) {
-      dis.readDouble();
-    }
-    // double: number to multiply to obtain original number, one value per signal
-    for (int i = 0; i < signals; i++) {
-      dis.readDouble();
-    }
-    // int: 0 - integer datatype, 1 - real datatype
-    for (int i = 0; i < signals; i++) {
-      dis.readInt();
-    }
-    // int: number of bytes of the datatype for each signal
-    for (int i = 0; i < signals; i++) {
-      dis.readInt();
-    }
-    // String: signal label for eacch of the signals
-    labels = new String[signals];
-    for (int i = 0; i < signals; i++) {
-      labels[i] = dis.readUTF();
+  /**
+   * Closes the file.
+   *
+   * @throws IOException
+   *            if something went wrong
+   */
+  @Override
+  public void close() throws IOException {
+    if (store != null) {
+      store.close();
+      store = null;
     }
-    this.length = dis.available();
   }
 
 }
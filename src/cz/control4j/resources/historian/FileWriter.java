@@ -19,13 +19,26 @@ package cz.control4j.resources.historian;
 
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Save input signals into the file. The structure of the file is as follows:
+ * Save input signals into the file. There are two file formats, the
+ * format is selected by the HISTORIAN_FORMAT system property. The default
+ * format is the column-chunked compressed HISTOR02, see
+ * {@link ColumnStore}. New file is started when the size or the time
+ * window of the current one is exceeded, see {@link #setRotation}; the
+ * directory is maintained by the {@link Compactor}. The file is forced to
+ * the disk once per sync period, see {@link #setSyncPeriod}, and the torn
+ * end of the files which were being written is cut when the writer starts
+ * after a crash.
+ *
+ * <p>The structure of the HISTOR01 file is as follows:
  * <ol>
  *   <li>Header
  *     <ol>
@@ -53,66 +66,237 @@ public class FileWriter {
 
   public final static String STORE_PATH;
 
-  private final static int BUFFER_SIZE = 1024;
+  /** Format of the new files, HISTOR01 or HISTOR02. */
+  public final static String FORMAT;
 
-  /** Circle buffer */
-  private final float[] buffer;
+  /** Default capacity of the buffer in samples. */
+  public final static int DEFAULT_CAPACITY = 4096;
 
-  /** Number of signals. */
-  private final int signals;
+  /** Max time between two writes into the file [ms]. */
+  private final static long MAX_DRAIN_PERIOD = 1000;
+
+  /** Default max size of one file [bytes]. */
+  public final static long DEFAULT_MAX_SIZE = 64L << 20;
+
+  /** Default time window of one file [ms], one day. */
+  public final static long DEFAULT_ROTATION_PERIOD = 24L * 3600 * 1000;
 
-  /** Index of the first valid element in the buffer. */
-  private int offset;
+  /** Default period of forcing the file to the disk [ms]. */
+  public final static long DEFAULT_SYNC_PERIOD = 5000;
+
+  /** Default period of the maintenance of the directory [ms]. */
+  public final static long DEFAULT_COMPACTION_PERIOD = 3600 * 1000;
+
+  /** New file is started if the file is greater [bytes]. */
+  private long maxSize = DEFAULT_MAX_SIZE;
+
+  /**
+   * New file is started at each multiple of this period [ms], zero means
+   * no time limit.
+   */
+  private long rotationPeriod = DEFAULT_ROTATION_PERIOD;
 
-  /** How many elements in the buffer contain valid data. */
-  private int length;
+  /** The file is forced to the disk so often [ms], zero means never. */
+  private long syncPeriod = DEFAULT_SYNC_PERIOD;
+
+  /** Retention, downsampling and merging of the files. */
+  private final Compactor compactor;
+
+  private long compactionPeriod = DEFAULT_COMPACTION_PERIOD;
+
+  /** Runs the compactor. */
+  private ScheduledExecutorService maintenance;
+
+  /** Periods of the rollup tiers [ms]. */
+  private long[] rollupPeriods = Rollups.DEFAULT_PERIODS;
+
+  /** Samples on the way to the file. */
+  private final SampleRing ring;
+
+  /** Number of signals. */
+  private final int signals;
 
   private final long samplePeriod;
 
-  /** Timestamp of the latest sample. */
+  /** Timestamp of the beginning of the recording. */
   private long timestamp;
 
+  /** Number of samples that were stored, used by the producer only. */
+  private long count;
+
   private final String[] labels;
 
-  private boolean stop;
+  /** Signals reconstructed by the linear interpolation. */
+  private final boolean[] linear;
 
-  private boolean running;
+  private volatile boolean stop;
 
-  private Thread writerThread;
+  private volatile boolean running;
+
+  private volatile Thread writerThread;
 
   static {
     STORE_PATH = System.getProperty("HISTORIAN_PATH", "C:\\Users\\jilm\\Documents\\hist");
+    FORMAT = System.getProperty("HISTORIAN_FORMAT", "HISTOR02");
   }
 
-  private String PATH;
-
   public FileWriter(String[] labels, long samplePeriod) {
+    this(labels, samplePeriod, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param labels
+   *            signal labels
+   *
+   * @param samplePeriod
+   *            sample period [ms]
+   *
+   * @param capacity
+   *            number of samples that may wait for the file, it is rounded
+   *            up to the power of two
+   */
+  public FileWriter(String[] labels, long samplePeriod, int capacity) {
     this.labels = labels;
     this.signals = labels.length;
-    this.buffer = new float[BUFFER_SIZE];
+    this.linear = new boolean[signals];
+    this.ring = new SampleRing(signals, capacity);
     //this.timestamp = timestamp;
     this.stop = false;
     this.running = false;
     this.samplePeriod = samplePeriod;
+    this.compactor = new Compactor(new File(STORE_PATH));
     System.out.println("Historian directory: " + STORE_PATH);
   }
 
+  /**
+   * Sets the limits of one file, the new file is started when either of
+   * them is reached. To be called before the start.
+   *
+   * @param maxSize
+   *            max size of the file [bytes]
+   *
+   * @param period
+   *            new file is started at each multiple of the period since
+   *            the epoch [ms], zero means no time limit
+   */
+  public void setRotation(long maxSize, long period) {
+    this.maxSize = maxSize;
+    this.rotationPeriod = period;
+  }
+
+  /**
+   * Sets how the signal is reconstructed between the recorded samples,
+   * see {@link HistoryStore#isLinear}; it is stored in the HISTOR02 file
+   * and it is used by the rollup tiers. To be called before the start.
+   *
+   * @param signal
+   *            index of the signal
+   *
+   * @param linear
+   *            true for the linear interpolation, false (default) if the
+   *            value holds until the next sample
+   */
+  public void setLinear(int signal, boolean linear) {
+    this.linear[signal] = linear;
+  }
+
+  /**
+   * Returns the object which maintains the history directory, it may be
+   * configured before the start.
+   *
+   * @return the compactor
+   */
+  public Compactor getCompactor() {
+    return compactor;
+  }
+
+  /**
+   * Sets the rollup tiers, see {@link Rollups}. To be called before the
+   * start.
+   *
+   * @param periods
+   *            periods of the tiers, whole seconds [ms]
+   */
+  public void setRollups(long... periods) {
+    for (long period : periods) {
+      if (period < 1000 || period % 1000 != 0) {
+        throw new IllegalArgumentException("rollup period: " + period);
+      }
+    }
+    this.rollupPeriods = periods.clone();
+  }
+
+  /**
+   * @param period
+   *            how often the history directory is maintained [ms], zero
+   *            means never
+   */
+  public void setCompactionPeriod(long period) {
+    this.compactionPeriod = period;
+  }
+
+  /**
+   * Sets how often the file is forced to the disk. Samples which are older
+   * than the period survive the crash of the application or of the whole
+   * system. The samples of the chunk which is not full are appended to the
+   * small journal next to the file, see {@link Journal}, so the sync
+   * period doesn't affect the size of the chunks nor the compression.
+   *
+   * @param period
+   *            the sync period [ms], zero means that the file is forced
+   *            only when it is closed
+   */
+  public void setSyncPeriod(long period) {
+    this.syncPeriod = period;
+  }
+
   public synchronized void start(long timestamp) {
     if (!running && !stop) {
       this.running = true;
       this.timestamp = timestamp;
       writerThread = new Thread(this::fetch);
       writerThread.start();
+      if (compactionPeriod > 0) {
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+          Thread thread = new Thread(r, "historian-compactor");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        });
+        maintenance.scheduleWithFixedDelay(this::compact,
+            compactionPeriod, compactionPeriod, TimeUnit.MILLISECONDS);
+      }
       Runtime.getRuntime().addShutdownHook(new Thread(this::close));
     }
   }
 
   /**
-   * Store next data sample.
+   * Store next data sample. The timestamp of the sample is derived from
+   * the timestamp of the beginning and the sample period.
+   *
+   * @param data
+   *
+   * @return false if the sample was dropped
+   */
+  public boolean write(float[] data) {
+    return write(timestamp + count * samplePeriod, data);
+  }
+
+  /**
+   * Store next data sample. It may be called from one thread only. It
+   * never blocks; if the buffer is full, because the file is not written
+   * fast enough, the sample is dropped and counted, see
+   * {@link #getDropped}.
+   *
+   * @param time
+   *            timestamp of the sample in ms
    *
    * @param data
+   *            values of the sample
+   *
+   * @return false if the sample was dropped
    */
-  public synchronized void write(float[] data) {
+  public boolean write(long time, float[] data) {
 
     // check the status of this object
     if (stop || !running) {
@@ -124,129 +308,305 @@ public class FileWriter {
       throw new NullPointerException();
     }
 
-    // copy data into the buffer
-    for (int i = 0; i < signals; i++) {
-      buffer[(offset + length + i) % BUFFER_SIZE] = data[i];
+    count++;
+    if (!ring.offer(time, data)) {
+      return false;
+    }
+    // wake up the writer if the buffer is getting full
+    if (ring.size() == ring.getCapacity() / 2) {
+      LockSupport.unpark(writerThread);
     }
-    length += signals;
+    return true;
+
+  }
 
+  /**
+   * Returns the number of samples that were dropped because the buffer
+   * was full.
+   *
+   * @return number of dropped samples
+   */
+  public long getDropped() {
+    return ring.getDropped();
   }
 
   /**
    * Close opened file.
    */
-  public synchronized void close() {
+  public void close() {
     System.out.println("Going to close historian file...");
-    stop = true;
-    notifyAll();
+    Thread thread;
+    synchronized(this) {
+      stop = true;
+      thread = writerThread;
+      if (maintenance != null) {
+        maintenance.shutdown();
+      }
+    }
+    if (thread == null || thread == Thread.currentThread()) {
+      return;
+    }
+    LockSupport.unpark(thread);
     try {
-      writerThread.join(1000);
+      thread.join(1000);
     } catch (InterruptedException ex) {
       Logger.getLogger(FileWriter.class.getName()).log(Level.SEVERE, null, ex);
     }
   }
 
   protected String getFilename() {
-    return Long.toHexString(System.currentTimeMillis()) + ".rec.gz";
+    return Long.toHexString(System.currentTimeMillis()) + ".rec";
   }
 
   protected File createFile(String filename) {
-    return new File(PATH, filename);
+    return new File(STORE_PATH, filename);
   }
 
-  protected synchronized void writeHead(DataOutputStream dos) throws IOException {
-    //long: identifier HISTOR01</li>
-    dos.writeLong(IDENTIFIER);
-    // byte: number of signals, max 127 signals
-    dos.writeByte(signals);
-    // long: timestamp of the first set of signals
-    dos.writeLong(timestamp);
-    // long: sample period [ms]
-    dos.writeLong(samplePeriod);
-    // double: number to add to obtain obtain original number, one value per signal
-    for (int i=0; i<signals; i++) {
-      dos.writeDouble(0.0d);
-    }
-    // double: number to multiply to obtain original number, one value per signal
-    for (int i=0; i<signals; i++) {
-      dos.writeDouble(1.0d);
-    }
-    // int: 0 - integer datatype, 1 - real datatype
-    for (int i=0; i<signals; i++) {
-      dos.writeInt(1);
-    }
-    // int: number of bytes of the datatype for each signal
-    for (int i=0; i<signals; i++) {
-      dos.writeInt(Float.BYTES);
+  /**
+   * Returns the file to create, the name is made unique.
+   */
+  private File newFile() {
+    String name = getFilename();
+    File file = createFile(name);
+    int dot = name.lastIndexOf('.');
+    for (int i = 1; file.exists(); i++) {
+      file = createFile(dot < 0 ? name + "-" + i
+          : name.substring(0, dot) + "-" + i + name.substring(dot));
     }
-    // String: signal label for eacch of the signals
-    for (int i=0; i<signals; i++) {
-      dos.writeUTF(labels[i]);
+    return file;
+  }
+
+  protected synchronized void writeHead(DataOutputStream dos) throws IOException {
+    dos.write(MappedStore.header(labels, timestamp, samplePeriod));
+  }
+
+  /**
+   * Creates the file of the configured format.
+   *
+   * @param file
+   *            the file to create
+   *
+   * @param begin
+   *            timestamp of the first sample of the file
+   */
+  protected HistoryStore.Appender createAppender(File file, long begin)
+      throws IOException {
+    if (FORMAT.equals("HISTOR01")) {
+      return MappedStore.create(file, labels, begin, samplePeriod);
+    } else {
+      return ColumnStore.create(file, labels, linear, begin, samplePeriod);
     }
   }
 
   /**
-   * Writes the data from the buffer into the file.
+   * Writes the data from the buffer into the file. The buffer is drained
+   * periodically, the period is one quarter of the time to fill the
+   * buffer, but not longer than a second. The file is created with the
+   * first sample, the new file is started if the size or the time window
+   * of the current one was exceeded.
    */
   public void fetch() {
 
     running = true;
-    File workingFile = createFile(getFilename());
-    FileOutputStream fos;
-    DataOutputStream os = null;
+    File workingFile = null;
+    HistoryStore.Appender appender = null;
+    // timestamp of the next rotation
+    long boundary = Long.MAX_VALUE;
+    int batch = ring.getCapacity();
+    float[] chunk = new float[batch * signals];
+    long[] chunkTimes = new long[batch];
+    long drainPeriod = TimeUnit.MILLISECONDS.toNanos(Math.max(1,
+        Math.min(MAX_DRAIN_PERIOD, batch / 4 * samplePeriod)));
+    long dropped = 0;
+    long syncNanos = TimeUnit.MILLISECONDS.toNanos(syncPeriod);
+    long lastSync = System.nanoTime();
+    recover(new File(STORE_PATH));
+    for (long period : rollupPeriods) {
+      recover(Rollups.getDirectory(new File(STORE_PATH), period));
+    }
+    RollupWriter[] rollups = new RollupWriter[rollupPeriods.length];
+    for (int i = 0; i < rollups.length; i++) {
+      rollups[i] = new RollupWriter(new File(STORE_PATH), labels, linear,
+          samplePeriod, rollupPeriods[i], rotationPeriod);
+    }
 
     try {
-        fos = new FileOutputStream(workingFile);
-        os = new DataOutputStream(fos);
-
-      writeHead(os);
-      System.out.println("File created: " + workingFile.getName());
-
-      while (!stop) {
-        // wait for some data in the buffer
-        synchronized(this) {
-          do {
-            try {
-              wait((buffer.length - length) / 2 / signals * samplePeriod);
-            } catch (InterruptedException ex) {
-              // just waiting
-            }
-          } while (length == 0 && !stop);
+      boolean last = false;
+      while (!last) {
+        // the buffer is drained once more after the stop
+        last = stop;
+        if (!last) {
+          LockSupport.parkNanos(this, drainPeriod);
         }
 
-        int archLength;
-        int archOffset;
-
-        // mark indices
-        synchronized(this) {
-          archOffset = offset;
-          archLength = length;
-          offset += length;
-          length = 0;
+        // write the content
+        int length;
+        while ((length = ring.drain(chunkTimes, chunk, batch)) > 0) {
+          int offset = 0;
+          while (offset < length) {
+            // start new file if necessary
+            if (appender == null || chunkTimes[offset] >= boundary
+                || appender.getLength() >= maxSize) {
+              if (appender != null) {
+                closeFile(appender, workingFile);
+                appender = null;
+              }
+              workingFile = newFile();
+              // active before it exists, so it is never recovered
+              Compactor.setActive(workingFile, true);
+              try {
+                appender = createAppender(workingFile, chunkTimes[offset]);
+              } catch (IOException e) {
+                Compactor.setActive(workingFile, false);
+                throw e;
+              }
+              System.out.println("File created: " + workingFile.getName());
+              updateCatalog(workingFile);
+              boundary = rotationPeriod > 0
+                  ? (Math.floorDiv(chunkTimes[offset], rotationPeriod) + 1)
+                      * rotationPeriod
+                  : Long.MAX_VALUE;
+            }
+            // samples up to the boundary
+            int end = offset + 1;
+            while (end < length && chunkTimes[end] < boundary) {
+              end++;
+            }
+            appender.append(chunkTimes, chunk, offset, end - offset);
+            for (RollupWriter rollup : rollups) {
+              rollup.append(chunkTimes, chunk, offset, end - offset);
+            }
+            offset = end;
+          }
         }
 
-        // write the content
-        for (int i = 0; i < archLength; i++) {
-          os.writeFloat(buffer[(archOffset + i) % BUFFER_SIZE]);
+        // group commit, one sync for all of the samples of the period
+        if (appender != null && syncNanos > 0
+            && System.nanoTime() - lastSync >= syncNanos) {
+          appender.force();
+          lastSync = System.nanoTime();
         }
-        os.flush();
-        System.out.println("Data written into the history file ...");
 
+        // report lost samples
+        if (ring.getDropped() != dropped) {
+          Logger.getLogger(FileWriter.class.getName()).log(Level.WARNING,
+              "{0} samples were dropped, the history file is not written"
+              + " fast enough",
+              ring.getDropped() - dropped);
+          dropped = ring.getDropped();
+        }
       }
 
-
     } catch (IOException ex) {
       Logger.getLogger(FileWriter.class.getName()).log(Level.SEVERE, null, ex);
     } finally {
       System.out.println("Going to close the history file...");
       running = false;
-      try {
-      //os.flush();
-      os.close();
-      } catch (Exception e) {}
+      if (appender != null) {
+        closeFile(appender, workingFile);
+      }
+      for (RollupWriter rollup : rollups) {
+        try {
+          rollup.close();
+        } catch (IOException ex) {
+          Logger.getLogger(FileWriter.class.getName())
+              .log(Level.SEVERE, null, ex);
+        }
+      }
+    }
 
+  }
+
+  /**
+   * Cuts the torn end of the files of the directory which may have been
+   * written when the application crashed. It is the newest file, and any
+   * file with the journal, see {@link Journal}. The files which are being
+   * written by the other writers of the same directory are skipped.
+   */
+  private void recover(File directory) {
+    File[] files = directory.listFiles(
+        (dir, name) -> name.endsWith(".rec"));
+    if (files == null) {
+      return;
+    }
+    File newest = null;
+    for (File file : files) {
+      if (!Compactor.isActive(file) && (newest == null
+          || file.lastModified() > newest.lastModified())) {
+        newest = file;
+      }
+    }
+    for (File file : files) {
+      if (file == newest || !Compactor.isActive(file)
+          && Journal.getFile(file).exists()) {
+        recoverFile(file);
+      }
+    }
+  }
+
+  private void recoverFile(File file) {
+    // the other writers and the compactors keep off meanwhile
+    if (!Compactor.setActive(file, true)) {
+      return;
+    }
+    try {
+      long removed = HistoryStore.recover(file);
+      if (removed > 0) {
+        Logger.getLogger(FileWriter.class.getName()).log(Level.WARNING,
+            "{0,number,#} bytes of the torn end of the history file {1}"
+            + " were removed",
+            new Object[] {removed, file.getName()});
+      }
+      updateCatalog(file);
+    } catch (IOException ex) {
+      Logger.getLogger(FileWriter.class.getName()).log(Level.WARNING,
+          "The history file " + file.getName() + " couldn't be recovered",
+          ex);
+    } finally {
+      Compactor.setActive(file, false);
+    }
+  }
+
+  /**
+   * Maintains the history directory and the directories of the rollup
+   * tiers; the tiers are not downsampled.
+   */
+  private void compact() {
+    compactor.run();
+    for (long period : rollupPeriods) {
+      Compactor tier = new Compactor(
+          Rollups.getDirectory(new File(STORE_PATH), period));
+      tier.setRetention(compactor.getRetention());
+      tier.setMergeSize(compactor.getMergeSize());
+      tier.run();
+    }
+  }
+
+  /**
+   * Closes the file and updates its catalog entry.
+   */
+  private void closeFile(HistoryStore.Appender appender, File file) {
+    try {
+      appender.close();
+    } catch (IOException ex) {
+      Logger.getLogger(FileWriter.class.getName()).log(Level.SEVERE, null, ex);
     }
+    Compactor.setActive(file, false);
+    updateCatalog(file);
+  }
 
+  /**
+   * Updates the entry of the file in the catalog of the directory.
+   */
+  private void updateCatalog(File file) {
+    try {
+      if (file.exists()) {
+        Catalog.update(file);
+      }
+    } catch (IOException ex) {
+      Logger.getLogger(FileWriter.class.getName()).log(
+          Level.WARNING, "The history catalog couldn't be updated", ex);
+    }
   }
 
   public static void main(String[] args) {
@@ -257,7 +617,7 @@ public class FileWriter {
       data[0] = (float)Math.random();
       data[1] = (float)Math.random();
       data[2] = (float)Math.random();
-      fw.write(data);
+      fw.write(System.currentTimeMillis(), data);
       try {
         Thread.sleep(1000);
       } catch (InterruptedException ex) {
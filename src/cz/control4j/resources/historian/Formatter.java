@@ -16,37 +16,24 @@
  */
 package cz.control4j.resources.historian;
 
-import java.io.File;
-import java.io.IOException;
 import java.util.Arrays;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
+ * Exports the history data, arguments: [-o format] [-s signal,...]
+ * [-f from] [-t to] [file]. The format is one of csv, r, gnuplot or json,
+ * the default is r. See {@link Exporter#run} for the other arguments.
  *
  * @author jilm
  */
 public class Formatter {
 
-    public static void main(String[] args) {
-
-    File dir = new File(FileWriter.STORE_PATH);
-    File file = new File(dir, args[0]);
-    FileReader reader = new FileReader();
-    try {
-      reader.read(file);
-      System.out.println(String.join(" ", reader.getLabels()));
-      double buffer[] = new double[reader.getLabels().length];
-      while (true) {
-        reader.read(buffer, buffer.length);
-        System.out.println(Arrays.stream(buffer).mapToObj(Double::toString).collect(Collectors.joining(" ")));
-      }
-    } catch (IOException ex) {
-      Logger.getLogger(CUT.class.getName()).log(Level.SEVERE, null, ex);
+  public static void main(String[] args) {
+    String format = "r";
+    if (args.length >= 2 && args[0].equals("-o")) {
+      format = args[1];
+      args = Arrays.copyOfRange(args, 2, args.length);
     }
-
+    Exporter.run(format, args);
   }
 
-
 }
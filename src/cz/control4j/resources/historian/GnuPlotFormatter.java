@@ -18,10 +18,16 @@ package cz.control4j.resources.historian;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Prints the history data as the gnuplot script, arguments: see
+ * {@link Exporter#run}, or -r signal from to [points] to plot the signal
+ * within the time range from all of the files. If the number of points is
+ * given, the coarsest rollup tier which gives at least that many points is
+ * used; its minimum, average and maximum are plotted.
  *
  * @author jilm
  */
@@ -30,33 +36,44 @@ public class GnuPlotFormatter {
   public static void main(String[] args) {
 
     File dir = new File(FileWriter.STORE_PATH);
-    File file = new File(dir, args[0]);
-    FileReader reader = new FileReader();
-
-    try {
-      reader.read(file);
-      int signals = reader.getLabels().length;
-      float buffer[] = new float[(int)reader.getLength()*signals];
-      System.out.println("set grid");
-      System.out.print(
-          String.format("plot '-' with lines title '%s'", reader.getLabels()[0]));
-      for (int i = 1; i < signals; i++) {
-        System.out.print(
-            String.format(", '-' with lines title '%s'", reader.getLabels()[i]));
-      }
-      System.out.println();
-      reader.read(buffer, buffer.length);
-      for (int i = 0; i < signals; i++) {
-        for (int j = 0; j < buffer.length / signals; j++) {
-          System.out.println(buffer[j * signals + i]);
+
+    if ((args.length == 4 || args.length == 5) && args[0].equals("-r")) {
+      // -r signal from to [points]: the files are found through the catalog
+      String signal = args[1];
+      long from = Catalog.parseTime(args[2]);
+      long to = Catalog.parseTime(args[3]);
+      int points = args.length == 5 ? Integer.parseInt(args[4]) : 0;
+      long period = Rollups.select(dir, from, to, points);
+      TextOutput out = new TextOutput(System.out);
+      Catalog.SampleConsumer printer = Exporter.printer(out);
+      try {
+        out.append("set grid\n");
+        if (period == 0) {
+          out.append(String.format(
+              "plot '-' using 1:2 with lines title '%s'\n", signal));
+          Catalog.open(dir).forEach(signal, from, to, printer);
+          out.append("e\n");
+        } else {
+          // the envelope and the average of the tier
+          out.append(String.format(
+              "plot '-' using 1:2 with lines title '%1$s min',"
+              + " '-' using 1:2 with lines title '%1$s avg',"
+              + " '-' using 1:2 with lines title '%1$s max'\n", signal));
+          Catalog catalog = Catalog.open(Rollups.getDirectory(dir, period));
+          for (String suffix
+              : new String[] {Rollups.MIN, Rollups.AVG, Rollups.MAX}) {
+            catalog.forEach(signal + suffix, from, to, printer);
+            out.append("e\n");
+          }
         }
-        System.out.println("e");
-        System.out.println();
+        out.flush();
+      } catch (IOException | UncheckedIOException ex) {
+        Logger.getLogger(CUT.class.getName()).log(Level.SEVERE, null, ex);
       }
-    } catch (IOException ex) {
-      Logger.getLogger(CUT.class.getName()).log(Level.SEVERE, null, ex);
+      return;
     }
-    System.out.println("e");
+
+    Exporter.run("gnuplot", args);
 
   }
 
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+/**
+ * Random access to the history file. There are two formats of the file:
+ * row-major HISTOR01, see {@link MappedStore}, and column-chunked
+ * compressed HISTOR02, see {@link ColumnStore}. Use the {@link #open}
+ * method to get the store of either format.
+ *
+ * @author jilm
+ */
+public interface HistoryStore extends Closeable {
+
+  /**
+   * Opens the history file for reading, the format is recognized by the
+   * identifier at the beginning of the file.
+   *
+   * @param file
+   *            the history file
+   *
+   * @return the store
+   *
+   * @throws IOException
+   *            if the file couldn't be read or if it is not of the
+   *            supported format
+   */
+  static HistoryStore open(File file) throws IOException {
+    long identifier;
+    try (DataInputStream dis =
+        new DataInputStream(new FileInputStream(file))) {
+      identifier = dis.readLong();
+    }
+    if (identifier == MappedStore.IDENTIFIER) {
+      return MappedStore.open(file);
+    } else if (identifier == ColumnStore.IDENTIFIER) {
+      return ColumnStore.open(file);
+    } else {
+      throw new IOException("Not supported file format");
+    }
+  }
+
+  /**
+   * Cuts the torn end of the history file which was being written when the
+   * application crashed, see {@link ColumnStore#recover} and
+   * {@link MappedStore#recover}.
+   *
+   * @param file
+   *            the history file, it must not be written
+   *
+   * @return number of bytes removed
+   *
+   * @throws IOException
+   *            if the file couldn't be read or written
+   */
+  static long recover(File file) throws IOException {
+    boolean columns;
+    try (HistoryStore store = open(file)) {
+      columns = store instanceof ColumnStore;
+    }
+    return columns ? ColumnStore.recover(file) : MappedStore.recover(file);
+  }
+
+  File getFile();
+
+  String[] getLabels();
+
+  /**
+   * Returns how the signal is reconstructed between the samples, which
+   * need not be equidistant, see {@link Deadband}. The signal either holds
+   * each value until the next sample, or it is interpolated linearly
+   * between the valid values.
+   *
+   * @param signal
+   *            index of the signal
+   *
+   * @return true for the linear interpolation
+   */
+  default boolean isLinear(int signal) {
+    return false;
+  }
+
+  /**
+   * Returns timestamp of the first sample.
+   *
+   * @return timestamp in ms
+   */
+  long getTimestamp();
+
+  /**
+   * Returns the sample period.
+   *
+   * @return period in ms
+   */
+  long getSamplePeriod();
+
+  /**
+   * Returns number of complete samples in the file.
+   *
+   * @return number of samples
+   */
+  long getSampleCount();
+
+  /**
+   * Returns the timestamp of the sample with given index.
+   *
+   * @param index
+   *            index of the sample
+   *
+   * @return timestamp in ms
+   *
+   * @throws IOException
+   *            if the file couldn't be read
+   */
+  long getSampleTimestamp(long index) throws IOException;
+
+  /**
+   * Returns the index of the first sample which is not older than the given
+   * timestamp. The result is between zero and the sample count.
+   *
+   * @param time
+   *            timestamp in ms
+   *
+   * @return index of the sample
+   *
+   * @throws IOException
+   *            if the file couldn't be read
+   */
+  long getSampleIndex(long time) throws IOException;
+
+  /**
+   * Reads the timestamps of the samples.
+   *
+   * @param buffer
+   *            destination array
+   *
+   * @param offset
+   *            index of the first element of the buffer to fill
+   *
+   * @param from
+   *            index of the first sample
+   *
+   * @param length
+   *            number of samples
+   *
+   * @return number of timestamps that were really read, it is less than
+   *            the length if the end of the file was reached
+   *
+   * @throws IOException
+   *            if the file couldn't be read
+   */
+  default int readTimestamps(long[] buffer, int offset, long from,
+      int length) throws IOException {
+    int count = (int)Math.max(0, Math.min(length, getSampleCount() - from));
+    for (int i = 0; i < count; i++) {
+      buffer[offset + i] = getSampleTimestamp(from + i);
+    }
+    return count;
+  }
+
+  /**
+   * Reads the values of one signal.
+   *
+   * @param buffer
+   *            destination array
+   *
+   * @param offset
+   *            index of the first element of the buffer to fill
+   *
+   * @param from
+   *            index of the first sample to read
+   *
+   * @param length
+   *            number of samples to read
+   *
+   * @param signalIndex
+   *            index of the signal
+   *
+   * @return number of samples that were really read, it is less than
+   *            the length if the end of the file was reached
+   *
+   * @throws IOException
+   *            if the file couldn't be read
+   */
+  int read(float[] buffer, int offset, long from, int length,
+      int signalIndex) throws IOException;
+
+  /**
+   * Reads whole samples into the given buffer; values of each sample are
+   * stored one after the other.
+   *
+   * @param buffer
+   *            destination buffer, the samples are put at its position
+   *
+   * @param from
+   *            index of the first sample to read
+   *
+   * @param length
+   *            max number of samples to read, it is limited by the remaining
+   *            space in the buffer as well
+   *
+   * @return number of samples that were really read
+   *
+   * @throws IOException
+   *            if the file couldn't be read
+   */
+  int read(FloatBuffer buffer, long from, int length) throws IOException;
+
+  /**
+   * Appends samples at the end of the new history file.
+   */
+  interface Appender extends Closeable {
+
+    /**
+     * Appends the given samples.
+     *
+     * @param times
+     *            timestamps of the samples in ms
+     *
+     * @param data
+     *            values to append, the values of each sample one after the
+     *            other
+     *
+     * @param offset
+     *            index of the first sample to append
+     *
+     * @param samples
+     *            number of samples to append
+     *
+     * @throws IOException
+     *            if the data couldn't be written
+     */
+    void append(long[] times, float[] data, int offset, int samples)
+        throws IOException;
+
+    /**
+     * Appends the given samples, starting with the first one.
+     *
+     * @param times
+     *            timestamps of the samples in ms
+     *
+     * @param data
+     *            values to append, the values of each sample one after the
+     *            other
+     *
+     * @param samples
+     *            number of samples to append
+     *
+     * @throws IOException
+     *            if the data couldn't be written
+     */
+    default void append(long[] times, float[] data, int samples)
+        throws IOException {
+      append(times, data, 0, samples);
+    }
+
+    /**
+     * Returns the length of the file which was written so far.
+     *
+     * @return length in bytes
+     */
+    long getLength();
+
+    /**
+     * Returns the number of complete samples that were appended.
+     *
+     * @return number of samples
+     */
+    long getSampleCount();
+
+    /**
+     * Writes the appended data to the disk.
+     *
+     * @throws IOException
+     *            if the data couldn't be written
+     */
+    void force() throws IOException;
+
+  }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Journal of the samples of the chunk which is not full yet. The chunks
+ * of the {@link ColumnStore} are compressed as a whole, so the samples
+ * which are forced to the disk before the chunk is full are appended to
+ * this small file next to the history file instead. The journal is
+ * emptied when the chunk was written and forced, and it is deleted when
+ * the history file is closed; the journal which exists while the file is
+ * not written was left by the crash and it is replayed by the recovery.
+ *
+ * <p>The journal is a sequence of records, each record is as follows:
+ * <ol>
+ *   <li>int: number of samples</li>
+ *   <li>long: index of the first sample within the history file</li>
+ *   <li>long and float for each signal: timestamp and values of each of
+ *       the samples</li>
+ *   <li>int: CRC32 of the record</li>
+ * </ol>
+ *
+ * @author jilm
+ */
+final class Journal implements Closeable {
+
+  private final File file;
+
+  private final FileChannel channel;
+
+  private final int signals;
+
+  /** Position of the next record. */
+  private long position;
+
+  private ByteBuffer record = ByteBuffer.allocate(0);
+
+  private final CRC32 crc = new CRC32();
+
+  /**
+   * Creates the empty journal of the given history file.
+   *
+   * @param store
+   *            the history file
+   *
+   * @param signals
+   *            number of signals of the history file
+   *
+   * @throws IOException
+   *            if the journal couldn't be created
+   */
+  Journal(File store, int signals) throws IOException {
+    this.file = getFile(store);
+    this.signals = signals;
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  /**
+   * Returns the journal of the given history file.
+   */
+  static File getFile(File store) {
+    return new File(store.getPath() + ".tail");
+  }
+
+  /**
+   * Appends the record and forces the journal to the disk.
+   *
+   * @param first
+   *            index of the first sample within the history file
+   *
+   * @param times
+   *            timestamps of the samples
+   *
+   * @param values
+   *            values of the samples, one sample after the other
+   *
+   * @param offset
+   *            index of the first sample to write within the arrays
+   *
+   * @param samples
+   *            number of samples to write
+   *
+   * @throws IOException
+   *            if the record couldn't be written
+   */
+  void write(long first, long[] times, float[] values, int offset,
+      int samples) throws IOException {
+    int size = 3 * Integer.BYTES + Long.BYTES
+        + samples * (Long.BYTES + signals * Float.BYTES);
+    if (record.capacity() < size) {
+      record = ByteBuffer.allocate(size);
+    }
+    record.clear();
+    record.putInt(samples);
+    record.putLong(first);
+    for (int i = offset; i < offset + samples; i++) {
+      record.putLong(times[i]);
+      for (int j = 0; j < signals; j++) {
+        record.putFloat(values[i * signals + j]);
+      }
+    }
+    crc.reset();
+    crc.update(record.array(), 0, record.position());
+    record.putInt((int)crc.getValue());
+    record.flip();
+    while (record.hasRemaining()) {
+      position += channel.write(record, position);
+    }
+    channel.force(false);
+  }
+
+  /**
+   * Removes all of the records, it is called once the samples were
+   * forced to the history file.
+   */
+  void reset() throws IOException {
+    channel.truncate(0);
+    position = 0;
+  }
+
+  /**
+   * Closes and deletes the journal, it is called once the history file
+   * was closed and forced to the disk.
+   */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+    Files.deleteIfExists(file.toPath());
+  }
+
+  /**
+   * Appends the journaled samples which are missing in the history file.
+   * The records are read up to the first damaged one; the samples which
+   * the history file already contains are skipped.
+   *
+   * @param journal
+   *            the journal file
+   *
+   * @param signals
+   *            number of signals of the history file
+   *
+   * @param count
+   *            number of samples of the history file
+   *
+   * @param appender
+   *            appender of the history file
+   *
+   * @return number of samples appended
+   *
+   * @throws IOException
+   *            if the journal couldn't be read or the history file
+   *            couldn't be written
+   */
+  static long replay(File journal, int signals, long count,
+      HistoryStore.Appender appender) throws IOException {
+    ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(journal.toPath()));
+    CRC32 crc = new CRC32();
+    long[] time = new long[1];
+    float[] values = new float[signals];
+    long next = count;
+    int sampleSize = Long.BYTES + signals * Float.BYTES;
+    while (bytes.remaining() >= Integer.BYTES + Long.BYTES) {
+      int start = bytes.position();
+      int samples = bytes.getInt();
+      long first = bytes.getLong();
+      if (samples <= 0 || first > next || samples
+          > (bytes.remaining() - Integer.BYTES) / sampleSize) {
+        break;
+      }
+      int end = bytes.position() + samples * sampleSize;
+      crc.reset();
+      crc.update(bytes.array(), start, end - start);
+      if ((int)crc.getValue() != bytes.getInt(end)) {
+        break;
+      }
+      for (long i = first; i < first + samples; i++) {
+        time[0] = bytes.getLong();
+        for (int j = 0; j < signals; j++) {
+          values[j] = bytes.getFloat();
+        }
+        if (i == next) {
+          appender.append(time, values, 1);
+          next++;
+        }
+      }
+      bytes.position(end + Integer.BYTES);
+    }
+    return next - count;
+  }
+
+}
@@ -23,8 +23,6 @@ import java.io.IOException;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -32,91 +30,62 @@ import java.util.logging.Logger;
 /**
  * List the archive informations.
  */
-public class LS implements Iterable<FileReader> {
+public class LS {
 
   /** Archive directory. */
   private final File archiveDir;
 
-  /** List of all of the files inside the archive directory. */
-  private final File[] fileList;
-
   /** Initialize internal variables. */
   public LS() {
-    String STORE_PATH = System.getProperty("HISTORIAN_PATH", "C:\\Users\\jilm\\Documents\\hist");
+    String STORE_PATH = System.getProperty(
+        "HISTORIAN_PATH", "C:\\Users\\jilm\\Documents\\hist");
     archiveDir = new File(STORE_PATH);
-    fileList = archiveDir.listFiles();
-  }
-
-  @Override
-  public Iterator<FileReader> iterator() {
-    return new Iterator<FileReader>() {
-
-      /**
-       * Index into the fileList array, it points to the file that has not
-       * been discovered yet.
-       */
-      private int index = 0;
-
-      /**
-       * An object that will be returned next time, the next method is called.
-       */
-      private FileReader nextReader;
-
-      @Override
-      public boolean hasNext() {
-        if (nextReader != null) {
-          // if there is a reader available
-          return true;
-        } else {
-          // else try to find one
-          while (index < fileList.length) {
-            try {
-              nextReader = new FileReader();
-              nextReader.read(fileList[index++]);
-              return true;
-            } catch (IOException ex) {
-              nextReader = null;
-            }
-          }
-        }
-        return false;
-      }
-
-      @Override
-      public FileReader next() {
-        if (hasNext()) {
-          FileReader reader = nextReader;
-          nextReader = null;
-          return reader;
-        } else {
-          throw new NoSuchElementException();
-        }
-      }
-    };
   }
 
+  /**
+   * Lists the history files or signals; the information is taken from the
+   * catalog, see {@link Catalog}.
+   * <ul>
+   *   <li>no argument: list of the files</li>
+   *   <li>-s: list of the signals</li>
+   *   <li>-r signal from to: files which contain the signal within the
+   *       given time range, the time is an ISO instant or ms</li>
+   *   <li>file: list of the signals of the file</li>
+   * </ul>
+   */
   public static void main(String[] args) {
 
     LS instance = new LS();
+    Catalog catalog;
+    try {
+      catalog = Catalog.open(instance.archiveDir);
+    } catch (IOException ex) {
+      Logger.getLogger(LS.class.getName()).log(Level.SEVERE, null, ex);
+      return;
+    }
 
     if (args.length == 0) {
       // list all of the files
       ArticleBuilder builder = new ArticleBuilder("List of historian files");
       TableBuilder table = builder.appendTable();
-      for (FileReader reader : instance) {
+      for (Catalog.Entry entry : catalog.getEntries()) {
         table.newRow();
-        table.appendValue("filename", reader.getFile().getName());
-        table.appendValue("begin", Instant.ofEpochMilli(reader.getTimestamp()).toString());
-        table.appendValue("length", Long.toString(reader.getLength()));
-        table.appendValue("sample per.", Long.toString(reader.getSamplePeriod() / 1000));
+        table.appendValue("filename", entry.getFile().getName());
+        table.appendValue("begin",
+            Instant.ofEpochMilli(entry.getBegin()).toString());
+        table.appendValue("end",
+            Instant.ofEpochMilli(entry.getEnd()).toString());
+        table.appendValue("length", Long.toString(entry.getSampleCount()));
+        table.appendValue("sample per.",
+            Long.toString(entry.getSamplePeriod() / 1000));
       }
       (new cz.lidinsky.tools.text.Formatter()).format(builder.serialize());
 
     } else if (args[0].equals("-s")) {
 
       Set<String> signals = new HashSet<>();
-      for (FileReader reader : instance) {
-        signals.addAll(Arrays.asList(reader.getLabels()));
+      for (Catalog.Entry entry : catalog.getEntries()) {
+        signals.addAll(Arrays.asList(entry.getLabels()));
       }
       ArticleBuilder builder = new ArticleBuilder("List of signals");
       TableBuilder table = builder.appendTable();
@@ -126,6 +95,26 @@ public class LS implements Iterable<FileReader> {
       });
       (new cz.lidinsky.tools.text.Formatter()).format(builder.serialize());
 
+    } else if (args[0].equals("-r") && args.length == 4) {
+
+      long from = Catalog.parseTime(args[2]);
+      long to = Catalog.parseTime(args[3]);
+      ArticleBuilder builder
+          = new ArticleBuilder("Files of the signal " + args[1]);
+      TableBuilder table = builder.appendTable();
+      for (Catalog.Entry entry : catalog.find(args[1], from, to)) {
+        table.newRow();
+        table.appendValue("filename", entry.getFile().getName());
+        table.appendValue("begin",
+            Instant.ofEpochMilli(entry.getBegin()).toString());
+        table.appendValue("end",
+            Instant.ofEpochMilli(entry.getEnd()).toString());
+        table.appendValue("first sample",
+            Long.toString(entry.getMarkSample(from)));
+        table.appendValue("offset", Long.toString(entry.getMarkOffset(from)));
+      }
+      (new cz.lidinsky.tools.text.Formatter()).format(builder.serialize());
+
     } else {
 
       File file = new File(instance.archiveDir, args[0]);
@@ -135,6 +124,7 @@ public class LS implements Iterable<FileReader> {
         for (String label : reader.getLabels()) {
           System.out.println(label);
         }
+        reader.close();
       } catch (IOException ex) {
         Logger.getLogger(LS.class.getName()).log(Level.SEVERE, null, ex);
       }
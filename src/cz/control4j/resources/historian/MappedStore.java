@@ -0,0 +1,560 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Random access to the history file of the HISTOR01 format, see
+ * {@link FileWriter}. The data part of the file is memory mapped, so any
+ * sample may be reached in constant time, either by its index or by its
+ * timestamp, and the samples may be read in bulk without any copying
+ * through streams.
+ *
+ * <p>Files greater than the mapping limit are mapped in segments, each
+ * segment contains whole samples.
+ *
+ * <p>New files are written by the {@link Appender}.
+ *
+ * @author jilm
+ */
+public class MappedStore implements HistoryStore {
+
+  /** HISTOR01 */
+  public static final long IDENTIFIER = FileWriter.IDENTIFIER;
+
+  /** Max size of one mapped segment in bytes. */
+  static final int SEGMENT_SIZE = 1 << 30;
+
+  private final File file;
+
+  private final FileChannel channel;
+
+  private final String[] labels;
+
+  private final long timestamp;
+
+  private final long samplePeriod;
+
+  /** Offset of the first sample in the file. */
+  private final long dataOffset;
+
+  /** Number of complete samples in the file. */
+  private final long samples;
+
+  /** Number of samples within one segment. */
+  private final int segmentSamples;
+
+  /** Mapped segments, they are mapped on the first access. */
+  private final FloatBuffer[] segments;
+
+  private MappedStore(File file, FileChannel channel, String[] labels,
+      long timestamp, long samplePeriod, long dataOffset) throws IOException {
+    this.file = file;
+    this.channel = channel;
+    this.labels = labels;
+    this.timestamp = timestamp;
+    this.samplePeriod = samplePeriod;
+    this.dataOffset = dataOffset;
+    int sampleSize = Math.max(1, labels.length) * Float.BYTES;
+    this.samples = labels.length == 0
+        ? 0 : (channel.size() - dataOffset) / sampleSize;
+    this.segmentSamples = Math.max(1, SEGMENT_SIZE / sampleSize);
+    this.segments = new FloatBuffer[
+        (int)((samples + segmentSamples - 1) / segmentSamples)];
+  }
+
+  /**
+   * Opens the history file for reading.
+   *
+   * @param file
+   *            the history file
+   *
+   * @return the store
+   *
+   * @throws IOException
+   *            if the file couldn't be read or if it is not of the HISTOR01
+   *            format
+   */
+  public static MappedStore open(File file) throws IOException {
+    FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ);
+    try {
+      DataInputStream dis = new DataInputStream(new BufferedInputStream(
+          Channels.newInputStream(channel.position(0))));
+      if (dis.readLong() != IDENTIFIER) {
+        throw new IOException("Not supported file format");
+      }
+      int signals = dis.readByte();
+      long timestamp = dis.readLong();
+      long samplePeriod = dis.readLong();
+      // offsets, multipliers, datatypes and sizes are not used
+      dis.skipBytes(signals * (Double.BYTES * 2 + Integer.BYTES * 2));
+      String[] labels = new String[signals];
+      for (int i = 0; i < signals; i++) {
+        labels[i] = dis.readUTF();
+      }
+      long dataOffset = header(labels, timestamp, samplePeriod).length;
+      return new MappedStore(
+          file, channel, labels, timestamp, samplePeriod, dataOffset);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the header of the HISTOR01 file.
+   *
+   * @param labels
+   *            signal labels, max 127 signals
+   *
+   * @param timestamp
+   *            timestamp of the first sample
+   *
+   * @param samplePeriod
+   *            sample period in ms
+   *
+   * @return the header
+   */
+  static byte[] header(String[] labels, long timestamp, long samplePeriod) {
+    try {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      DataOutputStream dos = new DataOutputStream(bos);
+      //long: identifier HISTOR01</li>
+      dos.writeLong(IDENTIFIER);
+      // byte: number of signals, max 127 signals
+      dos.writeByte(labels.length);
+      // long: timestamp of the first set of signals
+      dos.writeLong(timestamp);
+      // long: sample period [ms]
+      dos.writeLong(samplePeriod);
+      // double: number to add to obtain obtain original number
+      for (String label : labels) {
+        dos.writeDouble(0.0d);
+      }
+      // double: number to multiply to obtain original number
+      for (String label : labels) {
+        dos.writeDouble(1.0d);
+      }
+      // int: 0 - integer datatype, 1 - real datatype
+      for (String label : labels) {
+        dos.writeInt(1);
+      }
+      // int: number of bytes of the datatype for each signal
+      for (String label : labels) {
+        dos.writeInt(Float.BYTES);
+      }
+      // String: signal label for eacch of the signals
+      for (String label : labels) {
+        dos.writeUTF(label);
+      }
+      dos.flush();
+      return bos.toByteArray();
+    } catch (IOException e) {
+      // it may not happen with byte array stream
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public File getFile() {
+    return file;
+  }
+
+  @Override
+  public String[] getLabels() {
+    return labels.clone();
+  }
+
+  /**
+   * Returns timestamp of the first sample.
+   *
+   * @return timestamp in ms
+   */
+  @Override
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  @Override
+  public long getSamplePeriod() {
+    return samplePeriod;
+  }
+
+  /**
+   * Returns number of complete samples in the file.
+   *
+   * @return number of samples
+   */
+  @Override
+  public long getSampleCount() {
+    return samples;
+  }
+
+  /**
+   * Returns the timestamp of the sample with given index.
+   *
+   * @param index
+   *            index of the sample
+   *
+   * @return timestamp in ms
+   */
+  @Override
+  public long getSampleTimestamp(long index) {
+    return timestamp + index * samplePeriod;
+  }
+
+  /**
+   * Returns the index of the first sample which is not older than the given
+   * timestamp. The result is between zero and the sample count.
+   *
+   * @param time
+   *            timestamp in ms
+   *
+   * @return index of the sample
+   */
+  @Override
+  public long getSampleIndex(long time) {
+    if (time <= timestamp || samplePeriod <= 0) {
+      return 0;
+    }
+    long index = (time - timestamp + samplePeriod - 1) / samplePeriod;
+    return Math.min(index, samples);
+  }
+
+  /**
+   * Returns the position of the sample in the file.
+   *
+   * @param index
+   *            index of the sample
+   *
+   * @return byte offset of the sample
+   */
+  public long getPosition(long index) {
+    return dataOffset + index * labels.length * Float.BYTES;
+  }
+
+  /**
+   * Reads the values of one signal.
+   *
+   * @param buffer
+   *            destination array
+   *
+   * @param offset
+   *            index of the first element of the buffer to fill
+   *
+   * @param from
+   *            index of the first sample to read
+   *
+   * @param length
+   *            number of samples to read
+   *
+   * @param signalIndex
+   *            index of the signal
+   *
+   * @return number of samples that were really read, it is less than
+   *            the length if the end of the file was reached
+   *
+   * @throws IOException
+   *            if the file couldn't be mapped
+   */
+  @Override
+  public int read(float[] buffer, int offset, long from, int length,
+      int signalIndex) throws IOException {
+    if (signalIndex < 0 || signalIndex >= labels.length) {
+      throw new IndexOutOfBoundsException("signal index: " + signalIndex);
+    }
+    int count = (int)Math.max(0, Math.min(length, samples - from));
+    int signals = labels.length;
+    for (int i = 0; i < count; i++) {
+      long sample = from + i;
+      FloatBuffer segment = segment((int)(sample / segmentSamples));
+      buffer[offset + i] = segment.get(
+          (int)(sample % segmentSamples) * signals + signalIndex);
+    }
+    return count;
+  }
+
+  /**
+   * Reads whole samples into the given buffer; values of each sample are
+   * stored one after the other.
+   *
+   * @param buffer
+   *            destination buffer, the samples are put at its position
+   *
+   * @param from
+   *            index of the first sample to read
+   *
+   * @param length
+   *            max number of samples to read, it is limited by the remaining
+   *            space in the buffer as well
+   *
+   * @return number of samples that were really read
+   *
+   * @throws IOException
+   *            if the file couldn't be mapped
+   */
+  @Override
+  public int read(FloatBuffer buffer, long from, int length)
+      throws IOException {
+    int signals = labels.length;
+    if (signals == 0) {
+      return 0;
+    }
+    long count = Math.max(0, Math.min(
+        Math.min(length, buffer.remaining() / signals), samples - from));
+    long sample = from;
+    long end = from + count;
+    while (sample < end) {
+      int index = (int)(sample / segmentSamples);
+      int first = (int)(sample % segmentSamples);
+      int last = (int)Math.min(segmentSamples, first + end - sample);
+      FloatBuffer segment = segment(index).duplicate();
+      segment.limit(last * signals).position(first * signals);
+      buffer.put(segment);
+      sample += last - first;
+    }
+    return (int)count;
+  }
+
+  /**
+   * Returns the segment with the given index, it is mapped if necessary.
+   */
+  private FloatBuffer segment(int index) throws IOException {
+    FloatBuffer segment = segments[index];
+    if (segment == null) {
+      int sampleSize = labels.length * Float.BYTES;
+      long first = (long)index * segmentSamples;
+      long count = Math.min(segmentSamples, samples - first);
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+          dataOffset + first * sampleSize, count * sampleSize);
+      segment = mapped.asFloatBuffer();
+      segments[index] = segment;
+    }
+    return segment;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Creates new history file and returns the object to append data into
+   * it.
+   *
+   * @param file
+   *            the file to create
+   *
+   * @param labels
+   *            signal labels, max 127 signals
+   *
+   * @param timestamp
+   *            timestamp of the first sample
+   *
+   * @param samplePeriod
+   *            sample period in ms
+   *
+   * @return object to append data
+   *
+   * @throws IOException
+   *            if the file couldn't be created
+   */
+  public static Appender create(File file, String[] labels, long timestamp,
+      long samplePeriod) throws IOException {
+    return new Appender(file, labels, timestamp, samplePeriod);
+  }
+
+  /**
+   * Cuts the incomplete sample at the end of the HISTOR01 file which was
+   * being written when the application crashed.
+   *
+   * @param file
+   *            the history file, it must not be written
+   *
+   * @return number of bytes removed
+   *
+   * @throws IOException
+   *            if the file couldn't be read or written
+   */
+  static long recover(File file) throws IOException {
+    long dataOffset;
+    int sampleSize;
+    try (MappedStore store = open(file)) {
+      dataOffset = store.dataOffset;
+      sampleSize = store.labels.length * Float.BYTES;
+    }
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.WRITE)) {
+      long size = channel.size();
+      if (sampleSize == 0 || size <= dataOffset) {
+        return 0;
+      }
+      long data = size - dataOffset;
+      long length = data / sampleSize * sampleSize;
+      if (length < data) {
+        channel.truncate(dataOffset + length);
+      }
+      return data - length;
+    }
+  }
+
+  /**
+   * Appends data at the end of the history file. The values are collected
+   * in a buffer and they are written by the plain writes at the end of each
+   * append call, so the file grows only by the data which was really
+   * appended and the readers never see any padding. The data are in the
+   * page cache of the operating system after the append, the disk is
+   * written by the operating system, use {@link #force} to wait for it.
+   */
+  public static class Appender implements HistoryStore.Appender {
+
+    /** Size of the write buffer in bytes. */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer buffer
+        = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private final FloatBuffer floats = buffer.asFloatBuffer();
+
+    /** Number of floats that were written. */
+    private long written;
+
+    private final long dataOffset;
+
+    private final int signals;
+
+    Appender(File file, String[] labels, long timestamp, long samplePeriod)
+        throws IOException {
+      this.signals = labels.length;
+      byte[] header = header(labels, timestamp, samplePeriod);
+      this.dataOffset = header.length;
+      this.channel = FileChannel.open(file.toPath(),
+          StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+      try {
+        channel.write(ByteBuffer.wrap(header), 0);
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Appends the given values.
+     *
+     * @param data
+     *            values to append, the values of each sample one after the
+     *            other
+     *
+     * @param offset
+     *            index of the first value to append
+     *
+     * @param length
+     *            number of values to append
+     *
+     * @throws IOException
+     *            if the values couldn't be written
+     */
+    public void append(float[] data, int offset, int length)
+        throws IOException {
+      while (length > 0) {
+        int count = Math.min(length, floats.remaining());
+        floats.put(data, offset, count);
+        offset += count;
+        length -= count;
+        if (!floats.hasRemaining() || length == 0) {
+          flush();
+        }
+      }
+    }
+
+    /** Writes the buffered values at the end of the file. */
+    private void flush() throws IOException {
+      int count = floats.position();
+      buffer.limit(count * Float.BYTES).position(0);
+      long position = dataOffset + written * Float.BYTES;
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
+      buffer.clear();
+      floats.clear();
+      written += count;
+    }
+
+    /**
+     * Appends the given samples, the timestamps are not stored, the samples
+     * are expected to be equidistant.
+     */
+    @Override
+    public void append(long[] times, float[] data, int offset, int samples)
+        throws IOException {
+      append(data, offset * signals, samples * signals);
+    }
+
+    @Override
+    public long getLength() {
+      return dataOffset + written * Float.BYTES;
+    }
+
+    @Override
+    public long getSampleCount() {
+      return signals == 0 ? 0 : written / signals;
+    }
+
+    /**
+     * Writes the appended data to the disk.
+     *
+     * @throws IOException
+     *            if the data couldn't be written
+     */
+    @Override
+    public void force() throws IOException {
+      channel.force(false);
+    }
+
+    /**
+     * Forces the file to the disk and closes it.
+     *
+     * @throws IOException
+     *            if the file couldn't be written
+     */
+    @Override
+    public void close() throws IOException {
+      try {
+        channel.force(false);
+      } finally {
+        channel.close();
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,555 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes an aggregate of some signals within a time range over all of
+ * the files of the history directory. The files are found through the
+ * catalog, the work is split per file and, for large files, per range of
+ * chunks across the fork-join pool, and the partial results are merged.
+ *
+ * <p>The invalid samples (NaN) are not taken into account. The minimum,
+ * the maximum and the count are taken from the chunk headers of the
+ * column-chunked files wherever the whole chunk lies within the range, so
+ * the chunk need not be decoded at all.
+ *
+ * <p>The samples need not be equidistant, see {@link Deadband}, so the
+ * average and the percentile weight each value by the time it covers
+ * within the range. The value holds until the next sample, or the time
+ * between two valid values of the linearly interpolated signal is split
+ * between them in halves, see {@link HistoryStore#isLinear}; the last
+ * sample of the file holds for one sample period. The minimum, the
+ * maximum and the count are taken over the samples within the range.
+ *
+ * <p>The percentile is exact for the held values; the valid values of
+ * the range and their weights are kept in the memory, twelve bytes per
+ * sample.
+ *
+ * @author jilm
+ */
+public class Query {
+
+  /** Aggregate functions. */
+  public enum Function {
+    MIN, MAX, AVG, COUNT, PERCENTILE
+  }
+
+  /** Files with more samples are split into several tasks. */
+  static final long SPLIT_SAMPLES = 64 * ColumnStore.CHUNK_SAMPLES;
+
+  /** Number of samples read at once. */
+  private static final int BLOCK = 4096;
+
+  /** Weights the values by the time they cover. */
+  private boolean isWeighted() {
+    return function == Function.AVG || function == Function.PERCENTILE;
+  }
+
+  private final File directory;
+
+  private String[] signals = new String[0];
+
+  private long from = Long.MIN_VALUE;
+
+  private long to = Long.MAX_VALUE;
+
+  private Function function = Function.AVG;
+
+  private double percentile;
+
+  private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+  /**
+   * @param directory
+   *            the history directory
+   */
+  public Query(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * @param signals
+   *            labels of the signals
+   *
+   * @return this object
+   */
+  public Query select(String... signals) {
+    this.signals = signals.clone();
+    return this;
+  }
+
+  /**
+   * @param from
+   *            beginning of the time range [ms]
+   *
+   * @param to
+   *            end of the time range [ms], exclusive
+   *
+   * @return this object
+   */
+  public Query range(long from, long to) {
+    this.from = from;
+    this.to = to;
+    return this;
+  }
+
+  /**
+   * @param function
+   *            the aggregate function, not the percentile
+   *
+   * @return this object
+   */
+  public Query aggregate(Function function) {
+    if (function == Function.PERCENTILE) {
+      throw new IllegalArgumentException("Missing the percentile");
+    }
+    this.function = function;
+    return this;
+  }
+
+  /**
+   * @param percentile
+   *            the percentile to compute, 0 .. 100
+   *
+   * @return this object
+   */
+  public Query percentile(double percentile) {
+    if (!(percentile >= 0.0 && percentile <= 100.0)) {
+      throw new IllegalArgumentException(
+          "Percentile out of range: " + percentile);
+    }
+    this.function = Function.PERCENTILE;
+    this.percentile = percentile;
+    return this;
+  }
+
+  /**
+   * @param pool
+   *            the pool to run the query in, the common pool by default
+   *
+   * @return this object
+   */
+  public Query pool(ForkJoinPool pool) {
+    this.pool = pool;
+    return this;
+  }
+
+  /**
+   * Runs the query.
+   *
+   * @return the aggregate for each of the selected signals, in the order
+   *            of the selection; NaN if there is no valid sample of the
+   *            signal within the range, except the count which is zero
+   *
+   * @throws IOException
+   *            if the catalog or some of the files couldn't be read
+   */
+  public double[] run() throws IOException {
+    List<File> files = new ArrayList<>();
+    for (Catalog.Entry entry : Catalog.open(directory).getEntries()) {
+      boolean contains = false;
+      for (String signal : signals) {
+        contains |= entry.indexOf(signal) >= 0;
+      }
+      if (contains && entry.overlaps(from, to)) {
+        files.add(entry.getFile());
+      }
+    }
+    Partial[] result;
+    try {
+      result = pool.invoke(new FilesTask(files));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    double[] values = new double[signals.length];
+    for (int i = 0; i < signals.length; i++) {
+      values[i] = result[i].get(function, percentile);
+    }
+    return values;
+  }
+
+  private Partial[] newPartials() {
+    Partial[] partials = new Partial[signals.length];
+    for (int i = 0; i < partials.length; i++) {
+      partials[i] = new Partial(function == Function.PERCENTILE);
+    }
+    return partials;
+  }
+
+  private static Partial[] merge(Partial[] a, Partial[] b) {
+    for (int i = 0; i < a.length; i++) {
+      a[i].merge(b[i]);
+    }
+    return a;
+  }
+
+  /**
+   * Splits the list of the files into halves down to single files.
+   */
+  private class FilesTask extends RecursiveTask<Partial[]> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<File> files;
+
+    FilesTask(List<File> files) {
+      this.files = files;
+    }
+
+    @Override
+    protected Partial[] compute() {
+      if (files.isEmpty()) {
+        return newPartials();
+      } else if (files.size() == 1) {
+        return new FileTask(files.get(0), -1, -1).compute();
+      }
+      int half = files.size() / 2;
+      FilesTask right = new FilesTask(files.subList(half, files.size()));
+      right.fork();
+      Partial[] left = new FilesTask(files.subList(0, half)).compute();
+      return merge(left, right.join());
+    }
+
+  }
+
+  /**
+   * Aggregates the range of samples [first, last) of one file. The store
+   * is not thread safe, so each of the tasks opens its own one.
+   */
+  private class FileTask extends RecursiveTask<Partial[]> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final File file;
+
+    private long first;
+
+    private long last;
+
+    /**
+     * @param first
+     *            the first sample, or -1 to resolve the range from the
+     *            time range of the query
+     */
+    FileTask(File file, long first, long last) {
+      this.file = file;
+      this.first = first;
+      this.last = last;
+    }
+
+    @Override
+    protected Partial[] compute() {
+      try (HistoryStore store = HistoryStore.open(file)) {
+        if (first < 0) {
+          first = from == Long.MIN_VALUE ? 0 : store.getSampleIndex(from);
+          if (isWeighted()) {
+            // the previous sample covers the beginning of the range
+            first = Math.max(0, first - 1);
+          }
+          last = to == Long.MAX_VALUE
+              ? store.getSampleCount() : store.getSampleIndex(to);
+          if (last - first > SPLIT_SAMPLES) {
+            return split();
+          }
+        }
+        return scan(store);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private Partial[] split() {
+      List<FileTask> tasks = new ArrayList<>();
+      for (long i = first; i < last; i += SPLIT_SAMPLES) {
+        tasks.add(new FileTask(file, i, Math.min(last, i + SPLIT_SAMPLES)));
+      }
+      Partial[] result = newPartials();
+      for (FileTask task : invokeAll(tasks)) {
+        merge(result, task.join());
+      }
+      return result;
+    }
+
+    private Partial[] scan(HistoryStore store) throws IOException {
+      Partial[] partials = newPartials();
+      List<String> labels = Arrays.asList(store.getLabels());
+      boolean stats = store instanceof ColumnStore && !isWeighted();
+      float[] buffer = new float[BLOCK];
+      long[] times = isWeighted() ? new long[BLOCK] : null;
+      for (int i = 0; i < signals.length; i++) {
+        int signal = labels.indexOf(signals[i]);
+        if (signal < 0) {
+          continue;
+        }
+        if (isWeighted()) {
+          scan(store, signal, store.isLinear(signal), partials[i], buffer,
+              times);
+          continue;
+        }
+        long sample = first;
+        while (sample < last) {
+          if (stats) {
+            // whole chunks are taken from the chunk header
+            ColumnStore columns = (ColumnStore)store;
+            int chunk = chunkOf(columns, sample);
+            long chunkFirst = columns.getChunkFirstSample(chunk);
+            long chunkLast = chunk + 1 < columns.getChunkCount()
+                ? columns.getChunkFirstSample(chunk + 1)
+                : columns.getSampleCount();
+            if (sample == chunkFirst && chunkLast <= last) {
+              partials[i].add(columns.getMinimum(chunk, signal),
+                  columns.getMaximum(chunk, signal),
+                  columns.getValidCount(chunk, signal));
+              sample = chunkLast;
+              continue;
+            }
+          }
+          int length = store.read(buffer, 0, sample,
+              (int)Math.min(BLOCK, last - sample), signal);
+          if (length == 0) {
+            break;
+          }
+          partials[i].add(buffer, length);
+          sample += length;
+        }
+      }
+      return partials;
+    }
+
+    /**
+     * Adds the values of the signal weighted by the time they cover; the
+     * sample which follows the range ends the time of the last one.
+     */
+    private void scan(HistoryStore store, int signal, boolean linear,
+        Partial partial, float[] buffer, long[] times) throws IOException {
+      long samples = store.getSampleCount();
+      long sample = first;
+      while (sample < last) {
+        int segments = (int)Math.min(BLOCK - 1, last - sample);
+        int length = store.read(buffer, 0, sample,
+            (int)Math.min(segments + 1, samples - sample), signal);
+        if (length == 0) {
+          break;
+        }
+        store.readTimestamps(times, 0, sample, length);
+        segments = Math.min(segments, length);
+        for (int j = 0; j < segments; j++) {
+          float value = buffer[j];
+          if (Float.isNaN(value)) {
+            continue;
+          }
+          long start = times[j];
+          long end = j + 1 < length
+              ? times[j + 1] : start + store.getSamplePeriod();
+          float following = j + 1 < length ? buffer[j + 1] : Float.NaN;
+          if (linear && !Float.isNaN(following)) {
+            long middle = start + (end - start) / 2;
+            partial.add(value, overlap(start, middle));
+            partial.add(following, overlap(middle, end));
+          } else {
+            partial.add(value, overlap(start, end));
+          }
+        }
+        sample += segments;
+      }
+    }
+
+  }
+
+  /**
+   * Returns the part of the time interval [a, b) within the range [ms].
+   */
+  private long overlap(long a, long b) {
+    return Math.max(0, Math.min(b, to) - Math.max(a, from));
+  }
+
+  private static int chunkOf(ColumnStore store, long sample) {
+    int low = 0;
+    int high = store.getChunkCount() - 1;
+    while (low < high) {
+      int middle = (low + high + 1) >>> 1;
+      if (store.getChunkFirstSample(middle) <= sample) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Partial aggregate of one signal.
+   */
+  static class Partial {
+
+    long count;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+
+    /** Sum of the values multiplied by the time they cover. */
+    double sum;
+
+    /** The time covered by the valid values [ms]. */
+    double weight;
+
+    /** Valid values and the time they cover, just for the percentile. */
+    float[] values;
+    long[] weights;
+    int size;
+
+    Partial(boolean keepValues) {
+      values = keepValues ? new float[16] : null;
+      weights = keepValues ? new long[16] : null;
+    }
+
+    /** Adds the samples to the minimum, the maximum and the count. */
+    void add(float[] buffer, int length) {
+      for (int i = 0; i < length; i++) {
+        float value = buffer[i];
+        if (Float.isNaN(value)) {
+          continue;
+        }
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+      }
+    }
+
+    /** Adds the statistics of a chunk. */
+    void add(float min, float max, int count) {
+      if (count > 0) {
+        this.count += count;
+        this.min = Math.min(this.min, min);
+        this.max = Math.max(this.max, max);
+      }
+    }
+
+    /** Adds the valid value which covers the given time [ms]. */
+    void add(float value, long time) {
+      if (time <= 0) {
+        return;
+      }
+      sum += (double)value * time;
+      weight += time;
+      if (values != null) {
+        if (size == values.length) {
+          values = Arrays.copyOf(values, size * 2);
+          weights = Arrays.copyOf(weights, size * 2);
+        }
+        values[size] = value;
+        weights[size++] = time;
+      }
+    }
+
+    void merge(Partial other) {
+      count += other.count;
+      sum += other.sum;
+      weight += other.weight;
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+      if (values != null && other.size > 0) {
+        if (size + other.size > values.length) {
+          values = Arrays.copyOf(values, size + other.size);
+          weights = Arrays.copyOf(weights, size + other.size);
+        }
+        System.arraycopy(other.values, 0, values, size, other.size);
+        System.arraycopy(other.weights, 0, weights, size, other.size);
+        size += other.size;
+      }
+    }
+
+    double get(Function function, double percentile) {
+      switch (function) {
+        case COUNT:
+          return count;
+        case MIN:
+          return count == 0 ? Double.NaN : min;
+        case MAX:
+          return count == 0 ? Double.NaN : max;
+        case AVG:
+          return weight == 0.0 ? Double.NaN : sum / weight;
+        default:
+          return weight == 0.0 ? Double.NaN : percentile(percentile);
+      }
+    }
+
+    /**
+     * Returns the least value which, together with the smaller ones,
+     * covers at least the given percentage of the time.
+     */
+    private double percentile(double percentile) {
+      // sorted by the value, the low bits keep the index
+      long[] keys = new long[size];
+      for (int i = 0; i < size; i++) {
+        int bits = Float.floatToIntBits(values[i]);
+        bits ^= (bits >> 31) & 0x7fffffff;
+        keys[i] = (long)bits << 32 | i;
+      }
+      Arrays.sort(keys);
+      double covered = 0.0;
+      for (long key : keys) {
+        int i = (int)key;
+        covered += weights[i];
+        if (covered * 100.0 >= percentile * weight) {
+          return values[i];
+        }
+      }
+      return values[(int)keys[size - 1]];
+    }
+
+  }
+
+  /**
+   * Command line front end, arguments: function from to signal...; the
+   * function is one of min, max, avg, count or pNN for the NN-th
+   * percentile, the time is an ISO instant or ms. Prints the label and the
+   * aggregate for each of the signals.
+   */
+  public static void main(String[] args) {
+    if (args.length < 4) {
+      System.err.println("Arguments: min|max|avg|count|pNN from to signal...");
+      return;
+    }
+    Query query = new Query(new File(FileWriter.STORE_PATH))
+        .range(Catalog.parseTime(args[1]), Catalog.parseTime(args[2]))
+        .select(Arrays.copyOfRange(args, 3, args.length));
+    String function = args[0].toLowerCase();
+    if (function.startsWith("p")) {
+      query.percentile(Double.parseDouble(function.substring(1)));
+    } else {
+      query.aggregate(Function.valueOf(function.toUpperCase()));
+    }
+    try {
+      double[] result = query.run();
+      for (int i = 3; i < args.length; i++) {
+        System.out.println(args[i] + " " + result[i - 3]);
+      }
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+    }
+  }
+
+}
@@ -16,16 +16,18 @@
  */
 package cz.control4j.resources.historian;
 
-import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.time.format.DateTimeFormatter;
-import java.util.Arrays;
+import java.io.UncheckedIOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
+ * Exports the history data as the R table, arguments: see
+ * {@link Exporter#run}, or -r signal from to [points] to export the signal
+ * within the time range from all of the files. If the number of points is
+ * given, the coarsest rollup tier which gives at least that many points is
+ * used.
  *
  * @author jilm
  */
@@ -34,35 +36,23 @@ public class RExporter {
   public static void main(String[] args) {
 
     File dir = new File(FileWriter.STORE_PATH);
-    File file = new File(dir, args[0]);
-    FileReader reader = new FileReader();
 
-    try {
-      reader.read(file);
-      long timestamp = reader.getTimestamp();
-      DateTimeFormatter dateFormatter = DateTimeFormatter.ISO_DATE;
-      int signals = reader.getLabels().length;
-      double buffer[] = new double[signals];
-      System.out.printf("timestamp ");
-      System.out.println(
-          String.join(" ", reader.getLabels()));
-      while (true) {
-        reader.read(buffer, buffer.length);
-        System.out.print(timestamp);
-        System.out.print(" ");
-//        System.out.print(DateTimeFrmatter.ISO_TIME.format(LocalDateTime.ofEpochSecond(timestamp/1000, 0, ZoneOffset.UTC)));
-//        System.out.print(" ");
-        System.out.println(
-            Arrays.stream(buffer)
-                .mapToObj(Double::toString)
-                .collect(Collectors.joining(" ")));
-        timestamp += reader.getSamplePeriod();
+    if ((args.length == 4 || args.length == 5) && args[0].equals("-r")) {
+      // -r signal from to [points]: the files are found through the catalog
+      TextOutput out = new TextOutput(System.out);
+      try {
+        out.append("timestamp ").append(args[1]).append('\n');
+        int points = args.length == 5 ? Integer.parseInt(args[4]) : 0;
+        Rollups.forEach(dir, args[1], Catalog.parseTime(args[2]),
+            Catalog.parseTime(args[3]), points, Exporter.printer(out));
+        out.flush();
+      } catch (IOException | UncheckedIOException ex) {
+        Logger.getLogger(CUT.class.getName()).log(Level.SEVERE, null, ex);
       }
-    } catch (EOFException ex) {
-      // just end of file
-    } catch (IOException ex) {
-      Logger.getLogger(CUT.class.getName()).log(Level.SEVERE, null, ex);
+      return;
     }
+
+    Exporter.run("r", args);
   }
 
 }
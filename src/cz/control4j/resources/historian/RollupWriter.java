@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Aggregates the samples into one rollup tier and writes it, see
+ * {@link Rollups}. It is used by the writer thread of the
+ * {@link FileWriter}. New tier file is started at each multiple of the
+ * rotation period.
+ *
+ * <p>The samples need not be equidistant, see {@link Deadband}, so each
+ * value is weighted by the time it covers: it holds until the next
+ * sample, or the time between two valid values of the linearly
+ * interpolated signal is split between them in halves. The last sample
+ * holds for one sample period.
+ *
+ * @author jilm
+ */
+class RollupWriter implements Closeable {
+
+  private final File directory;
+
+  private final String[] labels;
+
+  private final int signals;
+
+  /** Signals reconstructed by the linear interpolation. */
+  private final boolean[] linear;
+
+  /** Sample period of the written samples [ms]. */
+  private final long samplePeriod;
+
+  /** Period of the tier [ms]. */
+  private final long period;
+
+  private final long rotationPeriod;
+
+  private final float[] min;
+  private final float[] max;
+  /** Sum of the values multiplied by the time they cover. */
+  private final double[] sum;
+  /** The time covered by the valid values [ms]. */
+  private final double[] weight;
+  /** Number of the valid samples. */
+  private final int[] count;
+
+  /** The last sample, it covers the time up to the next one. */
+  private final float[] previous;
+  private long previousTime = Long.MIN_VALUE;
+
+  /** Aggregated sample. */
+  private final float[] sample;
+  private final long[] time = new long[1];
+
+  /** Beginning of the current period, MIN_VALUE if there is no sample. */
+  private long begin = Long.MIN_VALUE;
+
+  private File file;
+
+  private HistoryStore.Appender appender;
+
+  /** Timestamp of the next rotation. */
+  private long boundary;
+
+  /**
+   * @param directory
+   *            the history directory
+   *
+   * @param labels
+   *            signal labels
+   *
+   * @param linear
+   *            signals reconstructed by the linear interpolation
+   *
+   * @param samplePeriod
+   *            sample period of the written samples [ms]
+   *
+   * @param period
+   *            period of the tier [ms]
+   *
+   * @param rotationPeriod
+   *            new file is started at each multiple of the period, zero
+   *            means never
+   */
+  RollupWriter(File directory, String[] labels, boolean[] linear,
+      long samplePeriod, long period, long rotationPeriod) {
+    this.directory = Rollups.getDirectory(directory, period);
+    this.signals = labels.length;
+    this.linear = linear.clone();
+    this.samplePeriod = samplePeriod;
+    this.labels = new String[4 * signals];
+    for (int i = 0; i < signals; i++) {
+      this.labels[4 * i] = labels[i] + Rollups.MIN;
+      this.labels[4 * i + 1] = labels[i] + Rollups.MAX;
+      this.labels[4 * i + 2] = labels[i] + Rollups.AVG;
+      this.labels[4 * i + 3] = labels[i] + Rollups.COUNT;
+    }
+    this.period = period;
+    this.rotationPeriod
+        = rotationPeriod == 0 ? 0 : Math.max(rotationPeriod, period);
+    this.min = new float[signals];
+    this.max = new float[signals];
+    this.sum = new double[signals];
+    this.weight = new double[signals];
+    this.count = new int[signals];
+    this.previous = new float[signals];
+    this.sample = new float[4 * signals];
+  }
+
+  File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Adds the samples to the aggregates; when the period is over, the
+   * aggregated sample is written. The period which is covered by the
+   * value of the previous sample only is written as well.
+   *
+   * @param times
+   *            timestamps of the samples in ms
+   *
+   * @param data
+   *            values, one sample after the other
+   *
+   * @param offset
+   *            index of the first sample
+   *
+   * @param samples
+   *            number of samples
+   *
+   * @throws IOException
+   *            if the tier couldn't be written
+   */
+  void append(long[] times, float[] data, int offset, int samples)
+      throws IOException {
+    for (int i = offset; i < offset + samples; i++) {
+      if (previousTime != Long.MIN_VALUE) {
+        cover(times[i], data, i * signals);
+      }
+      toPeriod(times[i]);
+      for (int j = 0; j < signals; j++) {
+        if (!Float.isNaN(data[i * signals + j])) {
+          count[j]++;
+        }
+      }
+      System.arraycopy(data, i * signals, previous, 0, signals);
+      previousTime = times[i];
+    }
+  }
+
+  /**
+   * Adds the time from the previous sample up to the given one.
+   *
+   * @param to
+   *            timestamp of the next sample
+   *
+   * @param next
+   *            the next sample, it takes the second half of the time for
+   *            the linearly interpolated signals
+   */
+  private void cover(long to, float[] next, int offset) throws IOException {
+    long from = previousTime;
+    long middle = from + (to - from) / 2;
+    long a = from;
+    while (a < to) {
+      toPeriod(a);
+      long b = Math.min(to, begin + period);
+      for (int j = 0; j < signals; j++) {
+        float value = previous[j];
+        float following = next[offset + j];
+        if (Float.isNaN(value)) {
+          continue;
+        } else if (linear[j] && !Float.isNaN(following)) {
+          add(j, value, Math.min(b, middle) - a);
+          add(j, following, b - Math.max(a, middle));
+        } else {
+          add(j, value, b - a);
+        }
+      }
+      a = b;
+    }
+  }
+
+  private void add(int signal, float value, long time) {
+    if (time > 0) {
+      boolean first = weight[signal] == 0.0;
+      min[signal] = first ? value : Math.min(min[signal], value);
+      max[signal] = first ? value : Math.max(max[signal], value);
+      sum[signal] += (double)value * time;
+      weight[signal] += time;
+    }
+  }
+
+  /**
+   * Writes the aggregated sample if the time belongs to the next period.
+   */
+  private void toPeriod(long time) throws IOException {
+    long bucket = Math.floorDiv(time, period) * period;
+    if (bucket != begin) {
+      flush();
+      begin = bucket;
+    }
+  }
+
+  /**
+   * Writes the aggregated sample of the current period.
+   */
+  private void flush() throws IOException {
+    if (begin == Long.MIN_VALUE) {
+      return;
+    }
+    if (appender == null || begin >= boundary) {
+      closeFile();
+      directory.mkdirs();
+      file = new File(directory, Long.toHexString(begin) + ".rec");
+      for (int i = 1; file.exists(); i++) {
+        file = new File(directory, Long.toHexString(begin) + "-" + i + ".rec");
+      }
+      Compactor.setActive(file, true);
+      try {
+        appender = ColumnStore.create(file, labels, begin, period);
+      } catch (IOException e) {
+        Compactor.setActive(file, false);
+        throw e;
+      }
+      boundary = rotationPeriod > 0
+          ? (Math.floorDiv(begin, rotationPeriod) + 1) * rotationPeriod
+          : Long.MAX_VALUE;
+    }
+    for (int j = 0; j < signals; j++) {
+      boolean valid = weight[j] > 0.0;
+      sample[4 * j] = valid ? min[j] : Float.NaN;
+      sample[4 * j + 1] = valid ? max[j] : Float.NaN;
+      sample[4 * j + 2] = valid ? (float)(sum[j] / weight[j]) : Float.NaN;
+      sample[4 * j + 3] = count[j];
+      sum[j] = 0.0;
+      weight[j] = 0.0;
+      count[j] = 0;
+    }
+    time[0] = begin;
+    appender.append(time, sample, 1);
+    begin = Long.MIN_VALUE;
+  }
+
+  private void closeFile() throws IOException {
+    if (appender != null) {
+      try {
+        appender.close();
+      } finally {
+        appender = null;
+        Compactor.setActive(file, false);
+        Catalog.update(file);
+      }
+    }
+  }
+
+  /**
+   * Writes the aggregates of the period which is not over yet and closes
+   * the file.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (previousTime != Long.MIN_VALUE) {
+        cover(previousTime + samplePeriod, previous, 0);
+        previousTime = Long.MIN_VALUE;
+      }
+      flush();
+    } finally {
+      closeFile();
+    }
+  }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Pre-aggregated tiers of the history data. For each tier, the
+ * {@link FileWriter} writes the history files into the subdirectory
+ * rollup/&lt;period in seconds&gt; of the history directory. There is one
+ * sample per period; its timestamp is the beginning of the period and it
+ * contains four values for each signal: minimum, maximum and average of
+ * the valid values which the signal had within the period and number of
+ * the valid samples within the period. The average is weighted by the
+ * time each value covers, see {@link HistoryStore#isLinear}. The labels of
+ * the values are the signal labels with the {@link #MIN}, {@link #MAX},
+ * {@link #AVG} and {@link #COUNT} suffixes.
+ *
+ * <p>Each tier directory has its own {@link Catalog}.
+ *
+ * @author jilm
+ */
+public final class Rollups {
+
+  public static final String MIN = ".min";
+  public static final String MAX = ".max";
+  public static final String AVG = ".avg";
+  public static final String COUNT = ".count";
+
+  /** Default tiers: 1 min, 15 min and 1 h [ms]. */
+  public static final long[] DEFAULT_PERIODS = {60000, 900000, 3600000};
+
+  private Rollups() {}
+
+  /**
+   * Returns the directory of the tier.
+   *
+   * @param directory
+   *            the history directory
+   *
+   * @param period
+   *            period of the tier [ms]
+   *
+   * @return the tier directory
+   */
+  public static File getDirectory(File directory, long period) {
+    return new File(
+        new File(directory, "rollup"), Long.toString(period / 1000));
+  }
+
+  /**
+   * Returns the periods of the tiers which exist in the history directory.
+   *
+   * @param directory
+   *            the history directory
+   *
+   * @return periods [ms], sorted from the shortest
+   */
+  public static long[] getPeriods(File directory) {
+    File[] tiers = new File(directory, "rollup").listFiles(File::isDirectory);
+    if (tiers == null) {
+      return new long[0];
+    }
+    long[] periods = new long[tiers.length];
+    int count = 0;
+    for (File tier : tiers) {
+      try {
+        periods[count++] = Long.parseLong(tier.getName()) * 1000;
+      } catch (NumberFormatException e) {
+        count--;
+      }
+    }
+    periods = Arrays.copyOf(periods, count);
+    Arrays.sort(periods);
+    return periods;
+  }
+
+  /**
+   * Selects the coarsest tier which still gives at least the requested
+   * number of points within the time range.
+   *
+   * @param directory
+   *            the history directory
+   *
+   * @param from
+   *            beginning of the time range [ms]
+   *
+   * @param to
+   *            end of the time range [ms]
+   *
+   * @param points
+   *            requested number of points
+   *
+   * @return period of the tier [ms], zero if the raw data should be used
+   */
+  public static long select(File directory, long from, long to, int points) {
+    long selected = 0;
+    for (long period : getPeriods(directory)) {
+      if ((to - from) / period >= points) {
+        selected = period;
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * Passes the samples of the signal within the time range to the
+   * consumer; the resolution is selected by the {@link #select} method.
+   * The average is passed if the tier is used.
+   *
+   * @param directory
+   *            the history directory
+   *
+   * @param label
+   *            the signal
+   *
+   * @param from
+   *            beginning of the time range [ms]
+   *
+   * @param to
+   *            end of the time range [ms], exclusive
+   *
+   * @param points
+   *            requested number of points
+   *
+   * @param consumer
+   *            destination of the samples
+   *
+   * @throws IOException
+   *            if the data couldn't be read
+   */
+  public static void forEach(File directory, String label, long from,
+      long to, int points, Catalog.SampleConsumer consumer)
+      throws IOException {
+    long period = select(directory, from, to, points);
+    if (period == 0) {
+      Catalog.open(directory).forEach(label, from, to, consumer);
+    } else {
+      Catalog.open(getDirectory(directory, period))
+          .forEach(label + AVG, from, to, consumer);
+    }
+  }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free ring of preallocated sample frames for exactly one producer
+ * thread and exactly one consumer thread. The producer is the control
+ * loop, the consumer is the thread that writes the file, so the control
+ * loop never waits for the disk.
+ *
+ * <p>If the ring is full, the new sample is not stored and it is counted
+ * as dropped; it is up to the producer what to do then.
+ *
+ * @author jilm
+ */
+class SampleRing {
+
+  /** Values of the frames, one frame after the other. */
+  private final float[] values;
+
+  /** Timestamps of the frames. */
+  private final long[] times;
+
+  private final int signals;
+
+  private final int mask;
+
+  /** Sequence number of the next frame to take, written by the consumer. */
+  private final AtomicLong head = new AtomicLong();
+
+  /** Sequence number of the next frame to put, written by the producer. */
+  private final AtomicLong tail = new AtomicLong();
+
+  /** Head as seen by the producer the last time. */
+  private long cachedHead;
+
+  /** Number of dropped samples, written by the producer. */
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * @param signals
+   *            number of values of each frame
+   *
+   * @param capacity
+   *            number of frames, it is rounded up to the power of two
+   */
+  SampleRing(int signals, int capacity) {
+    if (capacity <= 0 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("capacity: " + capacity);
+    }
+    int size = Integer.highestOneBit(capacity);
+    size = size < capacity ? size << 1 : size;
+    this.signals = signals;
+    this.mask = size - 1;
+    this.values = new float[size * signals];
+    this.times = new long[size];
+  }
+
+  int getCapacity() {
+    return times.length;
+  }
+
+  /**
+   * Puts the sample into the ring. To be called by the producer only.
+   *
+   * @param time
+   *            timestamp of the sample
+   *
+   * @param data
+   *            values of the sample
+   *
+   * @return false if the ring is full, the sample was dropped
+   */
+  boolean offer(long time, float[] data) {
+    long t = tail.get();
+    if (t - cachedHead == times.length) {
+      cachedHead = head.get();
+      if (t - cachedHead == times.length) {
+        dropped.lazySet(dropped.get() + 1);
+        return false;
+      }
+    }
+    int index = (int)t & mask;
+    times[index] = time;
+    System.arraycopy(data, 0, values, index * signals, signals);
+    tail.lazySet(t + 1);
+    return true;
+  }
+
+  /**
+   * Takes available samples from the ring. To be called by the consumer
+   * only.
+   *
+   * @param times
+   *            destination of the timestamps
+   *
+   * @param data
+   *            destination of the values, one sample after the other
+   *
+   * @param length
+   *            max number of samples to take
+   *
+   * @return number of samples that were taken
+   */
+  int drain(long[] times, float[] data, int length) {
+    long h = head.get();
+    int count = (int)Math.min(length, tail.get() - h);
+    for (int i = 0; i < count; i++) {
+      int index = (int)(h + i) & mask;
+      times[i] = this.times[index];
+      System.arraycopy(values, index * signals, data, i * signals, signals);
+    }
+    head.lazySet(h + count);
+    return count;
+  }
+
+  /**
+   * Returns the number of samples in the ring.
+   *
+   * @return number of samples
+   */
+  int size() {
+    return (int)(tail.get() - head.get());
+  }
+
+  /**
+   * Returns number of samples that were dropped because the ring was
+   * full.
+   *
+   * @return number of dropped samples
+   */
+  long getDropped() {
+    return dropped.get();
+  }
+
+}
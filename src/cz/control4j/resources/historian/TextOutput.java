@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered text output of the exporters. The text is encoded as ASCII,
+ * other characters are replaced by the question mark. Numbers are
+ * formatted directly into the buffer, no strings are created.
+ *
+ * @author jilm
+ */
+public final class TextOutput implements Flushable, Closeable {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final long[] POW10 = new long[19];
+
+  static {
+    POW10[0] = 1;
+    for (int i = 1; i < POW10.length; i++) {
+      POW10[i] = POW10[i - 1] * 10;
+    }
+  }
+
+  private final OutputStream out;
+
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+
+  private int length;
+
+  /** Scratch for the digits, they are produced from the right. */
+  private final byte[] digits = new byte[20];
+
+  public TextOutput(OutputStream out) {
+    this.out = out;
+  }
+
+  private void ensure(int size) throws IOException {
+    if (length + size > buffer.length) {
+      flushBuffer();
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    out.write(buffer, 0, length);
+    length = 0;
+  }
+
+  public TextOutput append(char c) throws IOException {
+    ensure(1);
+    buffer[length++] = c < 128 ? (byte)c : (byte)'?';
+    return this;
+  }
+
+  public TextOutput append(String text) throws IOException {
+    for (int i = 0; i < text.length(); i++) {
+      append(text.charAt(i));
+    }
+    return this;
+  }
+
+  public TextOutput append(long value) throws IOException {
+    ensure(20);
+    if (value == Long.MIN_VALUE) {
+      return append(Long.toString(value));
+    }
+    if (value < 0) {
+      buffer[length++] = '-';
+      value = -value;
+    }
+    int count = 0;
+    do {
+      digits[digits.length - ++count] = (byte)('0' + value % 10);
+      value /= 10;
+    } while (value != 0);
+    System.arraycopy(digits, digits.length - count, buffer, length, count);
+    length += count;
+    return this;
+  }
+
+  /**
+   * Appends the shortest plain decimal notation which is converted back
+   * to the same float. Very small and very large numbers are formatted by
+   * the {@link Float#toString(float)}. NaN is appended as NaN.
+   *
+   * @param value
+   *            the number
+   *
+   * @return this object
+   *
+   * @throws IOException
+   *            if the output failed
+   */
+  public TextOutput append(float value) throws IOException {
+    double abs = Math.abs((double)value);
+    if (value == 0.0f) {
+      return append('0');
+    } else if (!(abs >= 1e-3 && abs < 1e9)) {
+      // NaN, infinity and the numbers out of the plain range
+      return append(Float.toString(value));
+    }
+    for (int decimals = 0; decimals <= 12; decimals++) {
+      long mantissa = Math.round(abs * POW10[decimals]);
+      if ((float)((double)mantissa / POW10[decimals]) == (float)abs) {
+        if (value < 0) {
+          append('-');
+        }
+        append(mantissa / POW10[decimals]);
+        if (decimals > 0) {
+          long fraction = mantissa % POW10[decimals];
+          // trailing zeros are not necessary
+          while (fraction % 10 == 0 && decimals > 0) {
+            fraction /= 10;
+            decimals--;
+          }
+          if (decimals > 0) {
+            ensure(decimals + 1);
+            buffer[length++] = '.';
+            for (int i = decimals - 1; i >= 0; i--) {
+              buffer[length + i] = (byte)('0' + fraction % 10);
+              fraction /= 10;
+            }
+            length += decimals;
+          }
+        }
+        return this;
+      }
+    }
+    return append(Float.toString(value));
+  }
+
+  @Override
+  public void flush() throws IOException {
+    flushBuffer();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    flush();
+    out.close();
+  }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 Jiri Lidinsky
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j;
+
+import cz.lidinsky.tools.reflect.Setter;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class ApplicationSnapshotTest {
+
+  public static class Gain extends ProcessModule {
+
+    double gain;
+
+    @Setter("gain")
+    public void setGain(double gain) {
+      this.gain = gain;
+    }
+
+    @Override
+    public void process(
+        Signal[] input, int inputLength, Signal[] output, int outputLength) {
+      output[0] = Signal.getSignal(input[0].getValue() * gain);
+    }
+
+  }
+
+  /**
+   * The snapshot which is saved and loaded again creates equally configured
+   * modules. The snapshot of other source is not loaded.
+   */
+  @Test
+  public void testSaveLoad() throws Exception {
+    System.out.println("save load");
+    File source = File.createTempFile("application", ".c4j");
+    File compiled = new File(source.getPath() + ".compiled");
+    try {
+      Files.write(source.toPath(), "<application/>".getBytes("UTF-8"));
+      byte[] checksum = ApplicationSnapshot.checksum(source);
+      Gain gain = new Gain();
+      gain.configure("gain", "2.5");
+      gain.configure("task", "fast");
+      List<ModuleCrate> crates = Arrays.asList(
+          ModuleCrate.create(gain, new int[] {0}, new int[] {1}));
+      ApplicationSnapshot.create(checksum, crates, new ArrayList<>(),
+          Arrays.asList(new Task("fast", 100, 6)), 2).save(compiled);
+
+      ApplicationSnapshot snapshot
+          = ApplicationSnapshot.load(compiled, checksum);
+      assertEquals(2, snapshot.getBufferSize());
+      assertEquals("fast", snapshot.getTasks().get(0).getName());
+      assertEquals(100, snapshot.getTasks().get(0).getPeriod());
+      assertEquals(6, snapshot.getTasks().get(0).getPriority());
+      List<ModuleCrate> loaded = snapshot.build();
+      assertEquals(1, loaded.size());
+      assertTrue(loaded.get(0).getModule() instanceof Gain);
+      Gain loadedGain = (Gain)loaded.get(0).getModule();
+      assertEquals(2.5, loadedGain.gain, 0.0);
+      assertEquals("fast", loadedGain.getTask());
+      assertArrayEquals(new int[] {0}, loaded.get(0).getInputMap());
+      assertArrayEquals(new int[] {1}, loaded.get(0).getOutputMap());
+
+      // other module classes
+      byte[] content = Files.readAllBytes(compiled.toPath());
+      content[12 + checksum.length] ^= 1;
+      Files.write(compiled.toPath(), content);
+      assertNull(ApplicationSnapshot.load(compiled, checksum));
+
+      Files.write(source.toPath(),
+          "<application></application>".getBytes("UTF-8"));
+      byte[] changed = ApplicationSnapshot.checksum(source);
+      assertFalse(Arrays.equals(checksum, changed));
+      assertNull(ApplicationSnapshot.load(compiled, changed));
+    } finally {
+      source.delete();
+      compiled.delete();
+    }
+  }
+
+}
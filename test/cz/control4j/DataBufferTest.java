@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class DataBufferTest {
+
+  /**
+   * Test of clear method, of class DataBuffer.
+   */
+  @Test
+  public void testClear() {
+    System.out.println("clear");
+    DataBuffer buffer = new DataBuffer(3);
+    buffer.put(new Signal[] {Signal.getSignal(1.0)}, new int[] {0});
+    buffer.putValue(1, 2.0);
+    assertTrue(buffer.isWritten(0));
+    assertTrue(buffer.isWritten(1));
+    buffer.clear();
+    assertNull(buffer.get(0));
+    assertNull(buffer.get(1));
+    assertFalse(buffer.isValid(1));
+  }
+
+  /**
+   * Signals written as objects are readable in the primitive form and vice
+   * versa.
+   */
+  @Test
+  public void testPrimitiveForm() {
+    System.out.println("primitive form");
+    DataBuffer buffer = new DataBuffer(130, true);
+    buffer.clear(1000L);
+    buffer.put(new Signal[] {Signal.getSignal(3.5), Signal.getSignal()},
+        new int[] {0, 1});
+    buffer.putValue(64, 4.5);
+    buffer.putBoolean(65, true);
+    buffer.putInvalid(129);
+    assertEquals(3.5, buffer.getValue(0), 0.0);
+    assertFalse(buffer.isValid(1));
+    assertTrue(Double.isNaN(buffer.getValue(1)));
+    assertEquals(Signal.getSignal(4.5), buffer.get(64));
+    assertEquals(Signal.getSignal(true), buffer.get(65));
+    assertEquals(Signal.getSignal(), buffer.get(129));
+    assertEquals(1000L, buffer.getTimestamp(64));
+    buffer.putValue(65, 1.0);
+    assertEquals(Signal.getSignal(1.0), buffer.get(65));
+  }
+
+  /**
+   * Test of Slots view.
+   */
+  @Test
+  public void testSlots() {
+    System.out.println("slots");
+    DataBuffer buffer = new DataBuffer(4);
+    Slots slots = new Slots(new int[] {2, -1, 3});
+    slots.attach(buffer);
+    slots.setValue(0, 7.0);
+    slots.setValue(1, 8.0);
+    slots.setBoolean(2, false);
+    assertEquals(3, slots.size());
+    assertFalse(slots.isConnected(1));
+    assertEquals(7.0, buffer.getValue(2), 0.0);
+    assertEquals(Signal.getSignal(false), buffer.get(3));
+    assertFalse(slots.allValid(3));
+    slots.invalidate();
+    assertFalse(buffer.isValid(2));
+    assertTrue(buffer.isWritten(2));
+  }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016 Jiri Lidinsky
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class HandoverTest {
+
+  /**
+   * The consumer gets invalid signals until the first snapshot is published,
+   * then it gets the last published snapshot.
+   */
+  @Test
+  public void testPublishCollect() {
+    System.out.println("publish collect");
+    Handover handover = new Handover(new int[] {1, 3});
+    DataBuffer producer = new DataBuffer(4);
+    DataBuffer consumer = new DataBuffer(4);
+    handover.collect(consumer);
+    assertFalse(consumer.isValid(1));
+    assertEquals(Signal.getSignal(), consumer.get(3));
+    producer.putValue(1, 1.0);
+    producer.putValue(3, 3.0);
+    handover.publish(producer);
+    producer.clear();
+    producer.putValue(1, 2.0);
+    consumer.clear();
+    handover.collect(consumer);
+    assertEquals(1.0, consumer.getValue(1), 0.0);
+    assertEquals(3.0, consumer.getValue(3), 0.0);
+    handover.publish(producer);
+    consumer.clear();
+    handover.collect(consumer);
+    assertEquals(2.0, consumer.getValue(1), 0.0);
+    assertFalse(consumer.isValid(3));
+  }
+
+}
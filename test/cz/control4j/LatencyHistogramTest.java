@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 Jiri Lidinsky
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class LatencyHistogramTest {
+
+  /**
+   * Each value falls into the bucket whose upper bound is not lower than
+   * the value and the relative error is lower than 12.5 %.
+   */
+  @Test
+  public void testIndex() {
+    System.out.println("index");
+    for (long value = 0; value < 1L << 41; value = value * 3 / 2 + 1) {
+      int index = LatencyHistogram.index(value);
+      long upper = LatencyHistogram.upperBound(index);
+      assertTrue(value <= upper);
+      assertTrue(index == 0 || LatencyHistogram.upperBound(index - 1) < value);
+      assertTrue(upper - value <= value / 8
+          || index == LatencyHistogram.BUCKETS - 1);
+    }
+    // the top sub-bucket of the greatest exponent is not the overflow one
+    int overflow = LatencyHistogram.BUCKETS - 1;
+    long top = (1L << 41) - 1;
+    assertEquals(overflow - 1, LatencyHistogram.index(top));
+    assertEquals(top, LatencyHistogram.upperBound(overflow - 1));
+    assertEquals(overflow, LatencyHistogram.index(top + 1));
+  }
+
+  /**
+   * Test of getPercentile method, of class LatencyHistogram.
+   */
+  @Test
+  public void testPercentile() {
+    System.out.println("percentile");
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(i * 1000);
+    }
+    assertEquals(100, histogram.getCount());
+    assertEquals(50500, histogram.getMean());
+    assertEquals(100000, histogram.getMax());
+    long p50 = histogram.getPercentile(50);
+    assertTrue(p50 >= 50000 && p50 < 50000 * 9 / 8);
+    assertEquals(100000, histogram.getPercentile(100));
+    histogram.reset();
+    assertEquals(0, histogram.getPercentile(99));
+  }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class ModuleCrateTest {
+
+  /**
+   * Remembers the arrays it was given, copies the input to the output if
+   * asked to.
+   */
+  public static class Keeper extends ProcessModule {
+    Signal[] input;
+    Signal[] output;
+    Signal received;
+    boolean write;
+    @Override
+    public void process(
+        Signal[] input, int inputLength, Signal[] output, int outputLength) {
+      this.input = input;
+      this.output = output;
+      received = input[0];
+      if (write) {
+        output[0] = input[0];
+      }
+    }
+  }
+
+  /**
+   * Each crate keeps its own arrays, and the values from one crate don't
+   * leak into the other one.
+   */
+  @Test
+  public void testIndependentArrays() throws RuntimeException {
+    System.out.println("independent arrays");
+    DataBuffer buffer = new DataBuffer(4);
+    buffer.clear();
+    buffer.put(new Signal[] {Signal.getSignal(1.0), Signal.getSignal(2.0)},
+        new int[] {0, 1});
+    Keeper a = new Keeper();
+    a.write = true;
+    Keeper b = new Keeper();
+    ModuleCrate first
+        = ModuleCrate.create(a, new int[] {0}, new int[] {2}, 1, 1);
+    ModuleCrate second
+        = ModuleCrate.create(b, new int[] {1}, new int[] {3}, 1, 1);
+    // scan
+    first.run(buffer);
+    second.run(buffer);
+    assertTrue(a.input != b.input);
+    assertTrue(a.output != b.output);
+    assertEquals(1.0, a.received.getValue(), 0.0);
+    assertEquals(2.0, b.received.getValue(), 0.0);
+    assertEquals(1.0, a.input[0].getValue(), 0.0);
+    assertEquals(1.0, buffer.get(2).getValue(), 0.0);
+    assertFalse(buffer.get(3).isValid());
+    // the next scan reuses the same arrays
+    Signal[] input = a.input;
+    Signal[] output = b.output;
+    a.write = false;
+    b.write = true;
+    first.run(buffer);
+    second.run(buffer);
+    assertSame(input, a.input);
+    assertSame(output, b.output);
+    assertFalse(buffer.get(2).isValid());
+    assertTrue(buffer.get(3).isValid());
+    assertEquals(2.0, buffer.get(3).getValue(), 0.0);
+  }
+
+}
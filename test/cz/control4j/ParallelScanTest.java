@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class ParallelScanTest {
+
+  /** Adds one to the input value. */
+  public static class Increment extends ProcessModule {
+    @Override
+    public void process(
+        Signal[] input, int inputLength, Signal[] output, int outputLength) {
+      output[0] = Signal.getSignal(
+          input[0] == null ? 0.0 : input[0].getValue() + 1.0);
+    }
+  }
+
+  /** Remembers the order of execution. */
+  @Sequential
+  public static class Recorder extends InputModule {
+    static final List<Recorder> executed = new ArrayList<>();
+    @Override
+    protected void put(Signal[] input, int inputLength) {
+      executed.add(this);
+    }
+  }
+
+  /** Counts executions, the one with the output 2 fails. */
+  public static class Failing extends ProcessModule {
+    static int executed;
+    @Override
+    public void process(
+        Signal[] input, int inputLength, Signal[] output, int outputLength)
+        throws RuntimeException {
+      executed++;
+      if (executed == 3) {
+        throw new RuntimeException("failed");
+      }
+    }
+  }
+
+  /** Counts executions, fails by an unchecked exception if asked to. */
+  public static class Unchecked extends ProcessModule {
+    static final AtomicInteger executed = new AtomicInteger();
+    static volatile boolean fail;
+    @Override
+    public void process(
+        Signal[] input, int inputLength, Signal[] output, int outputLength) {
+      executed.incrementAndGet();
+      if (fail) {
+        throw new IllegalStateException("failed");
+      }
+    }
+  }
+
+  private static ModuleCrate process(int input, int output) {
+    return ModuleCrate.create(
+        new Increment(), new int[] {input}, new int[] {output});
+  }
+
+  /**
+   * Test of split method, of class ParallelScan.
+   */
+  @Test
+  public void testSplit() {
+    System.out.println("split");
+    // two independent chains: 0 -> 1 -> 2 and 3 -> 4
+    ModuleCrate a = process(-1, 0);
+    ModuleCrate b = process(-1, 3);
+    ModuleCrate c = process(0, 1);
+    ModuleCrate d = process(3, 4);
+    ModuleCrate e = process(1, 2);
+    ModuleCrate[][] levels
+        = ParallelScan.split(Arrays.asList(a, b, c, d, e), 5);
+    assertEquals(3, levels.length);
+    assertArrayEquals(new ModuleCrate[] {a, b}, levels[0]);
+    assertArrayEquals(new ModuleCrate[] {c, d}, levels[1]);
+    assertArrayEquals(new ModuleCrate[] {e}, levels[2]);
+  }
+
+  /**
+   * A crate that overwrites a signal must wait for the preceding reader.
+   */
+  @Test
+  public void testSplitWriteAfterRead() {
+    System.out.println("split write after read");
+    ModuleCrate reader = process(0, 1);
+    ModuleCrate writer = process(-1, 0);
+    ModuleCrate[][] levels
+        = ParallelScan.split(Arrays.asList(reader, writer), 2);
+    assertEquals(2, levels.length);
+    assertArrayEquals(new ModuleCrate[] {reader}, levels[0]);
+    assertArrayEquals(new ModuleCrate[] {writer}, levels[1]);
+  }
+
+  /**
+   * Test of execute method, of class ParallelScan.
+   */
+  @Test
+  public void testExecute() throws RuntimeException {
+    System.out.println("execute");
+    int chains = 4 * ParallelScan.THRESHOLD;
+    int length = 5;
+    List<ModuleCrate> crates = new ArrayList<>();
+    List<Recorder> recorders = new ArrayList<>();
+    for (int j = 0; j < length; j++) {
+      for (int i = 0; i < chains; i++) {
+        crates.add(process(j == 0 ? -1 : (j - 1) * chains + i, j * chains + i));
+      }
+    }
+    for (int i = 0; i < chains; i++) {
+      Recorder recorder = new Recorder();
+      recorders.add(recorder);
+      crates.add(ModuleCrate.create(
+          recorder, new int[] {(length - 1) * chains + i}, null));
+    }
+    DataBuffer sequential = new DataBuffer(chains * length);
+    for (ModuleCrate crate : crates) {
+      crate.execute(sequential);
+    }
+    Recorder.executed.clear();
+    DataBuffer parallel = new DataBuffer(chains * length);
+    ParallelScan scan = new ParallelScan(crates, chains * length, 4);
+    scan.execute(parallel);
+    scan.shutdown();
+    int[] all = new int[chains * length];
+    Arrays.setAll(all, i -> i);
+    assertArrayEquals(
+        sequential.get(all, new Signal[all.length]),
+        parallel.get(all, new Signal[all.length]));
+    assertEquals(recorders, Recorder.executed);
+  }
+
+  /**
+   * No other crate of the level is started once one of them fails.
+   */
+  @Test
+  public void testExecuteFailure() {
+    System.out.println("execute failure");
+    List<ModuleCrate> crates = new ArrayList<>();
+    for (int i = 0; i < ParallelScan.THRESHOLD - 1; i++) {
+      crates.add(ModuleCrate.create(new Failing(), new int[0], new int[] {i}));
+    }
+    ParallelScan scan = new ParallelScan(crates, crates.size(), 2);
+    Failing.executed = 0;
+    try {
+      scan.execute(new DataBuffer(crates.size()));
+      fail();
+    } catch (RuntimeException e) {
+      assertEquals(3, Failing.executed);
+    } finally {
+      scan.shutdown();
+    }
+  }
+
+  /**
+   * The unchecked exception is thrown as well, and the next scan executes
+   * all of the crates again.
+   */
+  @Test
+  public void testExecuteUncheckedFailure() throws RuntimeException {
+    System.out.println("execute unchecked failure");
+    List<ModuleCrate> crates = new ArrayList<>();
+    for (int i = 0; i < 4 * ParallelScan.THRESHOLD; i++) {
+      crates.add(
+          ModuleCrate.create(new Unchecked(), new int[0], new int[] {i}));
+    }
+    ParallelScan scan = new ParallelScan(crates, crates.size(), 2);
+    DataBuffer buffer = new DataBuffer(crates.size());
+    try {
+      Unchecked.fail = true;
+      try {
+        scan.execute(buffer);
+        fail();
+      } catch (IllegalStateException e) {
+        assertEquals("failed", e.getMessage());
+      }
+      Unchecked.fail = false;
+      Unchecked.executed.set(0);
+      scan.execute(buffer);
+      assertEquals(crates.size(), Unchecked.executed.get());
+    } finally {
+      scan.shutdown();
+    }
+  }
+
+}
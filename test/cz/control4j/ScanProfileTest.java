@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j;
+
+import java.util.Arrays;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class ScanProfileTest {
+
+  /** Sleeps for the given time. */
+  public static class Sleeping extends InputModule {
+    final long millis;
+    Sleeping(long millis) {
+      this.millis = millis;
+    }
+    @Override
+    protected void put(Signal[] input, int inputLength) {
+      try {
+        Thread.sleep(millis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * A module which didn't run during the last scan is not the slowest one,
+   * even if its duration from the previous scan is the longest.
+   */
+  @Test
+  public void testGetSlowest() throws RuntimeException {
+    System.out.println("getSlowest");
+    DataBuffer buffer = new DataBuffer(1);
+    ModuleCrate slow = ModuleCrate.create(new Sleeping(20), new int[0], null);
+    ModuleCrate fast = ModuleCrate.create(new Sleeping(1), new int[0], null);
+    slow.setProfiling(true);
+    fast.setProfiling(true);
+    ScanProfile profile = new ScanProfile(Arrays.asList(slow, fast));
+    assertNull(profile.getSlowest(System.nanoTime()));
+    // both of them run
+    long start = System.nanoTime();
+    slow.run(buffer);
+    fast.run(buffer);
+    assertSame(slow, profile.getSlowest(start));
+    // the slow one is not executed during the next scan
+    start = System.nanoTime();
+    fast.run(buffer);
+    assertSame(fast, profile.getSlowest(start));
+  }
+
+}
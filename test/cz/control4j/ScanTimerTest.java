@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Jiri Lidinsky
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j;
+
+import cz.control4j.ScanTimer.OverrunPolicy;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class ScanTimerTest {
+
+  /**
+   * Test of bucket method, of class ScanTimer.
+   */
+  @Test
+  public void testBucket() {
+    System.out.println("bucket");
+    assertEquals(0, ScanTimer.bucket(-5));
+    assertEquals(0, ScanTimer.bucket(999));
+    assertEquals(1, ScanTimer.bucket(1000));
+    assertEquals(2, ScanTimer.bucket(2000));
+    assertEquals(2, ScanTimer.bucket(3999));
+    assertEquals(3, ScanTimer.bucket(4000));
+    assertEquals(ScanTimer.BUCKETS - 1, ScanTimer.bucket(Long.MAX_VALUE));
+  }
+
+  /**
+   * The deadlines stay on the time grid if the scan is skipped.
+   */
+  @Test
+  public void testSkip() {
+    System.out.println("skip");
+    long period = 10_000_000L;
+    ScanTimer timer = new ScanTimer(period, 0, OverrunPolicy.SKIP);
+    long first = timer.awaitScan();
+    timer.awaitDeadline(first + 25_000_000L);
+    timer.scanEnd();
+    long second = timer.awaitScan();
+    assertEquals(0, (second - first) % period);
+    assertTrue(second - first >= 3 * period);
+    assertEquals(1, timer.getOverruns());
+  }
+
+  /**
+   * The missed scans follow immediately if the policy is catch-up.
+   */
+  @Test
+  public void testCatchUp() {
+    System.out.println("catch up");
+    long period = 10_000_000L;
+    ScanTimer timer = new ScanTimer(period, 0, OverrunPolicy.CATCH_UP);
+    long first = timer.awaitScan();
+    timer.awaitDeadline(first + 25_000_000L);
+    timer.scanEnd();
+    assertEquals(first + period, timer.awaitScan());
+    timer.scanEnd();
+    assertEquals(first + 2 * period, timer.awaitScan());
+  }
+
+}
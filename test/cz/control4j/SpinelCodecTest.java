@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j;
+
+import java.nio.ByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class SpinelCodecTest {
+
+  /**
+   * The batch of records is decoded back.
+   */
+  @Test
+  public void testBatch() {
+    System.out.println("batch");
+    SpinelCodec.Pool pool = new SpinelCodec.Pool(2, 3);
+    ByteBuffer buffer = pool.acquire();
+    byte[][] prefixes = {SpinelCodec.prefix("temp"),
+        SpinelCodec.prefix("pressure-1"), SpinelCodec.prefix("door")};
+    Signal[] signals = {Signal.getSignal(21.5), Signal.getSignal(),
+        Signal.getSignal(true), Signal.getSignal(1.0)};
+    assertEquals(3, SpinelCodec.putAll(
+        buffer, prefixes, 1234567890123L, signals, 0, 4));
+    buffer.flip();
+    assertEquals(3, SpinelCodec.getRecords(buffer));
+    assertTrue(SpinelCodec.hasId(buffer, 1, SpinelCodec.prefix("pressure")));
+    assertFalse(SpinelCodec.hasId(buffer, 0, prefixes[2]));
+    assertEquals(1234567890123L, SpinelCodec.getTimestamp(buffer, 2));
+    assertEquals(21.5, SpinelCodec.getValue(buffer, 0), 0.0);
+    assertFalse(SpinelCodec.isValid(buffer, 1));
+    assertSame(Signal.getSignal(), SpinelCodec.getSignal(buffer, 1));
+    assertEquals(1.0, SpinelCodec.getSignal(buffer, 2).getValue(), 0.0);
+    pool.release(buffer);
+    assertSame(buffer, pool.acquire());
+    assertEquals(0, buffer.position());
+  }
+
+  /**
+   * The record is the same as the one of the single signal message.
+   */
+  @Test
+  public void testCompatible() {
+    System.out.println("compatible");
+    ByteBuffer single = SignalUtils.toSpinelData("temp", Signal.getSignal(7));
+    ByteBuffer record = SpinelCodec.put(
+        ByteBuffer.allocate(SpinelCodec.RECORD_SIZE),
+        SpinelCodec.prefix("temp"), single.getLong(SpinelCodec.ID_SIZE),
+        true, 7);
+    assertEquals(single.flip(), record.flip());
+  }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.modules.papouch;
+
+import cz.lidinsky.spinel.SpinelMessage;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class MailboxTest {
+
+  /**
+   * The newer request replaces the one which was not sent yet, the
+   * response is returned until it gets older than the max age.
+   */
+  @Test
+  public void testAcknowledge() throws Exception {
+    System.out.println("acknowledge");
+    Mailbox mailbox = new Mailbox(
+        new PeerMultiplexer(new InetSocketAddress("localhost", 10001)));
+    SpinelMessage older = new SpinelMessage(1, 0x20);
+    SpinelMessage request = new SpinelMessage(1, 0x20);
+    mailbox.post(older);
+    mailbox.post(request);
+    assertSame(request, mailbox.takeRequest(System.nanoTime()));
+    assertNull(mailbox.takeRequest(System.nanoTime()));
+    assertNull(mailbox.getResponse(1000));
+    mailbox.fail();
+    assertEquals(1, mailbox.getFailures());
+    SpinelMessage response = new SpinelMessage(1, Mailbox.ACK_OK);
+    mailbox.complete(response);
+    assertSame(response, mailbox.getResponse(1000));
+    Thread.sleep(5);
+    assertNull(mailbox.getResponse(1));
+  }
+
+  /**
+   * Only the response with the OK ACK acknowledges the request.
+   */
+  @Test
+  public void testReject() {
+    System.out.println("reject");
+    Mailbox mailbox = new Mailbox(
+        new PeerMultiplexer(new InetSocketAddress("localhost", 10001)));
+    SpinelMessage request = new SpinelMessage(1, 0x20);
+    mailbox.post(request);
+    assertSame(request, mailbox.takeRequest(System.nanoTime()));
+    mailbox.complete(new SpinelMessage(1, 0x03));
+    assertNull(mailbox.getAcknowledged());
+    assertNull(mailbox.getResponse(1000));
+    assertEquals(1, mailbox.getFailures());
+    mailbox.post(request);
+    assertSame(request, mailbox.takeRequest(System.nanoTime()));
+    SpinelMessage response = new SpinelMessage(1, Mailbox.ACK_OK);
+    mailbox.complete(response);
+    assertSame(request, mailbox.getAcknowledged());
+    assertSame(response, mailbox.getResponse(1000));
+    assertEquals(1, mailbox.getResponses());
+  }
+
+  /**
+   * Each failure doubles the poll period up to the limit, the accepted
+   * response returns it to the required one.
+   */
+  @Test
+  public void testBackoff() {
+    System.out.println("backoff");
+    Mailbox mailbox = new Mailbox(
+        new PeerMultiplexer(new InetSocketAddress("localhost", 10001)));
+    SpinelMessage request = new SpinelMessage(1, 0x51);
+    mailbox.poll(request, 1000);
+    long period = TimeUnit.SECONDS.toNanos(1);
+    long now = System.nanoTime();
+    long first = now + mailbox.untilNext(now, Long.MAX_VALUE);
+    assertSame(request, mailbox.takeRequest(first));
+    assertEquals(period, mailbox.untilNext(first, Long.MAX_VALUE));
+    mailbox.fail();
+    assertEquals(1, mailbox.getBackoff());
+    assertEquals(2 * period, mailbox.untilNext(first, Long.MAX_VALUE));
+    long second = first + 2 * period;
+    assertNull(mailbox.takeRequest(second - 1));
+    assertSame(request, mailbox.takeRequest(second));
+    assertEquals(2 * period, mailbox.untilNext(second, Long.MAX_VALUE));
+    for (int i = 0; i < 2 * Mailbox.MAX_BACKOFF; i++) {
+      mailbox.fail();
+    }
+    assertEquals(Mailbox.MAX_BACKOFF, mailbox.getBackoff());
+    assertEquals(period << Mailbox.MAX_BACKOFF,
+        mailbox.untilNext(second, Long.MAX_VALUE));
+    mailbox.complete(new SpinelMessage(1, Mailbox.ACK_OK));
+    assertEquals(0, mailbox.getBackoff());
+    assertEquals(period, mailbox.untilNext(second, Long.MAX_VALUE));
+  }
+
+  /**
+   * The first polls of the mailboxes of one line are spread over the
+   * period by the golden ratio, whatever the number of the mailboxes is.
+   */
+  @Test
+  public void testPhase() {
+    System.out.println("phase");
+    PeerMultiplexer multiplexer
+        = new PeerMultiplexer(new InetSocketAddress("localhost", 10001));
+    double[] phases = new double[20];
+    for (int n = 0; n < phases.length; n++) {
+      phases[n] = multiplexer.nextPhase();
+      double[] sorted = Arrays.copyOf(phases, n + 1);
+      Arrays.sort(sorted);
+      double gap = sorted[0] + 1.0 - sorted[n];
+      for (int i = 1; i <= n; i++) {
+        gap = Math.max(gap, sorted[i] - sorted[i - 1]);
+      }
+      // the largest gap is less than twice the even spacing
+      assertTrue(gap * (n + 1) < 2.0);
+    }
+    assertEquals(0.0, phases[0], 0.0);
+    assertEquals(0.618034, phases[1], 1e-6);
+    assertEquals(0.236068, phases[2], 1e-6);
+    // the phase delays the first poll of the mailbox
+    Mailbox mailbox = new Mailbox(multiplexer);
+    long now = System.nanoTime();
+    mailbox.poll(new SpinelMessage(1, 0x51), 1000);
+    long delay = mailbox.untilNext(now, Long.MAX_VALUE);
+    long expected = (long)(TimeUnit.SECONDS.toNanos(1)
+        * (20 * 0.6180339887498949 % 1.0));
+    assertTrue(delay >= expected);
+    assertTrue(delay < expected + TimeUnit.MILLISECONDS.toNanos(100));
+  }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.modules.papouch;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class SpinelSimulatorTest {
+
+  /**
+   * Sends the request and returns the data of the response, the ACK is
+   * the first byte.
+   */
+  private static byte[] exchange(Socket socket, int address, int instruction,
+      byte... data) throws Exception {
+    OutputStream out = socket.getOutputStream();
+    out.write(SpinelSimulator.encode(address, 0x31, instruction, data));
+    out.flush();
+    InputStream in = new BufferedInputStream(socket.getInputStream());
+    byte[] buffer = new byte[256];
+    int length = SpinelSimulator.readFrame(in, buffer);
+    assertEquals(address, buffer[4] & 0xff);
+    assertEquals(0x31, buffer[5] & 0xff);
+    byte[] result = new byte[length - 8];
+    System.arraycopy(buffer, 6, result, 0, result.length);
+    return result;
+  }
+
+  /**
+   * The instructions of the papouch modules are answered.
+   */
+  @Test
+  public void testDevices() throws Exception {
+    System.out.println("devices");
+    try (SpinelSimulator simulator = new SpinelSimulator(0);
+        Socket socket = new Socket(
+            InetAddress.getLoopbackAddress(), simulator.getPort())) {
+      simulator.addDevices(1, 200, SpinelSimulator.Device.QUIDO);
+      simulator.addDevice(201, SpinelSimulator.Device.AD4);
+      simulator.addDevice(202, SpinelSimulator.Device.TQS3);
+      simulator.addDevice(203, SpinelSimulator.Device.DA2);
+      simulator.setBinaryInputs(150, 0x5a);
+      assertArrayEquals(new byte[] {0, 0x5a}, exchange(socket, 150, 0x31));
+      exchange(socket, 7, 0x20, (byte)0x81, (byte)0x83, (byte)0x02);
+      assertEquals(0x05, simulator.getOutputs(7));
+      assertArrayEquals(new byte[] {0, 0x01, 0x58},
+          exchange(socket, 7, 0x51, (byte)1));
+      simulator.setAnalog(201, 2, 5000);
+      assertArrayEquals(new byte[] {0, 2, (byte)0x80, 0x13, (byte)0x88},
+          exchange(socket, 201, 0x51, (byte)2));
+      assertEquals(17, exchange(socket, 201, 0x51, (byte)0).length);
+      simulator.setTemperature(202, -1.5);
+      assertArrayEquals(new byte[] {0, (byte)0x80, (byte)0xff, (byte)0xf1},
+          exchange(socket, 202, 0x51));
+      exchange(socket, 203, 0x40, (byte)2, (byte)0x0f, (byte)0xff);
+      assertEquals(4095, simulator.getAnalogOutput(203, 2));
+      assertArrayEquals(new byte[] {SpinelSimulator.ACK_INSTRUCTION},
+          exchange(socket, 203, 0x31));
+      assertEquals(8, simulator.getRequests());
+    }
+  }
+
+  /**
+   * The injected faults and the latency.
+   */
+  @Test
+  public void testFaults() throws Exception {
+    System.out.println("faults");
+    try (SpinelSimulator simulator = new SpinelSimulator(0);
+        Socket socket = new Socket(
+            InetAddress.getLoopbackAddress(), simulator.getPort())) {
+      simulator.addDevice(1, SpinelSimulator.Device.QUIDO);
+      simulator.setLatency(20, 0);
+      long start = System.nanoTime();
+      exchange(socket, 1, 0x31);
+      assertEquals(true, System.nanoTime() - start >= 20_000_000L);
+      simulator.setErrorRate(1);
+      assertArrayEquals(new byte[] {SpinelSimulator.ACK_FAILURE},
+          exchange(socket, 1, 0x31));
+      simulator.setTimeoutRate(1);
+      socket.setSoTimeout(200);
+      try {
+        exchange(socket, 1, 0x31);
+        fail();
+      } catch (SocketTimeoutException e) {
+        assertEquals(1, simulator.getTimeouts());
+      }
+    }
+  }
+
+}
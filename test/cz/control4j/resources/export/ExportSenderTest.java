@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.export;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class ExportSenderTest {
+
+  /**
+   * The receiver gets the schema and then the values of each scan.
+   */
+  @Test
+  public void testSend() throws Exception {
+    System.out.println("send");
+    String[] labels
+        = {"a", "b", "\u017elu\u0165", "d", "e", "f", "g", "h", "i"};
+    try (ServerSocket server = new ServerSocket(0)) {
+      ExportSender sender = new ExportSender("localhost",
+          server.getLocalPort(), labels, false, 4, 2);
+      sender.start();
+      double[] values = new double[labels.length];
+      boolean[] valid = new boolean[labels.length];
+      for (int i = 0; i < 3; i++) {
+        for (int j = 0; j < labels.length; j++) {
+          values[j] = i * 10 + j;
+          valid[j] = j != i;
+        }
+        assertTrue(sender.offer(1000 + i, values, valid));
+      }
+      try (Socket socket = server.accept()) {
+        ExportProtocol.Decoder decoder = new ExportProtocol.Decoder(
+            new DataInputStream(new BufferedInputStream(
+                socket.getInputStream())));
+        assertEquals(ExportProtocol.SCHEMA, decoder.next());
+        assertArrayEquals(labels, decoder.getLabels());
+        for (int i = 0; i < 3; i++) {
+          assertEquals(ExportProtocol.VALUES, decoder.next());
+          assertEquals(1000 + i, decoder.getTime());
+          assertFalse(decoder.getValid()[i]);
+          assertTrue(decoder.getValid()[8]);
+          assertEquals(i * 10 + 8, decoder.getValues()[8], 0.0);
+        }
+      } finally {
+        sender.close();
+      }
+    }
+  }
+
+  /**
+   * Just the changes beyond the deadband are sent between the keyframes.
+   */
+  @Test
+  public void testException() throws Exception {
+    System.out.println("exception");
+    String[] labels = {"a", "b", "c"};
+    try (ServerSocket server = new ServerSocket(0)) {
+      ExportSender sender = new ExportSender("localhost",
+          server.getLocalPort(), labels, false, 8, 8);
+      sender.setDeadbands(new double[] {0.0, 1.0, 0.0}, 1000);
+      sender.start();
+      boolean[] valid = {true, true, true};
+      sender.offer(0, new double[] {1.0, 1.0, 1.0}, valid);
+      // nothing has changed
+      sender.offer(100, new double[] {1.0, 1.5, 1.0}, valid);
+      sender.offer(200, new double[] {2.0, 2.5, 1.0}, valid);
+      sender.offer(300, new double[] {2.0, 2.5, 1.0},
+          new boolean[] {true, true, false});
+      sender.offer(1000, new double[] {2.0, 2.5, 1.0}, valid);
+      try (Socket socket = server.accept()) {
+        ExportProtocol.Decoder decoder = new ExportProtocol.Decoder(
+            new DataInputStream(new BufferedInputStream(
+                socket.getInputStream())));
+        assertEquals(ExportProtocol.SCHEMA, decoder.next());
+        assertEquals(ExportProtocol.VALUES, decoder.next());
+        assertEquals(0, decoder.getTime());
+        assertEquals(ExportProtocol.CHANGES, decoder.next());
+        assertEquals(200, decoder.getTime());
+        assertArrayEquals(new double[] {2.0, 2.5, 1.0},
+            decoder.getValues(), 0.0);
+        assertEquals(ExportProtocol.CHANGES, decoder.next());
+        assertEquals(300, decoder.getTime());
+        assertFalse(decoder.getValid()[2]);
+        assertEquals(ExportProtocol.VALUES, decoder.next());
+        assertEquals(1000, decoder.getTime());
+        assertTrue(decoder.getValid()[2]);
+      } finally {
+        sender.close();
+      }
+    }
+  }
+
+}
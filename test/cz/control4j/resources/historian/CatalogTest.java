@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class CatalogTest {
+
+  private static void write(HistoryStore.Appender appender, long begin,
+      int samples) throws Exception {
+    long[] times = new long[samples];
+    float[] data = new float[samples * 2];
+    for (int i = 0; i < samples; i++) {
+      times[i] = begin + i * 1000;
+      data[2 * i] = i;
+      data[2 * i + 1] = -i;
+    }
+    appender.append(times, data, samples);
+    appender.close();
+  }
+
+  /**
+   * Range query finds the files of both formats through the catalog, the
+   * catalog follows the changes of the directory.
+   */
+  @Test
+  public void testFind() throws Exception {
+    System.out.println("find");
+    File dir = Files.createTempDirectory("history").toFile();
+    File first = new File(dir, "a.rec");
+    File second = new File(dir, "b.rec");
+    try {
+      write(MappedStore.create(first, new String[] {"x", "y"}, 0, 1000),
+          0, 100);
+      write(ColumnStore.create(second, new String[] {"y", "x"}, 100000, 1000),
+          100000, 3000);
+
+      Catalog catalog = Catalog.open(dir);
+      assertTrue(new File(dir, Catalog.FILENAME).exists());
+      assertEquals(2, catalog.getEntries().size());
+      assertEquals(first, catalog.getEntries().get(0).getFile());
+      assertEquals(99000, catalog.getEntries().get(0).getEnd());
+      assertEquals(1, catalog.find("x", 0, 50000).size());
+      assertEquals(2, catalog.find("x", 50000, 150000).size());
+      assertEquals(0, catalog.find("z", 0, Long.MAX_VALUE).size());
+      Catalog.Entry entry = catalog.find("x", 2000000, 2100000).get(0);
+      assertEquals(1, entry.indexOf("x"));
+      assertEquals(1024, entry.getMarkSample(2000000));
+
+      List<Float> values = new ArrayList<>();
+      catalog.forEach("x", 97000, 103000, (time, value) -> values.add(value));
+      assertEquals(6, values.size());
+      assertEquals(97, values.get(0), 0.0);
+      assertEquals(-2, values.get(5), 0.0);
+
+      second.delete();
+      catalog = Catalog.open(dir);
+      assertEquals(1, catalog.getEntries().size());
+    } finally {
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class ColumnStoreTest {
+
+  /**
+   * Timestamps with jitter and values of various kind are decoded exactly.
+   */
+  @Test
+  public void testCodec() {
+    System.out.println("codec");
+    int length = 1000;
+    long[] times = new long[length];
+    float[] values = new float[length * 2];
+    for (int i = 0; i < length; i++) {
+      times[i] = 1000000L + i * 1000 + (i % 7 == 0 ? i % 300 - 150 : 0)
+          + (i == 500 ? 100000 : 0);
+      values[2 * i] = (float)Math.sin(i / 10.0);
+      values[2 * i + 1] = i % 50 == 0 ? Float.NaN : i / 100;
+    }
+    ColumnCodec.BitWriter out = new ColumnCodec.BitWriter();
+    ColumnCodec.encodeTimes(times, length, 1000, out);
+    int timeBytes = out.length();
+    ByteBuffer bytes = ByteBuffer.allocate(64 * 1024);
+    out.writeTo(bytes);
+    out.reset();
+    ColumnCodec.encodeValues(values, 0, 2, length, out);
+    int valueBytes = out.length();
+    out.writeTo(bytes);
+    out.reset();
+    ColumnCodec.encodeValues(values, 1, 2, length, out);
+    out.writeTo(bytes);
+
+    ColumnCodec.BitReader in = new ColumnCodec.BitReader();
+    in.reset(bytes.array(), 0);
+    long[] decodedTimes = new long[length];
+    ColumnCodec.decodeTimes(in, times[0], 1000, decodedTimes, length);
+    assertArrayEquals(times, decodedTimes);
+    float[] decoded = new float[length * 2];
+    in.reset(bytes.array(), timeBytes);
+    ColumnCodec.decodeValues(in, decoded, 0, 2, length);
+    in.reset(bytes.array(), timeBytes + valueBytes);
+    ColumnCodec.decodeValues(in, decoded, 1, 2, length);
+    for (int i = 0; i < decoded.length; i++) {
+      assertEquals(Float.floatToRawIntBits(values[i]),
+          Float.floatToRawIntBits(decoded[i]));
+    }
+  }
+
+  /**
+   * Written samples are read back by index, by signal and by timestamp,
+   * chunk headers contain min, max and count.
+   */
+  @Test
+  public void testAppendRead() throws Exception {
+    System.out.println("append read");
+    File file = File.createTempFile("history", ".rec");
+    file.delete();
+    try {
+      int samples = 2500;
+      long[] times = new long[samples];
+      float[] data = new float[samples * 3];
+      for (int i = 0; i < samples; i++) {
+        times[i] = 5000 + i * 100;
+        data[3 * i] = i;
+        data[3 * i + 1] = 1.5f;
+        data[3 * i + 2] = i % 2 == 0 ? Float.NaN : -i;
+      }
+      try (ColumnStore.Appender appender = ColumnStore.create(
+          file, new String[] {"a", "b", "c"}, 4000, 100)) {
+        appender.append(times, data, samples);
+        assertEquals(samples, appender.getSampleCount());
+      }
+
+      try (HistoryStore store = HistoryStore.open(file)) {
+        assertTrue(store instanceof ColumnStore);
+        ColumnStore columns = (ColumnStore)store;
+        assertEquals(samples, store.getSampleCount());
+        assertEquals(5000, store.getTimestamp());
+        assertArrayEquals(new String[] {"a", "b", "c"}, store.getLabels());
+        assertEquals(3, columns.getChunkCount());
+        assertEquals(1024, columns.getChunkFirstSample(1));
+        assertEquals(1024, columns.getMinimum(1, 0), 0.0);
+        assertEquals(2047, columns.getMaximum(1, 0), 0.0);
+        assertEquals(512, columns.getValidCount(1, 2));
+        assertEquals(samples - 2048, columns.getChunkLength(2));
+
+        float[] signal = new float[100];
+        assertEquals(100, store.read(signal, 0, 1000, 100, 0));
+        for (int i = 0; i < 100; i++) {
+          assertEquals(1000 + i, signal[i], 0.0);
+        }
+        assertEquals(20, store.read(signal, 0, samples - 20, 100, 2));
+        assertEquals(-(samples - 19), signal[1], 0.0);
+
+        FloatBuffer rows = FloatBuffer.allocate(300);
+        assertEquals(100, store.read(rows, 1000, 100));
+        for (int i = 0; i < 300; i++) {
+          assertEquals(Float.floatToRawIntBits(data[3000 + i]),
+              Float.floatToRawIntBits(rows.get(i)));
+        }
+
+        assertEquals(5000 + 2000 * 100, store.getSampleTimestamp(2000));
+        assertEquals(2000, store.getSampleIndex(5000 + 2000 * 100));
+        assertEquals(2001, store.getSampleIndex(5000 + 2000 * 100 + 1));
+        assertEquals(0, store.getSampleIndex(0));
+        assertEquals(samples, store.getSampleIndex(Long.MAX_VALUE));
+      }
+
+      FileReader reader = new FileReader();
+      reader.read(file);
+      float[] sample = new float[3];
+      reader.read(sample, 3);
+      assertEquals(0, sample[0], 0.0);
+      assertEquals(1.5, sample[1], 0.0);
+      reader.close();
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * The torn last chunk is ignored by the reader and cut by the recovery.
+   */
+  @Test
+  public void testRecover() throws Exception {
+    System.out.println("recover");
+    File file = File.createTempFile("history", ".rec");
+    file.delete();
+    try {
+      long[] times = new long[10];
+      float[] data = new float[10];
+      for (int i = 0; i < 10; i++) {
+        times[i] = i * 1000;
+        data[i] = i;
+      }
+      long valid;
+      try (ColumnStore.Appender appender = new ColumnStore.Appender(
+          file, new String[] {"a"}, 0, 1000, 5)) {
+        appender.append(times, data, 5);
+        valid = appender.getLength();
+        appender.append(times, data, 5, 5);
+      }
+      // damage the last byte of the column of the second chunk
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.seek(raf.length() - 5);
+        int b = raf.read();
+        raf.seek(raf.length() - 5);
+        raf.write(b ^ 0x01);
+      }
+      try (ColumnStore store = ColumnStore.open(file)) {
+        assertEquals(1, store.getChunkCount());
+        assertEquals(5, store.getSampleCount());
+      }
+      assertTrue(ColumnStore.recover(file) > 0);
+      assertEquals(valid, file.length());
+      assertEquals(0, HistoryStore.recover(file));
+      try (HistoryStore store = HistoryStore.open(file)) {
+        assertEquals(5, store.getSampleCount());
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * The forced samples of the chunk which is not full are journaled, not
+   * written into the file, and the recovery appends them from the journal.
+   */
+  @Test
+  public void testJournal() throws Exception {
+    System.out.println("journal");
+    File file = File.createTempFile("history", ".rec");
+    File copy = new File(file.getPath() + ".crash");
+    file.delete();
+    try {
+      long[] times = new long[10];
+      float[] data = new float[20];
+      for (int i = 0; i < 10; i++) {
+        times[i] = i * 1000;
+        data[2 * i] = i;
+        data[2 * i + 1] = -i;
+      }
+      try (ColumnStore.Appender appender = new ColumnStore.Appender(
+          file, new String[] {"a", "b"}, 0, 1000, 4)) {
+        appender.append(times, data, 3);
+        appender.force();
+        long header = appender.getLength();
+        appender.append(times, data, 3, 3);
+        appender.force();
+        appender.append(times, data, 6, 1);
+        assertTrue(appender.getLength() > header);
+        // just the whole chunks are written
+        try (ColumnStore store = ColumnStore.open(file)) {
+          assertEquals(1, store.getChunkCount());
+          assertEquals(4, store.getSampleCount());
+        }
+        // the crash, the unforced sample is lost
+        Files.copy(file.toPath(), copy.toPath());
+        Files.copy(Journal.getFile(file).toPath(),
+            Journal.getFile(copy).toPath());
+      }
+      assertFalse(Journal.getFile(file).exists());
+      assertEquals(0, ColumnStore.recover(copy));
+      assertFalse(Journal.getFile(copy).exists());
+      try (ColumnStore store = ColumnStore.open(copy)) {
+        assertEquals(6, store.getSampleCount());
+        float[] signal = new float[6];
+        assertEquals(6, store.read(signal, 0, 0, 6, 1));
+        for (int i = 0; i < 6; i++) {
+          assertEquals(-i, signal[i], 0.0);
+        }
+        assertEquals(5000, store.getSampleTimestamp(5));
+      }
+      try (ColumnStore store = ColumnStore.open(file)) {
+        assertEquals(7, store.getSampleCount());
+      }
+    } finally {
+      file.delete();
+      copy.delete();
+      Journal.getFile(copy).delete();
+    }
+  }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class CompactorTest {
+
+  private static final long DAY = 24L * 3600 * 1000;
+
+  /**
+   * Writes the file of one signal, the values are given by the index of
+   * the sample.
+   */
+  private static void write(File file, long begin, int from, int samples)
+      throws Exception {
+    long[] times = new long[samples];
+    float[] data = new float[samples];
+    for (int i = 0; i < samples; i++) {
+      times[i] = begin + i * 1000;
+      data[i] = from + i;
+    }
+    try (HistoryStore.Appender appender = ColumnStore.create(
+        file, new String[] {"a"}, begin, 1000)) {
+      appender.append(times, data, samples);
+    }
+  }
+
+  private static File[] list(File dir) {
+    return dir.listFiles((d, name) -> !name.equals(Catalog.FILENAME));
+  }
+
+  private static void delete(File dir) {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  /**
+   * Small consecutive files are merged into one, the originals are
+   * deleted.
+   */
+  @Test
+  public void testMerge() throws Exception {
+    System.out.println("merge");
+    File dir = Files.createTempDirectory("history").toFile();
+    try {
+      write(new File(dir, "a.rec"), 0, 0, 10);
+      write(new File(dir, "b.rec"), 10000, 10, 10);
+      write(new File(dir, "c.rec"), 20000, 20, 10);
+      new Compactor(dir).run();
+      File[] files = list(dir);
+      assertEquals(1, files.length);
+      assertEquals("a-c.rec", files[0].getName());
+      try (HistoryStore store = HistoryStore.open(files[0])) {
+        assertEquals(30, store.getSampleCount());
+        float[] data = new float[30];
+        assertEquals(30, store.read(FloatBuffer.wrap(data), 0, 30));
+        for (int i = 0; i < 30; i++) {
+          assertEquals(i, data[i], 0.0);
+          assertEquals(i * 1000, store.getSampleTimestamp(i));
+        }
+      }
+      assertEquals(1, Catalog.open(dir).getEntries().size());
+    } finally {
+      delete(dir);
+    }
+  }
+
+  /**
+   * The files which are being written are not merged.
+   */
+  @Test
+  public void testActive() throws Exception {
+    System.out.println("active");
+    File dir = Files.createTempDirectory("history").toFile();
+    File active = new File(dir, "b.rec");
+    try {
+      write(new File(dir, "a.rec"), 0, 0, 10);
+      write(active, 10000, 10, 10);
+      Compactor.setActive(active, true);
+      new Compactor(dir).run();
+      assertEquals(2, list(dir).length);
+    } finally {
+      Compactor.setActive(active, false);
+      delete(dir);
+    }
+  }
+
+  /**
+   * Files whose last sample is older than the retention period are
+   * deleted.
+   */
+  @Test
+  public void testRetention() throws Exception {
+    System.out.println("retention");
+    File dir = Files.createTempDirectory("history").toFile();
+    try {
+      long now = System.currentTimeMillis();
+      write(new File(dir, "old.rec"), now - 2 * DAY, 0, 10);
+      write(new File(dir, "new.rec"), now - 60000, 0, 10);
+      Compactor compactor = new Compactor(dir);
+      compactor.setRetention(DAY);
+      compactor.setMergeSize(0);
+      compactor.run();
+      File[] files = list(dir);
+      assertEquals(1, files.length);
+      assertEquals("new.rec", files[0].getName());
+    } finally {
+      delete(dir);
+    }
+  }
+
+  /**
+   * Old files are rewritten with the longer sample period, each sample is
+   * the mean of its period.
+   */
+  @Test
+  public void testDownsample() throws Exception {
+    System.out.println("downsample");
+    File dir = Files.createTempDirectory("history").toFile();
+    try {
+      long begin = (System.currentTimeMillis() - 2 * DAY) / 60000 * 60000;
+      File file = new File(dir, "old.rec");
+      write(file, begin, 0, 120);
+      Compactor compactor = new Compactor(dir);
+      compactor.setDownsampling(DAY, 60000);
+      compactor.setMergeSize(0);
+      compactor.run();
+      assertFalse(file.exists());
+      File[] files = list(dir);
+      assertEquals(1, files.length);
+      assertTrue(files[0].getName().endsWith("-c.rec"));
+      try (HistoryStore store = HistoryStore.open(files[0])) {
+        assertEquals(60000, store.getSamplePeriod());
+        assertEquals(2, store.getSampleCount());
+        float[] data = new float[2];
+        store.read(FloatBuffer.wrap(data), 0, 2);
+        assertEquals(29.5, data[0], 1e-3);
+        assertEquals(89.5, data[1], 1e-3);
+        assertEquals(begin, store.getSampleTimestamp(0));
+        assertEquals(begin + 60000, store.getSampleTimestamp(1));
+      }
+    } finally {
+      delete(dir);
+    }
+  }
+
+}
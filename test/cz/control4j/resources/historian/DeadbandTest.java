@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class DeadbandTest {
+
+  private final List<Long> times = new ArrayList<>();
+
+  private final List<float[]> rows = new ArrayList<>();
+
+  private boolean record(long time, float[] values) {
+    times.add(time);
+    rows.add(values.clone());
+    return true;
+  }
+
+  private static float[] walk(int samples) {
+    Random random = new Random(3);
+    float[] values = new float[samples];
+    for (int i = 1; i < samples; i++) {
+      values[i] = values[i - 1] + (float)random.nextGaussian();
+    }
+    return values;
+  }
+
+  /**
+   * Without the settings each of the samples is recorded.
+   */
+  @Test
+  public void testDefault() {
+    System.out.println("default");
+    Deadband filter = new Deadband(1, this::record);
+    for (int i = 0; i < 10; i++) {
+      filter.offer(i, new float[] {5f});
+    }
+    assertEquals(10, rows.size());
+  }
+
+  /**
+   * The held recorded value is within the deadband, the validity changes
+   * and the heartbeat are recorded.
+   */
+  @Test
+  public void testDeadband() {
+    System.out.println("deadband");
+    float[] values = walk(10000);
+    values[5000] = Float.NaN;
+    Deadband filter = new Deadband(1, this::record);
+    filter.setDeadband(0, 2.0, 0.0);
+    filter.setMaxInterval(1000);
+    for (int i = 0; i < values.length; i++) {
+      filter.offer(i, new float[] {values[i]});
+    }
+    assertTrue(rows.size() < values.length / 2);
+    int row = 0;
+    for (int i = 0; i < values.length; i++) {
+      while (row + 1 < times.size() && times.get(row + 1) <= i) {
+        row++;
+      }
+      float held = rows.get(row)[0];
+      assertEquals(Float.isNaN(values[i]), Float.isNaN(held));
+      if (!Float.isNaN(held)) {
+        assertEquals(values[i], held, 2.0);
+      }
+    }
+    for (int i = 1; i < times.size(); i++) {
+      assertTrue(times.get(i) - times.get(i - 1) <= 1000);
+    }
+  }
+
+  /**
+   * The linear interpolation between the recorded samples is within the
+   * deviation.
+   */
+  @Test
+  public void testSwingingDoor() {
+    System.out.println("swingingDoor");
+    float[] values = walk(10000);
+    Deadband filter = new Deadband(2, this::record);
+    filter.setCompression(0, 3.0);
+    filter.setCompression(1, 3.0);
+    for (int i = 0; i < values.length; i++) {
+      filter.offer(i * 10L,
+          new float[] {values[i], (float)Math.sin(i / 500.0)});
+    }
+    assertTrue(rows.size() < values.length / 2);
+    int row = 0;
+    for (int i = 0; i < values.length; i++) {
+      long time = i * 10L;
+      while (row + 2 < times.size() && times.get(row + 1) <= time) {
+        row++;
+      }
+      long t0 = times.get(row);
+      long t1 = times.get(row + 1);
+      if (time > t1) {
+        // after the last recorded sample
+        break;
+      }
+      double fraction = (double)(time - t0) / (t1 - t0);
+      assertEquals(values[i], rows.get(row)[0]
+          + fraction * (rows.get(row + 1)[0] - rows.get(row)[0]), 3.0 + 1e-4);
+    }
+  }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class FileWriterTest {
+
+  /**
+   * New file is started at each multiple of the rotation period.
+   */
+  @Test
+  public void testRotation() throws Exception {
+    System.out.println("rotation");
+    File dir = Files.createTempDirectory("history").toFile();
+    FileWriter writer = new FileWriter(new String[] {"a"}, 1000) {
+      @Override
+      protected File createFile(String filename) {
+        return new File(dir, filename);
+      }
+    };
+    try {
+      writer.setRotation(FileWriter.DEFAULT_MAX_SIZE, 10000);
+      writer.setCompactionPeriod(0);
+      writer.setRollups();
+      writer.start(0);
+      for (int i = 0; i < 30; i++) {
+        writer.write(i * 1000, new float[] {i});
+      }
+      writer.close();
+      List<Catalog.Entry> entries = Catalog.open(dir).getEntries();
+      assertEquals(3, entries.size());
+      for (int i = 0; i < 3; i++) {
+        assertEquals(i * 10000, entries.get(i).getBegin());
+        assertEquals(i * 10000 + 9000, entries.get(i).getEnd());
+      }
+    } finally {
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class MappedStoreTest {
+
+  /**
+   * The file which is being written contains only the appended samples,
+   * the torn sample of a crash is cut, the samples of zeros are kept.
+   */
+  @Test
+  public void testAppendRecover() throws Exception {
+    System.out.println("append recover");
+    File file = File.createTempFile("history", ".rec");
+    file.delete();
+    try {
+      MappedStore.Appender appender = MappedStore.create(
+          file, new String[] {"x", "y"}, 0, 1000);
+      appender.append(new float[] {1, 2, 3, 4, 5}, 0, 5);
+      try (MappedStore store = MappedStore.open(file)) {
+        assertEquals(2, store.getSampleCount());
+      }
+      appender.append(new float[] {6, 0, 0, 0, 0}, 0, 5);
+      assertEquals(5, appender.getSampleCount());
+      appender.close();
+      long length = file.length();
+      assertEquals(0, MappedStore.recover(file));
+      assertEquals(length, file.length());
+
+      // the torn sample of a crash
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.setLength(length + Float.BYTES);
+      }
+      assertEquals(Float.BYTES, MappedStore.recover(file));
+      assertEquals(length, file.length());
+      try (MappedStore store = MappedStore.open(file)) {
+        assertEquals(5, store.getSampleCount());
+        float[] y = new float[5];
+        assertEquals(5, store.read(y, 0, 0, 5, 1));
+        assertEquals(6, y[2], 0f);
+        assertEquals(0, y[4], 0f);
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class QueryTest {
+
+  private static float value(int i) {
+    return i % 7 == 0 ? Float.NaN : (i * 31) % 1000 - 500;
+  }
+
+  /**
+   * The parallel aggregates equal the sequential ones, the range begins
+   * and ends within a chunk and the large file is split.
+   */
+  @Test
+  public void testAggregate() throws Exception {
+    System.out.println("aggregate");
+    File dir = Files.createTempDirectory("history").toFile();
+    int samples = 3 * (int)Query.SPLIT_SAMPLES;
+    try {
+      HistoryStore.Appender appender = MappedStore.create(
+          new File(dir, "a.rec"), new String[] {"x"}, 0, 1000);
+      long[] times = new long[100];
+      float[] data = new float[100];
+      for (int i = 0; i < 100; i++) {
+        times[i] = i * 1000L;
+        data[i] = value(i);
+      }
+      appender.append(times, data, 100);
+      appender.close();
+      appender = ColumnStore.create(
+          new File(dir, "b.rec"), new String[] {"y", "x"}, 100000, 1000);
+      times = new long[samples];
+      data = new float[2 * samples];
+      for (int i = 0; i < samples; i++) {
+        times[i] = (100 + i) * 1000L;
+        data[2 * i + 1] = value(100 + i);
+      }
+      appender.append(times, data, samples);
+      appender.close();
+
+      long from = 50000;
+      long to = (100 + samples - 500) * 1000L;
+      float[] expected = new float[samples];
+      int count = 0;
+      double sum = 0;
+      for (int i = 50; i < 100 + samples - 500; i++) {
+        if (!Float.isNaN(value(i))) {
+          expected[count++] = value(i);
+          sum += value(i);
+        }
+      }
+      Arrays.sort(expected, 0, count);
+
+      Query query = new Query(dir).select("x", "z").range(from, to)
+          .pool(new ForkJoinPool(4));
+      assertArrayEquals(new double[] {count, 0},
+          query.aggregate(Query.Function.COUNT).run(), 0.0);
+      assertEquals(expected[0],
+          query.aggregate(Query.Function.MIN).run()[0], 0.0);
+      assertEquals(expected[count - 1],
+          query.aggregate(Query.Function.MAX).run()[0], 0.0);
+      assertEquals(sum / count,
+          query.aggregate(Query.Function.AVG).run()[0], 1e-9);
+      assertEquals(expected[(int)Math.ceil(0.95 * count) - 1],
+          query.percentile(95).run()[0], 0.0);
+      assertEquals(Double.NaN, query.run()[1], 0.0);
+    } finally {
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  /**
+   * The irregular samples are weighted by the time they cover: the value
+   * held for an hour outweighs the short burst of samples, the linearly
+   * interpolated signal is averaged as the line.
+   */
+  @Test
+  public void testIrregular() throws Exception {
+    System.out.println("irregular");
+    File dir = Files.createTempDirectory("history").toFile();
+    try {
+      // x holds 0 for an hour, then the burst of ten samples of 100;
+      // y goes linearly from 0 to 3600
+      long[] times = new long[12];
+      float[] data = new float[24];
+      times[0] = 0;
+      data[1] = 0;
+      for (int i = 1; i <= 10; i++) {
+        times[i] = 3590000L + (i - 1) * 1000;
+        data[2 * i] = 100;
+        data[2 * i + 1] = Float.NaN;
+      }
+      times[11] = 3600000;
+      data[23] = 3600;
+      try (HistoryStore.Appender appender = ColumnStore.create(
+          new File(dir, "a.rec"), new String[] {"x", "y"},
+          new boolean[] {false, true}, 0, 1000)) {
+        appender.append(times, data, times.length);
+      }
+      try (HistoryStore store = HistoryStore.open(new File(dir, "a.rec"))) {
+        assertFalse(store.isLinear(0));
+        assertTrue(store.isLinear(1));
+      }
+
+      Query query = new Query(dir).select("x", "y").range(0, 3600000);
+      double[] avg = query.aggregate(Query.Function.AVG).run();
+      assertEquals(100.0 * 10 / 3600, avg[0], 1e-9);
+      // the burst of the invalid values of y is held by the first value
+      assertEquals(0.0, avg[1], 1e-9);
+      assertArrayEquals(new double[] {11, 1},
+          query.aggregate(Query.Function.COUNT).run(), 0.0);
+      assertEquals(0.0, query.percentile(99).run()[0], 0.0);
+      assertEquals(100.0, query.percentile(99.9).run()[0], 0.0);
+
+      // the range begins within the time of the first sample
+      avg = query.range(1800000, 3600000)
+          .aggregate(Query.Function.AVG).run();
+      assertEquals(100.0 * 10 / 1800, avg[0], 1e-9);
+
+      // z between two valid values, the time is split in halves
+      try (HistoryStore.Appender appender = ColumnStore.create(
+          new File(dir, "b.rec"), new String[] {"z"},
+          new boolean[] {true}, 0, 1000)) {
+        appender.append(new long[] {0, 3600000},
+            new float[] {0, 3600}, 2);
+      }
+      avg = new Query(dir).select("z").range(0, 3600000)
+          .aggregate(Query.Function.AVG).run();
+      assertEquals(1800.0, avg[0], 1e-9);
+    } finally {
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class RollupWriterTest {
+
+  private static void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  /**
+   * Three minutes of a saw tooth held by step and of a ramp interpolated
+   * linearly give the known aggregates of the one minute tier; the tier
+   * is selected by the number of the requested points.
+   */
+  @Test
+  public void testAppend() throws Exception {
+    System.out.println("append");
+    File dir = Files.createTempDirectory("history").toFile();
+    try {
+      int samples = 180;
+      long[] times = new long[samples];
+      float[] data = new float[2 * samples];
+      for (int i = 0; i < samples; i++) {
+        times[i] = i * 1000;
+        data[2 * i] = i % 60;
+        data[2 * i + 1] = i;
+      }
+      String[] labels = {"a", "b"};
+      boolean[] linear = {false, true};
+      for (long period : new long[] {60000, 900000}) {
+        try (RollupWriter writer = new RollupWriter(
+            dir, labels, linear, 1000, period, 0)) {
+          writer.append(times, data, 0, samples);
+        }
+      }
+
+      List<Catalog.Entry> entries
+          = Catalog.open(Rollups.getDirectory(dir, 60000)).getEntries();
+      assertEquals(1, entries.size());
+      try (HistoryStore store = HistoryStore.open(entries.get(0).getFile())) {
+        assertArrayEquals(new String[] {"a.min", "a.max", "a.avg", "a.count",
+            "b.min", "b.max", "b.avg", "b.count"}, store.getLabels());
+        assertEquals(3, store.getSampleCount());
+        assertEquals(60000, store.getSampleTimestamp(1));
+        float[] rows = new float[3 * 8];
+        store.read(FloatBuffer.wrap(rows), 0, 3);
+        for (int k = 0; k < 2; k++) {
+          // the step holds each value for one second
+          assertEquals(0, rows[8 * k], 0.0);
+          assertEquals(59, rows[8 * k + 1], 0.0);
+          assertEquals(29.5, rows[8 * k + 2], 1e-4);
+          assertEquals(60, rows[8 * k + 3], 0.0);
+          // the second half of the last second belongs to the next value
+          assertEquals(60 * k, rows[8 * k + 4], 0.0);
+          assertEquals(60 * k + 60, rows[8 * k + 5], 0.0);
+          assertEquals(60 * k + 30, rows[8 * k + 6], 1e-4);
+          assertEquals(60, rows[8 * k + 7], 0.0);
+        }
+        // the last sample holds for one sample period
+        assertEquals(179, rows[8 * 2 + 5], 0.0);
+      }
+
+      assertEquals(0, Rollups.select(dir, 0, 3600000, 100));
+      assertEquals(60000, Rollups.select(dir, 0, 3600000, 60));
+      assertEquals(900000, Rollups.select(dir, 0, 100 * 900000, 100));
+    } finally {
+      delete(dir);
+    }
+  }
+
+}
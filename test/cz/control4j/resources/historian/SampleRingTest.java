@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class SampleRingTest {
+
+  /**
+   * Full ring drops new samples and counts them.
+   */
+  @Test
+  public void testDrop() {
+    System.out.println("drop");
+    SampleRing ring = new SampleRing(2, 3);
+    assertEquals(4, ring.getCapacity());
+    for (int i = 0; i < 4; i++) {
+      assertTrue(ring.offer(i, new float[] {i, -i}));
+    }
+    assertFalse(ring.offer(4, new float[] {4, -4}));
+    assertEquals(1, ring.getDropped());
+    long[] times = new long[8];
+    float[] data = new float[16];
+    assertEquals(3, ring.drain(times, data, 3));
+    assertEquals(2, times[2]);
+    assertEquals(-2, data[5], 0.0);
+    assertTrue(ring.offer(5, new float[] {5, -5}));
+    assertEquals(2, ring.drain(times, data, 8));
+    assertEquals(3, times[0]);
+    assertEquals(5, times[1]);
+    assertEquals(0, ring.size());
+  }
+
+  /**
+   * Samples go from the producer to the consumer thread in order and
+   * complete.
+   */
+  @Test
+  public void testConcurrent() throws Exception {
+    System.out.println("concurrent");
+    final int samples = 1000000;
+    final SampleRing ring = new SampleRing(3, 64);
+    Thread producer = new Thread(() -> {
+      float[] sample = new float[3];
+      for (int i = 0; i < samples; i++) {
+        sample[0] = i;
+        sample[1] = i + 1;
+        sample[2] = i + 2;
+        while (!ring.offer(i, sample)) {
+          Thread.yield();
+        }
+      }
+    });
+    producer.start();
+    long[] times = new long[16];
+    float[] data = new float[48];
+    int expected = 0;
+    while (expected < samples) {
+      int length = ring.drain(times, data, 16);
+      for (int i = 0; i < length; i++) {
+        assertEquals(expected, times[i]);
+        assertEquals(expected + 2, data[i * 3 + 2], 0.0);
+        expected++;
+      }
+    }
+    producer.join();
+    assertEquals(0, ring.size());
+  }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 jilm
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cz.control4j.resources.historian;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author jilm
+ */
+public class TextOutputTest {
+
+  private static String format(float value) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    try (TextOutput out = new TextOutput(bos)) {
+      out.append(value);
+    }
+    return new String(bos.toByteArray(), StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Short values are printed in the plain decimal notation.
+   */
+  @Test
+  public void testPlain() throws IOException {
+    System.out.println("plain");
+    assertEquals("0", format(0f));
+    assertEquals("0.1", format(0.1f));
+    assertEquals("-12.5", format(-12.5f));
+    assertEquals("100", format(100f));
+    assertEquals("NaN", format(Float.NaN));
+  }
+
+  /**
+   * Every printed value must be parsed back to the same float.
+   */
+  @Test
+  public void testRoundTrip() throws IOException {
+    System.out.println("roundTrip");
+    Random random = new Random(7);
+    for (int i = 0; i < 100000; i++) {
+      float value = Float.intBitsToFloat(random.nextInt());
+      if (i % 2 == 0) {
+        value = (random.nextFloat() - 0.5f) * 2000f;
+      }
+      if (!Float.isNaN(value)) {
+        assertEquals(value, Float.parseFloat(format(value)), 0f);
+      }
+    }
+  }
+
+}